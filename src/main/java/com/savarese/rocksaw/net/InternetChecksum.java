@@ -0,0 +1,298 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>The InternetChecksum class computes the 16-bit one's complement
+ * checksum used by IPv4, ICMP, ICMPv6, UDP, and TCP (RFC 1071).</p>
+ *
+ * <p>Rather than summing one 16-bit word at a time, the data is
+ * consumed eight bytes at a time.  Each 64-bit word is split into its
+ * upper and lower 32-bit halves, which are added to a 64-bit
+ * accumulator.  Because one's complement addition is commutative and
+ * associative, the accumulator can be folded down to 16 bits once at
+ * the end without changing the result, and no carries are lost for
+ * any packet shorter than several gigabytes.</p>
+ *
+ * <p>Sums are exposed as {@code long} values so that partial sums
+ * (e.g., over a pseudo-header and a payload) can be combined before
+ * being folded with {@link #fold} or turned into a checksum with
+ * {@link #finish}.</p>
+ *
+ * <p>The {@code update} methods implement the incremental update of
+ * RFC 1624, equation 3, so that rewriting a sequence number, TTL, or
+ * address does not require the checksum to be recomputed over the
+ * entire packet.</p>
+ */
+public final class InternetChecksum {
+
+  private InternetChecksum() { }
+
+  /**
+   * Folds a partial sum down to 16 bits using end-around carry.
+   *
+   * @param sum The partial sum to fold.
+   * @return The folded 16-bit sum (not complemented).
+   */
+  public static int fold(long sum) {
+    sum = (sum & 0xffffffffL) + (sum >>> 32);
+    sum = (sum & 0xffffL) + (sum >>> 16);
+    sum = (sum & 0xffffL) + (sum >>> 16);
+    sum = (sum & 0xffffL) + (sum >>> 16);
+    return (int)sum;
+  }
+
+  /**
+   * Folds and complements a partial sum, producing a checksum value
+   * ready to be stored in a header.
+   *
+   * @param sum The partial sum.
+   * @return The 16-bit checksum.
+   */
+  public static int finish(long sum) {
+    return (~fold(sum) & 0xffff);
+  }
+
+  /**
+   * Adds a byte range to a partial sum.  The first byte of the range
+   * is treated as the high-order byte of a 16-bit word.  If the
+   * length is odd, the last byte is padded with zero.
+   *
+   * @param data The buffer containing the data.
+   * @param offset The offset of the first byte to sum.
+   * @param length The number of bytes to sum.
+   * @param sum The partial sum to add to (zero to start a new sum).
+   * @return The new partial sum.
+   * @exception IllegalArgumentException If the offset or length are invalid.
+   */
+  public static long sum(byte[] data, int offset, int length, long sum) {
+    if(offset < 0 || length < 0 || length > data.length - offset)
+      throw new IllegalArgumentException("Invalid offset or length.");
+
+    return __sumHeap(ByteBuffer.wrap(data), offset, length, sum);
+  }
+
+  /**
+   * Adds a range of a ByteBuffer to a partial sum.  The buffer's
+   * position, limit, and byte order are left unchanged.
+   *
+   * @param buffer The buffer containing the data.
+   * @param offset The absolute index of the first byte to sum.
+   * @param length The number of bytes to sum.
+   * @param sum The partial sum to add to (zero to start a new sum).
+   * @return The new partial sum.
+   * @exception IllegalArgumentException If the offset or length are invalid.
+   */
+  public static long sum(ByteBuffer buffer, int offset, int length, long sum) {
+    if(offset < 0 || length < 0 || length > buffer.limit() - offset)
+      throw new IllegalArgumentException("Invalid offset or length.");
+
+    if(buffer.hasArray())
+      return sum(buffer.array(), buffer.arrayOffset() + offset, length, sum);
+
+    // Duplicate so that setting the byte order does not leak to the caller.
+    return __sumDirect(buffer.duplicate().order(ByteOrder.BIG_ENDIAN),
+                       offset, length, sum);
+  }
+
+  // __sumHeap and __sumDirect are deliberately identical.  Keeping them
+  // separate gives each loop a monomorphic ByteBuffer type profile, which
+  // lets the JIT compile getLong down to a single load in both cases.
+
+  private static long __sumHeap(ByteBuffer buf, int offset, int length,
+                                long sum)
+  {
+    int end = offset + length;
+    int i   = offset;
+
+    for(int limit = end - 7; i < limit; i+=8) {
+      long word = buf.getLong(i);
+      sum+=((word >>> 32) + (word & 0xffffffffL));
+    }
+
+    for(int limit = end - 1; i < limit; i+=2)
+      sum+=(buf.getShort(i) & 0xffff);
+
+    if(i < end)
+      sum+=((buf.get(i) & 0xff) << 8);
+
+    return sum;
+  }
+
+  private static long __sumDirect(ByteBuffer buf, int offset, int length,
+                                  long sum)
+  {
+    int end = offset + length;
+    int i   = offset;
+
+    for(int limit = end - 7; i < limit; i+=8) {
+      long word = buf.getLong(i);
+      sum+=((word >>> 32) + (word & 0xffffffffL));
+    }
+
+    for(int limit = end - 1; i < limit; i+=2)
+      sum+=(buf.getShort(i) & 0xffff);
+
+    if(i < end)
+      sum+=((buf.get(i) & 0xff) << 8);
+
+    return sum;
+  }
+
+  /**
+   * Computes the checksum of a byte range.
+   *
+   * @param data The buffer containing the data.
+   * @param offset The offset of the first byte.
+   * @param length The number of bytes.
+   * @return The 16-bit checksum.
+   */
+  public static int checksum(byte[] data, int offset, int length) {
+    return finish(sum(data, offset, length, 0));
+  }
+
+  /**
+   * Computes the checksum of a range of a ByteBuffer.
+   *
+   * @param buffer The buffer containing the data.
+   * @param offset The absolute index of the first byte.
+   * @param length The number of bytes.
+   * @return The 16-bit checksum.
+   */
+  public static int checksum(ByteBuffer buffer, int offset, int length) {
+    return finish(sum(buffer, offset, length, 0));
+  }
+
+  /**
+   * Computes the partial sum of a TCP, UDP, or ICMPv6 pseudo-header.
+   * The address length determines whether the IPv4 (RFC 793) or the
+   * IPv6 (RFC 2460) pseudo-header is summed; both reduce to the same
+   * set of 16-bit words.
+   *
+   * @param source The source address (4 or 16 bytes).
+   * @param destination The destination address (same length as source).
+   * @param protocol The upper-layer protocol number.
+   * @param length The upper-layer packet length.
+   * @return The partial sum of the pseudo-header.
+   * @exception IllegalArgumentException If the address lengths are invalid.
+   */
+  public static long pseudoHeaderSum(byte[] source, byte[] destination,
+                                     int protocol, int length)
+  {
+    if((source.length != 4 && source.length != 16) ||
+       source.length != destination.length)
+      throw new IllegalArgumentException("Invalid address length.");
+
+    long sum = sum(source, 0, source.length, 0);
+    sum = sum(destination, 0, destination.length, sum);
+
+    return (sum + (length >>> 16) + (length & 0xffff) + protocol);
+  }
+
+  /**
+   * Computes a checksum and stores it in the packet.  The checksum
+   * field is zeroed before summing.
+   *
+   * @param data The packet data.
+   * @param offset The offset of the first byte covered by the checksum.
+   * @param length The number of bytes covered by the checksum.
+   * @param checksumOffset The offset of the 16-bit checksum field.
+   * @param sum A partial sum to include, such as a pseudo-header sum,
+   * or zero.
+   * @return The stored checksum.
+   */
+  public static int computeChecksum(byte[] data, int offset, int length,
+                                    int checksumOffset, long sum)
+  {
+    data[checksumOffset]     = 0;
+    data[checksumOffset + 1] = 0;
+
+    int checksum = finish(sum(data, offset, length, sum));
+
+    data[checksumOffset]     = (byte)(checksum >>> 8);
+    data[checksumOffset + 1] = (byte)checksum;
+
+    return checksum;
+  }
+
+  /**
+   * Incrementally updates a checksum after a 16-bit word of the
+   * covered data changed from {@code oldWord} to {@code newWord}
+   * (RFC 1624, equation 3: HC' = ~(~HC + ~m + m')).
+   *
+   * @param checksum The current checksum.
+   * @param oldWord The old 16-bit value.
+   * @param newWord The new 16-bit value.
+   * @return The updated checksum.
+   */
+  public static int update(int checksum, int oldWord, int newWord) {
+    long sum = (~checksum & 0xffff) + (~oldWord & 0xffff) + (newWord & 0xffff);
+    return finish(sum);
+  }
+
+  /**
+   * Incrementally updates a checksum after a 32-bit value of the
+   * covered data, such as an IPv4 address, changed.  The value must
+   * start on an even offset relative to the start of the checksummed
+   * data.
+   *
+   * @param checksum The current checksum.
+   * @param oldValue The old 32-bit value.
+   * @param newValue The new 32-bit value.
+   * @return The updated checksum.
+   */
+  public static int update32(int checksum, int oldValue, int newValue) {
+    long sum =
+      (~checksum & 0xffff) +
+      (~oldValue & 0xffff) + ((~oldValue >>> 16) & 0xffff) +
+      (newValue & 0xffff) + ((newValue >>> 16) & 0xffff);
+    return finish(sum);
+  }
+
+  /**
+   * Rewrites a 16-bit field of a packet and incrementally updates the
+   * checksum stored in the packet.  The field must start on an even
+   * offset relative to the start of the checksummed data.  For
+   * example, to change the TTL of an IPv4 header, rewrite the
+   * TTL/protocol word at offset 8 and update the header checksum at
+   * offset 10.
+   *
+   * @param data The packet data.
+   * @param checksumOffset The offset of the 16-bit checksum field.
+   * @param wordOffset The offset of the 16-bit field to rewrite.
+   * @param newWord The new value of the field.
+   * @return The updated checksum.
+   */
+  public static int updateWord(byte[] data, int checksumOffset,
+                               int wordOffset, int newWord)
+  {
+    int oldWord  = ((data[wordOffset] & 0xff) << 8) | (data[wordOffset + 1] & 0xff);
+    int checksum =
+      ((data[checksumOffset] & 0xff) << 8) | (data[checksumOffset + 1] & 0xff);
+
+    checksum = update(checksum, oldWord, newWord);
+
+    data[wordOffset]         = (byte)(newWord >>> 8);
+    data[wordOffset + 1]     = (byte)newWord;
+    data[checksumOffset]     = (byte)(checksum >>> 8);
+    data[checksumOffset + 1] = (byte)checksum;
+
+    return checksum;
+  }
+
+}
@@ -0,0 +1,643 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A {@link RawSocketBackend} that connects its endpoints to each
+ * other inside the JVM, so that code built on {@link RawSocket} can be
+ * tested without privileges or a network.  Every endpoint opened from
+ * the same instance shares one simulated host.</p>
+ *
+ * <p>A packet written to a loopback destination (127.0.0.0/8 or ::1)
+ * is delivered to every open endpoint of the same protocol family and
+ * protocol, exactly as the kernel delivers it to raw sockets.  Bound
+ * endpoints only receive packets addressed to their address, and ICMP
+ * filters are honored.  Unless disabled with {@link #setEchoReplies},
+ * the host also answers ICMP and ICMPv6 echo requests sent to any
+ * destination, so a ping of any address succeeds.  IPv4 packets are
+ * given an IP header as they would be by the kernel, unless the
+ * endpoint's protocol is IPPROTO_RAW or IP_HDRINCL is set, and ICMPv6
+ * checksums are computed on send.</p>
+ *
+ * <p>Each delivery can be delayed by a fixed latency plus uniform
+ * random jitter, dropped with a loss probability, or held back by an
+ * extra delay to reorder it behind later packets.  The random choices
+ * come from a single generator that may be seeded with {@link
+ * #setSeed} for reproducible runs.  Each endpoint queues at most
+ * {@link #setQueueSize} packets; further packets are counted as
+ * overflows and dropped, like a full socket receive buffer.  Instances
+ * are thread safe.</p>
+ */
+public class LoopbackBackend implements RawSocketBackend {
+
+  /** The default number of packets queued per endpoint. */
+  public static final int DEFAULT_QUEUE_SIZE = 4096;
+
+  private static final int __IPPROTO_ICMP   = 1;
+  private static final int __IPPROTO_ICMPV6 = 58;
+  private static final int __IPPROTO_RAW    = 255;
+
+  private static final byte[] __LOOPBACK4 = { 127, 0, 0, 1 };
+  private static final byte[] __LOOPBACK6 =
+    { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+
+  private final List<LocalEndpoint> __endpoints;
+  private final Random __random;
+  private final AtomicLong __order;
+  private final LongAdder __sent, __delivered, __lost, __overflows;
+  private volatile long __latency, __jitter, __reorderDelay;
+  private volatile double __lossRate, __reorderRate;
+  private volatile boolean __echoReplies;
+  private volatile int __queueSize;
+
+  /** Creates a backend with no latency, loss or reordering. */
+  public LoopbackBackend() {
+    __endpoints   = new CopyOnWriteArrayList<LocalEndpoint>();
+    __random      = new Random();
+    __order       = new AtomicLong();
+    __sent        = new LongAdder();
+    __delivered   = new LongAdder();
+    __lost        = new LongAdder();
+    __overflows   = new LongAdder();
+    __echoReplies = true;
+    __queueSize   = DEFAULT_QUEUE_SIZE;
+  }
+
+  /**
+   * Delays every delivery by a latency plus a uniformly distributed
+   * jitter.  Jitter alone can reorder packets sent closer together
+   * than the jitter.
+   *
+   * @param latencyNanos The fixed delay in nanoseconds.
+   * @param jitterNanos The largest additional random delay in
+   * nanoseconds.
+   * @exception IllegalArgumentException If a delay is negative.
+   */
+  public void setLatency(long latencyNanos, long jitterNanos)
+    throws IllegalArgumentException
+  {
+    if(latencyNanos < 0 || jitterNanos < 0)
+      throw new IllegalArgumentException("Invalid delay.");
+
+    __latency = latencyNanos;
+    __jitter  = jitterNanos;
+  }
+
+  /** @return The fixed delivery delay in nanoseconds. */
+  public long getLatencyNanos() {
+    return __latency;
+  }
+
+  /** @return The largest random delivery delay in nanoseconds. */
+  public long getJitterNanos() {
+    return __jitter;
+  }
+
+  /**
+   * Sets the probability that a delivery is dropped.
+   *
+   * @param rate The loss probability, from 0 to 1.
+   * @exception IllegalArgumentException If rate is out of range.
+   */
+  public void setLossRate(double rate) throws IllegalArgumentException {
+    if(!(rate >= 0 && rate <= 1))
+      throw new IllegalArgumentException("Invalid loss rate.");
+
+    __lossRate = rate;
+  }
+
+  /** @return The loss probability. */
+  public double getLossRate() {
+    return __lossRate;
+  }
+
+  /**
+   * Sets the probability that a delivery is held back by an extra
+   * delay, so that packets sent after it within that delay arrive
+   * first.
+   *
+   * @param rate The reorder probability, from 0 to 1.
+   * @param delayNanos The extra delay in nanoseconds.
+   * @exception IllegalArgumentException If a value is out of range.
+   */
+  public void setReorderRate(double rate, long delayNanos)
+    throws IllegalArgumentException
+  {
+    if(!(rate >= 0 && rate <= 1) || delayNanos < 0)
+      throw new IllegalArgumentException("Invalid reorder rate or delay.");
+
+    __reorderRate  = rate;
+    __reorderDelay = delayNanos;
+  }
+
+  /** @return The reorder probability. */
+  public double getReorderRate() {
+    return __reorderRate;
+  }
+
+  /**
+   * Sets whether the simulated host answers echo requests.  The
+   * default is true.
+   *
+   * @param reply True to answer echo requests, false not to.
+   */
+  public void setEchoReplies(boolean reply) {
+    __echoReplies = reply;
+  }
+
+  /** @return True if the simulated host answers echo requests. */
+  public boolean getEchoReplies() {
+    return __echoReplies;
+  }
+
+  /**
+   * Sets the largest number of packets queued per endpoint.  The
+   * default is {@link #DEFAULT_QUEUE_SIZE}.
+   *
+   * @param size The queue size.
+   * @exception IllegalArgumentException If size is not positive.
+   */
+  public void setQueueSize(int size) throws IllegalArgumentException {
+    if(size <= 0)
+      throw new IllegalArgumentException("Invalid queue size.");
+
+    __queueSize = size;
+  }
+
+  /** @return The largest number of packets queued per endpoint. */
+  public int getQueueSize() {
+    return __queueSize;
+  }
+
+  /**
+   * Seeds the generator behind loss, jitter and reordering, so that a
+   * single-threaded sequence of writes is affected the same way in
+   * every run.
+   *
+   * @param seed The seed.
+   */
+  public void setSeed(long seed) {
+    synchronized(__random) {
+      __random.setSeed(seed);
+    }
+  }
+
+  /** @return The number of packets written to endpoints. */
+  public long getSentCount() {
+    return __sent.sum();
+  }
+
+  /** @return The number of packets queued for reading by endpoints. */
+  public long getDeliveredCount() {
+    return __delivered.sum();
+  }
+
+  /** @return The number of deliveries dropped by the loss rate. */
+  public long getLostCount() {
+    return __lost.sum();
+  }
+
+  /** @return The number of deliveries dropped by full queues. */
+  public long getOverflowCount() {
+    return __overflows.sum();
+  }
+
+  public Endpoint open(int protocolFamily, int protocol)
+    throws IOException
+  {
+    if(protocolFamily != RawSocket.PF_INET &&
+       protocolFamily != RawSocket.PF_INET6)
+      throw new SocketException("Unsupported protocol family.");
+
+    if(protocol < 0 || protocol > 255)
+      throw new SocketException("Invalid protocol.");
+
+    LocalEndpoint endpoint = new LocalEndpoint(protocolFamily, protocol);
+
+    __endpoints.add(endpoint);
+
+    return endpoint;
+  }
+
+  private static boolean __isLoopback(byte[] address) {
+    if(address.length == 4)
+      return (address[0] == 127);
+    return Arrays.equals(address, __LOOPBACK6);
+  }
+
+  private static boolean __isWildcard(byte[] address) {
+    for(byte b : address) {
+      if(b != 0)
+        return false;
+    }
+    return true;
+  }
+
+  // Builds the IPv4 packet the kernel would deliver for a payload.
+  private static byte[] __ipv4(byte[] source, byte[] destination,
+                               int protocol, byte[] payload)
+  {
+    byte[] packet = new byte[20 + payload.length];
+
+    packet[0] = 0x45;
+    packet[8] = 64;
+    packet[9] = (byte)protocol;
+    System.arraycopy(source, 0, packet, 12, 4);
+    System.arraycopy(destination, 0, packet, 16, 4);
+    System.arraycopy(payload, 0, packet, 20, payload.length);
+    __finishIPv4(packet);
+
+    return packet;
+  }
+
+  private static void __finishIPv4(byte[] packet) {
+    packet[2] = (byte)(packet.length >>> 8);
+    packet[3] = (byte)packet.length;
+    InternetChecksum.computeChecksum(packet, 0, (packet[0] & 0x0f) << 2, 10,
+                                     0);
+  }
+
+  // Returns the echo reply to a packet, or null if it is not an echo
+  // request.
+  private static byte[] __echoReply(int family, int protocol,
+                                    byte[] packet, byte[] source,
+                                    byte[] destination)
+  {
+    if(family == RawSocket.PF_INET) {
+      int header = (packet[0] & 0x0f) << 2;
+
+      if(protocol != __IPPROTO_ICMP || packet.length < header + 8 ||
+         packet[header] != 8)
+        return null;
+
+      byte[] reply = packet.clone();
+
+      System.arraycopy(destination, 0, reply, 12, 4);
+      System.arraycopy(source, 0, reply, 16, 4);
+      reply[header] = 0;
+      InternetChecksum.computeChecksum(reply, header, reply.length - header,
+                                       header + 2, 0);
+      __finishIPv4(reply);
+
+      return reply;
+    }
+
+    if(protocol != __IPPROTO_ICMPV6 || packet.length < 8 ||
+       packet[0] != (byte)128)
+      return null;
+
+    byte[] reply = packet.clone();
+
+    reply[0] = (byte)129;
+    InternetChecksum.computeChecksum(reply, 0, reply.length, 2,
+      InternetChecksum.pseudoHeaderSum(destination, source, protocol,
+                                       reply.length));
+
+    return reply;
+  }
+
+  private long __delay() {
+    double jitter, reorder;
+
+    synchronized(__random) {
+      jitter  = __random.nextDouble();
+      reorder = __random.nextDouble();
+    }
+
+    long delay = __latency + (long)(jitter * __jitter);
+
+    if(reorder < __reorderRate)
+      delay+=__reorderDelay;
+
+    return delay;
+  }
+
+  private boolean __lose() {
+    double rate = __lossRate;
+
+    if(rate <= 0)
+      return false;
+
+    synchronized(__random) {
+      return (__random.nextDouble() < rate);
+    }
+  }
+
+  private void __deliver(int family, int protocol, byte[] packet,
+                         byte[] source, byte[] destination)
+  {
+    long now = System.nanoTime();
+
+    for(LocalEndpoint endpoint : __endpoints) {
+      if(endpoint.__family != family || endpoint.__protocol != protocol ||
+         !endpoint.__accepts(packet, destination))
+        continue;
+
+      if(__lose()) {
+        __lost.increment();
+        continue;
+      }
+
+      endpoint.__enqueue(new Packet(packet, source, now + __delay(),
+                                    __order.getAndIncrement()));
+    }
+  }
+
+  private static final class Packet implements Comparable<Packet> {
+    final byte[] data, source;
+    final long due, order;
+
+    Packet(byte[] data, byte[] source, long due, long order) {
+      this.data   = data;
+      this.source = source;
+      this.due    = due;
+      this.order  = order;
+    }
+
+    public int compareTo(Packet packet) {
+      long diff = due - packet.due;
+
+      if(diff == 0)
+        diff = order - packet.order;
+
+      return (diff < 0 ? -1 : (diff > 0 ? 1 : 0));
+    }
+  }
+
+  private final class LocalEndpoint implements Endpoint {
+    final int __family, __protocol;
+    private final ReentrantLock __lock;
+    private final Condition __ready;
+    private final PriorityQueue<Packet> __queue;
+    private final ConcurrentHashMap<String, Object> __options;
+    private volatile byte[] __bound;
+    private volatile boolean __closed;
+
+    LocalEndpoint(int family, int protocol) {
+      __family   = family;
+      __protocol = protocol;
+      __lock     = new ReentrantLock();
+      __ready    = __lock.newCondition();
+      __queue    = new PriorityQueue<Packet>();
+      __options  = new ConcurrentHashMap<String, Object>();
+    }
+
+    private int __addressLength() {
+      return (__family == RawSocket.PF_INET6 ? 16 : 4);
+    }
+
+    private void __checkOpen() throws SocketException {
+      if(__closed)
+        throw new SocketException("Socket closed.");
+    }
+
+    private void __checkAddress(byte[] address) throws SocketException {
+      if(address.length != __addressLength())
+        throw new SocketException("Invalid address length.");
+    }
+
+    boolean __accepts(byte[] packet, byte[] destination) {
+      byte[] bound = __bound;
+
+      if(__closed || (bound != null && !Arrays.equals(bound, destination)))
+        return false;
+
+      if(__family == RawSocket.PF_INET) {
+        int header = (packet[0] & 0x0f) << 2;
+        Object filter = __options.get("ICMP_FILTER");
+
+        return (__protocol != __IPPROTO_ICMP || filter == null ||
+                packet.length <= header || (packet[header] & 0xff) >= 32 ||
+                ((Integer)filter & (1 << packet[header])) == 0);
+      }
+
+      int[] filter = (int[])__options.get("ICMP6_FILTER");
+
+      if(__protocol != __IPPROTO_ICMPV6 || filter == null ||
+         packet.length == 0)
+        return true;
+
+      int type = packet[0] & 0xff;
+
+      return ((filter[type >>> 5] & (1 << (type & 31))) == 0);
+    }
+
+    void __enqueue(Packet packet) {
+      __lock.lock();
+
+      try {
+        if(__closed)
+          return;
+
+        if(__queue.size() >= __queueSize) {
+          __overflows.increment();
+          return;
+        }
+
+        __queue.add(packet);
+        __delivered.increment();
+        __ready.signalAll();
+      } finally {
+        __lock.unlock();
+      }
+    }
+
+    public void bind(byte[] address) throws IOException {
+      __checkOpen();
+      __checkAddress(address);
+      __bound = (__isWildcard(address) ? null : address.clone());
+    }
+
+    public int receive(ByteBuffer buffer, byte[] source, long timeoutNanos)
+      throws IOException, InterruptedIOException
+    {
+      long deadline = System.nanoTime() + timeoutNanos;
+
+      __lock.lock();
+
+      try {
+        while(true) {
+          __checkOpen();
+
+          Packet packet = __queue.peek();
+          long now  = System.nanoTime();
+          long wait = (packet != null ? packet.due - now : Long.MAX_VALUE);
+
+          if(wait <= 0) {
+            __queue.poll();
+
+            int length = Math.min(packet.data.length, buffer.remaining());
+
+            buffer.duplicate().put(packet.data, 0, length);
+
+            if(source != null && source.length == packet.source.length)
+              System.arraycopy(packet.source, 0, source, 0,
+                               source.length);
+
+            return length;
+          }
+
+          if(timeoutNanos >= 0) {
+            long remaining = deadline - now;
+
+            if(remaining <= 0)
+              throw new InterruptedIOException("Receive timed out.");
+
+            wait = Math.min(wait, remaining);
+          }
+
+          try {
+            __ready.awaitNanos(wait);
+          } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while receiving.");
+          }
+        }
+      } finally {
+        __lock.unlock();
+      }
+    }
+
+    public int send(ByteBuffer buffer, byte[] destination)
+      throws IOException
+    {
+      __checkOpen();
+      __checkAddress(destination);
+
+      byte[] payload = new byte[buffer.remaining()];
+      byte[] bound   = __bound;
+      byte[] source  = (bound != null ? bound :
+                        (__family == RawSocket.PF_INET6 ?
+                         __LOOPBACK6 : __LOOPBACK4));
+      int protocol   = __protocol;
+      byte[] packet;
+
+      buffer.duplicate().get(payload);
+
+      if(__family == RawSocket.PF_INET) {
+        if(protocol == __IPPROTO_RAW ||
+           Boolean.TRUE.equals(__options.get("IP_HDRINCL")))
+        {
+          if(payload.length < 20 || (payload[0] & 0xf0) != 0x40 ||
+             ((payload[0] & 0x0f) << 2) > payload.length)
+            throw new SocketException("Invalid argument");
+
+          packet   = payload;
+          protocol = packet[9] & 0xff;
+
+          // Like the kernel, fill in a missing source address.
+          if(__isWildcard(Arrays.copyOfRange(packet, 12, 16)))
+            System.arraycopy(source, 0, packet, 12, 4);
+          else
+            source = Arrays.copyOfRange(packet, 12, 16);
+
+          __finishIPv4(packet);
+        } else
+          packet = __ipv4(source, destination, protocol, payload);
+      } else {
+        Object option = __options.get("IPV6_CHECKSUM");
+        int offset = (protocol == __IPPROTO_ICMPV6 ? 2 :
+                      (option != null ? (Integer)option : -1));
+
+        packet = payload;
+
+        if(offset >= 0 && offset + 2 <= packet.length)
+          InternetChecksum.computeChecksum(packet, 0, packet.length, offset,
+            InternetChecksum.pseudoHeaderSum(source, destination, protocol,
+                                             packet.length));
+      }
+
+      __sent.increment();
+
+      if(__isLoopback(destination))
+        __deliver(__family, protocol, packet, source, destination);
+
+      if(__echoReplies) {
+        byte[] reply =
+          __echoReply(__family, protocol, packet, source, destination);
+
+        if(reply != null)
+          __deliver(__family, protocol, reply, destination.clone(), source);
+      }
+
+      return payload.length;
+    }
+
+    public void setOption(String name, Object value)
+      throws UnsupportedOperationException, SocketException
+    {
+      __checkOpen();
+      __options.put(name, (value instanceof int[] ?
+                           ((int[])value).clone() : value));
+    }
+
+    public Object getOption(String name)
+      throws UnsupportedOperationException, SocketException
+    {
+      __checkOpen();
+
+      Object value = __options.get(name);
+
+      if(value instanceof int[])
+        return ((int[])value).clone();
+
+      if(value != null)
+        return value;
+
+      if(name.equals("ICMP6_FILTER"))
+        return new int[8];
+      if(name.equals("IPV6_CHECKSUM"))
+        return Integer.valueOf(__protocol == __IPPROTO_ICMPV6 ? 2 : -1);
+      if(name.equals("ICMP_FILTER") || name.endsWith("TIMEO"))
+        return Integer.valueOf(0);
+      if(name.equals("SO_RCVBUF") || name.equals("SO_SNDBUF"))
+        return Integer.valueOf(__queueSize * 2048);
+      if(name.equals("IP_HDRINCL"))
+        return Boolean.valueOf(__protocol == __IPPROTO_RAW);
+
+      throw new UnsupportedOperationException("'" + name + "' not supported");
+    }
+
+    public void close() throws IOException {
+      __lock.lock();
+
+      try {
+        __closed = true;
+        __queue.clear();
+        __ready.signalAll();
+      } finally {
+        __lock.unlock();
+      }
+
+      __endpoints.remove(this);
+    }
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * <p>A fixed-size off-heap buffer drawn from a {@link
+ * PacketBufferPool}.  The buffer is reference counted: it is acquired
+ * with a count of one, each thread or queue it is handed to should
+ * {@link #retain} it, and each holder must {@link #release} it exactly
+ * once when done.  When the count drops to zero the buffer returns to
+ * its pool and must no longer be used.</p>
+ *
+ * <p>The underlying {@link ByteBuffer} is direct, so it can be passed
+ * to {@link RawSocket#read(ByteBuffer, byte[])} and {@link
+ * RawSocket#write(java.net.InetAddress, ByteBuffer)}, and to {@link
+ * RawSocket#write(PacketBuffer[], byte[], int, int)} in batches,
+ * without copying packet data through the Java heap.</p>
+ */
+public final class PacketBuffer {
+
+  private static final AtomicIntegerFieldUpdater<PacketBuffer> __REFS =
+    AtomicIntegerFieldUpdater.newUpdater(PacketBuffer.class, "__refs");
+
+  private final PacketBufferPool __pool;
+  private final ByteBuffer __buffer;
+  private final long __address;
+  private volatile int __refs;
+  PacketBufferPool.Leak __leak;
+
+  PacketBuffer(PacketBufferPool pool, ByteBuffer buffer, long address) {
+    __pool    = pool;
+    __buffer  = buffer;
+    __address = address;
+  }
+
+  long __address() {
+    return __address;
+  }
+
+  void __acquire() {
+    ((Buffer)__buffer).clear();
+    __refs = 1;
+  }
+
+  ByteBuffer __checkedBuffer() throws IllegalStateException {
+    if(__refs <= 0)
+      throw new IllegalStateException("Buffer has been released.");
+
+    return __buffer;
+  }
+
+  /**
+   * Returns the underlying direct buffer.  Its position and limit
+   * belong to the current holders and are reset when the buffer is
+   * next acquired from the pool.
+   *
+   * @return The underlying direct buffer.
+   * @exception IllegalStateException If the buffer has been released.
+   */
+  public ByteBuffer buffer() throws IllegalStateException {
+    return __checkedBuffer();
+  }
+
+  /** @return The size of the buffer in bytes. */
+  public int capacity() {
+    return __buffer.capacity();
+  }
+
+  /** @return The pool the buffer belongs to. */
+  public PacketBufferPool getPool() {
+    return __pool;
+  }
+
+  /** @return The number of holders, or zero if the buffer is free. */
+  public int refCount() {
+    return __refs;
+  }
+
+  /**
+   * Adds a holder, typically before handing the buffer to another
+   * thread.
+   *
+   * @return This buffer.
+   * @exception IllegalStateException If the buffer has been released.
+   */
+  public PacketBuffer retain() throws IllegalStateException {
+    int refs;
+
+    do {
+      refs = __refs;
+
+      if(refs <= 0)
+        throw new IllegalStateException("Buffer has been released.");
+    } while(!__REFS.compareAndSet(this, refs, refs + 1));
+
+    return this;
+  }
+
+  /**
+   * Removes a holder and returns the buffer to its pool if it was the
+   * last one.
+   *
+   * @return True if the buffer was returned to its pool.
+   * @exception IllegalStateException If the buffer has already been
+   * released by all of its holders.
+   */
+  public boolean release() throws IllegalStateException {
+    int refs;
+
+    do {
+      refs = __refs;
+
+      if(refs <= 0)
+        throw new IllegalStateException("Buffer has been released.");
+    } while(!__REFS.compareAndSet(this, refs, refs - 1));
+
+    if(refs > 1)
+      return false;
+
+    __pool.__recycle(this);
+
+    return true;
+  }
+
+}
@@ -0,0 +1,403 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A pool of fixed-size off-heap {@link PacketBuffer}s for raw
+ * socket I/O, so that readers and writers do not allocate a buffer
+ * per packet.</p>
+ *
+ * <p>Buffers are carved out of slabs of direct memory aligned to a
+ * page boundary, and each buffer is rounded up to a multiple of the
+ * cache line size so that no two buffers share a cache line.  Slabs
+ * are allocated on demand, up to an optional limit, and are never
+ * freed while the pool is reachable.</p>
+ *
+ * <p>Each thread keeps a cache of two magazines, fixed-size stacks of
+ * free buffers, so that most acquires and releases touch no shared
+ * state.  When both of a thread's magazines are empty (or full), it
+ * exchanges one with a full (or empty) magazine from a shared depot,
+ * which is a lock-free stack.  Only slab allocation takes a lock.
+ * Buffers released on a thread other than the one that acquired them
+ * migrate through the depot.  Buffers cached by a thread that exits
+ * are lost to the pool unless the thread calls {@link
+ * #flushThreadCache} first.</p>
+ *
+ * <p>In debug mode, enabled by the constructor or by the
+ * {@code rocksaw.pool.debug} system property, the pool records where
+ * each buffer was acquired and detects buffers that become unreachable
+ * without having been released.  Such leaks are counted and their
+ * acquisition sites are kept (see {@link #getLeakSites}).  Their
+ * memory is not returned to the pool, because whoever dropped the
+ * PacketBuffer may still hold its ByteBuffer and would then share it
+ * with the buffer's next holder.  Leaked buffers therefore remain
+ * outstanding, in debug mode as without it.  Debug mode makes
+ * acquisition considerably slower.</p>
+ */
+public final class PacketBufferPool {
+
+  /** The default buffer size, which holds an Ethernet-sized packet. */
+  public static final int DEFAULT_BUFFER_SIZE = 2048;
+
+  /** The default slab size, 1 MiB. */
+  public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+  /** The number of buffers in a magazine. */
+  public static final int MAGAZINE_SIZE = 32;
+
+  private static final int __PAGE_SIZE   = 4096;
+  private static final int __CACHE_LINE  = 64;
+  private static final int __MAX_LEAK_SITES = 16;
+
+  static final class Magazine {
+    final PacketBuffer[] rounds = new PacketBuffer[MAGAZINE_SIZE];
+    int count;
+
+    PacketBuffer pop() {
+      PacketBuffer buffer = rounds[--count];
+      rounds[count] = null;
+      return buffer;
+    }
+
+    void push(PacketBuffer buffer) {
+      rounds[count++] = buffer;
+    }
+  }
+
+  static final class Cache {
+    Magazine loaded = new Magazine(), previous = new Magazine();
+  }
+
+  // Records where a buffer was acquired, for reporting it if it
+  // becomes unreachable without having been released.
+  static final class Leak extends PhantomReference<PacketBuffer> {
+    final Throwable site;
+
+    Leak(PacketBuffer packet, ReferenceQueue<PacketBuffer> queue) {
+      super(packet, queue);
+      this.site = new Throwable("Buffer acquired here was never released.");
+    }
+  }
+
+  private final int __bufferSize, __stride, __buffersPerSlab, __maxSlabs;
+  private final boolean __debug;
+  private final ConcurrentLinkedDeque<Magazine> __full, __empty;
+  private final ThreadLocal<Cache> __cache;
+  private final List<ByteBuffer> __slabs;
+  private final LongAdder __outstanding;
+
+  private final ReferenceQueue<PacketBuffer> __leakQueue;
+  private final Set<Leak> __tracked;
+  private final LongAdder __leaks;
+  private final List<Throwable> __leakSites;
+
+  /**
+   * Creates an unbounded pool of {@link #DEFAULT_BUFFER_SIZE} byte
+   * buffers.
+   */
+  public PacketBufferPool() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates an unbounded pool with {@link #DEFAULT_SLAB_SIZE} slabs
+   * whose debug mode is set by the {@code rocksaw.pool.debug} system
+   * property.
+   *
+   * @param bufferSize The size of each buffer in bytes.
+   * @exception IllegalArgumentException If bufferSize is out of range.
+   */
+  public PacketBufferPool(int bufferSize) throws IllegalArgumentException {
+    this(bufferSize, Math.max(1, DEFAULT_SLAB_SIZE / Math.max(1, bufferSize)),
+         Integer.MAX_VALUE, Boolean.getBoolean("rocksaw.pool.debug"));
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param bufferSize The size of each buffer in bytes.  Buffers are
+   * spaced a multiple of 64 bytes apart.
+   * @param buffersPerSlab The number of buffers carved out of each slab.
+   * @param maxSlabs The largest number of slabs to allocate.
+   * @param debug True to enable leak detection.
+   * @exception IllegalArgumentException If a value is out of range.
+   */
+  public PacketBufferPool(int bufferSize, int buffersPerSlab, int maxSlabs,
+                          boolean debug)
+    throws IllegalArgumentException
+  {
+    if(bufferSize <= 0 || bufferSize > (1 << 24))
+      throw new IllegalArgumentException("Invalid buffer size.");
+
+    int stride = (bufferSize + __CACHE_LINE - 1) & -__CACHE_LINE;
+
+    if(buffersPerSlab <= 0 || maxSlabs <= 0 ||
+       buffersPerSlab > (Integer.MAX_VALUE - __PAGE_SIZE) / stride)
+      throw new IllegalArgumentException("Invalid slab size.");
+
+    __bufferSize     = bufferSize;
+    __stride         = stride;
+    __buffersPerSlab = buffersPerSlab;
+    __maxSlabs       = maxSlabs;
+    __debug          = debug;
+    __full           = new ConcurrentLinkedDeque<Magazine>();
+    __empty          = new ConcurrentLinkedDeque<Magazine>();
+    __cache          = new ThreadLocal<Cache>() {
+        protected Cache initialValue() {
+          return new Cache();
+        }
+      };
+    __slabs          = new ArrayList<ByteBuffer>();
+    __outstanding    = new LongAdder();
+
+    __leakQueue = (debug ? new ReferenceQueue<PacketBuffer>() : null);
+    __tracked   =
+      (debug ? Collections.newSetFromMap(new ConcurrentHashMap<Leak,Boolean>())
+       : null);
+    __leaks     = new LongAdder();
+    __leakSites = new ArrayList<Throwable>();
+  }
+
+  /** @return The size of each buffer in bytes. */
+  public int getBufferSize() {
+    return __bufferSize;
+  }
+
+  /** @return True if leak detection is enabled. */
+  public boolean isDebug() {
+    return __debug;
+  }
+
+  /** @return The number of slabs allocated so far. */
+  public int getSlabCount() {
+    synchronized(__slabs) {
+      return __slabs.size();
+    }
+  }
+
+  /** @return The number of buffers carved out of the slabs so far. */
+  public long getCapacity() {
+    return (long)getSlabCount() * __buffersPerSlab;
+  }
+
+  /**
+   * @return The number of buffers that have been acquired and not yet
+   * returned to the pool.
+   */
+  public long getOutstandingCount() {
+    return __outstanding.sum();
+  }
+
+  /** @return The number of leaked buffers detected in debug mode. */
+  public long getLeakCount() {
+    return __leaks.sum();
+  }
+
+  /**
+   * @return Where the most recently detected leaked buffers were
+   * acquired, oldest first.  At most 16 sites are kept.
+   */
+  public List<Throwable> getLeakSites() {
+    synchronized(__leakSites) {
+      return new ArrayList<Throwable>(__leakSites);
+    }
+  }
+
+  // The depot's full stack holds only non-empty magazines, and its
+  // empty stack only empty ones.  A magazine belongs to at most one
+  // thread cache or depot stack at a time.
+
+  // Allocates a slab, keeping one magazine of it for the caller and
+  // putting the rest in the depot.  Returns null at the slab limit.
+  private Magazine __grow() {
+    synchronized(__slabs) {
+      Magazine magazine = __full.poll();
+
+      if(magazine != null)
+        return magazine;
+
+      if(__slabs.size() >= __maxSlabs)
+        return null;
+
+      int size = __buffersPerSlab * __stride;
+      ByteBuffer raw = ByteBuffer.allocateDirect(size + __PAGE_SIZE);
+      long base = RawSocket.__getDirectBufferAddress(raw);
+      int pad = (int)(-base & (__PAGE_SIZE - 1));
+
+      ((Buffer)raw).position(pad);
+      ((Buffer)raw).limit(pad + size);
+
+      ByteBuffer slab = raw.slice();
+
+      __slabs.add(slab);
+      base+=pad;
+
+      for(int i = __buffersPerSlab - 1; i >= 0; --i) {
+        ByteBuffer buffer = slab.duplicate();
+
+        ((Buffer)buffer).position(i * __stride);
+        ((Buffer)buffer).limit(i * __stride + __bufferSize);
+
+        if(magazine == null)
+          magazine = new Magazine();
+        else if(magazine.count == MAGAZINE_SIZE) {
+          __full.push(magazine);
+          magazine = new Magazine();
+        }
+
+        magazine.push(new PacketBuffer(this, buffer.slice(),
+                                       base + i * __stride));
+      }
+
+      return magazine;
+    }
+  }
+
+  private void __detectLeaks() {
+    Reference<? extends PacketBuffer> ref;
+
+    while((ref = __leakQueue.poll()) != null) {
+      Leak leak = (Leak)ref;
+
+      if(!__tracked.remove(leak))
+        continue;
+
+      __leaks.increment();
+
+      synchronized(__leakSites) {
+        if(__leakSites.size() == __MAX_LEAK_SITES)
+          __leakSites.remove(0);
+        __leakSites.add(leak.site);
+      }
+    }
+  }
+
+  /**
+   * Acquires a buffer with a reference count of one, a position of
+   * zero, and a limit equal to its capacity.  The buffer's contents
+   * are whatever its previous holder left in it.
+   *
+   * @return A buffer, or null if the pool has reached its slab limit
+   * and every buffer is in use.
+   */
+  public PacketBuffer acquire() {
+    if(__debug)
+      __detectLeaks();
+
+    Cache cache = __cache.get();
+    Magazine loaded = cache.loaded;
+
+    if(loaded.count == 0) {
+      if(cache.previous.count > 0) {
+        cache.loaded   = cache.previous;
+        cache.previous = loaded;
+      } else {
+        Magazine full = __full.poll();
+
+        if(full == null && (full = __grow()) == null)
+          return null;
+
+        __empty.push(cache.previous);
+        cache.previous = loaded;
+        cache.loaded   = full;
+      }
+
+      loaded = cache.loaded;
+    }
+
+    PacketBuffer buffer = loaded.pop();
+
+    buffer.__acquire();
+    __outstanding.increment();
+
+    if(__debug) {
+      buffer.__leak = new Leak(buffer, __leakQueue);
+      __tracked.add(buffer.__leak);
+    }
+
+    return buffer;
+  }
+
+  private void __push(PacketBuffer buffer) {
+    Cache cache = __cache.get();
+    Magazine loaded = cache.loaded;
+
+    if(loaded.count == MAGAZINE_SIZE) {
+      if(cache.previous.count == 0) {
+        cache.loaded   = cache.previous;
+        cache.previous = loaded;
+      } else {
+        Magazine empty = __empty.poll();
+
+        if(empty == null)
+          empty = new Magazine();
+
+        __full.push(cache.previous);
+        cache.previous = loaded;
+        cache.loaded   = empty;
+      }
+
+      loaded = cache.loaded;
+    }
+
+    loaded.push(buffer);
+  }
+
+  void __recycle(PacketBuffer buffer) {
+    Leak leak = buffer.__leak;
+
+    if(leak != null) {
+      buffer.__leak = null;
+      __tracked.remove(leak);
+      leak.clear();
+    }
+
+    __outstanding.decrement();
+    __push(buffer);
+  }
+
+  /**
+   * Returns the buffers cached by the calling thread to the shared
+   * depot.  A thread that is about to exit, or that will not use the
+   * pool for a long time, should call this so that other threads can
+   * use its buffers.
+   */
+  public void flushThreadCache() {
+    Cache cache = __cache.get();
+
+    for(Magazine magazine : new Magazine[] { cache.loaded, cache.previous }) {
+      if(magazine.count > 0)
+        __full.push(magazine);
+      else
+        __empty.push(magazine);
+    }
+
+    __cache.remove();
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Receives a copy of every packet read from a {@link RawSocket}
+ * that has been given the sink with {@link RawSocket#setCaptureSink}.
+ * The sink is called on the reading thread after each successful read,
+ * so implementations must not block and should copy the data before
+ * returning, because the caller is free to reuse its buffer.</p>
+ *
+ * <p>A sink must not throw.  Failures to record a packet should be
+ * counted or remembered by the sink rather than interrupting the
+ * receive loop.  A single sink may be shared by several sockets and
+ * threads, in which case it must be thread safe.</p>
+ */
+public interface PacketCaptureSink {
+
+  /**
+   * Records a received packet.
+   *
+   * @param family The protocol family of the socket ({@link
+   * RawSocket#PF_INET} or {@link RawSocket#PF_INET6}).  IPv4 packet
+   * data includes the IP header; IPv6 packet data does not.
+   * @param protocol The protocol the socket was opened with.
+   * @param data The buffer holding the packet data.
+   * @param offset The offset of the packet data in the buffer.
+   * @param length The length of the packet data.
+   * @param source The source address of the packet, or null if the
+   * caller did not request it.
+   * @param info The packet metadata, or null if the packet was not
+   * read with {@link RawSocket#receive}.
+   */
+  void capture(int family, int protocol, byte[] data, int offset, int length,
+               byte[] source, PacketInfo info);
+
+  /**
+   * Records a received packet held in a buffer, such as a direct
+   * buffer from a {@link PacketBufferPool}.  The packet data is the
+   * remaining bytes of data, and the sink must leave the position and
+   * limit of data as it found them.  The default implementation copies
+   * the packet into a new array and calls the array overload, so
+   * sinks that record many packets read into buffers should override
+   * it.
+   *
+   * @param family The protocol family of the socket.
+   * @param protocol The protocol the socket was opened with.
+   * @param data The buffer holding the packet data.
+   * @param source The source address of the packet, or null if the
+   * caller did not request it.
+   * @param info The packet metadata, or null if the packet was not
+   * read with {@link RawSocket#receive}.
+   */
+  default void capture(int family, int protocol, ByteBuffer data,
+                       byte[] source, PacketInfo info)
+  {
+    byte[] packet = new byte[data.remaining()];
+
+    data.duplicate().get(packet);
+    capture(family, protocol, packet, 0, packet.length, source, info);
+  }
+
+}
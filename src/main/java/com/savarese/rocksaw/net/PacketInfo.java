@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+/**
+ * <p>Holds the metadata of a packet received with {@link
+ * RawSocket#receive}: its length, source
+ * address, and, if {@link RawSocket#setReceivePacketInfo} has been
+ * enabled, the local destination address, the index of the interface
+ * it arrived on, its TTL (IPv4) or hop limit (IPv6), and its type of
+ * service (IPv4) or traffic class (IPv6).</p>
+ *
+ * <p>A PacketInfo is meant to be allocated once and reused for every
+ * read, so its accessors return the internal address arrays rather
+ * than copies.  Values the kernel did not supply are reported as -1.
+ * Instances are not thread safe.</p>
+ */
+public final class PacketInfo {
+
+  // Indices into __metadata.  These must match RawSocket.c.
+  static final int INTERFACE   = 0;
+  static final int TTL         = 1;
+  static final int TOS         = 2;
+  static final int HAS_DST     = 3;
+  static final int COUNT       = 4;
+
+  private final byte[] __source4, __source6, __destination4, __destination6;
+  final int[] __metadata;
+  private int __family, __length;
+
+  /** Creates an empty PacketInfo. */
+  public PacketInfo() {
+    __source4      = new byte[4];
+    __source6      = new byte[16];
+    __destination4 = new byte[4];
+    __destination6 = new byte[16];
+    __metadata     = new int[COUNT];
+    __family       = -1;
+    __length       = -1;
+    clear();
+  }
+
+  /** Resets all values to their unknown state. */
+  public void clear() {
+    __length = -1;
+    __metadata[INTERFACE] = -1;
+    __metadata[TTL]       = -1;
+    __metadata[TOS]       = -1;
+    __metadata[HAS_DST]   = 0;
+  }
+
+  void __setFamily(int family) {
+    __family = family;
+  }
+
+  void __setLength(int length) {
+    __length = length;
+  }
+
+  byte[] __source() {
+    return (__family == RawSocket.PF_INET6 ? __source6 : __source4);
+  }
+
+  byte[] __destination() {
+    return (__family == RawSocket.PF_INET6 ? __destination6 : __destination4);
+  }
+
+  /**
+   * @return The protocol family of the socket the packet was read
+   * from, or -1 if no packet has been read.
+   */
+  public int getFamily() {
+    return __family;
+  }
+
+  /** @return The number of bytes read, or -1 if no packet has been read. */
+  public int getLength() {
+    return __length;
+  }
+
+  /**
+   * @return The source address of the packet (4 bytes for IPv4, 16
+   * for IPv6).  The array is reused by subsequent reads.
+   */
+  public byte[] getSourceAddress() {
+    return __source();
+  }
+
+  /**
+   * @return The local address the packet was sent to (4 bytes for
+   * IPv4, 16 for IPv6), which is all zeros if {@link
+   * #hasDestinationAddress} is false.  The array is reused by
+   * subsequent reads.
+   */
+  public byte[] getDestinationAddress() {
+    return __destination();
+  }
+
+  /**
+   * @return True if the kernel supplied the destination address.
+   */
+  public boolean hasDestinationAddress() {
+    return (__metadata[HAS_DST] != 0);
+  }
+
+  /**
+   * Returns the source address as an InetAddress.  Unlike {@link
+   * #getSourceAddress}, this allocates.
+   *
+   * @return The source address.
+   * @exception UnknownHostException If no packet has been read.
+   */
+  public InetAddress getSource() throws UnknownHostException {
+    return InetAddress.getByAddress(__source());
+  }
+
+  /**
+   * Returns the destination address as an InetAddress.  Unlike {@link
+   * #getDestinationAddress}, this allocates.
+   *
+   * @return The destination address, or null if it was not supplied.
+   * @exception UnknownHostException If no packet has been read.
+   */
+  public InetAddress getDestination() throws UnknownHostException {
+    return (hasDestinationAddress() ?
+            InetAddress.getByAddress(__destination()) : null);
+  }
+
+  /**
+   * @return The index of the interface the packet arrived on, or -1 if
+   * it was not supplied.
+   */
+  public int getInterfaceIndex() {
+    return __metadata[INTERFACE];
+  }
+
+  /**
+   * Looks up the interface the packet arrived on.
+   *
+   * @return The interface, or null if its index was not supplied or
+   * it no longer exists.
+   * @exception SocketException If an I/O error occurs.
+   */
+  public NetworkInterface getInterface() throws SocketException {
+    int index = getInterfaceIndex();
+    return (index < 0 ? null : NetworkInterface.getByIndex(index));
+  }
+
+  /**
+   * @return The IPv4 time-to-live or IPv6 hop limit of the packet as
+   * received, or -1 if it was not supplied.
+   */
+  public int getTTL() {
+    return __metadata[TTL];
+  }
+
+  /** Same as {@link #getTTL}. */
+  public int getHopLimit() {
+    return __metadata[TTL];
+  }
+
+  /**
+   * @return The IPv4 type of service or IPv6 traffic class of the
+   * packet, or -1 if it was not supplied.
+   */
+  public int getTrafficClass() {
+    return __metadata[TOS];
+  }
+
+}
@@ -21,6 +21,13 @@ import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.Inet6Address;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>The RawSocket class provides a strictly utilitarian API for
@@ -89,23 +96,61 @@ public class RawSocket {
 
   private static final int __UNDEFINED = -1;
 
+  private static volatile RawSocketBackend __defaultBackend =
+    __loadBackend(System.getProperty("rocksaw.backend"));
+
+  private static RawSocketBackend __loadBackend(String name) {
+    if(name == null || name.isEmpty() || name.equals("native"))
+      return null;
+    if(name.equals("loopback"))
+      return new LoopbackBackend();
+
+    try {
+      return (RawSocketBackend)Class.forName(name)
+        .getDeclaredConstructor().newInstance();
+    } catch(Exception e) {
+      throw new IllegalStateException("Cannot load backend " + name, e);
+    }
+  }
+
+  static final SocketTracer __tracer = SocketTracer.load();
+
+  private final RawSocketBackend __backend;
+  private volatile RawSocketBackend.Endpoint __endpoint;
   private int __socket;
-  private int __family;
+  private int __family, __protocol;
   private int __stimeout, __rtimeout;
-  private boolean __useSelectTimeout;
+  private boolean __useSelectTimeout, __datagram;
+  private volatile SpinBackoff __receiveSpin;
+  private volatile PacketCaptureSink __captureSink;
+  private final Map<RawSocketOption<?>, Object> __options;
 
   /**
    * Creates an uninitialized socket.  If the {@code os.name} system
    * property starts with the string "SunOS",
    * {@link #setUseSelectTimeout} is set to true (because Solaris does not
    * support socket send and receive timeouts), otherwise it is false
-   * by default.
+   * by default.  The socket uses the default backend (see {@link
+   * #setDefaultBackend}).
    */
   public RawSocket() {
+    this(__defaultBackend);
+  }
+
+  /**
+   * Creates an uninitialized socket that opens its endpoints from a
+   * backend instead of the native raw socket implementation.
+   *
+   * @param backend The backend, or null to use native raw sockets.
+   */
+  public RawSocket(RawSocketBackend backend) {
+    __backend = backend;
     __socket = __UNDEFINED;
     __family = __UNDEFINED;
+    __protocol = __UNDEFINED;
     __stimeout = 0;
     __rtimeout = 0;
+    __options = new ConcurrentHashMap<RawSocketOption<?>, Object>();
 
     String os = System.getProperty("os.name");
 
@@ -123,7 +168,45 @@ public class RawSocket {
    * @return True if the socket is open.
    */
   public boolean isOpen() {
-    return (__socket > 0);
+    return (__socket > 0 || __endpoint != null);
+  }
+
+  /**
+   * Sets the backend used by sockets created with {@link #RawSocket()}
+   * from now on.  The initial default is set by the {@code
+   * rocksaw.backend} system property, which may be {@code native} (or
+   * unset) for native raw sockets, {@code loopback} for a {@link
+   * LoopbackBackend}, or the name of a class implementing
+   * RawSocketBackend with a public no-argument constructor.
+   *
+   * @param backend The backend, or null to use native raw sockets.
+   */
+  public static void setDefaultBackend(RawSocketBackend backend) {
+    __defaultBackend = backend;
+  }
+
+  /**
+   * @return The backend used by sockets created with {@link
+   * #RawSocket()}, or null if they use native raw sockets.
+   */
+  public static RawSocketBackend getDefaultBackend() {
+    return __defaultBackend;
+  }
+
+  /**
+   * @return The backend of this socket, or null if it uses native raw
+   * sockets.
+   */
+  public RawSocketBackend getBackend() {
+    return __backend;
+  }
+
+  /**
+   * @return The protocol family the socket was opened with ({@link
+   * #PF_INET} or {@link #PF_INET6}), or -1 if it is not open.
+   */
+  public int getProtocolFamily() {
+    return __family;
   }
 
 
@@ -137,7 +220,7 @@ public class RawSocket {
    */
   private native static void __getErrorMessage(StringBuffer buffer);
 
-  private static String __getErrorMessage() {
+  static String __getErrorMessage() {
     StringBuffer buf = new StringBuffer();
     __getErrorMessage(buf);
     return buf.toString();
@@ -157,6 +240,31 @@ public class RawSocket {
     throw new InterruptedIOException(__getErrorMessage());
   }
 
+  private native static int __getErrorNumber();
+
+  // Reports a failed operation to the tracer and throws the exception
+  // matching errno.
+  private void __failed(String operation)
+    throws IOException, InterruptedIOException
+  {
+    boolean timeout = __isErrorEAGAIN();
+
+    __tracer.failed(this, operation, __getErrorNumber(), timeout);
+
+    if(timeout)
+      __throwInterruptedIOException();
+    else
+      __throwIOException();
+  }
+
+  int __getDescriptor() {
+    return __socket;
+  }
+
+  int __getProtocol() {
+    return __protocol;
+  }
+
   private int __getScopeId(InetAddress address) {
     if(__family == PF_INET6 && address instanceof Inet6Address) {
       return ((Inet6Address)address).getScopeId();
@@ -227,14 +335,119 @@ public class RawSocket {
   {
     if(isOpen())
       throw new IllegalStateException();
+
+    if(__backend != null) {
+      __endpoint = __backend.open(protocolFamily, protocol);
+      __family   = protocolFamily;
+      __protocol = protocol;
+      __tracer.opened(this);
+      return;
+    }
+
     __socket = __socket(protocolFamily, protocol);
 
     if(__socket < 0) {
       __socket = __UNDEFINED;
-      __throwIOException();
+      __failed("open");
+    }
+
+    __family   = protocolFamily;
+    __protocol = protocol;
+    __tracer.opened(this);
+  }
+
+
+  private native static int __datagramSocket(int family, int protocol);
+  private native static int __getLocalPort(int socket, int family);
+
+  /** The ICMP protocol number. */
+  public static final int IPPROTO_ICMP = 1;
+
+  /** The ICMPv6 protocol number. */
+  public static final int IPPROTO_ICMPV6 = 58;
+
+  /**
+   * <p>Opens an ICMP ({@link #PF_INET}) or ICMPv6 ({@link #PF_INET6})
+   * socket, preferring an unprivileged Linux "ping socket"
+   * ({@code SOCK_DGRAM}) and falling back to a raw socket when ping
+   * sockets are unavailable.  The kernel only permits ping sockets to
+   * processes whose group is in the {@code net.ipv4.ping_group_range}
+   * sysctl, which also governs ICMPv6.  Use {@link #isPingSocket} to
+   * find out which kind was opened.</p>
+   *
+   * <p>A ping socket can only send echo requests and only receives
+   * replies to its own requests (and errors about them), so a
+   * receiver no longer sees, and filters out, every ICMP message on
+   * the host.  The kernel computes the checksum and replaces the echo
+   * identifier with one it assigns to the socket (see {@link
+   * #getICMPIdentifier}).  Reads and writes otherwise behave as on a
+   * raw socket: IPv4 ping sockets deliver ICMP messages without the IP
+   * header, so reads are given a synthesized 20-byte header in front
+   * of the message.  Its TTL and type of service are zero unless
+   * reported by {@link #receive} with {@link #setReceivePacketInfo},
+   * and its destination is zero unless the packet destination was
+   * reported.  The IP_HDRINCL and ICMP_FILTER options are not
+   * supported on ping sockets.</p>
+   *
+   * <p>Sockets with a backend always open a backend endpoint.</p>
+   *
+   * @param protocolFamily The protocol family of the socket.
+   * @exception IllegalStateException If the object instance is
+   * already open.
+   * @exception IOException If neither kind of socket can be opened.
+   */
+  public void openICMP(int protocolFamily)
+    throws IllegalStateException, IOException
+  {
+    int protocol =
+      (protocolFamily == PF_INET6 ? IPPROTO_ICMPV6 : IPPROTO_ICMP);
+
+    if(isOpen())
+      throw new IllegalStateException();
+
+    if(__backend == null) {
+      int socket = __datagramSocket(protocolFamily, protocol);
+
+      if(socket >= 0) {
+        __socket   = socket;
+        __datagram = true;
+        __family   = protocolFamily;
+        __protocol = protocol;
+        __tracer.opened(this);
+        return;
+      }
     }
 
-    __family = protocolFamily;
+    open(protocolFamily, protocol);
+  }
+
+  /**
+   * @return True if the socket was opened as an ICMP ping socket by
+   * {@link #openICMP}, false if it is a raw socket.
+   */
+  public boolean isPingSocket() {
+    return __datagram;
+  }
+
+  /**
+   * Returns the ICMP echo identifier the kernel assigned to a ping
+   * socket.  The kernel assigns it when the socket is bound or sends
+   * its first request; before then it is zero.
+   *
+   * @return The echo identifier.
+   * @exception IllegalStateException If the socket is not a ping socket.
+   * @exception IOException If the identifier cannot be retrieved.
+   */
+  public int getICMPIdentifier() throws IllegalStateException, IOException {
+    if(!__datagram)
+      throw new IllegalStateException();
+
+    int port = __getLocalPort(__socket, __family);
+
+    if(port < 0)
+      __throwIOException();
+
+    return port;
   }
 
 
@@ -262,9 +475,14 @@ public class RawSocket {
       throw new IllegalStateException();
     }
 
-    if(__bind(__socket, __family, address.getAddress(), scope_id) != 0) {
-      __throwIOException();
-    }
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+
+    if(endpoint != null)
+      endpoint.bind(address.getAddress());
+    else if(__bind(__socket, __family, address.getAddress(), scope_id) != 0)
+      __failed("bind");
+
+    __tracer.bound(this, address.getHostAddress(), false);
   }
 
   // Returns a positive value if unsupported operation.
@@ -291,12 +509,17 @@ public class RawSocket {
     if(!isOpen())
       throw new IllegalStateException();
 
+    if(__endpoint != null)
+      throw new UnsupportedOperationException();
+
     int result = __bindDevice(__socket, device);
 
     if(result < 0)
-      __throwIOException();
+      __failed("bind");
     else if(result > 0)
       throw new UnsupportedOperationException();
+
+    __tracer.bound(this, device, true);
   }
 
   private native static int __close(int socket);
@@ -307,26 +530,299 @@ public class RawSocket {
    * @exception IOException If an I/O error occurs.
    */
   public void close() throws IOException {
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+
+    if(isOpen())
+      __tracer.closed(this);
+
+    if(endpoint != null) {
+      __endpoint = null;
+      __family = __UNDEFINED;
+      __protocol = __UNDEFINED;
+      __options.clear();
+      endpoint.close();
+      return;
+    }
+
     int result = __close(__socket);
     __socket = __UNDEFINED;
+    __datagram = false;
     __family = __UNDEFINED;
+    __protocol = __UNDEFINED;
+    __options.clear();
 
     if(result != 0)
       __throwIOException();
   }
 
+  private native static int __getSocketStatistics(int socket,
+                                                  long[] values);
+
+  /**
+   * Returns the kernel's queue and drop counters for the socket.  On
+   * Linux these are the SIOCINQ and SIOCOUTQ queue lengths and the
+   * receive buffer usage and drop count reported by SO_MEMINFO.  Other
+   * platforms report only the receive queue length, and sockets with a
+   * backend report no counters.
+   *
+   * @return The socket statistics.
+   * @exception IllegalStateException If the socket is not open.
+   * @exception IOException If the counters cannot be retrieved.
+   */
+  public SocketStatistics getStatistics()
+    throws IllegalStateException, IOException
+  {
+    long[] values = new long[SocketStatistics.COUNT];
+
+    if(!isOpen())
+      throw new IllegalStateException();
+
+    if(__endpoint != null)
+      Arrays.fill(values, -1L);
+    else if(__getSocketStatistics(__socket, values) < 0)
+      __throwIOException();
+
+    return new SocketStatistics(values);
+  }
+
   /**
    * @return True if errno equals EAGAIN or EWOULDBLOCK.
    */
   private native boolean __isErrorEAGAIN();
 
-  private native static int __setIPHeaderInclude(int socket, boolean on);
+  static native int __lookupSocketOption(String name, int[] levelAndOption);
+
+  private native static int __setIntOption(int socket, int level, int option,
+                                           int value);
+  private native static int __getIntOption(int socket, int level, int option,
+                                           int[] value);
+  private native static int __setTimeoutOption(int socket, int level,
+                                               int option, int timeout);
+  private native static int __getTimeoutOption(int socket, int level,
+                                               int option);
+  private native static int __setBytesOption(int socket, int level,
+                                             int option, byte[] value,
+                                             int length);
+
+  /**
+   * @return The length of the option value, or a negative value if an
+   * error occurs.
+   */
+  private native static int __getBytesOption(int socket, int level,
+                                             int option, byte[] value);
+
+  // Large enough for any option payload RockSaw knows about
+  // (e.g., SO_MEMINFO, struct icmp6_filter).
+  private static final int __MAX_OPTION_LENGTH = 256;
+
+  private static RawSocketOption<?> __toRawSocketOption(SocketOption<?> name)
+    throws UnsupportedOperationException
+  {
+    if(name instanceof RawSocketOption)
+      return (RawSocketOption<?>)name;
+    if(name == StandardSocketOptions.SO_SNDBUF)
+      return RawSocketOptions.SO_SNDBUF;
+    if(name == StandardSocketOptions.SO_RCVBUF)
+      return RawSocketOptions.SO_RCVBUF;
+    if(name == StandardSocketOptions.SO_BROADCAST)
+      return RawSocketOptions.SO_BROADCAST;
+    if(name == StandardSocketOptions.IP_TOS)
+      return RawSocketOptions.IP_TOS;
+    throw new UnsupportedOperationException("'" + name + "' not supported");
+  }
+
+  private Object __getNativeOption(RawSocketOption<?> option)
+    throws SocketException
+  {
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+
+    if(endpoint != null)
+      return endpoint.getOption(option.name());
+
+    int level  = option.level();
+    int name   = option.option();
+    int result;
+
+    switch(option.kind()) {
+    case RawSocketOption.KIND_INT:
+    case RawSocketOption.KIND_BOOLEAN:
+      int[] value = new int[1];
+
+      if(__getIntOption(__socket, level, name, value) < 0)
+        __throwSocketException();
+
+      if(option.kind() == RawSocketOption.KIND_BOOLEAN)
+        return Boolean.valueOf(value[0] != 0);
+      return Integer.valueOf(value[0]);
+    case RawSocketOption.KIND_TIMEOUT:
+      result = __getTimeoutOption(__socket, level, name);
+
+      if(result < 0)
+        __throwSocketException();
+
+      return Integer.valueOf(result);
+    default:
+      byte[] buffer = new byte[__MAX_OPTION_LENGTH];
+
+      result = __getBytesOption(__socket, level, name, buffer);
+
+      if(result < 0)
+        __throwSocketException();
+
+      return Arrays.copyOf(buffer, result);
+    }
+  }
+
+  private void __setNativeOption(RawSocketOption<?> option, Object value)
+    throws SocketException
+  {
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+
+    if(endpoint != null) {
+      endpoint.setOption(option.name(), value);
+      return;
+    }
+
+    int level  = option.level();
+    int name   = option.option();
+    int result;
+
+    switch(option.kind()) {
+    case RawSocketOption.KIND_INT:
+      result = __setIntOption(__socket, level, name, (Integer)value);
+      break;
+    case RawSocketOption.KIND_BOOLEAN:
+      result =
+        __setIntOption(__socket, level, name, ((Boolean)value) ? 1 : 0);
+      break;
+    case RawSocketOption.KIND_TIMEOUT:
+      result = __setTimeoutOption(__socket, level, name, (Integer)value);
+      break;
+    default:
+      byte[] bytes = (byte[])value;
+      result = __setBytesOption(__socket, level, name, bytes, bytes.length);
+      break;
+    }
+
+    if(result < 0)
+      __throwSocketException();
+  }
+
+  /**
+   * <p>Sets the value of a socket option.  Any {@link RawSocketOption}
+   * may be used, as well as the SO_SNDBUF, SO_RCVBUF, SO_BROADCAST, and
+   * IP_TOS options of {@link StandardSocketOptions}.</p>
+   *
+   * <p>After the option is set, its value is read back from the kernel
+   * and cached, so that {@link #getOption} reflects any adjustment made
+   * by the kernel (e.g., SO_RCVBUF doubling and clamping) without
+   * another system call.</p>
+   *
+   * @param name The socket option.
+   * @param value The value of the socket option.
+   * @exception IllegalStateException If the socket has not been opened first.
+   * @exception IllegalArgumentException If the value is null.
+   * @exception UnsupportedOperationException If the option is not
+   * supported by RockSaw or the runtime platform.
+   * @exception SocketException If the option setting could not be altered.
+   */
+  public <T> void setOption(SocketOption<T> name, T value)
+    throws IllegalStateException, IllegalArgumentException,
+           UnsupportedOperationException, SocketException
+  {
+    RawSocketOption<?> option = __toRawSocketOption(name);
+
+    if(!option.isSupported())
+      throw new UnsupportedOperationException("'" + name + "' not supported");
+    if(value == null)
+      throw new IllegalArgumentException("Invalid option value.");
+    if(!isOpen())
+      throw new IllegalStateException();
+
+    // Invalidate first so that a failed set does not leave a stale value.
+    // The forced buffer sizes change the values of SO_RCVBUF and SO_SNDBUF.
+    __options.remove(option);
+
+    if(option.name().equals("SO_RCVBUFFORCE"))
+      __options.remove(RawSocketOptions.SO_RCVBUF);
+    else if(option.name().equals("SO_SNDBUFFORCE"))
+      __options.remove(RawSocketOptions.SO_SNDBUF);
+
+    __setNativeOption(option, value);
+
+    if(option.isCached()) {
+      try {
+        __options.put(option, __getNativeOption(option));
+      } catch(SocketException se) {
+        // Some options are write-only on some platforms.  The value will
+        // be retrieved from the kernel on the next getOption.
+      }
+    }
+  }
+
 
   /**
-   * @return A negative value if an error occurs, else zero for false and
-   *         a positive value for true.
+   * Retrieves the value of a socket option.  Cached options are
+   * retrieved from the kernel only the first time they are read after
+   * the socket is opened; thereafter the cached value is returned.
+   *
+   * @param name The socket option.
+   * @return The value of the socket option.  Values of byte array
+   * options are copies that may be freely modified.
+   * @exception IllegalStateException If the socket has not been opened first.
+   * @exception UnsupportedOperationException If the option is not
+   * supported by RockSaw or the runtime platform.
+   * @exception SocketException If the option value could not be retrieved.
    */
-  private native static int __getIPHeaderInclude(int socket);
+  @SuppressWarnings("unchecked")
+  public <T> T getOption(SocketOption<T> name)
+    throws IllegalStateException, UnsupportedOperationException,
+           SocketException
+  {
+    RawSocketOption<?> option = __toRawSocketOption(name);
+
+    if(!option.isSupported())
+      throw new UnsupportedOperationException("'" + name + "' not supported");
+    if(!isOpen())
+      throw new IllegalStateException();
+
+    Object value = (option.isCached() ? __options.get(option) : null);
+
+    if(value == null) {
+      value = __getNativeOption(option);
+
+      if(option.isCached())
+        __options.put(option, value);
+    }
+
+    if(value instanceof byte[])
+      value = ((byte[])value).clone();
+
+    return (T)value;
+  }
+
+
+  // The option accessors below predate setOption and getOption.  Like
+  // the natives they used to call, they report a closed socket with a
+  // SocketException (EBADF) instead of an IllegalStateException.
+  private <T> void __setLegacyOption(RawSocketOption<T> option, T value)
+    throws SocketException
+  {
+    if(isOpen())
+      setOption(option, value);
+    else
+      __setNativeOption(option, value);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> T __getLegacyOption(RawSocketOption<T> option)
+    throws SocketException
+  {
+    if(isOpen())
+      return getOption(option);
+
+    return (T)__getNativeOption(option);
+  }
 
 
   /**
@@ -339,10 +835,7 @@ public class RawSocket {
    * @exception SocketException If the option setting could not be altered.
    */
   public void setIPHeaderInclude(boolean on) throws SocketException {
-    int result = __setIPHeaderInclude(__socket, on);
-
-    if(result < 0)
-      __throwSocketException();
+    __setLegacyOption(RawSocketOptions.IP_HDRINCL, on);
   }
 
 
@@ -353,17 +846,10 @@ public class RawSocket {
    * @exception SocketException If the option value could not be retrieved.
    */
   public boolean getIPHeaderInclude() throws SocketException {
-    int result = __getIPHeaderInclude(__socket);
-
-    if(result < 0)
-      __throwSocketException();
-
-    return (result > 0);
+    return __getLegacyOption(RawSocketOptions.IP_HDRINCL);
   }
 
 
-  private native static int __setSendBufferSize(int socket, int size);
-
   /**
    * Sets the send buffer size (SO_SNDBUF).
    *
@@ -371,15 +857,10 @@ public class RawSocket {
    * @exception SocketException If the option value could not be set.
    */
   public void setSendBufferSize(int size) throws SocketException {
-    int result = __setSendBufferSize(__socket, size);
-
-    if(result < 0)
-      __throwSocketException();
+    __setLegacyOption(RawSocketOptions.SO_SNDBUF, size);
   }
 
 
-  private native static int __getSendBufferSize(int __socket);
-
   /**
    * Retrieves the send buffer size (SO_SNDBUF).
    *
@@ -387,33 +868,22 @@ public class RawSocket {
    * @exception SocketException If the option value could not be retrieved.
    */
   public int getSendBufferSize() throws SocketException {
-    int result = __getSendBufferSize(__socket);
-
-    if(result < 0)
-      __throwSocketException();
-
-    return result;
+    return __getLegacyOption(RawSocketOptions.SO_SNDBUF);
   }
 
 
-  private native static int __setReceiveBufferSize(int socket, int size);
-
   /**
-   * Sets the receive buffer size (SO_RCVBUF).
+   * Sets the receive buffer size (SO_RCVBUF).  A {@link
+   * ReceiveBufferTuner} can adjust the size to the load instead.
    *
    * @param size The size of the receive buffer.
    * @exception SocketException If the option value could not be set.
    */
   public void setReceiveBufferSize(int size) throws SocketException {
-    int result = __setReceiveBufferSize(__socket, size);
-
-    if(result < 0)
-      __throwSocketException();
+    __setLegacyOption(RawSocketOptions.SO_RCVBUF, size);
   }
 
 
-  private native static int __getReceiveBufferSize(int socket);
-
   /**
    * Retrieves the receive buffer size (SO_RCVBUF).
    *
@@ -421,12 +891,7 @@ public class RawSocket {
    * @exception SocketException If the option value could not be retrieved.
    */
   public int getReceiveBufferSize() throws SocketException {
-    int result = __getReceiveBufferSize(__socket);
-
-    if(result < 0)
-      __throwSocketException();
-
-    return result;
+    return __getLegacyOption(RawSocketOptions.SO_RCVBUF);
   }
 
   /**
@@ -466,8 +931,6 @@ public class RawSocket {
   }
 
 
-  private native static int __setSendTimeout(int socket, int timeout);
-
   /**
    * Sets the send timeout (SO_SNDTIMEO).  A timeout of zero indicates
    * an infinite timeout.  A negative timeout is undefined.
@@ -478,18 +941,11 @@ public class RawSocket {
   public void setSendTimeout(int timeout) throws SocketException {
     __stimeout = timeout;
 
-    if(!getUseSelectTimeout()) {
-      int result = __setSendTimeout(__socket, timeout);
-
-      if(result < 0) {
-        __throwSocketException();
-      }
-    }
+    if(!getUseSelectTimeout())
+      __setLegacyOption(RawSocketOptions.SO_SNDTIMEO, timeout);
   }
 
 
-  private native static int __getSendTimeout(int socket);
-
   /**
    * Retrieves the send timeout (SO_SNDTIMEO).
    *
@@ -497,24 +953,13 @@ public class RawSocket {
    * @exception SocketException If the option value could not be set.
    */
   public int getSendTimeout() throws SocketException {
-    int result;
+    if(getUseSelectTimeout())
+      return __stimeout;
 
-    if(getUseSelectTimeout()) {
-      result = __stimeout;
-    } else {
-      result = __getSendTimeout(__socket);
-
-      if(result < 0) {
-        __throwSocketException();
-      }
-    }
-
-    return result;
+    return __getLegacyOption(RawSocketOptions.SO_SNDTIMEO);
   }
 
 
-  private native static int __setReceiveTimeout(int socket, int timeout);
-
   /**
    * Sets the receive timeout (SO_RCVTIMEO).  A timeout of zero indicates
    * an infinite timeout.  A negative timeout is undefined.
@@ -525,18 +970,11 @@ public class RawSocket {
   public void setReceiveTimeout(int timeout) throws SocketException {
     __rtimeout = timeout;
 
-    if(!getUseSelectTimeout()) {
-      int result = __setReceiveTimeout(__socket, timeout);
-
-      if(result < 0) {
-        __throwSocketException();
-      }
-    }
+    if(!getUseSelectTimeout())
+      __setLegacyOption(RawSocketOptions.SO_RCVTIMEO, timeout);
   }
 
 
-  private native static int __getReceiveTimeout(int socket);
-
   /**
    * Retrieves the receive timeout (SO_RCVTIMEO).
    *
@@ -544,35 +982,551 @@ public class RawSocket {
    * @exception SocketException If the option value could not be set.
    */
   public int getReceiveTimeout() throws SocketException {
-    int result;
+    if(getUseSelectTimeout())
+      return __rtimeout;
 
-    if(getUseSelectTimeout()) {
-      result = __rtimeout;
-    } else {
-      result = __getReceiveTimeout(__socket);
-
-      if(result < 0) {
-        __throwSocketException();
-      }
-    }
-
-    return result;
+    return __getLegacyOption(RawSocketOptions.SO_RCVTIMEO);
   }
 
 
-  private native static int __recvfrom1(int socket, byte[] data, int offset,
-                                        int length, int family);
-  private native static int __recvfrom2(int socket, byte[] data, int offset,
-                                        int length, int family,
-                                        byte[] address);
+  private native static boolean __isNonBlockingReceiveSupported();
 
   /**
-   * Reads packet data from the socket.  IPv4 ({@link #PF_INET})
-   * packets will be delivered in their entirety, including the IP
-   * header.  IPv6 ({@link #PF_INET6}) packet data will not include
-   * the IPV6 header.
+   * <p>Enables or disables spinning receives.  When enabled, {@link
+   * #read} does not block in the kernel.  Instead it polls the socket
+   * with non-blocking receives, waiting between attempts as dictated
+   * by the backoff policy, until a packet arrives or the receive
+   * timeout set with {@link #setReceiveTimeout} expires.  This avoids
+   * the scheduler wakeup latency of a blocking receive, which
+   * dominates round trip times below about 100 microseconds, at the
+   * cost of CPU time.</p>
    *
-   * @param data The buffer in which to store the packet data.
+   * <p>For the lowest latency, combine spinning receives with {@link
+   * #setBusyPoll} and pin the receiving thread to a CPU with {@link
+   * #setThreadAffinity}.</p>
+   *
+   * @param backoff The backoff policy to use between receive
+   * attempts, or null to restore blocking receives.
+   * @exception UnsupportedOperationException If non-blocking receives
+   * are not supported on the runtime platform.
+   */
+  public void setReceiveSpin(SpinBackoff backoff)
+    throws UnsupportedOperationException
+  {
+    if(backoff != null && !__isNonBlockingReceiveSupported())
+      throw new UnsupportedOperationException();
+
+    __receiveSpin = backoff;
+  }
+
+
+  /**
+   * Retrieves the backoff policy used for spinning receives.
+   *
+   * @return The backoff policy, or null if receives block.
+   */
+  public SpinBackoff getReceiveSpin() {
+    return __receiveSpin;
+  }
+
+
+  /**
+   * <p>Sets the SO_BUSY_POLL socket option, which makes the kernel
+   * poll the device receive queue for up to the given number of
+   * microseconds when the socket has no data, instead of waiting for
+   * an interrupt (Linux only).  Setting a value larger than
+   * {@code net.core.busy_read} requires CAP_NET_ADMIN.</p>
+   *
+   * <p>SO_PREFER_BUSY_POLL (Linux 5.11 and later) is also set when
+   * {@code microseconds} is positive and the option is available, so
+   * that busy polling is not preempted by softirq processing under
+   * load.  Failure to set SO_PREFER_BUSY_POLL is ignored.</p>
+   *
+   * @param microseconds The busy poll interval, or zero to disable.
+   * @exception UnsupportedOperationException If SO_BUSY_POLL is not
+   * supported on the runtime platform.
+   * @exception SocketException If the option setting could not be altered.
+   */
+  public void setBusyPoll(int microseconds)
+    throws UnsupportedOperationException, SocketException
+  {
+    setOption(RawSocketOptions.SO_BUSY_POLL, microseconds);
+
+    if(RawSocketOptions.SO_PREFER_BUSY_POLL.isSupported()) {
+      try {
+        setOption(RawSocketOptions.SO_PREFER_BUSY_POLL, microseconds > 0);
+      } catch(SocketException se) {
+        // Kernels older than 5.11 reject the option.
+      }
+    }
+  }
+
+
+  private void __setOptionIfSupported(RawSocketOption<Boolean> option,
+                                      boolean on)
+    throws SocketException
+  {
+    if(option.isSupported())
+      setOption(option, on);
+  }
+
+  /**
+   * Enables or disables delivery of the packet metadata returned by
+   * {@link #receive}.  For IPv4 sockets,
+   * this sets IP_PKTINFO, IP_RECVTTL, and IP_RECVTOS.  For IPv6
+   * sockets, it sets IPV6_RECVPKTINFO, IPV6_RECVHOPLIMIT, and
+   * IPV6_RECVTCLASS.  Options not supported by the platform are
+   * skipped, leaving the corresponding values unknown.
+   *
+   * @param on True to receive packet metadata, false to stop.
+   * @exception IllegalStateException If the socket has not been opened first.
+   * @exception SocketException If an option setting could not be altered.
+   */
+  public void setReceivePacketInfo(boolean on)
+    throws IllegalStateException, SocketException
+  {
+    if(!isOpen())
+      throw new IllegalStateException();
+
+    if(__family == PF_INET6) {
+      __setOptionIfSupported(RawSocketOptions.IPV6_RECVPKTINFO, on);
+      __setOptionIfSupported(RawSocketOptions.IPV6_RECVHOPLIMIT, on);
+      __setOptionIfSupported(RawSocketOptions.IPV6_RECVTCLASS, on);
+    } else {
+      __setOptionIfSupported(RawSocketOptions.IP_PKTINFO, on);
+      __setOptionIfSupported(RawSocketOptions.IP_RECVTTL, on);
+      __setOptionIfSupported(RawSocketOptions.IP_RECVTOS, on);
+    }
+  }
+
+
+  private native static int __setThreadAffinity(int cpu);
+
+  /**
+   * <p>Pins the calling thread to a CPU (Linux only).  Pinning a
+   * spinning receive thread to the CPU that services the NIC queue
+   * (or to a CPU isolated from the scheduler) keeps its cache warm and
+   * prevents migrations from adding latency.</p>
+   *
+   * <p><em>This method really belongs in another class, but is
+   * currently included here for expediency.</em></p>
+   *
+   * @param cpu The zero-based index of the CPU.
+   * @exception UnsupportedOperationException If thread affinity is not
+   * supported on the runtime platform.
+   * @exception IOException If the affinity could not be set.
+   */
+  public static void setThreadAffinity(int cpu)
+    throws UnsupportedOperationException, IOException
+  {
+    int result = __setThreadAffinity(cpu);
+
+    if(result < 0)
+      __throwIOException();
+    else if(result > 0)
+      throw new UnsupportedOperationException();
+  }
+
+
+  // The following natives return a positive value if the option is not
+  // supported on the runtime platform.
+  private native static int __setIPv6Checksum(int socket, int offset);
+  private native static int __getIPv6Checksum(int socket, int[] offset);
+  private native static int __setICMPFilter(int socket, int blocked);
+  private native static int __getICMPFilter(int socket, int[] blocked);
+  private native static int __setICMPv6Filter(int socket, int[] blocked);
+  private native static int __getICMPv6Filter(int socket, int[] blocked);
+
+  private static void __checkOptionResult(int result)
+    throws UnsupportedOperationException, SocketException
+  {
+    if(result < 0)
+      __throwSocketException();
+    else if(result > 0)
+      throw new UnsupportedOperationException();
+  }
+
+  private static void __checkICMPv6Filter(int[] blocked) {
+    if(blocked.length != 8)
+      throw new IllegalArgumentException("Invalid filter length.");
+  }
+
+  /**
+   * <p>Sets the IPV6_CHECKSUM socket option, which tells the kernel to
+   * compute the checksum of outgoing packets and verify the checksum of
+   * incoming packets.  The offset is relative to the start of the data
+   * passed to {@link #write}.  This option is valid only for IPv6
+   * sockets with protocols other than ICMPv6.</p>
+   *
+   * <p>ICMPv6 sockets do not need this option because the kernel
+   * always computes the ICMPv6 checksum (RFC 3542), except on
+   * Windows, where the sender must compute it.  Linux rejects
+   * attempts to change the offset on ICMPv6 sockets.</p>
+   *
+   * @param offset The offset of the 16-bit checksum field, or -1 to
+   * disable kernel checksumming.
+   * @exception UnsupportedOperationException If the option is not
+   * supported on the runtime platform.
+   * @exception SocketException If the option setting could not be altered.
+   */
+  public void setIPv6Checksum(int offset)
+    throws UnsupportedOperationException, SocketException
+  {
+    if(__endpoint != null)
+      __endpoint.setOption("IPV6_CHECKSUM", offset);
+    else
+      __checkOptionResult(__setIPv6Checksum(__socket, offset));
+  }
+
+
+  /**
+   * Retrieves the current setting of the IPV6_CHECKSUM option.
+   *
+   * @return The checksum offset, or -1 if kernel checksumming is disabled.
+   * @exception UnsupportedOperationException If the option is not
+   * supported on the runtime platform.
+   * @exception SocketException If the option value could not be retrieved.
+   */
+  public int getIPv6Checksum()
+    throws UnsupportedOperationException, SocketException
+  {
+    if(__endpoint != null)
+      return (Integer)__endpoint.getOption("IPV6_CHECKSUM");
+
+    int[] offset = new int[1];
+
+    __checkOptionResult(__getIPv6Checksum(__socket, offset));
+
+    return offset[0];
+  }
+
+
+  /**
+   * Sets the ICMP_FILTER socket option (Linux only).  The kernel
+   * discards ICMP messages whose type is set in the mask before they
+   * are queued to the socket, so they never need to be read and
+   * discarded in Java.  Bit <em>n</em> of the mask corresponds to ICMP
+   * type <em>n</em>; only types 0 through 31 can be filtered.  For
+   * example, to receive only echo replies:
+   * {@code setICMPFilter(~(1 << 0));}.  This option is valid only for
+   * IPv4 sockets opened with the ICMP protocol.
+   *
+   * @param blocked The mask of ICMP types to block.  Zero passes all types.
+   * @exception UnsupportedOperationException If the option is not
+   * supported on the runtime platform.
+   * @exception SocketException If the option setting could not be altered.
+   */
+  public void setICMPFilter(int blocked)
+    throws UnsupportedOperationException, SocketException
+  {
+    if(__endpoint != null)
+      __endpoint.setOption("ICMP_FILTER", blocked);
+    else
+      __checkOptionResult(__setICMPFilter(__socket, blocked));
+  }
+
+
+  /**
+   * Retrieves the current setting of the ICMP_FILTER option.
+   *
+   * @return The mask of blocked ICMP types.
+   * @exception UnsupportedOperationException If the option is not
+   * supported on the runtime platform.
+   * @exception SocketException If the option value could not be retrieved.
+   */
+  public int getICMPFilter()
+    throws UnsupportedOperationException, SocketException
+  {
+    if(__endpoint != null)
+      return (Integer)__endpoint.getOption("ICMP_FILTER");
+
+    int[] blocked = new int[1];
+
+    __checkOptionResult(__getICMPFilter(__socket, blocked));
+
+    return blocked[0];
+  }
+
+
+  /**
+   * Sets the ICMP6_FILTER socket option (RFC 3542).  The kernel
+   * discards ICMPv6 messages whose type is set in the mask.  The mask
+   * is 256 bits long: ICMPv6 type <em>n</em> is blocked if bit
+   * {@code (n & 31)} of {@code blocked[n >> 5]} is set.  The mask
+   * always uses these semantics, regardless of whether the platform's
+   * native filter representation is inverted.  This option is valid
+   * only for IPv6 sockets opened with the ICMPv6 protocol.
+   *
+   * @param blocked An array of 8 ints holding the mask of ICMPv6 types
+   * to block.  All zeros passes all types.
+   * @exception IllegalArgumentException If the array length is not 8.
+   * @exception UnsupportedOperationException If the option is not
+   * supported on the runtime platform.
+   * @exception SocketException If the option setting could not be altered.
+   */
+  public void setICMPv6Filter(int[] blocked)
+    throws IllegalArgumentException, UnsupportedOperationException,
+           SocketException
+  {
+    __checkICMPv6Filter(blocked);
+
+    if(__endpoint != null)
+      __endpoint.setOption("ICMP6_FILTER", blocked.clone());
+    else
+      __checkOptionResult(__setICMPv6Filter(__socket, blocked));
+  }
+
+
+  /**
+   * Retrieves the current setting of the ICMP6_FILTER option.
+   *
+   * @param blocked An array of 8 ints in which to store the mask of
+   * blocked ICMPv6 types, as described in {@link #setICMPv6Filter}.
+   * @exception IllegalArgumentException If the array length is not 8.
+   * @exception UnsupportedOperationException If the option is not
+   * supported on the runtime platform.
+   * @exception SocketException If the option value could not be retrieved.
+   */
+  public void getICMPv6Filter(int[] blocked)
+    throws IllegalArgumentException, UnsupportedOperationException,
+           SocketException
+  {
+    __checkICMPv6Filter(blocked);
+
+    if(__endpoint != null)
+      System.arraycopy((int[])__endpoint.getOption("ICMP6_FILTER"), 0,
+                       blocked, 0, blocked.length);
+    else
+      __checkOptionResult(__getICMPv6Filter(__socket, blocked));
+  }
+
+
+  private native static int __recvfrom1(int socket, byte[] data, int offset,
+                                        int length, int family,
+                                        boolean dontwait);
+  private native static int __recvfrom2(int socket, byte[] data, int offset,
+                                        int length, int family,
+                                        byte[] address, boolean dontwait);
+
+  private native static int __recvmsg(int socket, byte[] data, int offset,
+                                      int length, int family,
+                                      boolean dontwait, byte[] source,
+                                      byte[] destination, int[] metadata);
+
+  private native static int __recvfromDirect(int socket, ByteBuffer data,
+                                             int offset, int length,
+                                             int family, byte[] address,
+                                             boolean dontwait);
+
+  // Exactly one of data and direct is non-null.
+  private int __receive(byte[] data, ByteBuffer direct, int offset,
+                        int length, byte[] address, PacketInfo info,
+                        boolean dontwait)
+  {
+    if(direct != null)
+      return __recvfromDirect(__socket, direct, offset, length, __family,
+                              address, dontwait);
+
+    if(info != null)
+      return __recvmsg(__socket, data, offset, length, __family, dontwait,
+                       info.__source(), info.__destination(), info.__metadata);
+
+    return (address == null ?
+            __recvfrom1(__socket, data, offset, length, __family, dontwait) :
+            __recvfrom2(__socket, data, offset, length, __family, address,
+                        dontwait));
+  }
+
+  /**
+   * Polls the socket with non-blocking receives until a packet
+   * arrives, an error other than EAGAIN occurs, or the receive timeout
+   * expires.  Returns the result of the last receive.
+   */
+  private int __spinReceive(SpinBackoff backoff, byte[] data,
+                            ByteBuffer direct, int offset, int length,
+                            byte[] address, PacketInfo info)
+  {
+    long timeout  = __rtimeout * 1000000L;
+    long deadline = (timeout > 0 ? System.nanoTime() + timeout : 0L);
+    int result;
+
+    for(int attempt = 0; ; ++attempt) {
+      result = __receive(data, direct, offset, length, address, info, true);
+
+      if(result >= 0 || !__isErrorEAGAIN())
+        break;
+
+      long remaining = -1L;
+
+      if(timeout > 0) {
+        remaining = deadline - System.nanoTime();
+
+        if(remaining <= 0)
+          break;
+      }
+
+      backoff.idle(attempt, remaining);
+    }
+
+    return result;
+  }
+
+  private static final int __IPV4_HEADER = 20;
+
+  // Returns the length of the IPv4 header to synthesize in front of
+  // packets read into a buffer of the given length, which is zero
+  // except on IPv4 ping sockets.
+  private int __datagramHeader(int length) throws IllegalArgumentException {
+    if(!__datagram || __family != PF_INET)
+      return 0;
+
+    if(length < __IPV4_HEADER)
+      throw new IllegalArgumentException("Buffer too small for IP header.");
+
+    return __IPV4_HEADER;
+  }
+
+  // Writes the IPv4 header that a ping socket leaves out in front of
+  // a received ICMP message, into either data or direct.
+  private static void __putIPv4Header(byte[] data, ByteBuffer direct,
+                                      int offset, int length, byte[] source,
+                                      int sourceOffset, PacketInfo info)
+  {
+    byte[] header = (data != null ? data : __batchScratch.get().header);
+    int start = (data != null ? offset : 0);
+    int ttl = 0, tos = 0;
+
+    if(info != null) {
+      ttl = Math.max(info.__metadata[PacketInfo.TTL], 0);
+      tos = Math.max(info.__metadata[PacketInfo.TOS], 0);
+    }
+
+    Arrays.fill(header, start, start + __IPV4_HEADER, (byte)0);
+    header[start]     = 0x45;
+    header[start + 1] = (byte)tos;
+    header[start + 2] = (byte)(length >>> 8);
+    header[start + 3] = (byte)length;
+    header[start + 8] = (byte)ttl;
+    header[start + 9] = IPPROTO_ICMP;
+    System.arraycopy(source, sourceOffset, header, start + 12, 4);
+
+    if(info != null && info.hasDestinationAddress())
+      System.arraycopy(info.__destination(), 0, header, start + 16, 4);
+
+    InternetChecksum.computeChecksum(header, start, __IPV4_HEADER,
+                                     start + 10, 0);
+
+    if(direct != null) {
+      ByteBuffer copy = direct.duplicate();
+
+      ((Buffer)copy).position(offset);
+      copy.put(header, 0, __IPV4_HEADER);
+    }
+  }
+
+  private int __read(byte[] data, ByteBuffer direct, int offset, int length,
+                     byte[] address, PacketInfo info)
+    throws IOException, InterruptedIOException
+  {
+    int result = 0;
+    SpinBackoff spin = __receiveSpin;
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+    Object trace = __tracer.beginRead();
+
+    if(endpoint != null) {
+      ByteBuffer buffer = (direct != null ? direct.duplicate() :
+                           ByteBuffer.wrap(data));
+
+      ((Buffer)buffer).limit(offset + length).position(offset);
+      result = endpoint.receive(buffer,
+                                (info != null ? info.__source() : address),
+                                (__rtimeout > 0 ? __rtimeout * 1000000L : -1L));
+    } else {
+      int header = __datagramHeader(length);
+
+      // The synthesized header needs the source address.
+      if(header > 0 && address == null && info == null)
+        address = __batchScratch.get().source;
+
+      if(spin != null) {
+        result = __spinReceive(spin, data, direct, offset + header,
+                               length - header, address, info);
+      } else {
+        if(getUseSelectTimeout() && __rtimeout > 0) {
+          result = __select(__socket, true, __rtimeout);
+        }
+
+        if(result == 0)
+          result = __receive(data, direct, offset + header, length - header,
+                             address, info, false);
+      }
+
+      if(result >= 0 && header > 0) {
+        result+=header;
+        __putIPv4Header(data, direct, offset, result,
+                        (info != null ? info.__source() : address), 0, info);
+      }
+    }
+
+    if(result < 0)
+      __failed("read");
+
+    if(trace != null)
+      __tracer.endRead(trace, this, result, 1);
+
+    PacketCaptureSink sink = __captureSink;
+
+    if(sink != null) {
+      byte[] source = (info != null ? info.__source() : address);
+
+      if(direct != null) {
+        int position = direct.position(), limit = direct.limit();
+
+        // Hand the sink the packet in place rather than a copy.
+        ((Buffer)direct).limit(offset + result).position(offset);
+        sink.capture(__family, __protocol, direct, source, info);
+        ((Buffer)direct).limit(limit).position(position);
+      } else
+        sink.capture(__family, __protocol, data, offset, result, source,
+                     info);
+    }
+
+    return result;
+  }
+
+  /**
+   * <p>Tees every packet subsequently read from this socket into a
+   * capture sink, such as a {@link
+   * com.savarese.rocksaw.pcap.PcapNgWriter}.  The sink is invoked on
+   * the reading thread after each successful read or receive, with the
+   * same buffer the caller passed in.  Packets read with {@link
+   * #read(byte[], int, int)} carry no source address; read with an
+   * address buffer or with {@link #receive} to record it.</p>
+   *
+   * <p>The sink may be changed at any time, including while another
+   * thread is blocked in a read, and remains in place across {@link
+   * #close} and {@link #open}.</p>
+   *
+   * @param sink The capture sink, or null to stop capturing.
+   */
+  public void setCaptureSink(PacketCaptureSink sink) {
+    __captureSink = sink;
+  }
+
+  /**
+   * @return The capture sink, or null if packets are not being captured.
+   */
+  public PacketCaptureSink getCaptureSink() {
+    return __captureSink;
+  }
+
+  /**
+   * Reads packet data from the socket.  IPv4 ({@link #PF_INET})
+   * packets will be delivered in their entirety, including the IP
+   * header.  IPv6 ({@link #PF_INET6}) packet data will not include
+   * the IPV6 header.
+   *
+   * @param data The buffer in which to store the packet data.
    * @param offset The offset into the buffer where the data should
    *               be stored.
    * @param length The number of bytes to read.
@@ -597,24 +1551,47 @@ public class RawSocket {
         (__family == PF_INET6 && address.length != 16)))
       throw new IllegalArgumentException("Invalid address length.");
 
-    int result = 0;
+    return __read(data, null, offset, length, address, null);
+  }
 
-    if(getUseSelectTimeout() && __rtimeout > 0) {
-      result = __select(__socket, true, __rtimeout);
-    }
+  /**
+   * <p>Reads packet data from the socket along with its metadata.
+   * Apart from the metadata, this behaves exactly like {@link #read}.
+   * The packet length and source address are always stored in the
+   * PacketInfo.  The destination address, interface index, TTL/hop
+   * limit, and type of service/traffic class are stored only if
+   * {@link #setReceivePacketInfo} has been enabled.  This allows a
+   * single socket bound to the wildcard address to serve all
+   * interfaces of a multi-homed host, instead of binding one socket
+   * per device with {@link #bindDevice}.</p>
+   *
+   * <p>The PacketInfo should be reused across reads; this method does
+   * not allocate.  This method is implemented with {@code recvmsg} and
+   * is not supported on Win32.</p>
+   *
+   * @param data The buffer in which to store the packet data.
+   * @param offset The offset into the buffer where the data should
+   *               be stored.
+   * @param length The number of bytes to read.
+   * @param info The object in which to store the packet metadata.
+   * @exception IllegalArgumentException If the offset or lengths are
+   * invalid.
+   * @exception IOException If an I/O error occurs.
+   * @exception InterruptedIOException If the read operation times out.
+   * @return The number of bytes read.
+   */
+  public int receive(byte[] data, int offset, int length, PacketInfo info)
+    throws IllegalArgumentException, IOException, InterruptedIOException
+  {
+    if(offset < 0 || length < 0 || length > data.length - offset)
+      throw new IllegalArgumentException("Invalid offset or length.");
 
-    if(result == 0)
-      result =
-        (address == null ?
-         __recvfrom1(__socket, data, offset, length, __family) :
-         __recvfrom2(__socket, data, offset, length, __family, address));
-
-    if(result < 0) {
-      if(__isErrorEAGAIN())
-        __throwInterruptedIOException();
-      else
-        __throwIOException();
-    }
+    info.clear();
+    info.__setFamily(__family);
+
+    int result = __read(data, null, offset, length, null, info);
+
+    info.__setLength(result);
 
     return result;
   }
@@ -640,6 +1617,226 @@ public class RawSocket {
     return read(data, 0, data.length, null);
   }
 
+  static native long __getDirectBufferAddress(ByteBuffer buffer);
+
+  private static void __checkDirect(ByteBuffer buffer)
+    throws IllegalArgumentException
+  {
+    if(!buffer.isDirect())
+      throw new IllegalArgumentException("Buffer is not direct.");
+  }
+
+  /**
+   * Reads packet data from the socket into a direct buffer, such as a
+   * {@link PacketBuffer} drawn from a {@link PacketBufferPool}, without
+   * copying it through the Java heap.  The packet is stored starting
+   * at the buffer's position, and at most its remaining bytes are
+   * read.  The position is advanced by the number of bytes read.  The
+   * packet is otherwise treated exactly as by {@link #read(byte[], int,
+   * int, byte[])}.
+   *
+   * @param buffer The direct buffer in which to store the packet data.
+   * @param address A byte array in which to store the source address
+   * of the received packet, or null.
+   * @exception IllegalArgumentException If the buffer is not direct or
+   * if the address parameter is the wrong length.
+   * @exception IOException If an I/O error occurs.
+   * @exception InterruptedIOException If the read operation times out.
+   * @return The number of bytes read.
+   */
+  public int read(ByteBuffer buffer, byte[] address)
+    throws IllegalArgumentException, IOException, InterruptedIOException
+  {
+    __checkDirect(buffer);
+
+    if(address != null &&
+       ((__family == PF_INET && address.length != 4) ||
+        (__family == PF_INET6 && address.length != 16)))
+      throw new IllegalArgumentException("Invalid address length.");
+
+    int position = buffer.position();
+    int result   = __read(null, buffer, position, buffer.remaining(),
+                          address, null);
+
+    ((Buffer)buffer).position(position + result);
+
+    return result;
+  }
+
+  /** Same as {@code read(buffer, null);} */
+  public int read(ByteBuffer buffer)
+    throws IllegalArgumentException, IOException, InterruptedIOException
+  {
+    return read(buffer, null);
+  }
+
+  // Per-thread arrays describing a pooled batch to the natives, so that
+  // batch reads and writes do not allocate.
+  private static final class BatchScratch {
+    final long[] pointers = new long[64];
+    final int[] lengths   = new int[64];
+    final byte[] header   = new byte[__IPV4_HEADER];
+    final byte[] source   = new byte[4];
+    final byte[] source6  = new byte[16];
+  }
+
+  private static final ThreadLocal<BatchScratch> __batchScratch =
+    new ThreadLocal<BatchScratch>() {
+      protected BatchScratch initialValue() {
+        return new BatchScratch();
+      }
+    };
+
+  private native static int __recvmmsgDirect(int socket, long[] pointers,
+                                             int[] lengths, int first,
+                                             int count, int family,
+                                             byte[] addresses,
+                                             boolean dontwait);
+
+  /**
+   * <p>Reads a batch of packets into pooled buffers.  The call waits,
+   * subject to the receive timeout, until at least one packet arrives
+   * and then returns every packet already queued, up to count.  Where
+   * supported (recvmmsg on Linux, wherever {@link
+   * #isBatchWriteSupported} is true), the batch is received with a
+   * single system call; elsewhere one packet is read per call.  Spin
+   * receives (see {@link #setReceiveSpin}) do not apply to batch
+   * reads.</p>
+   *
+   * <p>Each packet is stored starting at its buffer's position, and
+   * the position is advanced by the packet's length.  Packets are
+   * otherwise treated exactly as by {@link #read(byte[], int, int,
+   * byte[])}.</p>
+   *
+   * @param packets The buffers in which to store the packets.
+   * @param addresses Stores the source address of packet i at index
+   * {@code i * 4} (or {@code i * 16}).
+   * @param first The number of the first packet to read.
+   * @param count The largest number of packets to read.
+   * @exception IllegalArgumentException If the packet count or the
+   * address buffer is invalid.
+   * @exception IllegalStateException If a packet has been released.
+   * @exception IOException If an I/O error occurs.
+   * @exception InterruptedIOException If the read operation times out.
+   * @return The number of packets read, which is at least one.
+   */
+  public int read(PacketBuffer[] packets, byte[] addresses, int first,
+                  int count)
+    throws IllegalArgumentException, IllegalStateException, IOException,
+           InterruptedIOException
+  {
+    int addressLength = (__family == PF_INET6 ? 16 : 4);
+    int end = first + count;
+
+    if(first < 0 || count <= 0 || end < 0 || end > packets.length ||
+       addresses.length / addressLength < end)
+      throw new IllegalArgumentException("Invalid packet count.");
+
+    int n = (__BATCH_WRITE ? Math.min(count, 64) : 1);
+    BatchScratch scratch = __batchScratch.get();
+    int[] lengths = scratch.lengths;
+    int result = 0;
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+    Object trace = __tracer.beginRead();
+
+    if(endpoint != null) {
+      // Wait for the first packet and take whatever else is queued.
+      byte[] address = new byte[addressLength];
+      long timeout = (__rtimeout > 0 ? __rtimeout * 1000000L : -1L);
+
+      n = Math.min(count, 64);
+
+      for(; result < n; ++result) {
+        ByteBuffer buffer = packets[first + result].__checkedBuffer();
+
+        try {
+          lengths[result] =
+            endpoint.receive(buffer, address, (result == 0 ? timeout : 0L));
+        } catch(InterruptedIOException e) {
+          if(result == 0)
+            throw e;
+          break;
+        }
+
+        System.arraycopy(address, 0, addresses,
+                         (first + result) * addressLength, addressLength);
+      }
+    } else if(getUseSelectTimeout() && __rtimeout > 0)
+      result = __select(__socket, true, __rtimeout);
+
+    int header = 0;
+
+    if(endpoint == null && result == 0) {
+      if(__BATCH_WRITE) {
+        long[] pointers = scratch.pointers;
+
+        for(int i = 0; i < n; ++i) {
+          ByteBuffer buffer = packets[first + i].__checkedBuffer();
+
+          header      = __datagramHeader(buffer.remaining());
+          pointers[i] =
+            packets[first + i].__address() + buffer.position() + header;
+          lengths[i]  = buffer.remaining() - header;
+        }
+
+        result = __recvmmsgDirect(__socket, pointers, lengths, first, n,
+                                  __family, addresses, false);
+      } else {
+        ByteBuffer buffer = packets[first].__checkedBuffer();
+        byte[] address = new byte[addressLength];
+
+        header = __datagramHeader(buffer.remaining());
+        result = __recvfromDirect(__socket, buffer,
+                                  buffer.position() + header,
+                                  buffer.remaining() - header, __family,
+                                  address, false);
+
+        if(result >= 0) {
+          System.arraycopy(address, 0, addresses, first * addressLength,
+                           addressLength);
+          lengths[0] = result;
+          result = 1;
+        }
+      }
+    }
+
+    if(result < 0)
+      __failed("read");
+
+    PacketCaptureSink sink = __captureSink;
+    byte[] address = (addressLength == 16 ? scratch.source6 : scratch.source);
+    long bytes = 0;
+
+    for(int i = 0; i < result; ++i) {
+      ByteBuffer buffer = packets[first + i].__checkedBuffer();
+      int position = buffer.position();
+
+      if(header > 0) {
+        lengths[i]+=header;
+        __putIPv4Header(null, buffer, position, lengths[i], addresses,
+                        (first + i) * addressLength, null);
+      }
+
+      if(sink != null) {
+        int limit = buffer.limit();
+
+        System.arraycopy(addresses, (first + i) * addressLength, address, 0,
+                         addressLength);
+        ((Buffer)buffer).limit(position + lengths[i]);
+        sink.capture(__family, __protocol, buffer, address, null);
+        ((Buffer)buffer).limit(limit);
+      }
+
+      ((Buffer)buffer).position(position + lengths[i]);
+      bytes+=lengths[i];
+    }
+
+    if(trace != null)
+      __tracer.endRead(trace, this, bytes, result);
+
+    return result;
+  }
+
   private native static int __sendto(int socket, byte[] data, int offset,
                                      int length, int family, byte[] address,
                                      int scope_id);
@@ -668,23 +1865,25 @@ public class RawSocket {
       throw new IllegalArgumentException("Invalid offset or length.");
     }
 
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+    Object trace = __tracer.beginWrite();
     int result = 0;
 
-    if(getUseSelectTimeout() && __stimeout > 0) {
+    if(endpoint != null)
+      result = endpoint.send(ByteBuffer.wrap(data, offset, length),
+                             address.getAddress());
+    else if(getUseSelectTimeout() && __stimeout > 0)
       result = __select(__socket, false, __stimeout);
-    }
 
-    if(result == 0)
+    if(endpoint == null && result == 0)
       result = __sendto(__socket, data, offset, length, __family,
                         address.getAddress(), scope_id);
 
-    if(result < 0) {
-      if(__isErrorEAGAIN()) {
-        __throwInterruptedIOException();
-      } else {
-        __throwIOException();
-      }
-    }
+    if(result < 0)
+      __failed("write");
+
+    if(trace != null)
+      __tracer.endWrite(trace, this, result, 1);
 
     return result;
   }
@@ -696,4 +1895,348 @@ public class RawSocket {
     return write(address, data, 0, data.length);
   }
 
+  private native static int __sendtoDirect(int socket, ByteBuffer data,
+                                           int offset, int length,
+                                           int family, byte[] address,
+                                           int scope_id);
+
+  /**
+   * Writes the remaining bytes of a direct buffer, such as a {@link
+   * PacketBuffer} drawn from a {@link PacketBufferPool}, to the socket
+   * without copying them through the Java heap.  The position is
+   * advanced by the number of bytes written.  The packet is otherwise
+   * treated exactly as by {@link #write(InetAddress, byte[], int,
+   * int)}.
+   *
+   * @param address The destination to write to.
+   * @param buffer The direct buffer holding the packet data.
+   * @exception IllegalArgumentException If the buffer is not direct.
+   * @exception IOException If an I/O error occurs.
+   * @exception InterruptedIOException If the write operation times out.
+   * @return The number of bytes written.
+   */
+  public int write(InetAddress address, ByteBuffer buffer)
+    throws IllegalArgumentException, IOException, InterruptedIOException
+  {
+    int scope_id = __getScopeId(address);
+
+    __checkDirect(buffer);
+
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+    Object trace = __tracer.beginWrite();
+    int result = 0;
+
+    if(endpoint != null)
+      result = endpoint.send(buffer, address.getAddress());
+    else if(getUseSelectTimeout() && __stimeout > 0)
+      result = __select(__socket, false, __stimeout);
+
+    if(endpoint == null && result == 0)
+      result = __sendtoDirect(__socket, buffer, buffer.position(),
+                              buffer.remaining(), __family,
+                              address.getAddress(), scope_id);
+
+    if(result < 0)
+      __failed("write");
+
+    if(trace != null)
+      __tracer.endWrite(trace, this, result, 1);
+
+    ((Buffer)buffer).position(buffer.position() + result);
+
+    return result;
+  }
+
+  private native static boolean __isBatchWriteSupported();
+
+  private native static int __sendmmsg(int socket, byte[] data,
+                                       int[] offsets, int[] lengths,
+                                       int first, int count, int family,
+                                       byte[] addresses, int scope_id);
+
+  private static final boolean __BATCH_WRITE = __isBatchWriteSupported();
+
+  /**
+   * @return True if {@link #write(byte[], int[], int[], byte[], int)}
+   * sends a batch with a single system call (sendmmsg on Linux) rather
+   * than one call per packet.
+   */
+  public static boolean isBatchWriteSupported() {
+    return __BATCH_WRITE;
+  }
+
+  /**
+   * <p>Writes a batch of packets to the socket.  Where supported, each
+   * run of up to 64 packets is sent with a single system call, which
+   * amortizes the cost of crossing into the kernel when sending at high
+   * rates.  Elsewhere the packets are sent one at a time.  The packets
+   * are otherwise treated exactly as by {@link #write(InetAddress,
+   * byte[], int, int)}.</p>
+   *
+   * <p>IPv6 destinations are sent without a scope id, so link-local
+   * destinations must be written one at a time.</p>
+   *
+   * @param data The buffer holding the packets.
+   * @param offsets The offset of each packet in the buffer.
+   * @param lengths The length of each packet.
+   * @param addresses The destination address of each packet, packed
+   * back to back (4 bytes each for IPv4, 16 bytes each for IPv6).
+   * @param count The number of packets to write.
+   * @exception IllegalArgumentException If an offset, length, or the
+   * address buffer is invalid.
+   * @exception IOException If an I/O error occurs before any packet
+   * has been written.
+   * @exception InterruptedIOException If the write operation times
+   * out before any packet has been written.
+   * @return The number of packets written.  This is less than count
+   * only if an error occurred after at least one packet was written.
+   */
+  public int write(byte[] data, int[] offsets, int[] lengths,
+                   byte[] addresses, int count)
+    throws IllegalArgumentException, IOException, InterruptedIOException
+  {
+    return write(data, offsets, lengths, addresses, 0, count);
+  }
+
+  /**
+   * Same as {@link #write(byte[], int[], int[], byte[], int)}, but
+   * writes the packets numbered {@code first} through {@code first +
+   * count - 1}.  The address of packet i is still stored at index
+   * {@code i * 4} (or {@code i * 16}) of addresses.
+   *
+   * @param data The buffer holding the packets.
+   * @param offsets The offset of each packet in the buffer.
+   * @param lengths The length of each packet.
+   * @param addresses The destination address of each packet.
+   * @param first The number of the first packet to write.
+   * @param count The number of packets to write.
+   * @exception IllegalArgumentException If an offset, length, or the
+   * address buffer is invalid.
+   * @exception IOException If an I/O error occurs before any packet
+   * has been written.
+   * @exception InterruptedIOException If the write operation times
+   * out before any packet has been written.
+   * @return The number of packets written.
+   */
+  public int write(byte[] data, int[] offsets, int[] lengths,
+                   byte[] addresses, int first, int count)
+    throws IllegalArgumentException, IOException, InterruptedIOException
+  {
+    int addressLength = (__family == PF_INET6 ? 16 : 4);
+    int end = first + count;
+
+    if(first < 0 || count < 0 || end < 0 || end > offsets.length ||
+       end > lengths.length || addresses.length / addressLength < end)
+      throw new IllegalArgumentException("Invalid packet count.");
+
+    for(int i = first; i < end; ++i) {
+      if(offsets[i] < 0 || lengths[i] < 0 ||
+         lengths[i] > data.length - offsets[i])
+        throw new IllegalArgumentException("Invalid offset or length.");
+    }
+
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+    Object trace = __tracer.beginWrite();
+
+    if(endpoint != null) {
+      ByteBuffer[] buffers = new ByteBuffer[count];
+
+      for(int i = 0; i < count; ++i)
+        buffers[i] = ByteBuffer.wrap(data, offsets[first + i],
+                                     lengths[first + i]);
+
+      return __endWrite(trace, lengths, null, first,
+                        __send(endpoint, buffers, addresses, first,
+                               addressLength));
+    }
+
+    byte[] address = (__BATCH_WRITE ? null : new byte[addressLength]);
+    int sent = 0;
+
+    while(sent < count) {
+      int next   = first + sent;
+      int result = 0;
+
+      if(getUseSelectTimeout() && __stimeout > 0)
+        result = __select(__socket, false, __stimeout);
+
+      if(result == 0) {
+        if(__BATCH_WRITE) {
+          result = __sendmmsg(__socket, data, offsets, lengths, next,
+                              count - sent, __family, addresses, 0);
+        } else {
+          System.arraycopy(addresses, next * addressLength, address, 0,
+                           addressLength);
+          result = __sendto(__socket, data, offsets[next], lengths[next],
+                            __family, address, 0);
+
+          if(result >= 0)
+            result = 1;
+        }
+      }
+
+      if(result < 0) {
+        if(sent > 0)
+          break;
+
+        __failed("write");
+      }
+
+      sent+=result;
+    }
+
+    return __endWrite(trace, lengths, null, first, sent);
+  }
+
+  // Reports a traced batch write of the packets numbered first through
+  // first + sent - 1, whose lengths are taken from lengths or, if it is
+  // null, from the remaining bytes of packets.  Returns sent.
+  private int __endWrite(Object trace, int[] lengths, PacketBuffer[] packets,
+                         int first, int sent)
+  {
+    if(trace != null) {
+      long bytes = 0;
+
+      for(int i = first; i < first + sent; ++i)
+        bytes+=(lengths != null ? lengths[i] :
+                packets[i].__checkedBuffer().remaining());
+
+      __tracer.endWrite(trace, this, bytes, sent);
+    }
+
+    return sent;
+  }
+
+  // Sends a batch through a backend endpoint one packet at a time,
+  // with the same partial failure semantics as the native batch writes.
+  private static int __send(RawSocketBackend.Endpoint endpoint,
+                            ByteBuffer[] buffers, byte[] addresses,
+                            int first, int addressLength)
+    throws IOException
+  {
+    byte[] address = new byte[addressLength];
+
+    for(int i = 0; i < buffers.length; ++i) {
+      System.arraycopy(addresses, (first + i) * addressLength, address, 0,
+                       addressLength);
+
+      try {
+        endpoint.send(buffers[i], address);
+      } catch(IOException e) {
+        if(i > 0)
+          return i;
+        throw e;
+      }
+    }
+
+    return buffers.length;
+  }
+
+  private native static int __sendmmsgDirect(int socket, long[] pointers,
+                                             int[] lengths, int first,
+                                             int count, int family,
+                                             byte[] addresses,
+                                             int scope_id);
+
+  /**
+   * Writes a batch of pooled packets to the socket without copying
+   * them through the Java heap.  Each packet consists of the remaining
+   * bytes of its buffer; buffer positions are not changed.  The
+   * packets are otherwise treated exactly as by {@link #write(byte[],
+   * int[], int[], byte[], int, int)}.  The caller keeps its references
+   * to the packets and remains responsible for releasing them.
+   *
+   * @param packets The packets to write.
+   * @param addresses The destination address of packet i, stored at
+   * index {@code i * 4} (or {@code i * 16}).
+   * @param first The number of the first packet to write.
+   * @param count The number of packets to write.
+   * @exception IllegalArgumentException If the packet count or the
+   * address buffer is invalid.
+   * @exception IllegalStateException If a packet has been released.
+   * @exception IOException If an I/O error occurs before any packet
+   * has been written.
+   * @exception InterruptedIOException If the write operation times
+   * out before any packet has been written.
+   * @return The number of packets written.
+   */
+  public int write(PacketBuffer[] packets, byte[] addresses, int first,
+                   int count)
+    throws IllegalArgumentException, IllegalStateException, IOException,
+           InterruptedIOException
+  {
+    int addressLength = (__family == PF_INET6 ? 16 : 4);
+    int end = first + count;
+
+    if(first < 0 || count < 0 || end < 0 || end > packets.length ||
+       addresses.length / addressLength < end)
+      throw new IllegalArgumentException("Invalid packet count.");
+
+    RawSocketBackend.Endpoint endpoint = __endpoint;
+    Object trace = __tracer.beginWrite();
+
+    if(endpoint != null) {
+      ByteBuffer[] buffers = new ByteBuffer[count];
+
+      for(int i = 0; i < count; ++i)
+        buffers[i] = packets[first + i].__checkedBuffer().duplicate();
+
+      return __endWrite(trace, null, packets, first,
+                        __send(endpoint, buffers, addresses, first,
+                               addressLength));
+    }
+
+    int batch = Math.min(count, 64);
+    BatchScratch scratch = __batchScratch.get();
+    long[] pointers = scratch.pointers;
+    int[] lengths   = scratch.lengths;
+    byte[] address  = (__BATCH_WRITE ? null : new byte[addressLength]);
+    int sent = 0;
+
+    while(sent < count) {
+      int next   = first + sent;
+      int result = 0;
+
+      if(getUseSelectTimeout() && __stimeout > 0)
+        result = __select(__socket, false, __stimeout);
+
+      if(result == 0) {
+        if(__BATCH_WRITE) {
+          int n = Math.min(count - sent, batch);
+
+          for(int i = 0; i < n; ++i) {
+            ByteBuffer buffer = packets[next + i].__checkedBuffer();
+
+            pointers[i] = packets[next + i].__address() + buffer.position();
+            lengths[i]  = buffer.remaining();
+          }
+
+          result = __sendmmsgDirect(__socket, pointers, lengths, next, n,
+                                    __family, addresses, 0);
+        } else {
+          ByteBuffer buffer = packets[next].__checkedBuffer();
+
+          System.arraycopy(addresses, next * addressLength, address, 0,
+                           addressLength);
+          result = __sendtoDirect(__socket, buffer, buffer.position(),
+                                  buffer.remaining(), __family, address, 0);
+
+          if(result >= 0)
+            result = 1;
+        }
+      }
+
+      if(result < 0) {
+        if(sent > 0)
+          break;
+
+        __failed("write");
+      }
+
+      sent+=result;
+    }
+
+    return __endWrite(trace, null, packets, first, sent);
+  }
+
 }
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A replacement for the native raw sockets beneath {@link
+ * RawSocket}.  A RawSocket created with a backend (see {@link
+ * RawSocket#RawSocket(RawSocketBackend)} and {@link
+ * RawSocket#setDefaultBackend}) opens an {@link Endpoint} from it
+ * instead of a native socket, and performs all of its reads, writes
+ * and socket options through the endpoint.  Packet formats are the
+ * same as for native raw sockets: IPv4 packets are read with their IP
+ * header and written without one unless IP_HDRINCL is set, and IPv6
+ * packets never include the IPv6 header.</p>
+ *
+ * <p>Backends make it possible to exercise code built on RawSocket
+ * without privileges or a network; see {@link LoopbackBackend}.
+ * Features that only make sense for kernel sockets, such as device
+ * binding, packet metadata beyond the source address, and batch
+ * system calls, are emulated or unsupported.</p>
+ */
+public interface RawSocketBackend {
+
+  /** One open socket of a backend.  Endpoints must be thread safe. */
+  interface Endpoint {
+
+    /**
+     * Binds a local address to the endpoint.
+     *
+     * @param address The address (4 or 16 bytes).
+     * @exception IOException If the address cannot be bound.
+     */
+    void bind(byte[] address) throws IOException;
+
+    /**
+     * Receives a packet into a buffer, starting at its position and
+     * truncated to its remaining bytes.  The position is not changed.
+     *
+     * @param buffer The buffer in which to store the packet.
+     * @param source A byte array in which to store the source address,
+     * or null.
+     * @param timeoutNanos How long to wait for a packet: negative to
+     * wait indefinitely, zero not to wait.
+     * @return The number of bytes stored.
+     * @exception InterruptedIOException If no packet arrived in time.
+     * @exception IOException If the endpoint is closed or an I/O error
+     * occurs.
+     */
+    int receive(ByteBuffer buffer, byte[] source, long timeoutNanos)
+      throws IOException, InterruptedIOException;
+
+    /**
+     * Sends the remaining bytes of a buffer.  The position is not
+     * changed.
+     *
+     * @param buffer The buffer holding the packet.
+     * @param destination The destination address (4 or 16 bytes).
+     * @return The number of bytes sent.
+     * @exception IOException If an I/O error occurs.
+     */
+    int send(ByteBuffer buffer, byte[] destination) throws IOException;
+
+    /**
+     * Sets a socket option.  Options are identified by their {@link
+     * RawSocketOption#name}, plus {@code ICMP_FILTER}, {@code
+     * ICMP6_FILTER} and {@code IPV6_CHECKSUM}, which RawSocket sets
+     * with an Integer, an int[8] and an Integer respectively.
+     *
+     * @param name The option name.
+     * @param value The option value.
+     * @exception UnsupportedOperationException If the option is not
+     * supported.
+     * @exception SocketException If the option could not be set.
+     */
+    void setOption(String name, Object value)
+      throws UnsupportedOperationException, SocketException;
+
+    /**
+     * Retrieves a socket option.
+     *
+     * @param name The option name.
+     * @return The option value.
+     * @exception UnsupportedOperationException If the option is not
+     * supported.
+     * @exception SocketException If the option could not be retrieved.
+     */
+    Object getOption(String name)
+      throws UnsupportedOperationException, SocketException;
+
+    /**
+     * Closes the endpoint.  Threads blocked in {@link #receive} fail
+     * with an IOException.
+     *
+     * @exception IOException If an I/O error occurs.
+     */
+    void close() throws IOException;
+  }
+
+  /**
+   * Opens an endpoint.
+   *
+   * @param protocolFamily The protocol family ({@link RawSocket#PF_INET}
+   * or {@link RawSocket#PF_INET6}).
+   * @param protocol The protocol within the protocol family.
+   * @return The endpoint.
+   * @exception IOException If the endpoint cannot be opened.
+   */
+  Endpoint open(int protocolFamily, int protocol) throws IOException;
+
+}
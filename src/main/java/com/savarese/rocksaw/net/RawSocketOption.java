@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.net.SocketOption;
+
+/**
+ * <p>A socket option that can be set on a {@link RawSocket} with
+ * {@link RawSocket#setOption} and retrieved with {@link
+ * RawSocket#getOption}.  Each option is identified by its native
+ * level and option number (the second and third arguments of
+ * {@code setsockopt}) and has one of four value encodings:</p>
+ *
+ * <ul>
+ *   <li>{@code Integer}, passed as a native {@code int}.</li>
+ *   <li>{@code Boolean}, passed as a native {@code int} equal to 0 or 1.</li>
+ *   <li>A timeout in milliseconds ({@code Integer}), passed as a
+ *       {@code struct timeval} (or a millisecond {@code DWORD} on Win32).</li>
+ *   <li>{@code byte[]}, passed verbatim.  The caller is responsible
+ *       for native layout and byte order.</li>
+ * </ul>
+ *
+ * <p>The commonly used options are predefined in {@link
+ * RawSocketOptions}.  Options it does not cover can be created with
+ * the factory methods in this class, but level and option numbers are
+ * platform-specific.</p>
+ *
+ * <p>By default {@link RawSocket} caches the value of an option after
+ * it has been set or read once, so that subsequent reads do not
+ * require a system call.  Options whose value is maintained by the
+ * kernel (e.g., SO_ERROR) should be marked with {@link #uncached}.</p>
+ *
+ * @param <T> The type of the option value.
+ */
+public final class RawSocketOption<T> implements SocketOption<T> {
+
+  static final int KIND_INT     = 0;
+  static final int KIND_BOOLEAN = 1;
+  static final int KIND_TIMEOUT = 2;
+  static final int KIND_BYTES   = 3;
+
+  /** The level of options that are not supported by the platform. */
+  static final int LEVEL_UNSUPPORTED = -1;
+
+  private final String __name;
+  private final Class<T> __type;
+  private final int __kind, __level, __option;
+  private final boolean __cached;
+
+  private RawSocketOption(String name, Class<T> type, int kind, int level,
+                          int option, boolean cached)
+  {
+    __name   = name;
+    __type   = type;
+    __kind   = kind;
+    __level  = level;
+    __option = option;
+    __cached = cached;
+  }
+
+  /**
+   * Creates an option with an {@code int} value.
+   *
+   * @param name The name of the option.
+   * @param level The native option level (e.g., SOL_SOCKET).
+   * @param option The native option number.
+   * @return The option.
+   */
+  public static RawSocketOption<Integer>
+  intOption(String name, int level, int option)
+  {
+    return new RawSocketOption<Integer>(name, Integer.class, KIND_INT,
+                                        level, option, true);
+  }
+
+  /**
+   * Creates an option with a boolean value.
+   *
+   * @param name The name of the option.
+   * @param level The native option level (e.g., SOL_SOCKET).
+   * @param option The native option number.
+   * @return The option.
+   */
+  public static RawSocketOption<Boolean>
+  booleanOption(String name, int level, int option)
+  {
+    return new RawSocketOption<Boolean>(name, Boolean.class, KIND_BOOLEAN,
+                                        level, option, true);
+  }
+
+  /**
+   * Creates an option whose value is a timeout in milliseconds,
+   * passed to the kernel as a {@code struct timeval}.
+   *
+   * @param name The name of the option.
+   * @param level The native option level (e.g., SOL_SOCKET).
+   * @param option The native option number.
+   * @return The option.
+   */
+  public static RawSocketOption<Integer>
+  timeoutOption(String name, int level, int option)
+  {
+    return new RawSocketOption<Integer>(name, Integer.class, KIND_TIMEOUT,
+                                        level, option, true);
+  }
+
+  /**
+   * Creates an option with a raw byte payload.
+   *
+   * @param name The name of the option.
+   * @param level The native option level.
+   * @param option The native option number.
+   * @return The option.
+   */
+  public static RawSocketOption<byte[]>
+  bytesOption(String name, int level, int option)
+  {
+    return new RawSocketOption<byte[]>(name, byte[].class, KIND_BYTES,
+                                       level, option, true);
+  }
+
+  /**
+   * Looks up a predefined option by its native name (e.g., "SO_MARK").
+   * If the platform does not define the option, the returned option
+   * is marked unsupported and {@link RawSocket#setOption} and {@link
+   * RawSocket#getOption} will throw UnsupportedOperationException.
+   */
+  static <T> RawSocketOption<T> lookup(String name, Class<T> type, int kind) {
+    int[] levelAndOption = new int[2];
+
+    if(RawSocket.__lookupSocketOption(name, levelAndOption) != 0) {
+      levelAndOption[0] = LEVEL_UNSUPPORTED;
+      levelAndOption[1] = LEVEL_UNSUPPORTED;
+    }
+
+    return new RawSocketOption<T>(name, type, kind, levelAndOption[0],
+                                  levelAndOption[1], true);
+  }
+
+  /**
+   * Returns a copy of this option whose value is always retrieved
+   * from the kernel instead of from the socket's option cache.
+   *
+   * @return An uncached copy of this option.
+   */
+  public RawSocketOption<T> uncached() {
+    return new RawSocketOption<T>(__name, __type, __kind, __level, __option,
+                                  false);
+  }
+
+  public String name() {
+    return __name;
+  }
+
+  public Class<T> type() {
+    return __type;
+  }
+
+  /**
+   * @return The native option level, or a negative value if the
+   * option is not supported on the runtime platform.
+   */
+  public int level() {
+    return __level;
+  }
+
+  /**
+   * @return The native option number.
+   */
+  public int option() {
+    return __option;
+  }
+
+  /**
+   * @return True if the option is supported on the runtime platform.
+   */
+  public boolean isSupported() {
+    return (__level != LEVEL_UNSUPPORTED);
+  }
+
+  /**
+   * @return True if values of this option are cached by {@link RawSocket}.
+   */
+  public boolean isCached() {
+    return __cached;
+  }
+
+  int kind() {
+    return __kind;
+  }
+
+  public boolean equals(Object obj) {
+    if(this == obj)
+      return true;
+    if(!(obj instanceof RawSocketOption))
+      return false;
+
+    RawSocketOption<?> other = (RawSocketOption<?>)obj;
+
+    return (__level == other.__level && __option == other.__option &&
+            __kind == other.__kind && __name.equals(other.__name));
+  }
+
+  public int hashCode() {
+    return (31 * (31 * __level + __option) + __kind);
+  }
+
+  public String toString() {
+    return __name;
+  }
+
+}
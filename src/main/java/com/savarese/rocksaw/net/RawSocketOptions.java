@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import static com.savarese.rocksaw.net.RawSocketOption.KIND_BOOLEAN;
+import static com.savarese.rocksaw.net.RawSocketOption.KIND_INT;
+import static com.savarese.rocksaw.net.RawSocketOption.KIND_TIMEOUT;
+
+/**
+ * <p>Defines the socket options supported by {@link RawSocket#setOption}
+ * and {@link RawSocket#getOption}.  The native level and option number
+ * of each option are resolved when this class is initialized.  Options
+ * that are not defined on the runtime platform are still present, but
+ * {@link RawSocketOption#isSupported} returns false for them.</p>
+ *
+ * <p>Many of these options are Linux-specific and several require
+ * privileges beyond those needed to open a raw socket (e.g.,
+ * CAP_NET_ADMIN for SO_MARK and SO_RCVBUFFORCE).  Consult
+ * socket(7), ip(7), and ipv6(7) for their semantics.</p>
+ */
+public final class RawSocketOptions {
+
+  private RawSocketOptions() { }
+
+  /** The send buffer size (SO_SNDBUF). */
+  public static final RawSocketOption<Integer> SO_SNDBUF =
+    RawSocketOption.lookup("SO_SNDBUF", Integer.class, KIND_INT);
+
+  /**
+   * The receive buffer size (SO_RCVBUF).  Linux doubles the requested
+   * value to account for bookkeeping overhead and clamps it to
+   * {@code net.core.rmem_max}; the cached value is the one reported by
+   * the kernel after setting.
+   */
+  public static final RawSocketOption<Integer> SO_RCVBUF =
+    RawSocketOption.lookup("SO_RCVBUF", Integer.class, KIND_INT);
+
+  /**
+   * The send buffer size, ignoring {@code net.core.wmem_max}
+   * (SO_SNDBUFFORCE, Linux, requires CAP_NET_ADMIN).
+   */
+  public static final RawSocketOption<Integer> SO_SNDBUFFORCE =
+    RawSocketOption.lookup("SO_SNDBUFFORCE", Integer.class, KIND_INT);
+
+  /**
+   * The receive buffer size, ignoring {@code net.core.rmem_max}
+   * (SO_RCVBUFFORCE, Linux, requires CAP_NET_ADMIN).
+   */
+  public static final RawSocketOption<Integer> SO_RCVBUFFORCE =
+    RawSocketOption.lookup("SO_RCVBUFFORCE", Integer.class, KIND_INT);
+
+  /** The send timeout in milliseconds (SO_SNDTIMEO). */
+  public static final RawSocketOption<Integer> SO_SNDTIMEO =
+    RawSocketOption.lookup("SO_SNDTIMEO", Integer.class, KIND_TIMEOUT);
+
+  /** The receive timeout in milliseconds (SO_RCVTIMEO). */
+  public static final RawSocketOption<Integer> SO_RCVTIMEO =
+    RawSocketOption.lookup("SO_RCVTIMEO", Integer.class, KIND_TIMEOUT);
+
+  /** Permits sending to broadcast addresses (SO_BROADCAST). */
+  public static final RawSocketOption<Boolean> SO_BROADCAST =
+    RawSocketOption.lookup("SO_BROADCAST", Boolean.class, KIND_BOOLEAN);
+
+  /** The pending socket error, cleared when read (SO_ERROR). */
+  public static final RawSocketOption<Integer> SO_ERROR =
+    RawSocketOption.lookup("SO_ERROR", Integer.class, KIND_INT).uncached();
+
+  /** The firewall mark of outgoing packets (SO_MARK, Linux). */
+  public static final RawSocketOption<Integer> SO_MARK =
+    RawSocketOption.lookup("SO_MARK", Integer.class, KIND_INT);
+
+  /** The queueing priority of outgoing packets (SO_PRIORITY, Linux). */
+  public static final RawSocketOption<Integer> SO_PRIORITY =
+    RawSocketOption.lookup("SO_PRIORITY", Integer.class, KIND_INT);
+
+  /**
+   * The number of microseconds to busy poll the device queue on
+   * blocking receives (SO_BUSY_POLL, Linux).
+   */
+  public static final RawSocketOption<Integer> SO_BUSY_POLL =
+    RawSocketOption.lookup("SO_BUSY_POLL", Integer.class, KIND_INT);
+
+  /**
+   * Prefers busy polling over softirq processing of the device queue
+   * (SO_PREFER_BUSY_POLL, Linux 5.11 and later).
+   */
+  public static final RawSocketOption<Boolean> SO_PREFER_BUSY_POLL =
+    RawSocketOption.lookup("SO_PREFER_BUSY_POLL", Boolean.class,
+                           KIND_BOOLEAN);
+
+  /**
+   * The maximum number of packets processed per busy poll
+   * (SO_BUSY_POLL_BUDGET, Linux 5.11 and later, requires CAP_NET_ADMIN
+   * to raise).
+   */
+  public static final RawSocketOption<Integer> SO_BUSY_POLL_BUDGET =
+    RawSocketOption.lookup("SO_BUSY_POLL_BUDGET", Integer.class, KIND_INT);
+
+  /**
+   * The CPU that processed the most recently received packet
+   * (SO_INCOMING_CPU, Linux).
+   */
+  public static final RawSocketOption<Integer> SO_INCOMING_CPU =
+    RawSocketOption.lookup("SO_INCOMING_CPU", Integer.class,
+                           KIND_INT).uncached();
+
+  /**
+   * Requests the kernel drop counter as ancillary data on receive
+   * (SO_RXQ_OVFL, Linux).
+   */
+  public static final RawSocketOption<Boolean> SO_RXQ_OVFL =
+    RawSocketOption.lookup("SO_RXQ_OVFL", Boolean.class, KIND_BOOLEAN);
+
+  /** Whether IPv4 writes include the IP header (IP_HDRINCL). */
+  public static final RawSocketOption<Boolean> IP_HDRINCL =
+    RawSocketOption.lookup("IP_HDRINCL", Boolean.class, KIND_BOOLEAN);
+
+  /** The time-to-live of outgoing IPv4 packets (IP_TTL). */
+  public static final RawSocketOption<Integer> IP_TTL =
+    RawSocketOption.lookup("IP_TTL", Integer.class, KIND_INT);
+
+  /** The type of service of outgoing IPv4 packets (IP_TOS). */
+  public static final RawSocketOption<Integer> IP_TOS =
+    RawSocketOption.lookup("IP_TOS", Integer.class, KIND_INT);
+
+  /** The path MTU discovery mode (IP_MTU_DISCOVER, Linux). */
+  public static final RawSocketOption<Integer> IP_MTU_DISCOVER =
+    RawSocketOption.lookup("IP_MTU_DISCOVER", Integer.class, KIND_INT);
+
+  /**
+   * Requests the destination address and interface index as ancillary
+   * data on receive (IP_PKTINFO).
+   */
+  public static final RawSocketOption<Boolean> IP_PKTINFO =
+    RawSocketOption.lookup("IP_PKTINFO", Boolean.class, KIND_BOOLEAN);
+
+  /** Requests the TTL as ancillary data on receive (IP_RECVTTL). */
+  public static final RawSocketOption<Boolean> IP_RECVTTL =
+    RawSocketOption.lookup("IP_RECVTTL", Boolean.class, KIND_BOOLEAN);
+
+  /** Requests the type of service as ancillary data on receive (IP_RECVTOS). */
+  public static final RawSocketOption<Boolean> IP_RECVTOS =
+    RawSocketOption.lookup("IP_RECVTOS", Boolean.class, KIND_BOOLEAN);
+
+  /** The hop limit of outgoing unicast IPv6 packets (IPV6_UNICAST_HOPS). */
+  public static final RawSocketOption<Integer> IPV6_UNICAST_HOPS =
+    RawSocketOption.lookup("IPV6_UNICAST_HOPS", Integer.class, KIND_INT);
+
+  /** The traffic class of outgoing IPv6 packets (IPV6_TCLASS). */
+  public static final RawSocketOption<Integer> IPV6_TCLASS =
+    RawSocketOption.lookup("IPV6_TCLASS", Integer.class, KIND_INT);
+
+  /** The IPv6 path MTU discovery mode (IPV6_MTU_DISCOVER, Linux). */
+  public static final RawSocketOption<Integer> IPV6_MTU_DISCOVER =
+    RawSocketOption.lookup("IPV6_MTU_DISCOVER", Integer.class, KIND_INT);
+
+  /**
+   * Requests the destination address and interface index as ancillary
+   * data on receive (IPV6_RECVPKTINFO).
+   */
+  public static final RawSocketOption<Boolean> IPV6_RECVPKTINFO =
+    RawSocketOption.lookup("IPV6_RECVPKTINFO", Boolean.class, KIND_BOOLEAN);
+
+  /** Requests the hop limit as ancillary data on receive (IPV6_RECVHOPLIMIT). */
+  public static final RawSocketOption<Boolean> IPV6_RECVHOPLIMIT =
+    RawSocketOption.lookup("IPV6_RECVHOPLIMIT", Boolean.class, KIND_BOOLEAN);
+
+  /** Requests the traffic class as ancillary data on receive (IPV6_RECVTCLASS). */
+  public static final RawSocketOption<Boolean> IPV6_RECVTCLASS =
+    RawSocketOption.lookup("IPV6_RECVTCLASS", Boolean.class, KIND_BOOLEAN);
+
+}
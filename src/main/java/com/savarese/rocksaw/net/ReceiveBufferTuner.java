@@ -0,0 +1,247 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.io.IOException;
+import java.net.SocketException;
+
+/**
+ * <p>Sizes the receive buffer of a {@link RawSocket} to its load.  Each
+ * call to {@link #adjust} samples the socket's {@link
+ * SocketStatistics}: the drop counter (the one SO_RXQ_OVFL reports)
+ * and the receive buffer bytes in use, which is the queue depth that
+ * SIOCINQ only hints at for raw sockets.  The buffer is doubled
+ * whenever packets were dropped since the last sample or the buffer
+ * is more than half full, and halved once it has stayed less than an
+ * eighth full for {@link #setShrinkDelay shrinkDelay} consecutive
+ * samples.  It never shrinks below four times the recent peak usage
+ * and always stays between the configured minimum and maximum.</p>
+ *
+ * <p>Sizes are SO_RCVBUF values, as passed to {@link
+ * RawSocket#setReceiveBufferSize}.  Linux doubles them to allow for
+ * bookkeeping overhead and silently clamps them to the {@code
+ * net.core.rmem_max} sysctl.  The tuner reads every size back and
+ * reports, with {@link #isCapped}, when the kernel granted less than
+ * was requested.  With {@link #setForce setForce(true)} it uses
+ * SO_RCVBUFFORCE instead, which ignores rmem_max but requires
+ * CAP_NET_ADMIN; without the capability it falls back to
+ * SO_RCVBUF.</p>
+ *
+ * <p>The tuner does not run by itself.  Call {@link #adjust}
+ * periodically, for example every 100 milliseconds from a {@link
+ * java.util.concurrent.ScheduledExecutorService} or every few thousand
+ * packets from the receiving thread.  It has no effect on platforms
+ * that report neither drops nor buffer usage (only Linux reports
+ * both), or on sockets with a backend.  Instances are thread
+ * safe.</p>
+ */
+public final class ReceiveBufferTuner {
+
+  /** The default number of idle samples before the buffer shrinks. */
+  public static final int DEFAULT_SHRINK_DELAY = 10;
+
+  private final RawSocket __socket;
+  private final int __minSize, __maxSize;
+  // The factor between the requested and the reported buffer size.
+  private final int __scale;
+  private boolean __force, __capped;
+  private int __shrinkDelay, __idle;
+  private int __size, __granted;
+  private long __drops, __dropped, __peak;
+
+  /**
+   * Creates a tuner.  The buffer size is not changed until the first
+   * call to {@link #adjust}.
+   *
+   * @param socket The socket whose receive buffer to size.
+   * @param minSize The smallest receive buffer size.
+   * @param maxSize The largest receive buffer size.
+   * @exception IllegalArgumentException If the sizes are out of range.
+   */
+  public ReceiveBufferTuner(RawSocket socket, int minSize, int maxSize)
+    throws IllegalArgumentException
+  {
+    if(minSize <= 0 || maxSize < minSize || maxSize > (1 << 30))
+      throw new IllegalArgumentException("Invalid buffer sizes.");
+
+    String os = System.getProperty("os.name");
+
+    __socket      = socket;
+    __minSize     = minSize;
+    __maxSize     = maxSize;
+    __scale       = (os != null && os.startsWith("Linux") ? 2 : 1);
+    __shrinkDelay = DEFAULT_SHRINK_DELAY;
+    __drops       = -1L;
+  }
+
+  /**
+   * Sets whether to set sizes with SO_RCVBUFFORCE, which exceeds
+   * {@code net.core.rmem_max} but requires CAP_NET_ADMIN (Linux only).
+   * If the option is refused, the tuner turns it off and uses
+   * SO_RCVBUF.
+   *
+   * @param force True to use SO_RCVBUFFORCE.
+   */
+  public synchronized void setForce(boolean force) {
+    __force = force;
+  }
+
+  /** @return True if sizes are set with SO_RCVBUFFORCE. */
+  public synchronized boolean getForce() {
+    return __force;
+  }
+
+  /**
+   * Sets the number of consecutive samples in which the buffer must
+   * stay less than an eighth full before it is halved.
+   *
+   * @param samples The number of samples.
+   * @exception IllegalArgumentException If samples is not positive.
+   */
+  public synchronized void setShrinkDelay(int samples)
+    throws IllegalArgumentException
+  {
+    if(samples <= 0)
+      throw new IllegalArgumentException("Invalid shrink delay.");
+
+    __shrinkDelay = samples;
+  }
+
+  /** @return The number of idle samples before the buffer shrinks. */
+  public synchronized int getShrinkDelay() {
+    return __shrinkDelay;
+  }
+
+  /** @return The smallest receive buffer size. */
+  public int getMinimumSize() {
+    return __minSize;
+  }
+
+  /** @return The largest receive buffer size. */
+  public int getMaximumSize() {
+    return __maxSize;
+  }
+
+  /**
+   * @return The size last requested by the tuner, or 0 if it has not
+   * set one yet.
+   */
+  public synchronized int getSize() {
+    return __size;
+  }
+
+  /**
+   * @return The size the kernel granted for the last request, in the
+   * same units as the request, or 0 if none has been made.
+   */
+  public synchronized int getGrantedSize() {
+    return __granted;
+  }
+
+  /**
+   * @return True if the kernel granted less than the last requested
+   * size, which on Linux means it was clamped to {@code
+   * net.core.rmem_max}.  The tuner does not grow the buffer further
+   * while it is capped.
+   */
+  public synchronized boolean isCapped() {
+    return __capped;
+  }
+
+  /** @return The number of drops seen by the tuner since it was created. */
+  public synchronized long getDropCount() {
+    return __dropped;
+  }
+
+  private static int __clamp(long size, int min, int max) {
+    return (int)Math.max(min, Math.min(max, size));
+  }
+
+  /**
+   * Samples the socket's statistics and resizes its receive buffer if
+   * needed.
+   *
+   * @return The requested receive buffer size.
+   * @exception IllegalStateException If the socket is not open.
+   * @exception IOException If the statistics or the buffer size cannot
+   * be retrieved, or the size cannot be set.
+   */
+  public synchronized int adjust() throws IllegalStateException, IOException {
+    SocketStatistics stats = __socket.getStatistics();
+    long drops = stats.getDropCount();
+    long used  = stats.getReceiveBufferUsed();
+    long size  = stats.getReceiveBufferSize();
+    long dropped = 0;
+
+    if(drops < 0 && used < 0)
+      return __size;
+
+    if(__drops >= 0 && drops > __drops)
+      dropped = drops - __drops;
+
+    __drops = drops;
+    __dropped+=dropped;
+    __peak = Math.max(used, __peak - (__peak >> 2));
+
+    if(__size == 0) {
+      __apply(__clamp(__socket.getReceiveBufferSize() / __scale,
+                      __minSize, __maxSize), dropped);
+      return __size;
+    }
+
+    int target = __size;
+
+    if(dropped > 0 || used * 2 > size) {
+      __idle = 0;
+
+      if(!__capped)
+        target = __clamp(2L * __size, __minSize, __maxSize);
+    } else if(__peak * 8 < size) {
+      if(++__idle >= __shrinkDelay) {
+        __idle = 0;
+        target = __clamp(Math.max(__size / 2, 4 * __peak / __scale),
+                         __minSize, __size);
+      }
+    } else
+      __idle = 0;
+
+    if(target != __size)
+      __apply(target, dropped);
+
+    return __size;
+  }
+
+  private void __apply(int size, long dropped) throws IOException {
+    if(__force) {
+      try {
+        __socket.setOption(RawSocketOptions.SO_RCVBUFFORCE, size);
+      } catch(SocketException e) {
+        __force = false;
+      } catch(UnsupportedOperationException e) {
+        __force = false;
+      }
+    }
+
+    if(!__force)
+      __socket.setReceiveBufferSize(size);
+
+    __size    = size;
+    __granted = __socket.getReceiveBufferSize() / __scale;
+    __capped  = (__granted < size);
+
+    RawSocket.__tracer.resized(__socket, size, __granted, __capped, dropped);
+  }
+
+}
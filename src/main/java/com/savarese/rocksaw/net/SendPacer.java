@@ -0,0 +1,322 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Paces writes to a {@link RawSocket} so that they stay under a
+ * global packet rate and, optionally, a per-destination packet rate.
+ * Each write first reserves a token from a {@link TokenBucket} for its
+ * destination, whose parent is the global bucket, and then waits until
+ * the reserved time before writing.  Packets therefore leave evenly
+ * spaced rather than in the bursts produced by sleeping between
+ * writes.</p>
+ *
+ * <p>Per-destination buckets are kept in a fixed-size table indexed by
+ * a hash of the destination address, so memory use does not grow with
+ * the number of destinations.  Destinations whose hashes collide share
+ * a bucket, which can only make the pacing stricter.  A table with
+ * several times more buckets than concurrently probed destinations
+ * makes collisions rare.</p>
+ *
+ * <p>Waiting is done with a hybrid clock: the thread parks until
+ * shortly before the reserved time and spins for the remainder (see
+ * {@link #setSpinNanos}).  Parking alone would add the timer slack of
+ * the operating system (typically 50 microseconds on Linux) to every
+ * wait, while spinning alone would keep a CPU busy at low rates.  At
+ * rates above about 1/spin-time the pacer spins continuously while
+ * packets are queued; when nothing is being sent, no CPU is used.</p>
+ *
+ * <p>Batch writes are paced by reserving a token for every packet and
+ * sending the batch, in chunks no larger than the smallest bucket
+ * burst, once the last token of the chunk is due.  Instances are thread
+ * safe.</p>
+ */
+public class SendPacer {
+
+  /** The default time spent spinning before a reserved time, 50 us. */
+  public static final long DEFAULT_SPIN_NANOS = 50000L;
+
+  private static final int __MAX_CHUNK = 64;
+
+  private final RawSocket __socket;
+  private final TokenBucket __global;
+  private volatile TokenBucket[] __destinations;
+  private volatile int __maxChunk;
+  private volatile long __spinNanos;
+
+  /**
+   * Creates a pacer with only a global rate limit.
+   *
+   * @param socket The socket to write to.
+   * @param rate The largest average number of packets written per second.
+   * @param burst The largest number of packets written at once.
+   * @exception IllegalArgumentException If rate or burst are out of range.
+   */
+  public SendPacer(RawSocket socket, double rate, int burst)
+    throws IllegalArgumentException
+  {
+    __socket    = socket;
+    __global    = new TokenBucket(rate, burst);
+    __maxChunk  = Math.min(burst, __MAX_CHUNK);
+    __spinNanos = DEFAULT_SPIN_NANOS;
+  }
+
+  /**
+   * Limits the rate to each destination in addition to the global
+   * rate.  Replaces any previous per-destination buckets, which
+   * resets their state.
+   *
+   * @param rate The largest average number of packets written per
+   * second to one destination.
+   * @param burst The largest number of packets written at once to one
+   * destination.
+   * @param buckets The size of the bucket table, which is rounded up to
+   * a power of two.
+   * @exception IllegalArgumentException If a value is out of range.
+   */
+  public void setDestinationRate(double rate, int burst, int buckets)
+    throws IllegalArgumentException
+  {
+    if(buckets <= 0 || buckets > (1 << 24))
+      throw new IllegalArgumentException("Invalid number of buckets.");
+
+    int size = Integer.highestOneBit(buckets);
+
+    if(size < buckets)
+      size <<= 1;
+
+    TokenBucket[] table = new TokenBucket[size];
+
+    for(int i = 0; i < size; ++i)
+      table[i] = new TokenBucket(rate, burst, __global);
+
+    __destinations = table;
+    __maxChunk = Math.min(Math.min(burst, __global.getBurst()), __MAX_CHUNK);
+  }
+
+  /** Removes the per-destination rate limit. */
+  public void clearDestinationRate() {
+    __destinations = null;
+    __maxChunk = Math.min(__global.getBurst(), __MAX_CHUNK);
+  }
+
+  /**
+   * Sets how long before a reserved time the pacer stops parking and
+   * starts spinning.  Larger values give more precise spacing at the
+   * cost of more CPU; zero never spins.
+   *
+   * @param nanos The spin time in nanoseconds.
+   */
+  public void setSpinNanos(long nanos) {
+    __spinNanos = Math.max(0L, nanos);
+  }
+
+  /** @return The spin time in nanoseconds. */
+  public long getSpinNanos() {
+    return __spinNanos;
+  }
+
+  /** @return The global bucket. */
+  public TokenBucket getGlobalBucket() {
+    return __global;
+  }
+
+  private static int __hash(byte[] address, int offset, int length) {
+    int h = 0;
+
+    for(int i = offset; i < offset + length; i+=4) {
+      h = (h ^ ((address[i] & 0xff) << 24 | (address[i + 1] & 0xff) << 16 |
+                (address[i + 2] & 0xff) << 8 | (address[i + 3] & 0xff))) *
+        0x9E3779B1;
+      h ^= h >>> 15;
+    }
+
+    return h;
+  }
+
+  private TokenBucket __bucket(byte[] address, int offset, int length) {
+    TokenBucket[] table = __destinations;
+
+    if(table == null)
+      return __global;
+
+    return table[__hash(address, offset, length) & (table.length - 1)];
+  }
+
+  /**
+   * Returns the bucket that paces packets to a destination.
+   *
+   * @param address The destination address (4 or 16 bytes).
+   * @return The destination's bucket, or the global bucket if there is
+   * no per-destination rate limit.
+   */
+  public TokenBucket getBucket(byte[] address) {
+    return __bucket(address, 0, address.length);
+  }
+
+  /**
+   * Waits until a System.nanoTime value, parking until spinNanos
+   * before it and spinning for the rest.  Returns early, with the
+   * interrupt status set, if the thread is interrupted while parked.
+   *
+   * @param deadline The time to wait until.
+   * @param spinNanos The time to spin for.
+   */
+  public static void waitUntil(long deadline, long spinNanos) {
+    long remaining;
+
+    while((remaining = deadline - System.nanoTime()) > 0) {
+      if(remaining > spinNanos) {
+        LockSupport.parkNanos(remaining - spinNanos);
+
+        if(Thread.currentThread().isInterrupted())
+          return;
+      }
+    }
+  }
+
+  private void __await(long time) throws InterruptedIOException {
+    waitUntil(time, __spinNanos);
+
+    if(Thread.currentThread().isInterrupted())
+      throw new InterruptedIOException("Interrupted while pacing.");
+  }
+
+  /**
+   * Reserves tokens for packets to a destination and waits until they
+   * may be sent.  Use this to pace sends that do not go through this
+   * pacer's socket.
+   *
+   * @param address The destination address (4 or 16 bytes).
+   * @param packets The number of packets.
+   * @return The reserved time, as a System.nanoTime value.
+   * @exception InterruptedIOException If the thread is interrupted
+   * while waiting.  The tokens remain reserved.
+   */
+  public long acquire(byte[] address, int packets)
+    throws InterruptedIOException
+  {
+    long time = getBucket(address).reserve(packets, System.nanoTime());
+
+    __await(time);
+
+    return time;
+  }
+
+  /**
+   * Waits for the rate limits to admit a packet and writes it with
+   * {@link RawSocket#write(InetAddress, byte[], int, int)}.
+   *
+   * @param address The destination to write to.
+   * @param data The buffer from which to copy the packet data.
+   * @param offset The offset into the buffer where the data starts.
+   * @param length The number of bytes to write.
+   * @exception IllegalArgumentException If the offset or lengths are invalid.
+   * @exception IOException If an I/O error occurs.
+   * @exception InterruptedIOException If the write operation times out
+   * or the thread is interrupted while waiting.
+   * @return The number of bytes written.
+   */
+  public int write(InetAddress address, byte[] data, int offset, int length)
+    throws IllegalArgumentException, IOException, InterruptedIOException
+  {
+    acquire(address.getAddress(), 1);
+
+    return __socket.write(address, data, offset, length);
+  }
+
+  /** Same as {@code write(address, data, 0, data.length);} */
+  public int write(InetAddress address, byte[] data)
+    throws IOException, InterruptedIOException
+  {
+    return write(address, data, 0, data.length);
+  }
+
+  /**
+   * Waits for the rate limits to admit a batch of packets and writes
+   * them with {@link RawSocket#write(byte[], int[], int[], byte[], int,
+   * int)}.  Batches larger than the smallest bucket burst are split.
+   *
+   * @param data The buffer holding the packets.
+   * @param offsets The offset of each packet in the buffer.
+   * @param lengths The length of each packet.
+   * @param addresses The destination address of each packet, packed
+   * back to back.
+   * @param count The number of packets to write.
+   * @exception IllegalArgumentException If an offset, length, or the
+   * address buffer is invalid.
+   * @exception IOException If an I/O error occurs before any packet
+   * has been written.
+   * @exception InterruptedIOException If the write operation times out
+   * or the thread is interrupted while waiting.  The tokens reserved
+   * for the current chunk remain reserved.
+   * @return The number of packets written.  This is less than count
+   * only if an error occurred after at least one packet was written.
+   * The tokens reserved for the unsent packets of the failed chunk
+   * are not returned, so the next write is delayed as if they had
+   * been sent.
+   */
+  public int write(byte[] data, int[] offsets, int[] lengths,
+                   byte[] addresses, int count)
+    throws IllegalArgumentException, IOException, InterruptedIOException
+  {
+    int addressLength =
+      (__socket.getProtocolFamily() == RawSocket.PF_INET6 ? 16 : 4);
+
+    if(count < 0 || addresses.length / addressLength < count)
+      throw new IllegalArgumentException("Invalid packet count.");
+
+    int sent = 0;
+
+    while(sent < count) {
+      int chunk = Math.min(count - sent, __maxChunk);
+      long now  = System.nanoTime();
+      long time = now;
+
+      for(int i = sent; i < sent + chunk; ++i) {
+        long t = __bucket(addresses, i * addressLength, addressLength)
+          .reserve(1, now);
+
+        if(t - time > 0)
+          time = t;
+      }
+
+      __await(time);
+
+      int result;
+
+      try {
+        result = __socket.write(data, offsets, lengths, addresses, sent, chunk);
+      } catch(IOException e) {
+        if(sent > 0)
+          break;
+        throw e;
+      }
+
+      sent+=result;
+
+      if(result < chunk)
+        break;
+    }
+
+    return sent;
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+/**
+ * <p>The kernel's queue and drop counters for a {@link RawSocket}, as
+ * reported by {@link RawSocket#getStatistics}.  On Linux the receive
+ * queue length comes from the SIOCINQ ioctl, the send queue length
+ * from SIOCOUTQ, and the receive buffer counters from the SO_MEMINFO
+ * socket option.  Counters the platform cannot report are -1.</p>
+ *
+ * <p>For raw and ping sockets, SIOCINQ reports the length of the
+ * first queued packet rather than the total of all queued packets,
+ * so it only tells whether the queue is empty.  The number of receive
+ * buffer bytes in use is the better measure of queue depth.  It
+ * includes the kernel's per-packet overhead and is compared against
+ * the receive buffer size to decide when packets are dropped.</p>
+ */
+public final class SocketStatistics {
+
+  static final int RECEIVE_QUEUE = 0;
+  static final int SEND_QUEUE    = 1;
+  static final int RECEIVE_USED  = 2;
+  static final int RECEIVE_SIZE  = 3;
+  static final int DROPS         = 4;
+  static final int COUNT         = 5;
+
+  private final long __receiveQueue, __sendQueue;
+  private final long __receiveUsed, __receiveSize, __drops;
+
+  SocketStatistics(long[] values) {
+    __receiveQueue = values[RECEIVE_QUEUE];
+    __sendQueue    = values[SEND_QUEUE];
+    __receiveUsed  = values[RECEIVE_USED];
+    __receiveSize  = values[RECEIVE_SIZE];
+    __drops        = values[DROPS];
+  }
+
+  /**
+   * @return The number of bytes reported by SIOCINQ, which is the
+   * length of the next packet for raw sockets and zero if none is
+   * queued.
+   */
+  public long getReceiveQueueLength() {
+    return __receiveQueue;
+  }
+
+  /**
+   * @return The number of bytes reported by SIOCOUTQ, which are
+   * queued for sending but not yet sent.
+   */
+  public long getSendQueueLength() {
+    return __sendQueue;
+  }
+
+  /** @return The number of receive buffer bytes used by queued packets. */
+  public long getReceiveBufferUsed() {
+    return __receiveUsed;
+  }
+
+  /**
+   * @return The size of the receive buffer in bytes.  On Linux this is
+   * twice the SO_RCVBUF value that was set, to allow for overhead.
+   */
+  public long getReceiveBufferSize() {
+    return __receiveSize;
+  }
+
+  /**
+   * @return The number of packets dropped since the socket was opened
+   * because the receive buffer was full or a BPF socket filter
+   * rejected them.  This is the counter also reported with
+   * SO_RXQ_OVFL.
+   */
+  public long getDropCount() {
+    return __drops;
+  }
+
+  public String toString() {
+    return String.format("receive queue %d, send queue %d, " +
+                         "receive buffer %d/%d, drops %d", __receiveQueue,
+                         __sendQueue, __receiveUsed, __receiveSize, __drops);
+  }
+
+}
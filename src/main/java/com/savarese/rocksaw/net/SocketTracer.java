@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+/**
+ * <p>Hooks through which {@link RawSocket} and {@link
+ * ReceiveBufferTuner} report their operations to a tracing facility.
+ * The base class does nothing.  {@link #load} returns a {@code
+ * JfrSocketTracer} when JDK Flight Recorder is available, so that
+ * RawSocket itself never refers to the jdk.jfr classes and still runs
+ * where they are missing.</p>
+ *
+ * <p>Reads and writes are traced in two steps so that no time is
+ * taken when tracing is off: {@code beginRead} returns a token, or
+ * null if the operation is not being traced, and {@code endRead} is
+ * only called with a non-null token.</p>
+ */
+class SocketTracer {
+
+  static final SocketTracer NONE = new SocketTracer();
+
+  /**
+   * Returns the tracer for the runtime.  Setting the {@code
+   * rocksaw.jfr} system property to false disables Flight Recorder
+   * events entirely.
+   */
+  static SocketTracer load() {
+    if(!Boolean.parseBoolean(System.getProperty("rocksaw.jfr", "true")))
+      return NONE;
+
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+      return (SocketTracer)
+        Class.forName("com.savarese.rocksaw.net.JfrSocketTracer")
+        .getDeclaredConstructor().newInstance();
+    } catch(Exception e) {
+      return NONE;
+    } catch(LinkageError e) {
+      return NONE;
+    }
+  }
+
+  void opened(RawSocket socket) { }
+
+  void closed(RawSocket socket) { }
+
+  void bound(RawSocket socket, String address, boolean device) { }
+
+  Object beginRead() {
+    return null;
+  }
+
+  void endRead(Object token, RawSocket socket, long bytes, int packets) { }
+
+  Object beginWrite() {
+    return null;
+  }
+
+  void endWrite(Object token, RawSocket socket, long bytes, int packets) { }
+
+  void failed(RawSocket socket, String operation, int errno,
+              boolean timeout)
+  { }
+
+  void resized(RawSocket socket, int requested, int granted, boolean capped,
+               long drops)
+  { }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A spin, then yield, then park backoff policy used by {@link
+ * RawSocket#setReceiveSpin} to wait between non-blocking receive
+ * attempts.  The first {@code spins} attempts retry immediately, the
+ * next {@code yields} attempts call {@link Thread#yield}, and any
+ * further attempts park the thread for an interval that doubles from
+ * {@code minParkNanos} up to {@code maxParkNanos}.</p>
+ *
+ * <p>Spinning gives the lowest wakeup latency at the cost of a fully
+ * busy CPU, while parking bounds CPU use when the socket is idle.
+ * Instances are immutable and may be shared between sockets.</p>
+ */
+public final class SpinBackoff {
+
+  /**
+   * Spins for about 10 microseconds on contemporary hardware, yields
+   * briefly, then parks for between 1 and 100 microseconds.
+   */
+  public static final SpinBackoff DEFAULT =
+    new SpinBackoff(10000, 100, 1000L, 100000L);
+
+  /** Never yields or parks.  Dedicates a CPU to the receiving thread. */
+  public static final SpinBackoff BUSY_SPIN =
+    new SpinBackoff(Integer.MAX_VALUE, 0, 0L, 0L);
+
+  private final int __spins, __yields;
+  private final long __minParkNanos, __maxParkNanos;
+
+  /**
+   * Creates a backoff policy.
+   *
+   * @param spins The number of attempts to retry without pausing.
+   * @param yields The number of attempts to follow with Thread.yield().
+   * @param minParkNanos The first park interval in nanoseconds.
+   * @param maxParkNanos The longest park interval in nanoseconds.
+   * @exception IllegalArgumentException If any value is negative or
+   * minParkNanos is greater than maxParkNanos.
+   */
+  public SpinBackoff(int spins, int yields, long minParkNanos,
+                     long maxParkNanos)
+    throws IllegalArgumentException
+  {
+    if(spins < 0 || yields < 0 || minParkNanos < 0 ||
+       maxParkNanos < minParkNanos)
+      throw new IllegalArgumentException("Invalid backoff parameters.");
+
+    __spins        = spins;
+    __yields       = yields;
+    __minParkNanos = Math.max(1L, minParkNanos);
+    __maxParkNanos = Math.max(1L, maxParkNanos);
+  }
+
+  /** @return The number of attempts retried without pausing. */
+  public int getSpins() {
+    return __spins;
+  }
+
+  /** @return The number of attempts followed by Thread.yield(). */
+  public int getYields() {
+    return __yields;
+  }
+
+  /** @return The first park interval in nanoseconds. */
+  public long getMinParkNanos() {
+    return __minParkNanos;
+  }
+
+  /** @return The longest park interval in nanoseconds. */
+  public long getMaxParkNanos() {
+    return __maxParkNanos;
+  }
+
+  /**
+   * Waits before the next attempt.
+   *
+   * @param attempt The number of consecutive failed attempts so far,
+   * starting at zero.
+   * @param remainingNanos The time left before the caller times out,
+   * or a negative value if there is no timeout.  Parking never
+   * exceeds it.
+   */
+  public void idle(int attempt, long remainingNanos) {
+    if(attempt < __spins)
+      return;
+
+    attempt-=__spins;
+
+    if(attempt < __yields) {
+      Thread.yield();
+      return;
+    }
+
+    attempt-=__yields;
+
+    // Guard the shift against overflow for long backoff sequences.
+    long park = (attempt < Long.numberOfLeadingZeros(__minParkNanos) - 1 ?
+                 Math.min(__minParkNanos << attempt, __maxParkNanos) :
+                 __maxParkNanos);
+
+    if(remainingNanos >= 0)
+      park = Math.min(park, remainingNanos);
+
+    if(park > 0)
+      LockSupport.parkNanos(this, park);
+  }
+
+}
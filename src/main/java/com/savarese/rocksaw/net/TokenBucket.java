@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+/**
+ * <p>A token bucket rate limiter with nanosecond resolution, used by
+ * {@link SendPacer}.  A bucket admits {@code rate} tokens per second on
+ * average and at most {@code burst} tokens at once.  It is implemented
+ * as a generic cell rate algorithm, which stores a single theoretical
+ * arrival time instead of a token count, so it needs no refill
+ * timer.</p>
+ *
+ * <p>Buckets form a hierarchy: a bucket created with a parent only
+ * admits tokens that its parent, and its parent's parent, and so on,
+ * also admit.  For example, per-destination buckets may share a global
+ * parent to cap both the rate to each destination and the total
+ * rate.</p>
+ *
+ * <p>Tokens are reserved rather than polled.  {@link #reserve} commits
+ * the tokens to the bucket and its ancestors and returns the time at
+ * which they may be used; the caller then waits until that time.
+ * Reservations from several threads are therefore spaced out evenly
+ * instead of racing.  Instances are thread safe.  All times are {@link
+ * System#nanoTime} values.</p>
+ */
+public final class TokenBucket {
+
+  private final TokenBucket __parent;
+  private final double __rate;
+  private final int __burst;
+  private final long __interval, __capacity;
+  private long __tat;
+
+  /**
+   * Same as {@code TokenBucket(rate, burst, null)}.
+   */
+  public TokenBucket(double rate, int burst) throws IllegalArgumentException {
+    this(rate, burst, null);
+  }
+
+  /**
+   * Creates a full bucket.
+   *
+   * @param rate The average number of tokens admitted per second.  The
+   * interval between tokens is rounded to whole nanoseconds.
+   * @param burst The largest number of tokens admitted at once.
+   * @param parent The parent bucket, or null for none.
+   * @exception IllegalArgumentException If rate or burst are out of range.
+   */
+  public TokenBucket(double rate, int burst, TokenBucket parent)
+    throws IllegalArgumentException
+  {
+    if(!(rate > 0) || rate > 1e9 || burst <= 0)
+      throw new IllegalArgumentException("Invalid rate or burst.");
+
+    long interval = Math.max(1L, Math.round(1e9 / rate));
+
+    if(interval > (Long.MAX_VALUE >> 2) / burst)
+      throw new IllegalArgumentException("Rate too low for burst.");
+
+    __parent   = parent;
+    __rate     = rate;
+    __burst    = burst;
+    __interval = interval;
+    __capacity = interval * burst;
+    __tat      = System.nanoTime();
+  }
+
+  /** @return The average number of tokens admitted per second. */
+  public double getRate() {
+    return __rate;
+  }
+
+  /** @return The largest number of tokens admitted at once. */
+  public int getBurst() {
+    return __burst;
+  }
+
+  /** @return The nanoseconds between tokens. */
+  public long getIntervalNanos() {
+    return __interval;
+  }
+
+  /** @return The parent bucket, or null if there is none. */
+  public TokenBucket getParent() {
+    return __parent;
+  }
+
+  // The earliest time this bucket alone admits the tokens.
+  private long __earliest(long tokens) {
+    return __tat + tokens * __interval - __capacity;
+  }
+
+  private void __commit(long tokens, long time) {
+    __tat = (__tat - time > 0 ? __tat : time) + tokens * __interval;
+  }
+
+  // Locks this bucket and then each ancestor in turn.  Locks are
+  // always taken from child to parent, so reservations cannot deadlock.
+  private long __reserve(long tokens, long now, boolean block) {
+    synchronized(this) {
+      long time = __earliest(tokens);
+
+      if(time - now < 0)
+        time = now;
+
+      if(!block && time != now)
+        return Long.MIN_VALUE;
+
+      if(__parent != null) {
+        time = __parent.__reserve(tokens, time, block);
+
+        if(time == Long.MIN_VALUE)
+          return time;
+      }
+
+      __commit(tokens, time);
+
+      return time;
+    }
+  }
+
+  /**
+   * Reserves tokens from this bucket and all of its ancestors.
+   *
+   * @param tokens The number of tokens, which should not exceed the
+   * burst of any bucket in the hierarchy.
+   * @param now The current time.
+   * @return The time at which the tokens may be used, which is no
+   * earlier than now.
+   */
+  public long reserve(int tokens, long now) {
+    return __reserve(tokens, now, true);
+  }
+
+  /**
+   * Reserves tokens only if they are available immediately.
+   *
+   * @param tokens The number of tokens.
+   * @param now The current time.
+   * @return True if the tokens were reserved, false if none were.
+   */
+  public boolean tryReserve(int tokens, long now) {
+    return (__reserve(tokens, now, false) != Long.MIN_VALUE);
+  }
+
+}
@@ -0,0 +1,457 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>An AF_XDP socket (Linux 5.9 or later), which exchanges raw
+ * Ethernet frames with one receive queue of a network device through
+ * rings shared with the kernel, bypassing the network stack.  Frames
+ * live in the UMEM, a page-aligned direct buffer divided into
+ * fixed-size frames and registered with the kernel when the socket is
+ * opened; the application reads and writes packets in place and the
+ * kernel copies (or, with driver support, DMAs) them to and from the
+ * device.  Frames are identified by their offset in the UMEM, which is
+ * returned by {@link #getUmem}.</p>
+ *
+ * <p>Four rings connect the socket to the kernel.  Received frames
+ * arrive on the RX ring ({@link #receive}) and are handed back for
+ * reuse through the fill ring ({@link #release}).  Frames to send are
+ * taken from a transmit pool ({@link #allocate}), filled in, and
+ * queued on the TX ring ({@link #transmit}); the kernel returns them
+ * through the completion ring, from which allocate reclaims them.  The
+ * rings are mapped into the process and each call moves a whole batch
+ * with one JNI call and no system call, except to wake up the kernel
+ * when it asks to be.  Half of the frames (up to the ring size) start
+ * out on the fill ring and the rest in the transmit pool.  Frames are
+ * interchangeable: a received frame may be transmitted, after which it
+ * returns to the transmit pool, and an allocated frame may be
+ * released to the fill ring.</p>
+ *
+ * <p>{@link #bind} attaches the socket to a device queue, much as
+ * {@link RawSocket#bindDevice} binds a raw socket to a device, and by
+ * default attaches an XDP program that redirects every frame arriving
+ * on that queue to the socket.  Frames arriving on other queues go to
+ * the network stack as usual.  The program is detached when the socket
+ * is closed.  Only one program can be attached to a device, so to
+ * serve several queues, bind additional sockets with
+ * attachProgram set to false and redirect to them from your own
+ * program.  {@link Mode#SKB} works with any device, including veth
+ * pairs and the loopback device, at a fraction of the speed of {@link
+ * Mode#DRIVER}, which needs driver support.</p>
+ *
+ * <p>AF_XDP requires CAP_NET_RAW and CAP_BPF (or root).  An XdpSocket
+ * is not thread safe, but the receive side ({@link #receive}, {@link
+ * #release}, {@link #poll}) and the transmit side ({@link #allocate},
+ * {@link #transmit}) may each be used by a different thread.  Neither
+ * may be in use while the socket is closed.</p>
+ */
+public class XdpSocket {
+
+  /** How the XDP program is attached to the device. */
+  public enum Mode {
+    /** Generic XDP, which works with every device and copies frames. */
+    SKB,
+    /** Native XDP in the device driver, zero-copy where supported. */
+    DRIVER
+  }
+
+  /** The default frame size in bytes. */
+  public static final int DEFAULT_FRAME_SIZE = 2048;
+
+  /** The default number of frames in the UMEM. */
+  public static final int DEFAULT_FRAME_COUNT = 4096;
+
+  /** The default number of entries in each ring. */
+  public static final int DEFAULT_RING_SIZE = 2048;
+
+  private static final int __PAGE_SIZE = 4096;
+
+  private native static boolean __isSupported();
+  private native static long __open(ByteBuffer umem, int frameSize,
+                                    int frameCount, int ringSize);
+  private native static int __bind(long handle, String device, int queue,
+                                   boolean skb, boolean attach);
+  private native static int __receive(long handle, long[] addresses,
+                                      int[] lengths, int offset, int count);
+  private native static int __fill(long handle, long[] addresses,
+                                   int offset, int count);
+  private native static int __transmit(long handle, long[] addresses,
+                                       int[] lengths, int offset,
+                                       int count);
+  private native static int __complete(long handle, long[] addresses,
+                                       int offset, int count);
+  private native static int __poll(long handle, int milliseconds);
+  private native static int __getStatistics(long handle, long[] values);
+  private native static void __close(long handle);
+
+  private static final boolean __SUPPORTED;
+
+  static {
+    boolean supported;
+
+    try {
+      // Loads the library.
+      supported = (RawSocket.PF_INET != 0 && __isSupported());
+    } catch(UnsatisfiedLinkError e) {
+      supported = false;
+    }
+
+    __SUPPORTED = supported;
+  }
+
+  private long __handle;
+  private ByteBuffer __umem;
+  private int __frameSize, __frameCount, __ringSize;
+  private long[] __free;
+  private int __freeCount;
+
+  /**
+   * @return True if AF_XDP sockets are supported on this platform.
+   * They may still fail to open for lack of privileges or kernel
+   * support.
+   */
+  public static boolean isSupported() {
+    return __SUPPORTED;
+  }
+
+  /** Creates an unopened socket. */
+  public XdpSocket() {
+    __handle = 0;
+  }
+
+  /** @return True if the socket is open. */
+  public boolean isOpen() {
+    return (__handle != 0);
+  }
+
+  /**
+   * Same as {@code open(DEFAULT_FRAME_COUNT, DEFAULT_FRAME_SIZE,
+   * DEFAULT_RING_SIZE);}
+   */
+  public void open() throws IllegalStateException, IOException {
+    open(DEFAULT_FRAME_COUNT, DEFAULT_FRAME_SIZE, DEFAULT_RING_SIZE);
+  }
+
+  /**
+   * Opens the socket, registers a newly allocated UMEM, and maps its
+   * rings.
+   *
+   * @param frameCount The number of frames in the UMEM (at least 2).
+   * @param frameSize The size of each frame: 2048 or 4096 bytes.
+   * @param ringSize The number of entries in each ring, a power of two.
+   * @exception IllegalArgumentException If a value is out of range.
+   * @exception IllegalStateException If the socket is already open.
+   * @exception UnsupportedOperationException If AF_XDP is not
+   * supported on this platform.
+   * @exception IOException If the socket cannot be created.
+   */
+  public void open(int frameCount, int frameSize, int ringSize)
+    throws IllegalArgumentException, IllegalStateException,
+           UnsupportedOperationException, IOException
+  {
+    if(isOpen())
+      throw new IllegalStateException();
+
+    if(!__SUPPORTED)
+      throw new UnsupportedOperationException("AF_XDP not supported");
+
+    if((frameSize != 2048 && frameSize != 4096) || frameCount < 2 ||
+       frameCount > (Integer.MAX_VALUE - __PAGE_SIZE) / frameSize ||
+       ringSize <= 0 || (ringSize & (ringSize - 1)) != 0)
+      throw new IllegalArgumentException("Invalid frame or ring size.");
+
+    int size = frameCount * frameSize;
+    ByteBuffer raw = ByteBuffer.allocateDirect(size + __PAGE_SIZE);
+    long base = RawSocket.__getDirectBufferAddress(raw);
+    int pad = (int)(-base & (__PAGE_SIZE - 1));
+
+    ((Buffer)raw).position(pad);
+    ((Buffer)raw).limit(pad + size);
+
+    ByteBuffer umem = raw.slice();
+    long handle = __open(umem, frameSize, frameCount, ringSize);
+
+    if(handle == 0)
+      throw new IOException(RawSocket.__getErrorMessage());
+
+    __handle     = handle;
+    __umem       = umem;
+    __frameSize  = frameSize;
+    __frameCount = frameCount;
+    __ringSize   = ringSize;
+    __free       = new long[frameCount];
+
+    int rx = Math.min(frameCount / 2, ringSize);
+    long[] fill = new long[rx];
+
+    for(int i = 0; i < rx; ++i)
+      fill[i] = (long)i * frameSize;
+
+    __fill(handle, fill, 0, rx);
+
+    // Pushed in reverse so that allocate hands out ascending frames.
+    __freeCount = 0;
+    for(int i = frameCount - 1; i >= rx; --i)
+      __free[__freeCount++] = (long)i * frameSize;
+  }
+
+  /** Same as {@code bind(device, queue, Mode.SKB, true);} */
+  public void bind(String device, int queue)
+    throws IllegalStateException, IOException
+  {
+    bind(device, queue, Mode.SKB, true);
+  }
+
+  /**
+   * Binds the socket to a receive queue of a device and optionally
+   * attaches the default redirect program to the device.
+   *
+   * @param device The name of the device (e.g., "eth0").
+   * @param queue The queue number, starting from zero.
+   * @param mode How to attach the program and exchange frames.
+   * @param attachProgram True to attach the default program, false if
+   * another program redirects to this socket.
+   * @exception IllegalStateException If the socket is not open.
+   * @exception IOException If the socket cannot be bound or the
+   * program cannot be attached (e.g., because the device already has
+   * one or does not support the mode).
+   */
+  public void bind(String device, int queue, Mode mode,
+                   boolean attachProgram)
+    throws IllegalStateException, IOException
+  {
+    if(!isOpen())
+      throw new IllegalStateException();
+
+    if(queue < 0)
+      throw new IllegalArgumentException("Invalid queue.");
+
+    if(__bind(__handle, device, queue, mode == Mode.SKB, attachProgram) < 0)
+      throw new IOException(RawSocket.__getErrorMessage());
+  }
+
+  /**
+   * Returns the UMEM.  Frame {@code i} starts at offset {@code i *
+   * getFrameSize()}; the packet addresses passed to and from the other
+   * methods are offsets into this buffer.  Use absolute get and put
+   * methods, since the buffer's position is shared.
+   *
+   * @return The UMEM, or null if the socket is not open.
+   */
+  public ByteBuffer getUmem() {
+    return __umem;
+  }
+
+  /** @return The size of each frame in bytes. */
+  public int getFrameSize() {
+    return __frameSize;
+  }
+
+  /** @return The number of frames in the UMEM. */
+  public int getFrameCount() {
+    return __frameCount;
+  }
+
+  /** @return The number of entries in each ring. */
+  public int getRingSize() {
+    return __ringSize;
+  }
+
+  private static void __checkRange(int length, int offset, int count) {
+    if(offset < 0 || count < 0 || count > length - offset)
+      throw new IllegalArgumentException("Invalid offset or count.");
+  }
+
+  private void __checkOpen() {
+    if(!isOpen())
+      throw new IllegalStateException();
+  }
+
+  /**
+   * Takes received frames from the RX ring without waiting.  The
+   * frames belong to the caller until they are released or
+   * transmitted.
+   *
+   * @param addresses Stores the UMEM offset of each frame's packet.
+   * @param lengths Stores the length of each packet.
+   * @param offset The index at which to store the first frame.
+   * @param count The largest number of frames to take.
+   * @exception IllegalArgumentException If the offset or count are
+   * invalid.
+   * @exception IllegalStateException If the socket is not open.
+   * @return The number of frames taken, possibly zero.
+   */
+  public int receive(long[] addresses, int[] lengths, int offset, int count)
+    throws IllegalArgumentException, IllegalStateException
+  {
+    __checkOpen();
+    __checkRange(addresses.length, offset, count);
+    __checkRange(lengths.length, offset, count);
+
+    return __receive(__handle, addresses, lengths, offset, count);
+  }
+
+  /**
+   * Waits until received frames are ready on the RX ring.
+   *
+   * @param timeout The time to wait in milliseconds, or a negative
+   * value to wait indefinitely.
+   * @return True if frames are ready, false if the timeout expired.
+   * @exception IllegalStateException If the socket is not open.
+   * @exception IOException If an I/O error occurs.
+   */
+  public boolean poll(int timeout) throws IllegalStateException, IOException {
+    __checkOpen();
+
+    int result = __poll(__handle, timeout);
+
+    if(result < 0)
+      throw new IOException(RawSocket.__getErrorMessage());
+
+    return (result > 0);
+  }
+
+  /**
+   * Hands frames back to the kernel through the fill ring, to receive
+   * further packets into.  Any offset within a frame identifies it.
+   *
+   * @param addresses The UMEM offsets of the frames.
+   * @param offset The index of the first frame.
+   * @param count The number of frames.
+   * @exception IllegalArgumentException If the offset or count are
+   * invalid.
+   * @exception IllegalStateException If the socket is not open.
+   * @return The number of frames handed back, which is less than count
+   * only if the fill ring is full.  The caller keeps the rest.
+   */
+  public int release(long[] addresses, int offset, int count)
+    throws IllegalArgumentException, IllegalStateException
+  {
+    __checkOpen();
+    __checkRange(addresses.length, offset, count);
+
+    return __fill(__handle, addresses, offset, count);
+  }
+
+  // Moves frames the kernel has finished sending to the free list.
+  private void __reclaim() {
+    __freeCount+=__complete(__handle, __free, __freeCount,
+                            __free.length - __freeCount);
+  }
+
+  /**
+   * Takes frames from the transmit pool, first reclaiming frames the
+   * kernel has finished sending.
+   *
+   * @param addresses Stores the UMEM offset of each frame.
+   * @param offset The index at which to store the first frame.
+   * @param count The largest number of frames to take.
+   * @exception IllegalArgumentException If the offset or count are
+   * invalid.
+   * @exception IllegalStateException If the socket is not open.
+   * @return The number of frames taken, which is less than count if
+   * the pool ran short.
+   */
+  public int allocate(long[] addresses, int offset, int count)
+    throws IllegalArgumentException, IllegalStateException
+  {
+    __checkOpen();
+    __checkRange(addresses.length, offset, count);
+
+    if(__freeCount < count)
+      __reclaim();
+
+    int n = Math.min(count, __freeCount);
+
+    for(int i = 0; i < n; ++i)
+      addresses[offset + i] = __free[--__freeCount];
+
+    return n;
+  }
+
+  /**
+   * Queues frames on the TX ring for sending.  Each frame returns to
+   * the transmit pool once the kernel has sent it.
+   *
+   * @param addresses The UMEM offset of each packet.
+   * @param lengths The length of each packet.
+   * @param offset The index of the first frame.
+   * @param count The number of frames.
+   * @exception IllegalArgumentException If the offset or count are
+   * invalid.
+   * @exception IllegalStateException If the socket is not open.
+   * @return The number of frames queued, which is less than count if
+   * the TX ring is full.  The caller keeps the rest.
+   */
+  public int transmit(long[] addresses, int[] lengths, int offset,
+                      int count)
+    throws IllegalArgumentException, IllegalStateException
+  {
+    __checkOpen();
+    __checkRange(addresses.length, offset, count);
+    __checkRange(lengths.length, offset, count);
+
+    return __transmit(__handle, addresses, lengths, offset, count);
+  }
+
+  /**
+   * @return The number of frames in the transmit pool, including those
+   * awaiting completion that have been reclaimed.
+   */
+  public int getFreeFrameCount() {
+    if(isOpen())
+      __reclaim();
+
+    return __freeCount;
+  }
+
+  /**
+   * @return The kernel's counters for this socket.
+   * @exception IllegalStateException If the socket is not open.
+   * @exception IOException If the counters cannot be retrieved.
+   */
+  public XdpStatistics getStatistics()
+    throws IllegalStateException, IOException
+  {
+    __checkOpen();
+
+    long[] values = new long[6];
+
+    if(__getStatistics(__handle, values) < 0)
+      throw new IOException(RawSocket.__getErrorMessage());
+
+    return new XdpStatistics(values);
+  }
+
+  /**
+   * Closes the socket, detaches the program attached by {@link #bind},
+   * and releases the UMEM.  Closing a closed socket has no effect.
+   */
+  public void close() {
+    if(!isOpen())
+      return;
+
+    __close(__handle);
+    __handle    = 0;
+    __umem      = null;
+    __free      = null;
+    __freeCount = 0;
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+/**
+ * The kernel's counters for an {@link XdpSocket}, as reported by the
+ * XDP_STATISTICS socket option.  Counters not reported by the running
+ * kernel are zero.
+ */
+public final class XdpStatistics {
+
+  private final long __rxDropped, __rxInvalid, __txInvalid;
+  private final long __rxRingFull, __fillRingEmpty, __txRingEmpty;
+
+  XdpStatistics(long[] values) {
+    __rxDropped     = values[0];
+    __rxInvalid     = values[1];
+    __txInvalid     = values[2];
+    __rxRingFull    = values[3];
+    __fillRingEmpty = values[4];
+    __txRingEmpty   = values[5];
+  }
+
+  /** @return The number of received packets dropped for any reason. */
+  public long getRxDroppedCount() {
+    return __rxDropped;
+  }
+
+  /** @return The number of invalid descriptors on the fill ring. */
+  public long getRxInvalidCount() {
+    return __rxInvalid;
+  }
+
+  /** @return The number of invalid descriptors on the TX ring. */
+  public long getTxInvalidCount() {
+    return __txInvalid;
+  }
+
+  /**
+   * @return The number of packets dropped because the RX ring was
+   * full, meaning the application did not keep up.
+   */
+  public long getRxRingFullCount() {
+    return __rxRingFull;
+  }
+
+  /**
+   * @return The number of packets dropped because the fill ring was
+   * empty, meaning frames were not released quickly enough.
+   */
+  public long getFillRingEmptyCount() {
+    return __fillRingEmpty;
+  }
+
+  /**
+   * @return The number of times the kernel found the TX ring empty
+   * when woken up to transmit.
+   */
+  public long getTxRingEmptyCount() {
+    return __txRingEmpty;
+  }
+
+  public String toString() {
+    return String.format("rx dropped %d, rx invalid %d, tx invalid %d, " +
+                         "rx ring full %d, fill ring empty %d, " +
+                         "tx ring empty %d", __rxDropped, __rxInvalid,
+                         __txInvalid, __rxRingFull, __fillRingEmpty,
+                         __txRingEmpty);
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pcap;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Releases memory mappings eagerly instead of waiting for the garbage
+ * collector, so that rotated capture files can be truncated and
+ * deleted promptly (and at all on Windows).  If the runtime offers no
+ * way to do so, unmapping is left to the garbage collector.
+ */
+final class MappedBuffers {
+
+  private MappedBuffers() { }
+
+  private static final Object __unsafe;
+  private static final Method __invokeCleaner;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+
+    try {
+      // Java 9 and later.
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      Field field = type.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+      invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch(Exception e) {
+      unsafe = null;
+      invokeCleaner = null;
+    }
+
+    __unsafe = unsafe;
+    __invokeCleaner = invokeCleaner;
+  }
+
+  /**
+   * Unmaps a mapped buffer.  The buffer and all of its views must not
+   * be accessed afterward.
+   */
+  static void unmap(ByteBuffer buffer) {
+    if(buffer == null || !buffer.isDirect())
+      return;
+
+    try {
+      if(__invokeCleaner != null) {
+        __invokeCleaner.invoke(__unsafe, buffer);
+      } else {
+        // Java 8.
+        Method cleaner = buffer.getClass().getMethod("cleaner");
+        cleaner.setAccessible(true);
+        Object c = cleaner.invoke(buffer);
+
+        if(c != null)
+          c.getClass().getMethod("clean").invoke(c);
+      }
+    } catch(Exception e) {
+      // Leave it to the garbage collector.
+    }
+  }
+
+}
@@ -0,0 +1,604 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pcap;
+
+import com.savarese.rocksaw.net.PacketCaptureSink;
+import com.savarese.rocksaw.net.PacketInfo;
+import com.savarese.rocksaw.net.RawSocket;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Writes packets to a series of size-rotated PCAPNG files through a
+ * memory mapping.  Each file is mapped in full and every page of it is
+ * touched before it is used, so recording a packet is a copy into the
+ * page cache with neither a system call nor a page fault.  While one
+ * file is being written, a background thread prepares the next one.
+ * When the next packet does not fit, the file is truncated to the data
+ * written and the prepared file takes its place.  Files
+ * are named {@code <prefix>-00000.pcapng}, {@code
+ * <prefix>-00001.pcapng}, and so on.  If a maximum number of files is
+ * set, the oldest file is deleted when the series grows beyond it,
+ * turning the series into a ring buffer of recent traffic.</p>
+ *
+ * <p>Every file holds one section with one interface of link type
+ * {@link PcapReader#LINKTYPE_RAW} and nanosecond timestamps.  IPv4
+ * packets are recorded as read, including their IP header.  Because
+ * raw IPv6 sockets do not deliver the IPv6 header, {@link #capture}
+ * synthesizes one from the socket protocol and the source address,
+ * destination address, hop limit, and traffic class when they are
+ * available (unknown fields are zero).</p>
+ *
+ * <p>A PcapNgWriter is a {@link PacketCaptureSink} and may be passed
+ * to {@link RawSocket#setCaptureSink}.  It is thread safe and may be
+ * shared by several sockets.  I/O errors never propagate to the
+ * capturing socket.  Instead, the first error is remembered, reported
+ * by {@link #getError}, and all further packets are counted as
+ * dropped.  Files left behind by a process that died without calling
+ * {@link #close} keep their full mapped size, with zeros after the
+ * last packet; {@link PcapReader} treats the zeros as the end of the
+ * file.</p>
+ */
+public class PcapNgWriter implements PacketCaptureSink, Closeable {
+
+  /** The default maximum file size of 64 MiB. */
+  public static final long DEFAULT_FILE_SIZE = 64L << 20;
+
+  /** The default snapshot length, which records packets in full. */
+  public static final int DEFAULT_SNAP_LENGTH = 65535;
+
+  static final int BLOCK_SHB = 0x0A0D0D0A;
+  static final int BLOCK_IDB = 0x00000001;
+  static final int BLOCK_PB  = 0x00000002;
+  static final int BLOCK_SPB = 0x00000003;
+  static final int BLOCK_EPB = 0x00000006;
+  static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+  static final int OPTION_END = 0;
+  static final int OPTION_TSRESOL = 9;
+
+  private static final int __SHB_LENGTH = 28;
+  private static final int __IDB_LENGTH = 32;
+  private static final int __EPB_OVERHEAD = 32;
+  private static final int __IPV6_HEADER_LENGTH = 40;
+  private static final int __PAGE_SIZE = 4096;
+
+  private final String __prefix;
+  private final long __maxFileSize;
+  private final int __maxFiles, __snapLength;
+  private final ArrayDeque<File> __files;
+  private final byte[] __ipv6Header;
+
+  private final ExecutorService __preparer;
+
+  private Segment __segment;
+  private MappedByteBuffer __buffer;
+  private Future<Segment> __next;
+  private int __sequence;
+  private long __clockOffset;
+  private long __packets, __dropped;
+  private IOException __error;
+  private boolean __closed;
+
+  /**
+   * Same as {@code PcapNgWriter(prefix, DEFAULT_FILE_SIZE, 0,
+   * DEFAULT_SNAP_LENGTH)}.
+   */
+  public PcapNgWriter(String prefix) throws IOException {
+    this(prefix, DEFAULT_FILE_SIZE, 0, DEFAULT_SNAP_LENGTH);
+  }
+
+  /**
+   * Creates a writer and its first file.
+   *
+   * @param prefix The path and name prefix of the files to write.
+   * @param maxFileSize The size at which files are rotated.  It must
+   * be large enough to hold the largest possible packet and may not
+   * exceed {@code Integer.MAX_VALUE}.
+   * @param maxFiles The number of most recent files to keep, or 0 to
+   * keep all of them.
+   * @param snapLength The maximum number of bytes to record of each
+   * packet.  Longer packets are truncated.
+   * @exception IllegalArgumentException If any size is out of range.
+   * @exception IOException If the first file cannot be created.
+   */
+  public PcapNgWriter(String prefix, long maxFileSize, int maxFiles,
+                      int snapLength)
+    throws IllegalArgumentException, IOException
+  {
+    if(snapLength <= 0 || maxFiles < 0 || maxFileSize > Integer.MAX_VALUE ||
+       maxFileSize < __SHB_LENGTH + __IDB_LENGTH + __EPB_OVERHEAD +
+       snapLength + 3)
+      throw new IllegalArgumentException("Invalid capture file limits.");
+
+    __prefix      = prefix;
+    __maxFileSize = maxFileSize;
+    __maxFiles    = maxFiles;
+    __snapLength  = snapLength;
+    __files       = new ArrayDeque<File>();
+    __ipv6Header  = new byte[__IPV6_HEADER_LENGTH];
+    __sequence    = 0;
+    __preparer    = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "PcapNgWriter " + __prefix);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+    try {
+      __activate(__createSegment(__sequence++));
+    } catch(IOException e) {
+      __preparer.shutdown();
+      throw e;
+    }
+
+    __prepareNext();
+  }
+
+  private static final class Segment {
+    final File file;
+    final RandomAccessFile raf;
+    final MappedByteBuffer buffer;
+
+    Segment(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+      this.file   = file;
+      this.raf    = raf;
+      this.buffer = buffer;
+    }
+
+    /** Unmaps the file and truncates it to the data written. */
+    void close() throws IOException {
+      int length = buffer.position();
+
+      MappedBuffers.unmap(buffer);
+
+      try {
+        raf.getChannel().truncate(length);
+      } finally {
+        raf.close();
+      }
+    }
+
+    /** Unmaps and deletes an unused file. */
+    void discard() {
+      MappedBuffers.unmap(buffer);
+
+      try {
+        raf.close();
+      } catch(IOException e) {
+        // Deleting anyway.
+      }
+
+      file.delete();
+    }
+  }
+
+  /**
+   * Creates and maps a file, then writes to every page of the mapping
+   * so that capturing into it never takes a page fault.
+   */
+  private Segment __createSegment(int sequence) throws IOException {
+    File file = new File(String.format("%s-%05d.pcapng", __prefix, sequence));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    MappedByteBuffer buffer;
+
+    try {
+      FileChannel channel = raf.getChannel();
+
+      channel.truncate(0);
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, __maxFileSize);
+    } catch(IOException e) {
+      raf.close();
+      file.delete();
+      throw e;
+    }
+
+    buffer.order(ByteOrder.nativeOrder());
+
+    for(int i = 0; i < __maxFileSize; i+=__PAGE_SIZE)
+      buffer.put(i, (byte)0);
+
+    return new Segment(file, raf, buffer);
+  }
+
+  /** Starts preparing the next file of the series in the background. */
+  private void __prepareNext() {
+    final int sequence = __sequence++;
+
+    __next = __preparer.submit(new Callable<Segment>() {
+        public Segment call() throws IOException {
+          return __createSegment(sequence);
+        }
+      });
+  }
+
+  /** Waits for the next file of the series to be prepared. */
+  private Segment __takeNext() throws IOException {
+    Future<Segment> next = __next;
+
+    __next = null;
+
+    try {
+      return next.get();
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if(cause instanceof IOException)
+        throw (IOException)cause;
+
+      throw new IOException(cause);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      next.cancel(false);
+      throw new InterruptedIOException();
+    }
+  }
+
+  /** Discards the file being prepared, if any, and stops preparing. */
+  private void __stopPreparing() {
+    Future<Segment> next = __next;
+
+    __next = null;
+    __preparer.shutdown();
+
+    if(next != null) {
+      try {
+        next.get().discard();
+      } catch(Exception e) {
+        // Nothing was created or it has already been cleaned up.
+      }
+    }
+  }
+
+  private void __activate(Segment segment) {
+    __segment = segment;
+    __buffer  = segment.buffer;
+    __files.addLast(segment.file);
+
+    // Recalibrate against the wall clock once per file so that
+    // timestamps track clock adjustments over long captures.
+    __clockOffset =
+      System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+    __buffer.putInt(BLOCK_SHB);
+    __buffer.putInt(__SHB_LENGTH);
+    __buffer.putInt(BYTE_ORDER_MAGIC);
+    __buffer.putShort((short)1);
+    __buffer.putShort((short)0);
+    __buffer.putLong(-1L);
+    __buffer.putInt(__SHB_LENGTH);
+
+    __buffer.putInt(BLOCK_IDB);
+    __buffer.putInt(__IDB_LENGTH);
+    __buffer.putShort((short)PcapReader.LINKTYPE_RAW);
+    __buffer.putShort((short)0);
+    __buffer.putInt(__snapLength);
+    __buffer.putShort((short)OPTION_TSRESOL);
+    __buffer.putShort((short)1);
+    __buffer.put((byte)9);       // 10^-9 seconds, padded to 4 bytes.
+    __buffer.put((byte)0);
+    __buffer.putShort((short)0);
+    __buffer.putInt(OPTION_END);
+    __buffer.putInt(__IDB_LENGTH);
+
+    while(__maxFiles > 0 && __files.size() > __maxFiles)
+      __files.removeFirst().delete();
+  }
+
+  private void __closeFile() throws IOException {
+    Segment segment = __segment;
+
+    if(segment == null)
+      return;
+
+    __segment = null;
+    __buffer  = null;
+    segment.close();
+  }
+
+  private void __fail(IOException e) {
+    if(__error == null)
+      __error = e;
+
+    __stopPreparing();
+
+    try {
+      __closeFile();
+    } catch(IOException ignore) {
+      // Already failed.
+    }
+  }
+
+  /**
+   * Reserves space for an enhanced packet block and writes its header,
+   * leaving the buffer positioned at the packet data.  Returns the
+   * offset of the block, or -1 if the packet must be dropped.
+   */
+  private int __beginPacket(long timestamp, int captured, int length) {
+    if(__buffer == null) {
+      ++__dropped;
+      return -1;
+    }
+
+    int blockLength = __EPB_OVERHEAD + ((captured + 3) & ~3);
+
+    if(__buffer.remaining() < blockLength) {
+      try {
+        __closeFile();
+        __activate(__takeNext());
+        __prepareNext();
+      } catch(IOException e) {
+        __fail(e);
+        ++__dropped;
+        return -1;
+      }
+    }
+
+    MappedByteBuffer buffer = __buffer;
+    int block = buffer.position();
+
+    // Absolute puts avoid updating the position for every field.
+    buffer.putInt(block, BLOCK_EPB);
+    buffer.putInt(block + 4, blockLength);
+    buffer.putInt(block + 8, 0);
+    buffer.putInt(block + 12, (int)(timestamp >>> 32));
+    buffer.putInt(block + 16, (int)timestamp);
+    buffer.putInt(block + 20, captured);
+    buffer.putInt(block + 24, length);
+    ((Buffer)buffer).position(block + 28);
+
+    return block;
+  }
+
+  private void __endPacket(int block, int captured) {
+    MappedByteBuffer buffer = __buffer;
+    int blockLength = __EPB_OVERHEAD + ((captured + 3) & ~3);
+
+    // Zero the padding.  This may spill into the trailing length,
+    // which is written next.
+    buffer.putInt(block + 28 + captured, 0);
+    buffer.putInt(block + blockLength - 4, blockLength);
+    ((Buffer)buffer).position(block + blockLength);
+    ++__packets;
+  }
+
+  /**
+   * @return The current time in nanoseconds since the epoch, as used
+   * to timestamp captured packets.
+   */
+  public long currentTimeNanos() {
+    return System.nanoTime() + __clockOffset;
+  }
+
+  // Copies length bytes of a packet, which is in data, or else in
+  // direct starting at offset, to the current file.  The position and
+  // limit of direct are left as they were.
+  private void __put(byte[] data, ByteBuffer direct, int offset,
+                     int length)
+  {
+    if(direct == null) {
+      __buffer.put(data, offset, length);
+      return;
+    }
+
+    int limit = direct.limit();
+
+    ((Buffer)direct).limit(offset + length);
+    __buffer.put(direct);
+    ((Buffer)direct).limit(limit).position(offset);
+  }
+
+  private boolean __write(long timestamp, byte[] data, ByteBuffer direct,
+                          int offset, int length)
+  {
+    int captured = Math.min(length, __snapLength);
+    int block    = __beginPacket(timestamp, captured, length);
+
+    if(block < 0)
+      return false;
+
+    __put(data, direct, offset, captured);
+    __endPacket(block, captured);
+
+    return true;
+  }
+
+  /**
+   * Records an IP packet, including its IP header.
+   *
+   * @param timestamp The capture time in nanoseconds since the epoch.
+   * @param data The buffer holding the packet.
+   * @param offset The offset of the packet in the buffer.
+   * @param length The length of the packet.
+   * @return True if the packet was recorded, false if it was dropped
+   * because the writer is closed or has failed.
+   */
+  public synchronized boolean write(long timestamp, byte[] data, int offset,
+                                    int length)
+  {
+    return __write(timestamp, data, null, offset, length);
+  }
+
+  /**
+   * Records an IP packet, including its IP header, copying it straight
+   * from a buffer.
+   *
+   * @param timestamp The capture time in nanoseconds since the epoch.
+   * @param data The buffer whose remaining bytes are the packet.  Its
+   * position and limit are left unchanged.
+   * @return True if the packet was recorded, false if it was dropped
+   * because the writer is closed or has failed.
+   */
+  public synchronized boolean write(long timestamp, ByteBuffer data) {
+    return __write(timestamp, null, data, data.position(), data.remaining());
+  }
+
+  private void __capture(int family, int protocol, byte[] data,
+                         ByteBuffer direct, int offset, int length,
+                         byte[] source, PacketInfo info)
+  {
+    long timestamp = currentTimeNanos();
+
+    if(family != RawSocket.PF_INET6) {
+      __write(timestamp, data, direct, offset, length);
+      return;
+    }
+
+    byte[] header = __ipv6Header;
+    int traffic   = (info != null && info.getTrafficClass() >= 0 ?
+                     info.getTrafficClass() : 0);
+    int hops      = (info != null && info.getHopLimit() >= 0 ?
+                     info.getHopLimit() : 0);
+
+    header[0] = (byte)(0x60 | (traffic >>> 4));
+    header[1] = (byte)(traffic << 4);
+    header[2] = 0;
+    header[3] = 0;
+    header[4] = (byte)(length >>> 8);
+    header[5] = (byte)length;
+    header[6] = (byte)protocol;
+    header[7] = (byte)hops;
+
+    if(source != null && source.length == 16)
+      System.arraycopy(source, 0, header, 8, 16);
+    else
+      Arrays.fill(header, 8, 24, (byte)0);
+
+    if(info != null && info.hasDestinationAddress())
+      System.arraycopy(info.getDestinationAddress(), 0, header, 24, 16);
+    else
+      Arrays.fill(header, 24, 40, (byte)0);
+
+    int total    = __IPV6_HEADER_LENGTH + length;
+    int captured = Math.min(total, __snapLength);
+
+    int block    = __beginPacket(timestamp, captured, total);
+
+    if(block < 0)
+      return;
+
+    if(captured <= __IPV6_HEADER_LENGTH) {
+      __buffer.put(header, 0, captured);
+    } else {
+      __buffer.put(header);
+      __put(data, direct, offset, captured - __IPV6_HEADER_LENGTH);
+    }
+
+    __endPacket(block, captured);
+  }
+
+  /**
+   * Records a packet read from a raw socket, timestamped with {@link
+   * #currentTimeNanos}.
+   */
+  public synchronized void capture(int family, int protocol, byte[] data,
+                                   int offset, int length, byte[] source,
+                                   PacketInfo info)
+  {
+    __capture(family, protocol, data, null, offset, length, source, info);
+  }
+
+  /**
+   * Records a packet read from a raw socket into a buffer, timestamped
+   * with {@link #currentTimeNanos}.  The packet is copied from the
+   * buffer to the file without passing through the Java heap.
+   */
+  public synchronized void capture(int family, int protocol, ByteBuffer data,
+                                   byte[] source, PacketInfo info)
+  {
+    __capture(family, protocol, null, data, data.position(),
+              data.remaining(), source, info);
+  }
+
+  /**
+   * Writes the current file back to storage.  Packets are otherwise
+   * persisted by the operating system on its own schedule.
+   *
+   * @exception IOException If an I/O error occurs.
+   */
+  public synchronized void flush() throws IOException {
+    if(__buffer != null)
+      __buffer.force();
+  }
+
+  /**
+   * Truncates and closes the current file.  Packets captured after
+   * closing are counted as dropped.
+   *
+   * @exception IOException If an I/O error occurs.
+   */
+  public synchronized void close() throws IOException {
+    if(__closed)
+      return;
+
+    __closed = true;
+    __stopPreparing();
+    __closeFile();
+  }
+
+  /** @return True if {@link #close} has been called. */
+  public synchronized boolean isClosed() {
+    return __closed;
+  }
+
+  /**
+   * @return The files of the series that have not been deleted, from
+   * oldest to newest.
+   */
+  public synchronized List<File> getFiles() {
+    return new ArrayList<File>(__files);
+  }
+
+  /** @return The number of packets recorded. */
+  public synchronized long getPacketCount() {
+    return __packets;
+  }
+
+  /**
+   * @return The number of packets dropped because the writer was
+   * closed or had failed.
+   */
+  public synchronized long getDroppedCount() {
+    return __dropped;
+  }
+
+  /**
+   * @return The first I/O error encountered while rotating files, or
+   * null if there has been none.
+   */
+  public synchronized IOException getError() {
+    return __error;
+  }
+
+}
@@ -0,0 +1,431 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pcap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.savarese.rocksaw.pcap.PcapNgWriter.*;
+
+/**
+ * <p>Reads packets from a PCAPNG or classic PCAP file through a
+ * read-only memory mapping.  Packets are visited in file order with
+ * {@link #next}, after which the accessors describe the current
+ * packet.  {@link #getPacket()} returns a view of the packet data in
+ * the mapping itself, so iterating over a file neither copies nor
+ * allocates.</p>
+ *
+ * <p>PCAPNG files may contain several sections and interfaces, in
+ * either byte order; enhanced, simple, and obsolete packet blocks are
+ * read and all other blocks are skipped.  Timestamps are converted to
+ * nanoseconds since the epoch using each interface's timestamp
+ * resolution.  Packets in simple packet blocks carry no timestamp and
+ * are reported with a timestamp of 0.  A zero block type and length
+ * (as left by an unfinished {@link PcapNgWriter} file) or a block that
+ * runs past the end of the file ends iteration.</p>
+ *
+ * <p>Files must be smaller than 2 GiB, which holds for every file
+ * written by {@link PcapNgWriter}.  Instances are not thread safe.</p>
+ */
+public class PcapReader implements Closeable {
+
+  /** Link type for Ethernet frames. */
+  public static final int LINKTYPE_ETHERNET = 1;
+
+  /** Link type for raw IPv4 or IPv6 packets. */
+  public static final int LINKTYPE_RAW = 101;
+
+  /** Link type for Linux cooked captures (tcpdump -i any). */
+  public static final int LINKTYPE_LINUX_SLL = 113;
+
+  /** Link type for raw IPv4 packets. */
+  public static final int LINKTYPE_IPV4 = 228;
+
+  /** Link type for raw IPv6 packets. */
+  public static final int LINKTYPE_IPV6 = 229;
+
+  private static final int __PCAP_MAGIC       = 0xA1B2C3D4;
+  private static final int __PCAP_MAGIC_NANOS = 0xA1B23C4D;
+  private static final int __PCAP_HEADER_LENGTH = 24;
+  private static final int __PCAP_RECORD_LENGTH = 16;
+  private static final int __DEFAULT_TSRESOL = 6;
+
+  private static final long[] __POW10 = {
+    1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+    100000000L, 1000000000L, 10000000000L, 100000000000L,
+    1000000000000L, 10000000000000L, 100000000000000L,
+    1000000000000000L, 10000000000000000L, 100000000000000000L,
+    1000000000000000000L
+  };
+
+  private final File __path;
+  private final MappedByteBuffer __mapping;
+  private final ByteBuffer __buffer, __view;
+  private final boolean __pcapng;
+
+  private int __position;
+  private int[] __linkTypes, __tsresol;
+  private int __interfaces;
+  private int __pcapLinkType;
+  private boolean __pcapNanos;
+
+  private int __interface, __linkType;
+  private int __dataOffset, __captured, __length;
+  private long __timestamp;
+
+  /**
+   * Opens and maps a capture file and reads its header.
+   *
+   * @param file The file to read.
+   * @exception IOException If the file cannot be read, is too large,
+   * or is not a PCAPNG or PCAP file.
+   */
+  public PcapReader(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+
+      if(size > Integer.MAX_VALUE)
+        throw new IOException("Capture file too large: " + file);
+
+      __mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      raf.close();
+    }
+
+    __path      = file;
+    __buffer    = __mapping.duplicate();
+    __view      = __mapping.asReadOnlyBuffer();
+    __linkTypes = new int[4];
+    __tsresol   = new int[4];
+
+    if(__buffer.limit() < 4)
+      throw new IOException("Not a capture file: " + file);
+
+    __buffer.order(ByteOrder.BIG_ENDIAN);
+
+    int magic = __buffer.getInt(0);
+
+    if(magic == BLOCK_SHB) {
+      __pcapng = true;
+    } else {
+      __pcapng = false;
+
+      if(__buffer.limit() < __PCAP_HEADER_LENGTH)
+        throw new IOException("Not a capture file: " + file);
+
+      if(magic != __PCAP_MAGIC && magic != __PCAP_MAGIC_NANOS) {
+        __buffer.order(ByteOrder.LITTLE_ENDIAN);
+        magic = __buffer.getInt(0);
+
+        if(magic != __PCAP_MAGIC && magic != __PCAP_MAGIC_NANOS)
+          throw new IOException("Not a capture file: " + file);
+      }
+
+      __pcapNanos    = (magic == __PCAP_MAGIC_NANOS);
+      __pcapLinkType = __buffer.getInt(20) & 0x0fffffff;
+    }
+
+    rewind();
+  }
+
+  /** Returns to the first packet of the file. */
+  public void rewind() {
+    __position   = (__pcapng ? 0 : __PCAP_HEADER_LENGTH);
+    __interfaces = 0;
+    __captured   = 0;
+    __length     = 0;
+    __dataOffset = 0;
+    __timestamp  = 0;
+    __interface  = -1;
+    __linkType   = (__pcapng ? -1 : __pcapLinkType);
+  }
+
+  /** @return The file being read. */
+  public File getFile() {
+    return __path;
+  }
+
+  /** @return True if the file is in PCAPNG format, false if PCAP. */
+  public boolean isPcapNg() {
+    return __pcapng;
+  }
+
+  static long toNanos(long timestamp, int resolution) {
+    if((resolution & 0x80) == 0) {
+      if(resolution <= 9)
+        return timestamp * __POW10[9 - resolution];
+      if(resolution - 9 < __POW10.length)
+        return timestamp / __POW10[resolution - 9];
+      return 0;
+    }
+
+    int shift = resolution & 0x7f;
+
+    if(shift == 0)
+      return timestamp * 1000000000L;
+    if(shift >= 64)
+      return 0;
+
+    long seconds  = timestamp >>> shift;
+    long fraction = timestamp & ((1L << shift) - 1);
+
+    return seconds * 1000000000L +
+      (long)(fraction * 1e9 / Math.pow(2, shift));
+  }
+
+  private void __addInterface(int linkType, int resolution) {
+    if(__interfaces == __linkTypes.length) {
+      __linkTypes = Arrays.copyOf(__linkTypes, __interfaces * 2);
+      __tsresol   = Arrays.copyOf(__tsresol, __interfaces * 2);
+    }
+
+    __linkTypes[__interfaces] = linkType;
+    __tsresol[__interfaces]   = resolution;
+    ++__interfaces;
+  }
+
+  private void __readInterface(int p, int blockLength) {
+    int linkType   = __buffer.getShort(p + 8) & 0xffff;
+    int resolution = __DEFAULT_TSRESOL;
+    int o          = p + 16;
+    int end        = p + blockLength - 4;
+
+    while(o + 4 <= end) {
+      int code   = __buffer.getShort(o) & 0xffff;
+      int length = __buffer.getShort(o + 2) & 0xffff;
+
+      if(code == OPTION_END)
+        break;
+      if(code == OPTION_TSRESOL && length >= 1 && o + 4 < end)
+        resolution = __buffer.get(o + 4) & 0xff;
+
+      o+=4 + ((length + 3) & ~3);
+    }
+
+    __addInterface(linkType, resolution);
+  }
+
+  private boolean __setPacket(int id, long timestamp, int data, int captured,
+                              int length)
+    throws IOException
+  {
+    if(id < 0 || id >= __interfaces)
+      throw new IOException("Undefined interface " + id + " in " + __path);
+
+    if(captured < 0)
+      throw new IOException("Bad packet length " + captured + " at offset " +
+                            data + " in " + __path);
+
+    __interface  = id;
+    __linkType   = __linkTypes[id];
+    __timestamp  = (timestamp < 0 ? 0 : toNanos(timestamp, __tsresol[id]));
+    __dataOffset = data;
+    __captured   = captured;
+    __length     = length;
+
+    return true;
+  }
+
+  private boolean __nextPcapNg() throws IOException {
+    int limit = __buffer.limit();
+
+    while(__position + 12 <= limit) {
+      int p    = __position;
+      int type = __buffer.getInt(p);
+
+      if(type == BLOCK_SHB) {
+        int magic = __buffer.getInt(p + 8);
+
+        if(magic != BYTE_ORDER_MAGIC) {
+          __buffer.order(__buffer.order() == ByteOrder.BIG_ENDIAN ?
+                         ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+          if(__buffer.getInt(p + 8) != BYTE_ORDER_MAGIC)
+            throw new IOException("Bad section header in " + __path);
+        }
+
+        __interfaces = 0;
+      }
+
+      int blockLength = __buffer.getInt(p + 4);
+
+      if(type == 0 && blockLength == 0)
+        return false;
+
+      if(blockLength < 12 || (blockLength & 3) != 0)
+        throw new IOException("Bad block length at offset " + p + " in " +
+                              __path);
+
+      if(blockLength > limit - p)
+        return false;
+
+      __position+=blockLength;
+
+      switch(type) {
+      case BLOCK_IDB:
+        __readInterface(p, blockLength);
+        break;
+      case BLOCK_EPB:
+        if(blockLength < 32)
+          break;
+        return
+          __setPacket(__buffer.getInt(p + 8),
+                      ((long)__buffer.getInt(p + 12) << 32) |
+                      (__buffer.getInt(p + 16) & 0xffffffffL),
+                      p + 28,
+                      Math.min(__buffer.getInt(p + 20), blockLength - 32),
+                      __buffer.getInt(p + 24));
+      case BLOCK_SPB:
+        if(blockLength < 16)
+          break;
+        return
+          __setPacket(0, -1L, p + 12,
+                      Math.min(__buffer.getInt(p + 8), blockLength - 16),
+                      __buffer.getInt(p + 8));
+      case BLOCK_PB:
+        if(blockLength < 32)
+          break;
+        return
+          __setPacket(__buffer.getShort(p + 8) & 0xffff,
+                      ((long)__buffer.getInt(p + 12) << 32) |
+                      (__buffer.getInt(p + 16) & 0xffffffffL),
+                      p + 28,
+                      Math.min(__buffer.getInt(p + 20), blockLength - 32),
+                      __buffer.getInt(p + 24));
+      default:
+        break;
+      }
+    }
+
+    return false;
+  }
+
+  private boolean __nextPcap() {
+    int p = __position;
+
+    if(p + __PCAP_RECORD_LENGTH > __buffer.limit())
+      return false;
+
+    long seconds  = __buffer.getInt(p) & 0xffffffffL;
+    long fraction = __buffer.getInt(p + 4) & 0xffffffffL;
+    int captured  = __buffer.getInt(p + 8);
+    int length    = __buffer.getInt(p + 12);
+
+    if(captured < 0 ||
+       captured > __buffer.limit() - p - __PCAP_RECORD_LENGTH)
+      return false;
+
+    __position   = p + __PCAP_RECORD_LENGTH + captured;
+    __interface  = 0;
+    __timestamp  = seconds * 1000000000L +
+      (__pcapNanos ? fraction : fraction * 1000L);
+    __dataOffset = p + __PCAP_RECORD_LENGTH;
+    __captured   = captured;
+    __length     = length;
+
+    return true;
+  }
+
+  /**
+   * Advances to the next packet.
+   *
+   * @return True if there is another packet, false at the end of the file.
+   * @exception IOException If the file is malformed.
+   */
+  public boolean next() throws IOException {
+    return (__pcapng ? __nextPcapNg() : __nextPcap());
+  }
+
+  /** @return The capture time of the packet in nanoseconds since the epoch. */
+  public long getTimestampNanos() {
+    return __timestamp;
+  }
+
+  /** @return The link type of the packet (e.g., {@link #LINKTYPE_RAW}). */
+  public int getLinkType() {
+    return __linkType;
+  }
+
+  /** @return The index of the interface the packet was captured on. */
+  public int getInterfaceId() {
+    return __interface;
+  }
+
+  /** @return The number of bytes of the packet stored in the file. */
+  public int getCapturedLength() {
+    return __captured;
+  }
+
+  /** @return The length of the packet as it was originally seen. */
+  public int getOriginalLength() {
+    return __length;
+  }
+
+  /**
+   * Returns a read-only view of the packet data in the mapping,
+   * positioned at the start of the packet with its limit at the end of
+   * the captured data.  The same view object is returned for every
+   * packet and is only valid until the next call to {@link #next} or
+   * {@link #close}.
+   *
+   * @return The packet data.
+   */
+  public ByteBuffer getPacket() {
+    Buffer view = __view;
+
+    view.clear();
+    view.position(__dataOffset);
+    view.limit(__dataOffset + __captured);
+
+    return __view;
+  }
+
+  /**
+   * Copies the packet data into a buffer.
+   *
+   * @param data The buffer to copy into.
+   * @param offset The offset in the buffer at which to copy.
+   * @return The number of bytes copied, which is the smaller of the
+   * captured length and the space left in the buffer.
+   */
+  public int getPacket(byte[] data, int offset) {
+    int length = Math.min(__captured, data.length - offset);
+    ByteBuffer view = getPacket();
+
+    view.get(data, offset, length);
+
+    return length;
+  }
+
+  /**
+   * Unmaps the file.  Neither this reader nor any view returned by
+   * {@link #getPacket()} may be used afterward.
+   */
+  public void close() {
+    MappedBuffers.unmap(__mapping);
+  }
+
+}
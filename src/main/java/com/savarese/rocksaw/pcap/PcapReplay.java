@@ -0,0 +1,536 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pcap;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.net.SendPacer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Replays the IPv4 packets of PCAPNG or PCAP files through a {@link
+ * RawSocket} with the IP header included, for load testing receivers.
+ * Files are memory mapped with {@link PcapReader}, and packets are
+ * copied into a batch buffer, optionally readdressed, and written with
+ * {@link RawSocket#write(byte[], int[], int[], byte[], int)}.</p>
+ *
+ * <p>Packets are sent in one of three modes:</p>
+ * <ul>
+ * <li>{@link Mode#ORIGINAL} reproduces the recorded inter-packet
+ * timing.</li>
+ * <li>{@link Mode#SCALED} divides the recorded gaps by the speed set
+ * with {@link #setSpeed} (2.0 replays twice as fast).</li>
+ * <li>{@link Mode#MAX_RATE} ignores timestamps and sends full batches
+ * as fast as the socket accepts them.</li>
+ * </ul>
+ *
+ * <p>In the timed modes, packets that are already due are still
+ * batched together, so a replay that falls behind catches up at
+ * batch speed.  Waits longer than a fraction of a millisecond park the
+ * thread and the remainder is spun.</p>
+ *
+ * <p>Raw IP (including PcapNgWriter captures), Ethernet (with at most
+ * one VLAN tag), and Linux cooked captures are understood.  Non-IPv4
+ * and truncated packets are skipped.  When the source or destination
+ * address is rewritten, the IP, TCP, and UDP checksums are updated
+ * incrementally.  This is how a capture taken elsewhere can be
+ * replayed over the loopback interface or a veth pair.  Note that
+ * Linux always recomputes the IP header checksum and fills in a zero
+ * IP identification field of packets written with IP_HDRINCL.</p>
+ *
+ * <p>A PcapReplay is not thread safe.  It can also be run from the
+ * command line; run it without arguments for usage.</p>
+ */
+public class PcapReplay {
+
+  /** The replay timing modes. */
+  public enum Mode {
+    /** Reproduce the recorded inter-packet timing. */
+    ORIGINAL,
+    /** Reproduce the recorded timing divided by the speed. */
+    SCALED,
+    /** Send as fast as possible. */
+    MAX_RATE
+  }
+
+  /** The default number of packets written per batch. */
+  public static final int DEFAULT_BATCH_SIZE = 64;
+
+  /**
+   * The IPPROTO_RAW protocol number.  A raw socket opened with it
+   * implies IP_HDRINCL and receives no packets, which makes it suited
+   * to replaying.
+   */
+  public static final int IPPROTO_RAW = 255;
+
+  private static final int __ETHERTYPE_IPV4 = 0x0800;
+  private static final int __ETHERTYPE_VLAN = 0x8100;
+  private static final int __ETHERTYPE_QINQ = 0x88a8;
+  private static final int __PROTOCOL_TCP = 6;
+  private static final int __PROTOCOL_UDP = 17;
+  private static final long __SPIN_NANOS = 200000L;
+
+  private final RawSocket __socket;
+  private Mode __mode;
+  private double __speed;
+  private int __batchSize, __loops;
+  private byte[] __source, __destination;
+
+  private byte[] __data, __addresses;
+  private int[] __offsets, __lengths;
+  private int __count, __end;
+  private long __packets, __bytes, __skipped, __failed;
+
+  /**
+   * Creates a replay that writes to a socket.  The socket must be an
+   * open IPv4 raw socket; {@link #replay} enables IP_HDRINCL on it.
+   * Opening the socket with {@link #IPPROTO_RAW} is recommended.
+   *
+   * @param socket The socket to write to.
+   */
+  public PcapReplay(RawSocket socket) {
+    __socket = socket;
+    __mode   = Mode.ORIGINAL;
+    __speed  = 1.0;
+    __loops  = 1;
+    setBatchSize(DEFAULT_BATCH_SIZE);
+  }
+
+  /** @param mode The timing mode.  The default is ORIGINAL. */
+  public void setMode(Mode mode) {
+    __mode = mode;
+  }
+
+  /** @return The timing mode. */
+  public Mode getMode() {
+    return __mode;
+  }
+
+  /**
+   * Sets the speed of SCALED replays.  For example, 2.0 halves and 0.5
+   * doubles the recorded gaps between packets.
+   *
+   * @param speed The speed multiplier.
+   * @exception IllegalArgumentException If speed is not positive.
+   */
+  public void setSpeed(double speed) throws IllegalArgumentException {
+    if(!(speed > 0))
+      throw new IllegalArgumentException("Speed must be positive.");
+    __speed = speed;
+  }
+
+  /** @return The speed of SCALED replays. */
+  public double getSpeed() {
+    return __speed;
+  }
+
+  /**
+   * Sets the largest number of packets written with one call.
+   *
+   * @param size The batch size.
+   * @exception IllegalArgumentException If size is not positive.
+   */
+  public void setBatchSize(int size) throws IllegalArgumentException {
+    if(size <= 0)
+      throw new IllegalArgumentException("Batch size must be positive.");
+
+    __batchSize = size;
+    __offsets   = new int[size];
+    __lengths   = new int[size];
+    __addresses = new byte[size * 4];
+    __data      = new byte[size * 1536];
+  }
+
+  /** @return The largest number of packets written with one call. */
+  public int getBatchSize() {
+    return __batchSize;
+  }
+
+  /**
+   * @param loops The number of times to replay the files.  Each loop
+   * restarts the timing at its first packet.
+   * @exception IllegalArgumentException If loops is not positive.
+   */
+  public void setLoops(int loops) throws IllegalArgumentException {
+    if(loops <= 0)
+      throw new IllegalArgumentException("Loops must be positive.");
+    __loops = loops;
+  }
+
+  /** @return The number of times the files are replayed. */
+  public int getLoops() {
+    return __loops;
+  }
+
+  private static byte[] __toIPv4(InetAddress address) {
+    if(address == null)
+      return null;
+    if(!(address instanceof Inet4Address))
+      throw new IllegalArgumentException("Not an IPv4 address: " + address);
+    return address.getAddress();
+  }
+
+  /**
+   * @param source The address to rewrite the source of every packet
+   * to, or null to leave it unchanged.
+   * @exception IllegalArgumentException If the address is not IPv4.
+   */
+  public void setSource(InetAddress source) throws IllegalArgumentException {
+    __source = __toIPv4(source);
+  }
+
+  /**
+   * @param destination The address to rewrite the destination of every
+   * packet to, or null to leave it unchanged.
+   * @exception IllegalArgumentException If the address is not IPv4.
+   */
+  public void setDestination(InetAddress destination)
+    throws IllegalArgumentException
+  {
+    __destination = __toIPv4(destination);
+  }
+
+  /**
+   * Returns the offset of the IPv4 header from the start of a captured
+   * frame, or -1 if the frame does not hold an IPv4 packet.
+   */
+  private static int __ipOffset(int linkType, ByteBuffer frame, int start,
+                                int captured)
+  {
+    int type;
+
+    switch(linkType) {
+    case PcapReader.LINKTYPE_RAW:
+    case PcapReader.LINKTYPE_IPV4:
+      return 0;
+    case PcapReader.LINKTYPE_ETHERNET:
+      if(captured < 14)
+        return -1;
+      type = frame.getShort(start + 12) & 0xffff;
+      if(type == __ETHERTYPE_VLAN || type == __ETHERTYPE_QINQ) {
+        if(captured < 18)
+          return -1;
+        type = frame.getShort(start + 16) & 0xffff;
+        return (type == __ETHERTYPE_IPV4 ? 18 : -1);
+      }
+      return (type == __ETHERTYPE_IPV4 ? 14 : -1);
+    case PcapReader.LINKTYPE_LINUX_SLL:
+      if(captured < 16)
+        return -1;
+      type = frame.getShort(start + 14) & 0xffff;
+      return (type == __ETHERTYPE_IPV4 ? 16 : -1);
+    default:
+      return -1;
+    }
+  }
+
+  private static int __getInt(byte[] data, int offset) {
+    return
+      ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+      ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+  }
+
+  private static int __getShort(byte[] data, int offset) {
+    return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+  }
+
+  private static void __putShort(byte[] data, int offset, int value) {
+    data[offset]     = (byte)(value >>> 8);
+    data[offset + 1] = (byte)value;
+  }
+
+  /**
+   * Rewrites the source (offset 12) or destination (offset 16) address
+   * of the IPv4 packet at the given offset, updating the IP header
+   * checksum and, for unfragmented TCP and UDP, the transport checksum
+   * covering the pseudo-header.
+   */
+  private static void __rewrite(byte[] data, int packet, int length,
+                                int field, byte[] address)
+  {
+    int oldValue = __getInt(data, packet + field);
+    int newValue = __getInt(address, 0);
+
+    if(oldValue == newValue)
+      return;
+
+    __putShort(data, packet + 10,
+               InternetChecksum.update32(__getShort(data, packet + 10),
+                                         oldValue, newValue));
+
+    int headerLength = (data[packet] & 0x0f) << 2;
+    int fragment     = __getShort(data, packet + 6) & 0x1fff;
+    int protocol     = data[packet + 9] & 0xff;
+    int checksum     = -1;
+
+    if(fragment == 0) {
+      if(protocol == __PROTOCOL_TCP && length >= headerLength + 18)
+        checksum = packet + headerLength + 16;
+      else if(protocol == __PROTOCOL_UDP && length >= headerLength + 8)
+        checksum = packet + headerLength + 6;
+    }
+
+    if(checksum >= 0) {
+      int value = __getShort(data, checksum);
+
+      // A zero UDP checksum means none was computed.
+      if(protocol != __PROTOCOL_UDP || value != 0) {
+        value = InternetChecksum.update32(value, oldValue, newValue);
+
+        if(protocol == __PROTOCOL_UDP && value == 0)
+          value = 0xffff;
+
+        __putShort(data, checksum, value);
+      }
+    }
+
+    System.arraycopy(address, 0, data, packet + field, 4);
+  }
+
+  /**
+   * Writes the pending batch.  Packets the socket refuses are counted
+   * as failed and the rest of the batch is still sent.
+   */
+  private void __flush() {
+    int first = 0;
+
+    while(first < __count) {
+      int sent;
+
+      try {
+        sent = __socket.write(__data, __offsets, __lengths, __addresses,
+                              first, __count - first);
+      } catch(IOException e) {
+        sent = 0;
+      }
+
+      for(int i = first; i < first + sent; ++i)
+        __bytes+=__lengths[i];
+
+      __packets+=sent;
+      first+=sent;
+
+      // Skip the packet that failed.
+      if(first < __count) {
+        ++__failed;
+        ++first;
+      }
+    }
+
+    __count = 0;
+    __end   = 0;
+  }
+
+  /**
+   * Queues the current packet of a reader into the batch, sending the
+   * batch first if it is full.  Returns false if the packet was
+   * skipped.
+   */
+  private boolean __add(PcapReader reader) {
+    ByteBuffer frame = reader.getPacket();
+    int start        = frame.position();
+    int captured     = frame.remaining();
+    int ip = __ipOffset(reader.getLinkType(), frame, start, captured);
+
+    if(ip < 0 || captured - ip < 20)
+      return false;
+
+    int version      = frame.get(start + ip) & 0xff;
+    int headerLength = (version & 0x0f) << 2;
+    int length       = frame.getShort(start + ip + 2) & 0xffff;
+
+    if((version >>> 4) != 4 || headerLength < 20 || length < headerLength ||
+       length > captured - ip)
+      return false;
+
+    if(__count == __batchSize || __end + length > __data.length) {
+      __flush();
+
+      if(length > __data.length)
+        __data = new byte[length];
+    }
+
+    ((Buffer)frame).position(start + ip);
+    frame.get(__data, __end, length);
+
+    if(__source != null)
+      __rewrite(__data, __end, length, 12, __source);
+    if(__destination != null)
+      __rewrite(__data, __end, length, 16, __destination);
+
+    System.arraycopy(__data, __end + 16, __addresses, __count * 4, 4);
+    __offsets[__count] = __end;
+    __lengths[__count] = length;
+    ++__count;
+    __end+=length;
+
+    return true;
+  }
+
+  /**
+   * Replays a sequence of capture files, such as the series written by
+   * a {@link PcapNgWriter}, as one continuous recording.
+   *
+   * @param files The files to replay, in order.
+   * @return The statistics of the run.
+   * @exception IOException If a file cannot be read or IP_HDRINCL
+   * cannot be enabled.  Failures to send individual packets are
+   * counted instead.
+   */
+  public ReplayStatistics replay(List<File> files) throws IOException {
+    __socket.setIPHeaderInclude(true);
+
+    __packets = __bytes = __skipped = __failed = 0;
+    __count   = __end = 0;
+
+    boolean timed = (__mode != Mode.MAX_RATE);
+    double speed  = (__mode == Mode.SCALED ? __speed : 1.0);
+    long start    = System.nanoTime();
+
+    for(int loop = 0; loop < __loops; ++loop) {
+      long loopStart = System.nanoTime();
+      long first     = Long.MIN_VALUE;
+
+      for(File file : files) {
+        PcapReader reader = new PcapReader(file);
+
+        try {
+          while(reader.next()) {
+            if(timed) {
+              long timestamp = reader.getTimestampNanos();
+
+              if(first == Long.MIN_VALUE)
+                first = timestamp;
+
+              long due = loopStart + (long)((timestamp - first) / speed);
+
+              if(due - System.nanoTime() > 0) {
+                __flush();
+                SendPacer.waitUntil(due, __SPIN_NANOS);
+              }
+            }
+
+            if(!__add(reader))
+              ++__skipped;
+          }
+        } finally {
+          reader.close();
+        }
+      }
+    }
+
+    __flush();
+
+    return new ReplayStatistics(__packets, __bytes, __skipped, __failed,
+                                System.nanoTime() - start);
+  }
+
+  /** Same as {@code replay(Arrays.asList(files))}. */
+  public ReplayStatistics replay(File... files) throws IOException {
+    return replay(Arrays.asList(files));
+  }
+
+  private static void __usage() {
+    System.err.println(
+      "usage: PcapReplay [-m original|scaled|max] [-x speed] [-b batch]\n" +
+      "                  [-n loops] [-s source] [-d destination] file...\n" +
+      "Replays the IPv4 packets of pcap/pcapng files through a raw\n" +
+      "socket with IP_HDRINCL and reports the achieved rate.");
+    System.exit(2);
+  }
+
+  /**
+   * Runs a replay from the command line.  Requires the privileges to
+   * open a raw socket.
+   *
+   * @param args The command line arguments.
+   * @exception IOException If an I/O error occurs.
+   */
+  public static void main(String[] args) throws IOException {
+    RawSocket socket  = new RawSocket();
+    PcapReplay replay = new PcapReplay(socket);
+    List<File> files  = new ArrayList<File>();
+
+    try {
+      for(int i = 0; i < args.length; ++i) {
+        String arg = args[i];
+
+        if(!arg.startsWith("-") || arg.length() == 1) {
+          files.add(new File(arg));
+          continue;
+        }
+
+        if(i + 1 >= args.length)
+          __usage();
+
+        String value = args[++i];
+
+        switch(arg.charAt(1)) {
+        case 'm':
+          if(value.equals("original"))
+            replay.setMode(Mode.ORIGINAL);
+          else if(value.equals("scaled"))
+            replay.setMode(Mode.SCALED);
+          else if(value.equals("max"))
+            replay.setMode(Mode.MAX_RATE);
+          else
+            __usage();
+          break;
+        case 'x':
+          replay.setSpeed(Double.parseDouble(value));
+          break;
+        case 'b':
+          replay.setBatchSize(Integer.parseInt(value));
+          break;
+        case 'n':
+          replay.setLoops(Integer.parseInt(value));
+          break;
+        case 's':
+          replay.setSource(InetAddress.getByName(value));
+          break;
+        case 'd':
+          replay.setDestination(InetAddress.getByName(value));
+          break;
+        default:
+          __usage();
+        }
+      }
+    } catch(IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      __usage();
+    }
+
+    if(files.isEmpty())
+      __usage();
+
+    socket.open(RawSocket.PF_INET, IPPROTO_RAW);
+
+    try {
+      System.out.println(replay.replay(files));
+    } finally {
+      socket.close();
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pcap;
+
+/**
+ * The outcome of a {@link PcapReplay} run.  Rates are computed over
+ * the wall clock time of the whole run, including any time spent
+ * waiting to reproduce the original packet timing.
+ */
+public final class ReplayStatistics {
+
+  private final long __packets, __bytes, __skipped, __failed;
+  private final long __elapsedNanos;
+
+  ReplayStatistics(long packets, long bytes, long skipped, long failed,
+                   long elapsedNanos)
+  {
+    __packets      = packets;
+    __bytes        = bytes;
+    __skipped      = skipped;
+    __failed       = failed;
+    __elapsedNanos = elapsedNanos;
+  }
+
+  /** @return The number of packets sent. */
+  public long getPacketCount() {
+    return __packets;
+  }
+
+  /** @return The number of IP bytes sent. */
+  public long getByteCount() {
+    return __bytes;
+  }
+
+  /**
+   * @return The number of packets skipped because they were not
+   * complete IPv4 packets.
+   */
+  public long getSkippedCount() {
+    return __skipped;
+  }
+
+  /** @return The number of packets the socket failed to send. */
+  public long getFailedCount() {
+    return __failed;
+  }
+
+  /** @return The duration of the run in nanoseconds. */
+  public long getElapsedNanos() {
+    return __elapsedNanos;
+  }
+
+  /** @return The achieved rate in packets per second. */
+  public double getPacketsPerSecond() {
+    return (__elapsedNanos > 0 ? __packets * 1e9 / __elapsedNanos : 0);
+  }
+
+  /** @return The achieved rate in gigabits (10^9 bits) per second. */
+  public double getGigabitsPerSecond() {
+    return (__elapsedNanos > 0 ? __bytes * 8.0 / __elapsedNanos : 0);
+  }
+
+  public String toString() {
+    return String.format("%d packets, %d bytes in %.3f s: %.0f pps, " +
+                         "%.3f Gbps (%d skipped, %d failed)",
+                         __packets, __bytes, __elapsedNanos / 1e9,
+                         getPacketsPerSecond(), getGigabitsPerSecond(),
+                         __skipped, __failed);
+  }
+
+}
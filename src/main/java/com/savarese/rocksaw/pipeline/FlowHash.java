@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pipeline;
+
+import java.nio.ByteBuffer;
+
+import com.savarese.rocksaw.net.RawSocket;
+
+/**
+ * <p>Computes the flow hashes {@link PacketPipeline} uses to send all
+ * packets of a flow to the same worker.  The hash is symmetric, so
+ * both directions of a conversation hash alike.</p>
+ *
+ * <p>IPv4 packets read from raw sockets include their IP header, so
+ * they are hashed by addresses, protocol and, for unfragmented TCP,
+ * UDP, and SCTP packets, ports.  IPv6 raw sockets deliver only the
+ * payload, so IPv6 packets, and anything that is not a well-formed
+ * IPv4 packet, are hashed by source address alone.</p>
+ */
+public final class FlowHash {
+
+  private FlowHash() { }
+
+  private static int __mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  private static int __hash(byte[] address) {
+    int h = 0;
+
+    for(int i = 0; i + 3 < address.length; i+=4)
+      h = h * 31 + ((address[i] & 0xff) << 24 | (address[i + 1] & 0xff) << 16 |
+                    (address[i + 2] & 0xff) << 8 | (address[i + 3] & 0xff));
+
+    return __mix(h);
+  }
+
+  /**
+   * Hashes a packet.
+   *
+   * @param packet The packet, from its position to its limit.
+   * @param family The protocol family of the socket it was read from.
+   * @param source The source address of the packet.
+   * @return The flow hash.
+   */
+  public static int hash(ByteBuffer packet, int family, byte[] source) {
+    int start  = packet.position();
+    int length = packet.limit() - start;
+
+    if(family != RawSocket.PF_INET || length < 20 ||
+       (packet.get(start) & 0xf0) != 0x40)
+      return __hash(source);
+
+    int headerLength = (packet.get(start) & 0x0f) << 2;
+    int protocol     = packet.get(start + 9) & 0xff;
+    int src          = packet.getInt(start + 12);
+    int dst          = packet.getInt(start + 16);
+    int srcPort = 0, dstPort = 0;
+
+    // Only the first fragment carries the ports, so every fragment,
+    // including the first (MF set, offset zero), is hashed without them.
+    if((protocol == 6 || protocol == 17 || protocol == 132) &&
+       (packet.getShort(start + 6) & 0x3fff) == 0 &&
+       headerLength >= 20 && length >= headerLength + 4)
+    {
+      srcPort = packet.getShort(start + headerLength) & 0xffff;
+      dstPort = packet.getShort(start + headerLength + 2) & 0xffff;
+    }
+
+    // Adding the two endpoint hashes makes the result symmetric.
+    return __mix(__mix(src * 31 + srcPort) + __mix(dst * 31 + dstPort) +
+                 protocol);
+  }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pipeline;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A bounded, lock-free ring that many threads offer to and a single
+ * thread polls from, for fanning the results of {@link PacketPipeline}
+ * workers in to an aggregation thread.  Producers claim a slot with a
+ * single compare-and-set and publish it with a release store of the
+ * slot's sequence number, so neither side blocks or allocates.</p>
+ *
+ * @param <E> The type of element held in the ring.
+ */
+public final class MpscRing<E> {
+
+  private final Object[] __elements;
+  private final AtomicLongArray __published;
+  private final int __mask;
+  private final Sequence __tail, __head;
+
+  /**
+   * Creates a ring.
+   *
+   * @param capacity The capacity, which is rounded up to a power of two.
+   * @exception IllegalArgumentException If capacity is out of range.
+   */
+  public MpscRing(int capacity) throws IllegalArgumentException {
+    if(capacity <= 0 || capacity > (1 << 30))
+      throw new IllegalArgumentException("Invalid capacity.");
+
+    int size = Integer.highestOneBit(capacity);
+
+    if(size < capacity)
+      size <<= 1;
+
+    __elements  = new Object[size];
+    __published = new AtomicLongArray(size);
+    __mask      = size - 1;
+    __tail      = new Sequence();
+    __head      = new Sequence();
+
+    // Slot i is free for the producer of element i, then for element
+    // i + size once the consumer has polled element i.
+    for(int i = 0; i < size; ++i)
+      __published.set(i, i);
+
+    __tail.set(0L);
+    __head.set(0L);
+  }
+
+  /** @return The capacity of the ring. */
+  public int capacity() {
+    return __elements.length;
+  }
+
+  /** @return The approximate number of elements in the ring. */
+  public int size() {
+    long size = __tail.get() - __head.get();
+
+    return (int)Math.max(0L, Math.min(size, __elements.length));
+  }
+
+  /**
+   * Adds an element if the ring is not full.  May be called by any
+   * number of threads.
+   *
+   * @param element The element, which must not be null.
+   * @return True if the element was added, false if the ring is full.
+   */
+  public boolean offer(E element) {
+    if(element == null)
+      throw new NullPointerException("Element is null.");
+
+    long tail;
+    int index;
+
+    while(true) {
+      tail  = __tail.get();
+      index = (int)tail & __mask;
+
+      long published = __published.get(index);
+
+      if(published == tail) {
+        if(__tail.compareAndSet(tail, tail + 1))
+          break;
+      } else if(published < tail) {
+        return false;
+      }
+    }
+
+    __elements[index] = element;
+    __published.lazySet(index, tail + 1);
+
+    return true;
+  }
+
+  /**
+   * Removes the oldest element.  Must only be called by one thread at
+   * a time.
+   *
+   * @return The oldest element, or null if the ring is empty or the
+   * oldest element is still being added.
+   */
+  @SuppressWarnings("unchecked")
+  public E poll() {
+    long head = __head.get();
+    int index = (int)head & __mask;
+
+    if(__published.get(index) != head + 1)
+      return null;
+
+    E element = (E)__elements[index];
+
+    __elements[index] = null;
+    __published.lazySet(index, head + __elements.length);
+    __head.set(head + 1);
+
+    return element;
+  }
+
+}
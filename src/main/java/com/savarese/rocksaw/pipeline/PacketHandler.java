@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pipeline;
+
+/**
+ * Processes packets dispatched to a {@link PacketPipeline} worker.
+ */
+public interface PacketHandler {
+
+  /**
+   * Processes a packet.  The slot is reused as soon as this method
+   * returns, so anything needed later must be copied out of it.
+   * Exceptions are counted by the pipeline and otherwise ignored.
+   *
+   * @param slot The slot holding the packet.
+   * @param worker The number of the calling worker, from zero.
+   */
+  void handle(PacketSlot slot, int worker);
+
+}
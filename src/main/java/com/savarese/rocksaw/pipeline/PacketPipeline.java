@@ -0,0 +1,381 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pipeline;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.savarese.rocksaw.net.PacketBuffer;
+import com.savarese.rocksaw.net.PacketBufferPool;
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.net.SpinBackoff;
+
+/**
+ * <p>Fans packets received on a {@link RawSocket} out to a fixed set of
+ * worker threads without locks or per-packet allocation.</p>
+ *
+ * <p>The pipeline owns a ring of preallocated {@link PacketSlot}s, each
+ * holding a buffer drawn once from a {@link PacketBufferPool}.  A
+ * receiver thread claims a run of free slots, fills them with a single
+ * batch read ({@link RawSocket#read(PacketBuffer[], byte[], int, int)}),
+ * assigns each packet to a worker, and publishes the run by advancing
+ * its cursor {@link Sequence}.  Each worker waits on the cursor, handles
+ * the published slots assigned to it, skips the rest, and then advances
+ * its own sequence.  The receiver only reuses a slot once every worker's
+ * sequence has passed it, in the manner of the LMAX Disruptor's
+ * sequence barriers.  All coordination is through these sequences.</p>
+ *
+ * <p>Packets are assigned to workers either round robin, which balances
+ * load, or by {@link FlowHash}, which keeps every packet of a flow on
+ * the same worker, in order.  Because slots are released in ring order,
+ * a worker that falls a whole ring behind stalls the receiver, and the
+ * socket receive buffer then absorbs or drops the overflow.  Workers
+ * that need to pass results on to a single aggregation thread can use
+ * an {@link MpscRing}.</p>
+ *
+ * <p>Waiting threads use a {@link SpinBackoff}, which by default spins
+ * briefly and then parks.  The socket should have a receive timeout
+ * (see {@link RawSocket#setReceiveTimeout}) so that {@link #stop} does
+ * not wait for the next packet.</p>
+ */
+public class PacketPipeline {
+
+  /** How packets are assigned to workers. */
+  public enum Dispatch {
+    /** Assign packets to workers in turn. */
+    ROUND_ROBIN,
+    /** Assign packets by {@link FlowHash}. */
+    FLOW_HASH
+  }
+
+  /** The default number of slots in the ring. */
+  public static final int DEFAULT_RING_SIZE = 4096;
+
+  /** The default largest number of packets read at once. */
+  public static final int DEFAULT_BATCH_SIZE = 32;
+
+  private final RawSocket __socket;
+  private final Dispatch __dispatch;
+  private final PacketHandler __handler;
+  private final PacketSlot[] __slots;
+  private final int __mask, __addressLength;
+  private final Sequence __cursor;
+  private final Worker[] __workers;
+  private final Sequence[] __gating;
+  private final AtomicLong __failures;
+  private int __batchSize;
+  private SpinBackoff __backoff;
+  private Thread __receiver;
+  private volatile boolean __running, __done;
+  private volatile IOException __error;
+
+  private final class Worker implements Runnable {
+    final int id;
+    final Sequence sequence = new Sequence();
+    volatile long handled;
+
+    Worker(int id) {
+      this.id = id;
+    }
+
+    public void run() {
+      long next = sequence.get() + 1;
+      int attempt = 0;
+
+      while(true) {
+        long available = __cursor.get();
+
+        if(available < next) {
+          if(__done && __cursor.get() < next)
+            break;
+
+          __backoff.idle(attempt++, -1L);
+          continue;
+        }
+
+        long count = handled;
+
+        for(; next <= available; ++next) {
+          PacketSlot slot = __slots[(int)next & __mask];
+
+          if(slot.__worker() != id)
+            continue;
+
+          try {
+            __handler.handle(slot, id);
+          } catch(RuntimeException e) {
+            __failures.incrementAndGet();
+          }
+
+          ++count;
+        }
+
+        handled = count;
+        sequence.set(available);
+        attempt = 0;
+      }
+    }
+  }
+
+  /**
+   * Creates a pipeline.
+   *
+   * @param socket The open socket to read from.
+   * @param pool The pool from which to draw one buffer per slot.
+   * @param ringSize The number of slots, which is rounded up to a power
+   * of two.
+   * @param workers The number of worker threads.
+   * @param dispatch How packets are assigned to workers.
+   * @param handler The handler the workers call for each packet.
+   * @exception IllegalArgumentException If a size is out of range.
+   * @exception IllegalStateException If the pool cannot supply a buffer
+   * for every slot.
+   */
+  public PacketPipeline(RawSocket socket, PacketBufferPool pool,
+                        int ringSize, int workers, Dispatch dispatch,
+                        PacketHandler handler)
+    throws IllegalArgumentException, IllegalStateException
+  {
+    if(ringSize <= 0 || ringSize > (1 << 24) || workers <= 0)
+      throw new IllegalArgumentException("Invalid ring size or workers.");
+
+    int size = Integer.highestOneBit(ringSize);
+
+    if(size < ringSize)
+      size <<= 1;
+
+    __socket        = socket;
+    __dispatch      = dispatch;
+    __handler       = handler;
+    __addressLength =
+      (socket.getProtocolFamily() == RawSocket.PF_INET6 ? 16 : 4);
+    __slots         = new PacketSlot[size];
+    __mask          = size - 1;
+    __cursor        = new Sequence();
+    __workers       = new Worker[workers];
+    __gating        = new Sequence[workers];
+    __failures      = new AtomicLong();
+    __batchSize     = Math.min(DEFAULT_BATCH_SIZE, size);
+    __backoff       = SpinBackoff.DEFAULT;
+
+    for(int i = 0; i < size; ++i) {
+      PacketBuffer packet = pool.acquire();
+
+      if(packet == null) {
+        for(int j = 0; j < i; ++j)
+          __slots[j].__packet().release();
+        throw new IllegalStateException("Packet buffer pool exhausted.");
+      }
+
+      __slots[i] = new PacketSlot(packet, __addressLength);
+    }
+
+    for(int i = 0; i < workers; ++i) {
+      __workers[i] = new Worker(i);
+      __gating[i]  = __workers[i].sequence;
+    }
+  }
+
+  /**
+   * Sets the largest number of packets read at once.  Must be called
+   * before {@link #start}.
+   *
+   * @param batchSize The batch size, at most the ring size.
+   * @exception IllegalArgumentException If batchSize is out of range.
+   */
+  public void setBatchSize(int batchSize) throws IllegalArgumentException {
+    if(batchSize <= 0 || batchSize > __slots.length)
+      throw new IllegalArgumentException("Invalid batch size.");
+
+    __batchSize = batchSize;
+  }
+
+  /** @return The largest number of packets read at once. */
+  public int getBatchSize() {
+    return __batchSize;
+  }
+
+  /**
+   * Sets how the receiver and workers wait.  Must be called before
+   * {@link #start}.
+   *
+   * @param backoff The backoff policy.
+   */
+  public void setBackoff(SpinBackoff backoff) {
+    __backoff = backoff;
+  }
+
+  /** @return The number of slots in the ring. */
+  public int getRingSize() {
+    return __slots.length;
+  }
+
+  /** @return The number of workers. */
+  public int getWorkerCount() {
+    return __workers.length;
+  }
+
+  /** @return The number of packets received so far. */
+  public long getReceivedCount() {
+    return __cursor.get() + 1;
+  }
+
+  /**
+   * @param worker The number of a worker, from zero.
+   * @return The number of packets the worker has handled.
+   */
+  public long getHandledCount(int worker) {
+    return __workers[worker].handled;
+  }
+
+  /** @return The number of packets whose handler threw an exception. */
+  public long getFailureCount() {
+    return __failures.get();
+  }
+
+  /**
+   * @return The I/O error that stopped the receiver, or null if there
+   * was none.
+   */
+  public IOException getError() {
+    return __error;
+  }
+
+  /** @return True between {@link #start} and the receiver stopping. */
+  public boolean isRunning() {
+    return __running && !__done;
+  }
+
+  /**
+   * Starts the receiver and worker threads.  A pipeline can only be
+   * started once.
+   *
+   * @exception IllegalStateException If the pipeline was already started.
+   */
+  public synchronized void start() throws IllegalStateException {
+    if(__receiver != null)
+      throw new IllegalStateException("Pipeline already started.");
+
+    __running = true;
+
+    for(Worker worker : __workers) {
+      Thread thread = new Thread(worker, "rocksaw-worker-" + worker.id);
+
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    __receiver = new Thread(new Runnable() {
+        public void run() {
+          __receive();
+        }
+      }, "rocksaw-receiver");
+    __receiver.setDaemon(true);
+    __receiver.start();
+  }
+
+  /**
+   * Stops receiving and waits until the workers have handled every
+   * packet already received.  The slot buffers are then returned to
+   * their pool.
+   *
+   * @exception InterruptedException If interrupted while waiting.
+   */
+  public synchronized void stop() throws InterruptedException {
+    if(__receiver == null || !__running)
+      return;
+
+    __running = false;
+    __receiver.join();
+
+    int attempt = 0;
+
+    while(Sequence.minimum(__gating, Long.MAX_VALUE) < __cursor.get())
+      __backoff.idle(attempt++, -1L);
+
+    for(PacketSlot slot : __slots)
+      slot.__packet().release();
+  }
+
+  private void __receive() {
+    PacketBuffer[] batch = new PacketBuffer[__batchSize];
+    byte[] addresses = new byte[__batchSize * __addressLength];
+    int family = __socket.getProtocolFamily();
+    int workers = __workers.length;
+    long next = __cursor.get() + 1;
+    long gating = -1L;
+    int attempt = 0;
+
+    while(__running) {
+      int count = __batchSize;
+      long wrap = next + count - 1 - __slots.length;
+
+      if(wrap > gating) {
+        gating = Sequence.minimum(__gating, Long.MAX_VALUE);
+        count  = (int)Math.min(count, gating + __slots.length + 1 - next);
+
+        if(count <= 0) {
+          __backoff.idle(attempt++, -1L);
+          continue;
+        }
+      }
+
+      attempt = 0;
+
+      for(int i = 0; i < count; ++i) {
+        PacketSlot slot = __slots[(int)(next + i) & __mask];
+
+        slot.__prepare();
+        batch[i] = slot.__packet();
+      }
+
+      int received;
+
+      try {
+        received = __socket.read(batch, addresses, 0, count);
+      } catch(InterruptedIOException e) {
+        continue;
+      } catch(IOException e) {
+        if(__socket.isOpen())
+          __error = e;
+        break;
+      }
+
+      for(int i = 0; i < received; ++i) {
+        long sequence = next + i;
+        PacketSlot slot = __slots[(int)sequence & __mask];
+        int hash = 0, worker;
+
+        slot.__complete(addresses, i);
+
+        if(__dispatch == Dispatch.FLOW_HASH) {
+          hash   = FlowHash.hash(slot.buffer(), family, slot.getSource());
+          worker = (int)((hash & 0xffffffffL) % workers);
+        } else {
+          worker = (int)(sequence % workers);
+        }
+
+        slot.__assign(sequence, hash, worker);
+      }
+
+      next+=received;
+      __cursor.set(next - 1);
+    }
+
+    __done = true;
+  }
+
+}
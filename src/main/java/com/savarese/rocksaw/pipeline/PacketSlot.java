@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pipeline;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import com.savarese.rocksaw.net.PacketBuffer;
+
+/**
+ * <p>A preallocated slot in a {@link PacketPipeline} ring.  Each slot
+ * owns a pooled buffer for the life of the pipeline, and the receiver
+ * overwrites it once every trip around the ring, so processing
+ * packets allocates nothing.</p>
+ */
+public final class PacketSlot {
+
+  private final PacketBuffer __packet;
+  private final ByteBuffer __buffer;
+  private final byte[] __source;
+  private long __sequence;
+  private int __hash, __worker;
+
+  PacketSlot(PacketBuffer packet, int addressLength) {
+    __packet = packet;
+    __buffer = packet.buffer();
+    __source = new byte[addressLength];
+  }
+
+  PacketBuffer __packet() {
+    return __packet;
+  }
+
+  void __prepare() {
+    ((Buffer)__buffer).clear();
+  }
+
+  void __complete(byte[] addresses, int index) {
+    ((Buffer)__buffer).flip();
+    System.arraycopy(addresses, index * __source.length, __source, 0,
+                     __source.length);
+  }
+
+  void __assign(long sequence, int hash, int worker) {
+    __sequence = sequence;
+    __hash     = hash;
+    __worker   = worker;
+  }
+
+  int __worker() {
+    return __worker;
+  }
+
+  /**
+   * Returns the packet data.  The buffer's position is zero and its
+   * limit is the packet length when the slot is handed to a worker.
+   *
+   * @return The packet data.
+   */
+  public ByteBuffer buffer() {
+    return __buffer;
+  }
+
+  /** @return The length of the packet in bytes. */
+  public int length() {
+    return __buffer.limit();
+  }
+
+  /**
+   * @return The source address of the packet (4 or 16 bytes).  The
+   * array belongs to the slot and must not be modified.
+   */
+  public byte[] getSource() {
+    return __source;
+  }
+
+  /** @return The position of the packet in the stream, from zero. */
+  public long getSequence() {
+    return __sequence;
+  }
+
+  /**
+   * @return The flow hash of the packet (see {@link FlowHash}), or
+   * zero if the pipeline dispatches round robin.
+   */
+  public int getFlowHash() {
+    return __hash;
+  }
+
+}
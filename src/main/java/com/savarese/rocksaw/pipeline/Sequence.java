@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.pipeline;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+// Padding that keeps a Sequence's value on its own cache line.  The
+// superclass and subclass fields are laid out before and after the
+// value, which field reordering within a class could not guarantee.
+class SequenceLeftPadding {
+  protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequenceLeftPadding {
+  protected volatile long value;
+}
+
+/**
+ * <p>A sequence number in a ring, such as the last slot published by
+ * a producer or the last slot processed by a consumer, padded so that
+ * sequences updated by different threads never share a cache line.
+ * Sequences start at -1.</p>
+ */
+public final class Sequence extends SequenceValue {
+
+  private static final AtomicLongFieldUpdater<SequenceValue> __VALUE =
+    AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+  protected long p9, p10, p11, p12, p13, p14, p15;
+
+  /** Creates a sequence with a value of -1. */
+  public Sequence() {
+    value = -1L;
+  }
+
+  /** @return The current value, with volatile read semantics. */
+  public long get() {
+    return value;
+  }
+
+  /**
+   * Sets the value with release semantics: writes that precede it
+   * are visible to any thread that reads the new value, but it may
+   * itself become visible slightly later than a volatile write.
+   *
+   * @param value The new value.
+   */
+  public void set(long value) {
+    __VALUE.lazySet(this, value);
+  }
+
+  /**
+   * Atomically sets the value if it equals an expected value.
+   *
+   * @param expected The expected value.
+   * @param value The new value.
+   * @return True if the value was set.
+   */
+  public boolean compareAndSet(long expected, long value) {
+    return __VALUE.compareAndSet(this, expected, value);
+  }
+
+  /**
+   * @param sequences The sequences to examine.
+   * @param minimum An upper bound on the result, returned if there are
+   * no sequences.
+   * @return The smallest value of the sequences.
+   */
+  public static long minimum(Sequence[] sequences, long minimum) {
+    for(int i = 0; i < sequences.length; ++i)
+      minimum = Math.min(minimum, sequences[i].get());
+
+    return minimum;
+  }
+
+  public String toString() {
+    return Long.toString(get());
+  }
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.reactive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.savarese.rocksaw.net.PacketBuffer;
+import com.savarese.rocksaw.net.PacketBufferPool;
+import com.savarese.rocksaw.net.RawSocket;
+
+/**
+ * <p>A Reactive Streams publisher of the packets received by a {@link
+ * RawSocket}.  The publisher supports a single subscriber.  When it
+ * subscribes, a daemon thread starts reading from the socket with
+ * {@link RawSocket#read(PacketBuffer[], byte[], int, int)}, so each
+ * read returns as many queued packets as the batch size and the
+ * outstanding demand allow, into buffers drawn from a {@link
+ * PacketBufferPool}.  Subscribers receive {@link PacketView}s and must
+ * release them.  Each buffer keeps the view it was first delivered
+ * with, so once every buffer has been read into, receiving allocates
+ * nothing.</p>
+ *
+ * <p>What happens when the subscriber falls behind is set by an
+ * {@link Overflow} policy.  With {@link Overflow#KERNEL}, the reader
+ * only reads as many packets as have been requested, so unrequested
+ * packets wait in the socket receive buffer and the kernel drops them
+ * once it is full.  With the other policies, the reader keeps reading
+ * into a bounded queue and drops either the oldest or the newest
+ * packet when the queue is full; {@link #getDroppedCount} counts
+ * them.</p>
+ *
+ * <p>Signals are delivered on the reading thread, or on the thread
+ * calling {@link Subscription#request} when packets are already
+ * queued, but never concurrently.  If the socket is closed, the
+ * subscriber receives the queued packets and then onComplete.  Any
+ * other I/O error is delivered with onError at once, and packets still
+ * queued are released.  A blocked read only notices cancellation when
+ * it returns, so sockets should have a receive timeout (see {@link
+ * RawSocket#setReceiveTimeout}) for cancellation to take effect
+ * promptly.</p>
+ *
+ * <p>This class implements {@code org.reactivestreams} rather than
+ * {@code java.util.concurrent.Flow} so that it runs on Java 8.  The
+ * two are interchangeable through {@code
+ * org.reactivestreams.FlowAdapters} on Java 9 and later.</p>
+ */
+public class PacketPublisher implements Publisher<PacketView> {
+
+  /** What to do with packets that arrive faster than they are requested. */
+  public enum Overflow {
+    /** Queue packets and drop the oldest queued packet when full. */
+    DROP_OLDEST,
+    /** Queue packets and drop newly read packets when full. */
+    DROP_NEWEST,
+    /**
+     * Read only requested packets, leaving the rest to the kernel's
+     * socket receive buffer.
+     */
+    KERNEL
+  }
+
+  /** The default largest number of packets read at once. */
+  public static final int DEFAULT_BATCH_SIZE = 32;
+
+  /** The default number of packets queued by the drop policies. */
+  public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+  // How long the reader waits for a buffer when the pool is exhausted.
+  private static final long __POOL_WAIT_NANOS = 1000000L;
+
+  private final RawSocket __socket;
+  private final PacketBufferPool __pool;
+  private final Overflow __overflow;
+  private final int __batchSize, __queueSize;
+  private final AtomicBoolean __subscribed;
+  private final AtomicLong __packets, __dropped;
+
+  /**
+   * Same as {@code PacketPublisher(socket, pool, overflow,
+   * DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_SIZE)}.
+   */
+  public PacketPublisher(RawSocket socket, PacketBufferPool pool,
+                         Overflow overflow)
+  {
+    this(socket, pool, overflow, DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_SIZE);
+  }
+
+  /**
+   * Creates a publisher for an open socket.
+   *
+   * @param socket The socket to read from.
+   * @param pool The pool to draw packet buffers from.
+   * @param overflow The overflow policy.
+   * @param batchSize The largest number of packets read at once.
+   * @param queueSize The number of packets queued by the drop policies.
+   * @exception IllegalArgumentException If a size is not positive.
+   */
+  public PacketPublisher(RawSocket socket, PacketBufferPool pool,
+                         Overflow overflow, int batchSize, int queueSize)
+    throws IllegalArgumentException
+  {
+    if(batchSize <= 0 || queueSize <= 0)
+      throw new IllegalArgumentException("Invalid batch or queue size.");
+
+    __socket     = socket;
+    __pool       = pool;
+    __overflow   = overflow;
+    __batchSize  = batchSize;
+    __queueSize  = queueSize;
+    __subscribed = new AtomicBoolean();
+    __packets    = new AtomicLong();
+    __dropped    = new AtomicLong();
+  }
+
+  /** @return The overflow policy. */
+  public Overflow getOverflow() {
+    return __overflow;
+  }
+
+  /** @return The number of packets read from the socket. */
+  public long getPacketCount() {
+    return __packets.get();
+  }
+
+  /** @return The number of packets dropped by the overflow policy. */
+  public long getDroppedCount() {
+    return __dropped.get();
+  }
+
+  public void subscribe(Subscriber<? super PacketView> subscriber) {
+    if(subscriber == null)
+      throw new NullPointerException("Subscriber is null.");
+
+    if(!__subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(new Subscription() {
+          public void request(long n) { }
+          public void cancel() { }
+        });
+      subscriber.onError(
+        new IllegalStateException("PacketPublisher allows one subscriber."));
+      return;
+    }
+
+    PacketSubscription subscription = new PacketSubscription(subscriber);
+
+    subscriber.onSubscribe(subscription);
+    subscription.start();
+  }
+
+  private final class PacketSubscription implements Subscription, Runnable {
+
+    private final Subscriber<? super PacketView> __subscriber;
+    private final AtomicLong __requested;
+    private final AtomicInteger __wip;
+    private final ArrayDeque<PacketView> __queue;
+    private volatile Thread __reader;
+    private volatile boolean __cancelled, __done;
+    private Throwable __error;
+
+    PacketSubscription(Subscriber<? super PacketView> subscriber) {
+      __subscriber = subscriber;
+      __requested  = new AtomicLong();
+      __wip        = new AtomicInteger();
+      __queue      = new ArrayDeque<PacketView>();
+    }
+
+    void start() {
+      Thread reader = new Thread(this, "rocksaw-packet-publisher");
+
+      reader.setDaemon(true);
+      __reader = reader;
+      reader.start();
+    }
+
+    public void request(long n) {
+      if(n <= 0) {
+        __error = new IllegalArgumentException(
+          "Non-positive request (rule 3.9): " + n);
+        __done = true;
+      } else {
+        long r, u;
+
+        do {
+          r = __requested.get();
+          u = r + n;
+
+          if(u < 0)
+            u = Long.MAX_VALUE;
+        } while(!__requested.compareAndSet(r, u));
+      }
+
+      LockSupport.unpark(__reader);
+      __drain();
+    }
+
+    public void cancel() {
+      synchronized(__queue) {
+        __cancelled = true;
+        __clear();
+      }
+
+      LockSupport.unpark(__reader);
+    }
+
+    // Must be called while holding the queue lock.
+    private void __clear() {
+      PacketView view;
+
+      while((view = __queue.poll()) != null)
+        view.release();
+    }
+
+    private void __offer(PacketView view) {
+      synchronized(__queue) {
+        if(__cancelled) {
+          view.release();
+          return;
+        }
+
+        if(__overflow != Overflow.KERNEL && __queue.size() >= __queueSize) {
+          __dropped.incrementAndGet();
+
+          if(__overflow == Overflow.DROP_NEWEST) {
+            view.release();
+            return;
+          }
+
+          __queue.poll().release();
+        }
+
+        __queue.add(view);
+      }
+    }
+
+    private int __queued() {
+      synchronized(__queue) {
+        return __queue.size();
+      }
+    }
+
+    private void __terminate(Throwable error) {
+      synchronized(__queue) {
+        __cancelled = true;
+        __clear();
+      }
+
+      if(error != null)
+        __subscriber.onError(error);
+      else
+        __subscriber.onComplete();
+    }
+
+    private void __drain() {
+      if(__wip.getAndIncrement() != 0)
+        return;
+
+      int missed = 1;
+
+      while(true) {
+        long requested = __requested.get();
+        long emitted = 0;
+
+        while(!__cancelled) {
+          boolean done = __done;
+
+          if(done && __error != null) {
+            __terminate(__error);
+            return;
+          }
+
+          PacketView view = null;
+
+          if(emitted != requested) {
+            synchronized(__queue) {
+              view = __queue.poll();
+            }
+          }
+
+          if(view == null) {
+            if(done && __queued() == 0)
+              __terminate(null);
+            break;
+          }
+
+          try {
+            __subscriber.onNext(view);
+          } catch(RuntimeException e) {
+            cancel();
+            throw e;
+          }
+
+          ++emitted;
+        }
+
+        if(emitted != 0 && requested != Long.MAX_VALUE)
+          __requested.addAndGet(-emitted);
+
+        missed = __wip.addAndGet(-missed);
+
+        if(missed == 0)
+          break;
+      }
+    }
+
+    public void run() {
+      int addressLength =
+        (__socket.getProtocolFamily() == RawSocket.PF_INET6 ? 16 : 4);
+      PacketBuffer[] packets = new PacketBuffer[__batchSize];
+      byte[] addresses = new byte[__batchSize * addressLength];
+      // The view of each buffer read into so far, so that steady state
+      // reception allocates nothing.  It holds at most one view for
+      // every buffer of the pool.
+      IdentityHashMap<PacketBuffer, PacketView> views =
+        new IdentityHashMap<PacketBuffer, PacketView>();
+
+      // Buffers released by this thread are cached in its magazines, which
+      // would be lost to the pool when the thread exits.
+      try {
+        while(!__cancelled && !__done) {
+          int count = __batchSize;
+
+          if(__overflow == Overflow.KERNEL) {
+            long demand = __requested.get() - __queued();
+
+            if(demand <= 0) {
+              LockSupport.park(this);
+              continue;
+            }
+
+            count = (int)Math.min(count, demand);
+          }
+
+          int acquired = 0;
+
+          while(acquired < count &&
+                (packets[acquired] = __pool.acquire()) != null)
+            ++acquired;
+
+          if(acquired == 0) {
+            LockSupport.parkNanos(this, __POOL_WAIT_NANOS);
+            continue;
+          }
+
+          int received = 0;
+
+          try {
+            received = __socket.read(packets, addresses, 0, acquired);
+          } catch(InterruptedIOException e) {
+            // The receive timeout expired; check for cancellation.
+          } catch(IOException e) {
+            if(__socket.isOpen())
+              __error = e;
+            __done = true;
+          } catch(RuntimeException e) {
+            __error = e;
+            __done = true;
+          } finally {
+            for(int i = received; i < acquired; ++i) {
+              packets[i].release();
+              packets[i] = null;
+            }
+          }
+
+          for(int i = 0; i < received; ++i) {
+            PacketView view = views.get(packets[i]);
+
+            if(view == null) {
+              view = new PacketView(packets[i], __socket.getProtocolFamily());
+              views.put(packets[i], view);
+            }
+
+            ((Buffer)packets[i].buffer()).flip();
+            view.__setSource(addresses, i * addressLength);
+            __offer(view);
+            packets[i] = null;
+          }
+
+          __packets.addAndGet(received);
+          __drain();
+        }
+      } finally {
+        __pool.flushThreadCache();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.reactive;
+
+import java.nio.ByteBuffer;
+
+import com.savarese.rocksaw.net.PacketBuffer;
+import com.savarese.rocksaw.net.RawSocket;
+
+/**
+ * <p>A packet delivered by a {@link PacketPublisher}.  The packet data
+ * lives in a pooled {@link PacketBuffer}, so a subscriber must {@link
+ * #release} each view exactly once when it is done with it, and must
+ * {@link #retain} it once more for every additional stage it hands the
+ * view to.</p>
+ *
+ * <p>A publisher keeps one view for each pooled buffer it reads into
+ * and delivers the same view, with a new source address, every time
+ * the buffer is reused.  A view must therefore not be used after it
+ * has been released by all of its holders.</p>
+ */
+public final class PacketView {
+
+  private final PacketBuffer __packet;
+  private final int __family;
+  private final byte[] __source;
+
+  PacketView(PacketBuffer packet, int family) {
+    __packet = packet;
+    __family = family;
+    __source = new byte[family == RawSocket.PF_INET6 ? 16 : 4];
+  }
+
+  void __setSource(byte[] addresses, int offset) {
+    System.arraycopy(addresses, offset, __source, 0, __source.length);
+  }
+
+  /**
+   * Returns the packet data.  The buffer's position is zero and its
+   * limit is the packet length when the view is delivered.
+   *
+   * @return The packet data.
+   * @exception IllegalStateException If the view has been released.
+   */
+  public ByteBuffer buffer() throws IllegalStateException {
+    return __packet.buffer();
+  }
+
+  /** @return The underlying pooled buffer. */
+  public PacketBuffer getPacketBuffer() {
+    return __packet;
+  }
+
+  /**
+   * @return The protocol family of the socket the packet was read from
+   * ({@link RawSocket#PF_INET} or {@link RawSocket#PF_INET6}).
+   */
+  public int getProtocolFamily() {
+    return __family;
+  }
+
+  /**
+   * @return The source address of the packet (4 or 16 bytes).  The
+   * array belongs to the view, must not be modified, and is
+   * overwritten when the view is reused after its release.
+   */
+  public byte[] getSource() {
+    return __source;
+  }
+
+  /**
+   * Adds a holder.
+   *
+   * @return This view.
+   * @exception IllegalStateException If the view has been released.
+   */
+  public PacketView retain() throws IllegalStateException {
+    __packet.retain();
+    return this;
+  }
+
+  /**
+   * Removes a holder, returning the packet's buffer to its pool if it
+   * was the last one.
+   *
+   * @return True if the buffer was returned to its pool.
+   * @exception IllegalStateException If the view has already been
+   * released by all of its holders.
+   */
+  public boolean release() throws IllegalStateException {
+    return __packet.release();
+  }
+
+}
@@ -0,0 +1,436 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.savarese.rocksaw.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>Reports {@link RawSocket} operations as JDK Flight Recorder
+ * events.  All events are disabled by default and are enabled by name
+ * in a recording's settings file or with, for example, {@code
+ * Recording.enable("com.savarese.rocksaw.SocketRead")}.  The events
+ * are:</p>
+ *
+ * <dl>
+ * <dt>{@code com.savarese.rocksaw.SocketOpen}, {@code SocketClose},
+ * {@code SocketBind}</dt>
+ * <dd>Socket life cycle.</dd>
+ * <dt>{@code com.savarese.rocksaw.SocketRead}, {@code SocketWrite}</dt>
+ * <dd>The duration, bytes and packets of one in every {@code
+ * rocksaw.jfr.sampleInterval} (default 64) reads or writes, counted
+ * over all sockets.  A batch counts once.</dd>
+ * <dt>{@code com.savarese.rocksaw.SocketError}</dt>
+ * <dd>Failed reads, writes, opens and binds with their errno, and
+ * whether they timed out.</dd>
+ * <dt>{@code com.savarese.rocksaw.SocketStatistics}</dt>
+ * <dd>The {@link SocketStatistics} of every open socket, once a
+ * second by default.</dd>
+ * <dt>{@code com.savarese.rocksaw.ReceiveBufferResize}</dt>
+ * <dd>Receive buffer sizes set by a {@link ReceiveBufferTuner},
+ * including whether the kernel capped them.</dd>
+ * </dl>
+ *
+ * <p>Loading the first event class initializes Flight Recorder, which
+ * takes a noticeable fraction of a second, so the events are only
+ * loaded once Flight Recorder has been initialized by something else,
+ * such as a recording being started.  Until then each hook costs a
+ * null check, and afterwards a check of the event type.</p>
+ */
+final class JfrSocketTracer extends SocketTracer {
+
+  @Category({ "RockSaw", "Socket" })
+  @Enabled(false)
+  @StackTrace(false)
+  abstract static class SocketEvent extends Event {
+    @Label("Descriptor")
+    int descriptor;
+
+    @Label("Protocol Family")
+    String family;
+
+    @Label("Protocol")
+    int protocol;
+
+    @Label("Ping Socket")
+    boolean ping;
+
+    final void set(RawSocket socket) {
+      int f = socket.getProtocolFamily();
+
+      descriptor = socket.__getDescriptor();
+      family     = (f == RawSocket.PF_INET ? "IPv4" :
+                    (f == RawSocket.PF_INET6 ? "IPv6" : String.valueOf(f)));
+      protocol   = socket.__getProtocol();
+      ping       = socket.isPingSocket();
+    }
+  }
+
+  @Name("com.savarese.rocksaw.SocketOpen")
+  @Label("Socket Open")
+  static final class OpenEvent extends SocketEvent { }
+
+  @Name("com.savarese.rocksaw.SocketClose")
+  @Label("Socket Close")
+  static final class CloseEvent extends SocketEvent { }
+
+  @Name("com.savarese.rocksaw.SocketBind")
+  @Label("Socket Bind")
+  static final class BindEvent extends SocketEvent {
+    @Label("Address")
+    @Description("The bound address, or the device name for device binds")
+    String address;
+
+    @Label("Device")
+    boolean device;
+  }
+
+  abstract static class TransferEvent extends SocketEvent {
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Packets")
+    int packets;
+  }
+
+  @Name("com.savarese.rocksaw.SocketRead")
+  @Label("Socket Read")
+  @Description("A sampled read or batch read")
+  static final class ReadEvent extends TransferEvent { }
+
+  @Name("com.savarese.rocksaw.SocketWrite")
+  @Label("Socket Write")
+  @Description("A sampled write or batch write")
+  static final class WriteEvent extends TransferEvent { }
+
+  @Name("com.savarese.rocksaw.SocketError")
+  @Label("Socket Error")
+  @StackTrace(true)
+  static final class ErrorEvent extends SocketEvent {
+    @Label("Operation")
+    String operation;
+
+    @Label("Error Number")
+    int errno;
+
+    @Label("Timeout")
+    boolean timeout;
+  }
+
+  @Name("com.savarese.rocksaw.SocketStatistics")
+  @Label("Socket Statistics")
+  @Period("1 s")
+  static final class StatisticsEvent extends SocketEvent {
+    @Label("Receive Queue")
+    @Description("SIOCINQ, the length of the next queued packet")
+    @DataAmount
+    long receiveQueue;
+
+    @Label("Send Queue")
+    @Description("SIOCOUTQ, the bytes not yet sent")
+    @DataAmount
+    long sendQueue;
+
+    @Label("Receive Buffer Used")
+    @DataAmount
+    long receiveBufferUsed;
+
+    @Label("Receive Buffer Size")
+    @DataAmount
+    long receiveBufferSize;
+
+    @Label("Drops")
+    @Description("Packets dropped since the socket was opened")
+    long drops;
+  }
+
+  @Name("com.savarese.rocksaw.ReceiveBufferResize")
+  @Label("Receive Buffer Resize")
+  static final class ResizeEvent extends SocketEvent {
+    @Label("Requested Size")
+    @DataAmount
+    int requested;
+
+    @Label("Granted Size")
+    @DataAmount
+    int granted;
+
+    @Label("Capped")
+    @Description("True if the kernel granted less than was requested")
+    boolean capped;
+
+    @Label("Drops")
+    @Description("Packets dropped since the previous sample")
+    long drops;
+  }
+
+  private static final int __DEFAULT_SAMPLE_INTERVAL = 64;
+
+  // Emits the events.  Loaded only once Flight Recorder is initialized.
+  private static final class Recorder {
+    private final JfrSocketTracer __tracer;
+    private final EventType __open, __close, __bind, __read, __write;
+    private final EventType __error, __resize;
+    private int __reads, __writes;
+
+    Recorder(JfrSocketTracer tracer) {
+      __tracer = tracer;
+      __open   = EventType.getEventType(OpenEvent.class);
+      __close  = EventType.getEventType(CloseEvent.class);
+      __bind   = EventType.getEventType(BindEvent.class);
+      __read   = EventType.getEventType(ReadEvent.class);
+      __write  = EventType.getEventType(WriteEvent.class);
+      __error  = EventType.getEventType(ErrorEvent.class);
+      __resize = EventType.getEventType(ResizeEvent.class);
+
+      FlightRecorder.addPeriodicEvent(StatisticsEvent.class, new Runnable() {
+          public void run() {
+            __emitStatistics();
+          }
+        });
+    }
+
+    private void __emitStatistics() {
+      for(RawSocket socket : __tracer.__openSockets()) {
+        SocketStatistics stats;
+
+        try {
+          stats = socket.getStatistics();
+        } catch(Exception e) {
+          // Closed since the list was taken.
+          continue;
+        }
+
+        StatisticsEvent event = new StatisticsEvent();
+
+        event.set(socket);
+        event.receiveQueue      = stats.getReceiveQueueLength();
+        event.sendQueue         = stats.getSendQueueLength();
+        event.receiveBufferUsed = stats.getReceiveBufferUsed();
+        event.receiveBufferSize = stats.getReceiveBufferSize();
+        event.drops             = stats.getDropCount();
+        event.commit();
+      }
+    }
+
+    void opened(RawSocket socket) {
+      if(__open.isEnabled()) {
+        OpenEvent event = new OpenEvent();
+
+        event.set(socket);
+        event.commit();
+      }
+    }
+
+    void closed(RawSocket socket) {
+      if(__close.isEnabled()) {
+        CloseEvent event = new CloseEvent();
+
+        event.set(socket);
+        event.commit();
+      }
+    }
+
+    void bound(RawSocket socket, String address, boolean device) {
+      if(__bind.isEnabled()) {
+        BindEvent event = new BindEvent();
+
+        event.set(socket);
+        event.address = address;
+        event.device  = device;
+        event.commit();
+      }
+    }
+
+    // The counters are updated without synchronization.  Lost updates
+    // only perturb the sampling.
+    Object beginRead() {
+      if(!__read.isEnabled() || (++__reads & __tracer.__sampleMask) != 0)
+        return null;
+
+      ReadEvent event = new ReadEvent();
+
+      event.begin();
+
+      return event;
+    }
+
+    Object beginWrite() {
+      if(!__write.isEnabled() || (++__writes & __tracer.__sampleMask) != 0)
+        return null;
+
+      WriteEvent event = new WriteEvent();
+
+      event.begin();
+
+      return event;
+    }
+
+    void end(Object token, RawSocket socket, long bytes, int packets) {
+      TransferEvent event = (TransferEvent)token;
+
+      event.end();
+
+      if(event.shouldCommit()) {
+        event.set(socket);
+        event.bytes   = bytes;
+        event.packets = packets;
+        event.commit();
+      }
+    }
+
+    void failed(RawSocket socket, String operation, int errno,
+                boolean timeout)
+    {
+      if(__error.isEnabled()) {
+        ErrorEvent event = new ErrorEvent();
+
+        event.set(socket);
+        event.operation = operation;
+        event.errno     = errno;
+        event.timeout   = timeout;
+        event.commit();
+      }
+    }
+
+    void resized(RawSocket socket, int requested, int granted,
+                 boolean capped, long drops)
+    {
+      if(__resize.isEnabled()) {
+        ResizeEvent event = new ResizeEvent();
+
+        event.set(socket);
+        event.requested = requested;
+        event.granted   = granted;
+        event.capped    = capped;
+        event.drops     = drops;
+        event.commit();
+      }
+    }
+  }
+
+  private final int __sampleMask;
+  private final Map<RawSocket, Boolean> __sockets;
+  private volatile Recorder __recorder;
+
+  JfrSocketTracer() {
+    int interval = Integer.getInteger("rocksaw.jfr.sampleInterval",
+                                      __DEFAULT_SAMPLE_INTERVAL);
+
+    __sampleMask =
+      Integer.highestOneBit(Math.max(1, Math.min(interval, 1 << 30))) - 1;
+    __sockets    =
+      Collections.synchronizedMap(new WeakHashMap<RawSocket, Boolean>());
+
+    // Called at once if Flight Recorder is already initialized.
+    FlightRecorder.addListener(new FlightRecorderListener() {
+        public void recorderInitialized(FlightRecorder recorder) {
+          __activate();
+        }
+      });
+  }
+
+  private synchronized void __activate() {
+    if(__recorder == null)
+      __recorder = new Recorder(this);
+  }
+
+  private List<RawSocket> __openSockets() {
+    synchronized(__sockets) {
+      return new ArrayList<RawSocket>(__sockets.keySet());
+    }
+  }
+
+  void opened(RawSocket socket) {
+    Recorder recorder = __recorder;
+
+    __sockets.put(socket, Boolean.TRUE);
+
+    if(recorder != null)
+      recorder.opened(socket);
+  }
+
+  void closed(RawSocket socket) {
+    Recorder recorder = __recorder;
+
+    __sockets.remove(socket);
+
+    if(recorder != null)
+      recorder.closed(socket);
+  }
+
+  void bound(RawSocket socket, String address, boolean device) {
+    Recorder recorder = __recorder;
+
+    if(recorder != null)
+      recorder.bound(socket, address, device);
+  }
+
+  Object beginRead() {
+    Recorder recorder = __recorder;
+
+    return (recorder != null ? recorder.beginRead() : null);
+  }
+
+  void endRead(Object token, RawSocket socket, long bytes, int packets) {
+    __recorder.end(token, socket, bytes, packets);
+  }
+
+  Object beginWrite() {
+    Recorder recorder = __recorder;
+
+    return (recorder != null ? recorder.beginWrite() : null);
+  }
+
+  void endWrite(Object token, RawSocket socket, long bytes, int packets) {
+    __recorder.end(token, socket, bytes, packets);
+  }
+
+  void failed(RawSocket socket, String operation, int errno,
+              boolean timeout)
+  {
+    Recorder recorder = __recorder;
+
+    if(recorder != null)
+      recorder.failed(socket, operation, errno, timeout);
+  }
+
+  void resized(RawSocket socket, int requested, int granted, boolean capped,
+               long drops)
+  {
+    Recorder recorder = __recorder;
+
+    if(recorder != null)
+      recorder.resized(socket, requested, granted, capped, drops);
+  }
+
+}
@@ -14,7 +14,16 @@
  * limitations under the License.
  */
 
+/*
+ * glibc hides most socket options (SO_BINDTODEVICE, SO_MARK, ...) when
+ * compiling with -ansi unless a feature test macro is defined.
+ */
+#if defined(__linux__) && !defined(_GNU_SOURCE)
+#  define _GNU_SOURCE
+#endif
+
 #include <errno.h>
+#include <stdlib.h>
 #include <string.h>
 
 #if defined(_WIN32)
@@ -30,10 +39,27 @@
 
 #  include <netdb.h>
 #  include <netinet/in.h>
+#  include <netinet/icmp6.h>
 #  include <sys/socket.h>
 #  include <unistd.h>
 #  include <sys/time.h>
 
+#  if defined(__linux__)
+#    include <sched.h>
+#  endif
+
+#  if defined(__linux__)
+#    include <linux/icmp.h>
+#    include <linux/sockios.h>
+#    include <linux/sock_diag.h>
+#    include <sys/ioctl.h>
+#  elif defined(__sun)
+#    include <sys/filio.h>
+#    include <sys/ioctl.h>
+#  else
+#    include <sys/ioctl.h>
+#  endif
+
 #  ifdef ROCKSAW_USE_POLL
 
 #    include <poll.h>
@@ -53,14 +79,17 @@ int main (void) { return 0; }
  * Utility functions.
  */
 static int setintsockopt(int socket, int level, int option, int value);
+#if defined(_WIN32)
 static int getintsockopt(int socket, int level, int option);
-static int settimeout(int socket, int option, int timeout);
-static int gettimeout(int socket, int option);
+#endif
+static int settimeout(int socket, int level, int option, int timeout);
+static int gettimeout(int socket, int level, int option);
 
 static int setintsockopt(int socket, int level, int option, int value) {
   return setsockopt(socket, level, option, (void*)&value, sizeof(value));
 }
 
+#if defined(_WIN32)
 static int getintsockopt(int socket, int level, int option) {
   int value  = -1;
   socklen_t size   = sizeof(value);
@@ -72,6 +101,7 @@ static int getintsockopt(int socket, int level, int option) {
 
   return value;
 }
+#endif
 
 static void milliseconds_to_timeval(int milliseconds, struct timeval *value) {
   int seconds = milliseconds / 1000;
@@ -84,31 +114,116 @@ static void milliseconds_to_timeval(int milliseconds, struct timeval *value) {
   value->tv_usec = milliseconds * 1000;
 }
 
-static int settimeout(int socket, int option, int timeout) {
+static int settimeout(int socket, int level, int option, int timeout) {
 #if defined(_WIN32)
-  return setintsockopt(socket, SOL_SOCKET, option, timeout);
+  return setintsockopt(socket, level, option, timeout);
 #else
   struct timeval value;
 
   milliseconds_to_timeval(timeout, &value);
 
-  return setsockopt(socket, SOL_SOCKET, option, (void*)&value, sizeof(value));
+  return setsockopt(socket, level, option, (void*)&value, sizeof(value));
 #endif
 }
 
-static int gettimeout(int socket, int option) {
+static int gettimeout(int socket, int level, int option) {
+#if defined(_WIN32)
+  return getintsockopt(socket, level, option);
+#else
   int result;
   struct timeval value;
   socklen_t size = sizeof(value);
 
-  result = getsockopt(socket, SOL_SOCKET, option, (void*)&value, &size);
+  result = getsockopt(socket, level, option, (void*)&value, &size);
 
   if(result < 0)
     return result;
 
   return (value.tv_sec * 1000 + value.tv_usec / 1000);
+#endif
 }
 
+/*
+ * Socket options that can be looked up by name with
+ * __lookupSocketOption.  Options the platform does not define are
+ * omitted, which RawSocketOptions reports as unsupported.
+ */
+struct sockopt_entry {
+  const char *name;
+  int level;
+  int option;
+};
+
+#define SOCKOPT_ENTRY(level, option) { #option, level, option }
+
+static const struct sockopt_entry sockopt_table[] = {
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_SNDBUF),
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_RCVBUF),
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_SNDTIMEO),
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_RCVTIMEO),
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_BROADCAST),
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_ERROR),
+#if defined(SO_SNDBUFFORCE)
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_SNDBUFFORCE),
+#endif
+#if defined(SO_RCVBUFFORCE)
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_RCVBUFFORCE),
+#endif
+#if defined(SO_MARK)
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_MARK),
+#endif
+#if defined(SO_PRIORITY)
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_PRIORITY),
+#endif
+#if defined(SO_BUSY_POLL)
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_BUSY_POLL),
+#endif
+#if defined(SO_PREFER_BUSY_POLL)
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_PREFER_BUSY_POLL),
+#endif
+#if defined(SO_BUSY_POLL_BUDGET)
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_BUSY_POLL_BUDGET),
+#endif
+#if defined(SO_INCOMING_CPU)
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_INCOMING_CPU),
+#endif
+#if defined(SO_RXQ_OVFL)
+  SOCKOPT_ENTRY(SOL_SOCKET, SO_RXQ_OVFL),
+#endif
+  SOCKOPT_ENTRY(IPPROTO_IP, IP_HDRINCL),
+  SOCKOPT_ENTRY(IPPROTO_IP, IP_TTL),
+  SOCKOPT_ENTRY(IPPROTO_IP, IP_TOS),
+#if defined(IP_MTU_DISCOVER)
+  SOCKOPT_ENTRY(IPPROTO_IP, IP_MTU_DISCOVER),
+#endif
+#if defined(IP_PKTINFO)
+  SOCKOPT_ENTRY(IPPROTO_IP, IP_PKTINFO),
+#endif
+#if defined(IP_RECVTTL)
+  SOCKOPT_ENTRY(IPPROTO_IP, IP_RECVTTL),
+#endif
+#if defined(IP_RECVTOS)
+  SOCKOPT_ENTRY(IPPROTO_IP, IP_RECVTOS),
+#endif
+  SOCKOPT_ENTRY(IPPROTO_IPV6, IPV6_UNICAST_HOPS),
+#if defined(IPV6_TCLASS)
+  SOCKOPT_ENTRY(IPPROTO_IPV6, IPV6_TCLASS),
+#endif
+#if defined(IPV6_MTU_DISCOVER)
+  SOCKOPT_ENTRY(IPPROTO_IPV6, IPV6_MTU_DISCOVER),
+#endif
+#if defined(IPV6_RECVPKTINFO)
+  SOCKOPT_ENTRY(IPPROTO_IPV6, IPV6_RECVPKTINFO),
+#endif
+#if defined(IPV6_RECVHOPLIMIT)
+  SOCKOPT_ENTRY(IPPROTO_IPV6, IPV6_RECVHOPLIMIT),
+#endif
+#if defined(IPV6_RECVTCLASS)
+  SOCKOPT_ENTRY(IPPROTO_IPV6, IPV6_RECVTCLASS),
+#endif
+  { NULL, 0, 0 }
+};
+
 static struct sockaddr*
 init_sockaddr_in(JNIEnv *env, struct sockaddr_in *sin, jbyteArray address) {
   jbyte *buf;
@@ -332,6 +447,56 @@ Java_com_savarese_rocksaw_net_RawSocket__1_1socket
   return socket(family, SOCK_RAW, protocol);
 }
 
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __datagramSocket
+ * Signature: (II)I
+ *
+ * Opens a Linux ICMP "ping" socket.  The kernel only allows it for
+ * groups in net.ipv4.ping_group_range.  Other platforms return an
+ * error so that the caller falls back to a raw socket.
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1datagramSocket
+(JNIEnv *env, jclass cls, jint family, jint protocol)
+{
+#if defined(__linux__)
+  return socket(family, SOCK_DGRAM, protocol);
+#else
+  errno = EPROTONOSUPPORT;
+  return -1;
+#endif
+}
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __getLocalPort
+ * Signature: (II)I
+ *
+ * Returns the port of the bound local address, which is the ICMP
+ * echo identifier of a ping socket.
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getLocalPort
+(JNIEnv *env, jclass cls, jint socket, jint family)
+{
+  union {
+    struct sockaddr_in sin;
+    struct sockaddr_in6 sin6;
+  } sin;
+  socklen_t socklen = sizeof(sin);
+
+  memset(&sin, 0, sizeof(sin));
+
+  if(getsockname(socket, (struct sockaddr *)&sin, &socklen) < 0)
+    return -1;
+
+  if(family == PF_INET6)
+    return ntohs(sin.sin6.sin6_port);
+
+  return ntohs(sin.sin.sin_port);
+}
+
 /*
  * Class:     com_savarese_rocksaw_net_RawSocket
  * Method:    __bind
@@ -465,15 +630,71 @@ Java_com_savarese_rocksaw_net_RawSocket__1_1close
   return close(socket);
 }
 
+/*
+ * MSG_DONTWAIT is not available on all platforms (e.g., Win32).  Where
+ * it is missing, non-blocking receives silently block.  RawSocket
+ * checks __isNonBlockingReceiveSupported before enabling spin receives.
+ */
+#if defined(MSG_DONTWAIT)
+#  define RECV_FLAGS(dontwait) ((dontwait) ? MSG_DONTWAIT : 0)
+#else
+#  define RECV_FLAGS(dontwait) 0
+#endif
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __isNonBlockingReceiveSupported
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1isNonBlockingReceiveSupported
+(JNIEnv *env, jclass cls)
+{
+#if defined(MSG_DONTWAIT)
+  return JNI_TRUE;
+#else
+  return JNI_FALSE;
+#endif
+}
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __setThreadAffinity
+ * Signature: (I)I
+ *
+ * Pins the calling thread to a CPU.  Returns a positive value if
+ * unsupported on this platform.
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1setThreadAffinity
+(JNIEnv *env, jclass cls, jint cpu)
+{
+#if defined(__linux__) && defined(CPU_SET)
+  cpu_set_t set;
+
+  if(cpu < 0 || cpu >= CPU_SETSIZE) {
+    errno = EINVAL;
+    return -1;
+  }
+
+  CPU_ZERO(&set);
+  CPU_SET(cpu, &set);
+
+  return sched_setaffinity(0, sizeof(set), &set);
+#else
+  return 1;
+#endif
+}
+
 /*
  * Class:     com_savarese_rocksaw_net_RawSocket
  * Method:    __recvfrom
- * Signature: (I[BIII)I
+ * Signature: (I[BIIIZ)I
  */
 JNIEXPORT jint JNICALL
 Java_com_savarese_rocksaw_net_RawSocket__1_1recvfrom1
 (JNIEnv *env, jclass cls, jint socket,
- jbyteArray data, jint offset, jint len, jint family)
+ jbyteArray data, jint offset, jint len, jint family, jboolean dontwait)
 {
   int result;
   jbyte *buf;
@@ -485,7 +706,7 @@ Java_com_savarese_rocksaw_net_RawSocket__1_1recvfrom1
 
   buf = (*env)->GetByteArrayElements(env, data, NULL);
 
-  result = recvfrom(socket, buf+offset, len, 0, NULL, NULL);
+  result = recvfrom(socket, buf+offset, len, RECV_FLAGS(dontwait), NULL, NULL);
 
   (*env)->ReleaseByteArrayElements(env, data, buf, 0);
 
@@ -500,12 +721,13 @@ Java_com_savarese_rocksaw_net_RawSocket__1_1recvfrom1
 /*
  * Class:     com_savarese_rocksaw_net_RawSocket
  * Method:    __recvfrom
- * Signature: (I[BIII[B)I
+ * Signature: (I[BIII[BZ)I
  */
 JNIEXPORT jint JNICALL
 Java_com_savarese_rocksaw_net_RawSocket__1_1recvfrom2
 (JNIEnv *env, jclass cls, jint socket,
- jbyteArray data, jint offset, jint len, jint family, jbyteArray address)
+ jbyteArray data, jint offset, jint len, jint family, jbyteArray address,
+ jboolean dontwait)
 {
   int result;
   jbyte *buf;
@@ -539,7 +761,8 @@ Java_com_savarese_rocksaw_net_RawSocket__1_1recvfrom2
 
   buf = (*env)->GetByteArrayElements(env, data, NULL);
 
-  result = recvfrom(socket, buf+offset, len, 0, saddr, &socklen);
+  result = recvfrom(socket, buf+offset, len, RECV_FLAGS(dontwait),
+                    saddr, &socklen);
 
   (*env)->ReleaseByteArrayElements(env, data, buf, 0);
 
@@ -555,6 +778,190 @@ Java_com_savarese_rocksaw_net_RawSocket__1_1recvfrom2
   return result;
 }
 
+/*
+ * Indices of the values returned by __recvmsg in its metadata array.
+ * These must match the constants in PacketInfo.
+ */
+#define PKTINFO_INTERFACE 0
+#define PKTINFO_TTL       1
+#define PKTINFO_TOS       2
+#define PKTINFO_HAS_DST   3
+#define PKTINFO_COUNT     4
+
+#if !defined(_WIN32)
+static void parse_control_messages(struct msghdr *msg, jint *meta,
+                                   void *destination)
+{
+  struct cmsghdr *cmsg;
+
+  for(cmsg = CMSG_FIRSTHDR(msg); cmsg != NULL; cmsg = CMSG_NXTHDR(msg, cmsg)) {
+    void *data = CMSG_DATA(cmsg);
+
+    if(cmsg->cmsg_level == IPPROTO_IP) {
+      switch(cmsg->cmsg_type) {
+#  if defined(IP_PKTINFO)
+      case IP_PKTINFO: {
+        struct in_pktinfo pktinfo;
+
+        memcpy(&pktinfo, data, sizeof(pktinfo));
+        meta[PKTINFO_INTERFACE] = pktinfo.ipi_ifindex;
+        memcpy(destination, &pktinfo.ipi_addr, sizeof(struct in_addr));
+        meta[PKTINFO_HAS_DST] = 1;
+        break;
+      }
+#  endif
+#  if defined(IP_RECVDSTADDR)
+      case IP_RECVDSTADDR:
+        memcpy(destination, data, sizeof(struct in_addr));
+        meta[PKTINFO_HAS_DST] = 1;
+        break;
+#  endif
+#  if defined(__linux__)
+      /* Linux delivers the TTL as an int with type IP_TTL. */
+      case IP_TTL: {
+        int ttl;
+
+        memcpy(&ttl, data, sizeof(ttl));
+        meta[PKTINFO_TTL] = ttl;
+        break;
+      }
+#  elif defined(IP_RECVTTL)
+      /* BSD delivers the TTL as a u_char with type IP_RECVTTL. */
+      case IP_RECVTTL:
+        meta[PKTINFO_TTL] = *(unsigned char *)data;
+        break;
+#  endif
+      case IP_TOS:
+        meta[PKTINFO_TOS] = *(unsigned char *)data;
+        break;
+      default:
+        break;
+      }
+    } else if(cmsg->cmsg_level == IPPROTO_IPV6) {
+      switch(cmsg->cmsg_type) {
+#  if defined(IPV6_PKTINFO)
+      case IPV6_PKTINFO: {
+        struct in6_pktinfo pktinfo;
+
+        memcpy(&pktinfo, data, sizeof(pktinfo));
+        meta[PKTINFO_INTERFACE] = pktinfo.ipi6_ifindex;
+        memcpy(destination, &pktinfo.ipi6_addr, sizeof(struct in6_addr));
+        meta[PKTINFO_HAS_DST] = 1;
+        break;
+      }
+#  endif
+#  if defined(IPV6_HOPLIMIT)
+      case IPV6_HOPLIMIT: {
+        int hoplimit;
+
+        memcpy(&hoplimit, data, sizeof(hoplimit));
+        meta[PKTINFO_TTL] = hoplimit;
+        break;
+      }
+#  endif
+#  if defined(IPV6_TCLASS)
+      case IPV6_TCLASS: {
+        int tclass;
+
+        memcpy(&tclass, data, sizeof(tclass));
+        meta[PKTINFO_TOS] = tclass;
+        break;
+      }
+#  endif
+      default:
+        break;
+      }
+    }
+  }
+}
+#endif
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __recvmsg
+ * Signature: (I[BIIIZ[B[B[I)I
+ *
+ * Receives a packet along with the ancillary data enabled by
+ * RawSocket.setReceivePacketInfo.  Values that were not delivered are
+ * left as -1 in the metadata array.
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1recvmsg
+(JNIEnv *env, jclass cls, jint socket, jbyteArray data, jint offset,
+ jint len, jint family, jboolean dontwait, jbyteArray source,
+ jbyteArray destination, jintArray metadata)
+{
+#if defined(_WIN32)
+  errno = WSAEOPNOTSUPP;
+  return -1;
+#else
+  int result;
+  jbyte *buf;
+  jint meta[PKTINFO_COUNT];
+  union {
+    struct sockaddr_in sin;
+    struct sockaddr_in6 sin6;
+  } sin;
+  union {
+    struct in_addr in;
+    struct in6_addr in6;
+  } dst;
+  union {
+    struct cmsghdr hdr;
+    char buf[256];
+  } control;
+  struct iovec iov;
+  struct msghdr msg;
+  void *addr;
+  size_t addrlen;
+
+  if(family == PF_INET) {
+    addr = &sin.sin.sin_addr;
+    addrlen = sizeof(sin.sin.sin_addr);
+  } else if(family == PF_INET6) {
+    addr = &sin.sin6.sin6_addr;
+    addrlen = sizeof(sin.sin6.sin6_addr);
+  } else {
+    errno = EINVAL;
+    return -1;
+  }
+
+  memset(&sin, 0, sizeof(sin));
+  memset(&dst, 0, sizeof(dst));
+  memset(&msg, 0, sizeof(msg));
+
+  meta[PKTINFO_INTERFACE] = -1;
+  meta[PKTINFO_TTL]       = -1;
+  meta[PKTINFO_TOS]       = -1;
+  meta[PKTINFO_HAS_DST]   = 0;
+
+  buf = (*env)->GetByteArrayElements(env, data, NULL);
+
+  iov.iov_base = buf + offset;
+  iov.iov_len  = len;
+  msg.msg_name = &sin;
+  msg.msg_namelen = sizeof(sin);
+  msg.msg_iov = &iov;
+  msg.msg_iovlen = 1;
+  msg.msg_control = control.buf;
+  msg.msg_controllen = sizeof(control.buf);
+
+  result = recvmsg(socket, &msg, RECV_FLAGS(dontwait));
+
+  (*env)->ReleaseByteArrayElements(env, data, buf, 0);
+
+  if(result >= 0) {
+    parse_control_messages(&msg, meta, &dst);
+
+    (*env)->SetByteArrayRegion(env, source, 0, addrlen, (jbyte *)addr);
+    (*env)->SetByteArrayRegion(env, destination, 0, addrlen, (jbyte *)&dst);
+    (*env)->SetIntArrayRegion(env, metadata, 0, PKTINFO_COUNT, meta);
+  }
+
+  return result;
+#endif
+}
+
 /*
  * Class:     com_savarese_rocksaw_net_RawSocket
  * Method:    __sendto
@@ -601,148 +1008,878 @@ Java_com_savarese_rocksaw_net_RawSocket__1_1sendto
 }
 
 
+/*
+ * sendmmsg is available on Linux 3.0 (glibc 2.14) and later, and
+ * recvmmsg on Linux 2.6.33 (glibc 2.12) and later.  Elsewhere RawSocket
+ * falls back to one sendto or recvfrom per packet.
+ */
+#if defined(__linux__)
+#  define HAVE_SENDMMSG
+#  define HAVE_RECVMMSG
+#  define SENDMMSG_BATCH 64
+#  include <poll.h>
+#endif
+
+#if defined(HAVE_SENDMMSG)
+/*
+ * Waits until a socket has room to send, for no longer than its
+ * SO_SNDTIMEO, which is what a blocking send would have done.
+ * Returns 0 when the socket is writable, or -1 with errno set to
+ * EAGAIN on timeout.
+ */
+static int await_writable(int socket) {
+  struct pollfd fds[1];
+  int result, timeout;
+
+  timeout = gettimeout(socket, SOL_SOCKET, SO_SNDTIMEO);
+
+  if(timeout < 0)
+    return -1;
+
+  fds[0].fd     = socket;
+  fds[0].events = POLLOUT;
+
+  do {
+    fds[0].revents = 0;
+    result = poll(fds, 1, (timeout == 0 ? -1 : timeout));
+  } while(result < 0 && errno == EINTR);
+
+  if(result == 0) {
+    errno = EAGAIN;
+    return -1;
+  }
+
+  return (result < 0 ? -1 : 0);
+}
+#endif
+
 /*
  * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __isErrorEAGAIN
+ * Method:    __isBatchWriteSupported
  * Signature: ()Z
  */
 JNIEXPORT jboolean JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1isErrorEAGAIN
+Java_com_savarese_rocksaw_net_RawSocket__1_1isBatchWriteSupported
 (JNIEnv *env, jclass cls)
 {
-#if defined(_WIN32)
-  return (errno == WSAETIMEDOUT);
+#if defined(HAVE_SENDMMSG)
+  return JNI_TRUE;
 #else
-  return (errno == EAGAIN || errno == EWOULDBLOCK);
+  return JNI_FALSE;
 #endif
 }
 
-
 /*
+ * Sends up to SENDMMSG_BATCH packets, starting with packet number
+ * first, in a single system call.  Packet i occupies
+ * data[offsets[i]..offsets[i]+lengths[i]) and is sent to the i-th 4
+ * or 16 byte address in addresses.  The packets are sent straight
+ * from data, which is pinned only around a non-blocking sendmmsg, and
+ * only the offsets, lengths, and addresses of the batch are copied.
+ * Returns the number of packets sent or -1 on error.
+ *
  * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __setIPHeaderInclude
- * Signature: (IZ)I
+ * Method:    __sendmmsg
+ * Signature: (I[B[I[IIII[BI)I
  */
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setIPHeaderInclude
-(JNIEnv *env, jclass cls, jint socket, jboolean on)
+Java_com_savarese_rocksaw_net_RawSocket__1_1sendmmsg
+(JNIEnv *env, jclass cls, jint socket, jbyteArray data, jintArray offsets,
+ jintArray lengths, jint first, jint count, jint family,
+ jbyteArray addresses, jint scope_id)
 {
-  return setintsockopt(socket, IPPROTO_IP, IP_HDRINCL, on);
-}
+#if defined(HAVE_SENDMMSG)
+  struct mmsghdr msgs[SENDMMSG_BATCH];
+  struct iovec iov[SENDMMSG_BATCH];
+  union {
+    struct sockaddr_in sin;
+    struct sockaddr_in6 sin6;
+  } sin[SENDMMSG_BATCH];
+  jint off[SENDMMSG_BATCH], len[SENDMMSG_BATCH];
+  jbyte addr[SENDMMSG_BATCH * 16];
+  jbyte *buf;
+  jsize size;
+  int i, result, error, addrlen;
+
+  if(family == PF_INET)
+    addrlen = 4;
+  else if(family == PF_INET6)
+    addrlen = 16;
+  else {
+    errno = EINVAL;
+    return -1;
+  }
 
+  if(count > SENDMMSG_BATCH)
+    count = SENDMMSG_BATCH;
 
-/*
- * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __getIPHeaderInclude
- * Signature: (I)I
- */
-JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getIPHeaderInclude
-(JNIEnv *env, jclass cls, jint socket)
-{
-  return getintsockopt(socket, IPPROTO_IP, IP_HDRINCL);
-}
+  if(count <= 0)
+    return 0;
 
+  (*env)->GetIntArrayRegion(env, offsets, first, count, off);
+  (*env)->GetIntArrayRegion(env, lengths, first, count, len);
+  (*env)->GetByteArrayRegion(env, addresses, first * addrlen,
+                             count * addrlen, addr);
 
-/*
- * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __setSendBufferSize
- * Signature: (II)I
- */
-JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setSendBufferSize
-(JNIEnv *env, jclass cls, jint socket, jint size)
-{
-  return setintsockopt(socket, SOL_SOCKET, SO_SNDBUF, size);
-}
+  size = (*env)->GetArrayLength(env, data);
 
+  memset(msgs, 0, sizeof(struct mmsghdr) * count);
 
-/*
- * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __getSendBufferSize
- * Signature: (I)I
- */
-JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getSendBufferSize
-(JNIEnv *env, jclass cls, jint socket)
-{
-  return getintsockopt(socket, SOL_SOCKET, SO_SNDBUF);
-}
+  for(i = 0; i < count; ++i) {
+    /* The arrays may have changed since RawSocket checked them. */
+    if(off[i] < 0 || len[i] < 0 || len[i] > size - off[i]) {
+      errno = EINVAL;
+      return -1;
+    }
 
+    iov[i].iov_len = len[i];
 
-/*
- * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __setReceiveBufferSize
- * Signature: (II)I
- */
-JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setReceiveBufferSize
-(JNIEnv *env, jclass cls, jint socket, jint size)
-{
-  return setintsockopt(socket, SOL_SOCKET, SO_RCVBUF, size);
-}
+    if(family == PF_INET) {
+      memset(&sin[i].sin, 0, sizeof(sin[i].sin));
+      sin[i].sin.sin_family = PF_INET;
+      memcpy(&sin[i].sin.sin_addr, addr + i * addrlen, addrlen);
+      msgs[i].msg_hdr.msg_namelen = sizeof(sin[i].sin);
+    } else {
+      memset(&sin[i].sin6, 0, sizeof(sin[i].sin6));
+      sin[i].sin6.sin6_family = PF_INET6;
+      sin[i].sin6.sin6_scope_id = scope_id;
+      memcpy(&sin[i].sin6.sin6_addr, addr + i * addrlen, addrlen);
+      msgs[i].msg_hdr.msg_namelen = sizeof(sin[i].sin6);
+    }
 
+    msgs[i].msg_hdr.msg_name   = &sin[i];
+    msgs[i].msg_hdr.msg_iov    = &iov[i];
+    msgs[i].msg_hdr.msg_iovlen = 1;
+  }
 
-/*
- * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __getReceiveBufferSize
- * Signature: (I)I
- */
-JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getReceiveBufferSize
-(JNIEnv *env, jclass cls, jint socket)
-{
-  return getintsockopt(socket, SOL_SOCKET, SO_RCVBUF);
+  /*
+   * Nothing may block while data is pinned, so the send never waits
+   * for buffer space; waiting is done with the array released.
+   */
+  for(;;) {
+    buf = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+
+    if(buf == NULL) {
+      errno = ENOMEM;
+      return -1;
+    }
+
+    for(i = 0; i < count; ++i)
+      iov[i].iov_base = buf + off[i];
+
+    result = sendmmsg(socket, msgs, count, MSG_DONTWAIT);
+    error  = errno;
+
+    (*env)->ReleasePrimitiveArrayCritical(env, data, buf, JNI_ABORT);
+    errno = error;
+
+    if(result >= 0 || (error != EAGAIN && error != EWOULDBLOCK))
+      return result;
+
+    if(await_writable(socket) < 0)
+      return -1;
+  }
+#else
+  errno = ENOSYS;
+  return -1;
+#endif
 }
 
 
 /*
  * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __setSendTimeout
- * Signature: (II)I
+ * Method:    __getDirectBufferAddress
+ * Signature: (Ljava/nio/ByteBuffer;)J
  */
-JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setSendTimeout
-(JNIEnv *env, jclass cls, jint socket, jint timeout)
+JNIEXPORT jlong JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getDirectBufferAddress
+(JNIEnv *env, jclass cls, jobject buffer)
 {
-  return settimeout(socket, SO_SNDTIMEO, timeout);
+  return (jlong)(size_t)(*env)->GetDirectBufferAddress(env, buffer);
 }
 
-
 /*
+ * Same as __recvfrom2, but receives into a direct buffer without
+ * copying.  The address may be null.
+ *
  * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __getSendTimeout
- * Signature: (I)I
+ * Method:    __recvfromDirect
+ * Signature: (ILjava/nio/ByteBuffer;III[BZ)I
  */
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getSendTimeout
-(JNIEnv *env, jclass cls, jint socket)
+Java_com_savarese_rocksaw_net_RawSocket__1_1recvfromDirect
+(JNIEnv *env, jclass cls, jint socket,
+ jobject data, jint offset, jint len, jint family, jbyteArray address,
+ jboolean dontwait)
+{
+  int result;
+  char *buf;
+  union {
+    struct sockaddr_in sin;
+    struct sockaddr_in6 sin6;
+  } sin;
+  struct sockaddr *saddr;
+  void *addr;
+  socklen_t socklen;
+  size_t addrlen;
+
+  if(family == PF_INET) {
+    socklen = sizeof(sin.sin);
+    addrlen = sizeof(sin.sin.sin_addr);
+    addr = &sin.sin.sin_addr;
+  } else if(family == PF_INET6) {
+    socklen = sizeof(sin.sin6);
+    addrlen = sizeof(sin.sin6.sin6_addr);
+    addr = &sin.sin6.sin6_addr;
+  } else {
+    errno = EINVAL;
+    return errno;
+  }
+
+  memset(&sin, 0, sizeof(sin));
+  saddr = (struct sockaddr *)&sin;
+  buf = (char *)(*env)->GetDirectBufferAddress(env, data);
+
+  if(address == NULL)
+    result = recvfrom(socket, buf+offset, len, RECV_FLAGS(dontwait),
+                      NULL, NULL);
+  else
+    result = recvfrom(socket, buf+offset, len, RECV_FLAGS(dontwait),
+                      saddr, &socklen);
+
+#if defined(_WIN32)
+  if(result < 0)
+    errno = WSAGetLastError();
+#endif
+
+  if(address != NULL)
+    (*env)->SetByteArrayRegion(env, address, 0, addrlen, (jbyte *)addr);
+
+  return result;
+}
+
+/*
+ * Same as __sendto, but sends from a direct buffer without copying.
+ *
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __sendtoDirect
+ * Signature: (ILjava/nio/ByteBuffer;III[BI)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1sendtoDirect
+(JNIEnv *env, jclass cls, jint socket,
+ jobject data, jint offset, jint len, jint family, jbyteArray address,
+ jint scope_id)
+{
+  int result;
+  char *buf;
+  union {
+    struct sockaddr_in sin;
+    struct sockaddr_in6 sin6;
+  } sin;
+  struct sockaddr *saddr;
+  socklen_t socklen;
+
+  if(family == PF_INET) {
+    socklen = sizeof(sin.sin);
+    saddr = init_sockaddr_in(env, &sin.sin, address);
+  } else if(family == PF_INET6) {
+    socklen = sizeof(sin.sin6);
+    saddr = init_sockaddr_in6(env, &sin.sin6, address, scope_id);
+  } else {
+    errno = EINVAL;
+    return errno;
+  }
+
+  buf = (char *)(*env)->GetDirectBufferAddress(env, data);
+
+  result = sendto(socket, buf+offset, len, 0, saddr, socklen);
+
+#if defined(_WIN32)
+  if(result < 0)
+    errno = WSAGetLastError();
+#endif
+
+  return result;
+}
+
+/*
+ * Same as __sendmmsg, but packet i is the lengths[i] bytes of native
+ * memory starting at pointers[i], so nothing is copied.  The caller
+ * must keep the direct buffers holding the packets reachable.  The
+ * addresses of the batch start at index first * 4 (or first * 16) of
+ * addresses.
+ *
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __sendmmsgDirect
+ * Signature: (I[J[IIII[BI)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1sendmmsgDirect
+(JNIEnv *env, jclass cls, jint socket, jlongArray pointers,
+ jintArray lengths, jint first, jint count, jint family,
+ jbyteArray addresses, jint scope_id)
+{
+#if defined(HAVE_SENDMMSG)
+  struct mmsghdr msgs[SENDMMSG_BATCH];
+  struct iovec iov[SENDMMSG_BATCH];
+  union {
+    struct sockaddr_in sin;
+    struct sockaddr_in6 sin6;
+  } sin[SENDMMSG_BATCH];
+  jlong ptr[SENDMMSG_BATCH];
+  jint len[SENDMMSG_BATCH];
+  jbyte addr[SENDMMSG_BATCH * 16];
+  int i, addrlen;
+
+  if(family == PF_INET)
+    addrlen = 4;
+  else if(family == PF_INET6)
+    addrlen = 16;
+  else {
+    errno = EINVAL;
+    return -1;
+  }
+
+  if(count > SENDMMSG_BATCH)
+    count = SENDMMSG_BATCH;
+
+  if(count <= 0)
+    return 0;
+
+  (*env)->GetLongArrayRegion(env, pointers, 0, count, ptr);
+  (*env)->GetIntArrayRegion(env, lengths, 0, count, len);
+  (*env)->GetByteArrayRegion(env, addresses, first * addrlen,
+                             count * addrlen, addr);
+
+  memset(msgs, 0, sizeof(struct mmsghdr) * count);
+
+  for(i = 0; i < count; ++i) {
+    iov[i].iov_base = (void *)(size_t)ptr[i];
+    iov[i].iov_len  = len[i];
+
+    if(family == PF_INET) {
+      memset(&sin[i].sin, 0, sizeof(sin[i].sin));
+      sin[i].sin.sin_family = PF_INET;
+      memcpy(&sin[i].sin.sin_addr, addr + i * addrlen, addrlen);
+      msgs[i].msg_hdr.msg_namelen = sizeof(sin[i].sin);
+    } else {
+      memset(&sin[i].sin6, 0, sizeof(sin[i].sin6));
+      sin[i].sin6.sin6_family = PF_INET6;
+      sin[i].sin6.sin6_scope_id = scope_id;
+      memcpy(&sin[i].sin6.sin6_addr, addr + i * addrlen, addrlen);
+      msgs[i].msg_hdr.msg_namelen = sizeof(sin[i].sin6);
+    }
+
+    msgs[i].msg_hdr.msg_name   = &sin[i];
+    msgs[i].msg_hdr.msg_iov    = &iov[i];
+    msgs[i].msg_hdr.msg_iovlen = 1;
+  }
+
+  return sendmmsg(socket, msgs, count, 0);
+#else
+  errno = ENOSYS;
+  return -1;
+#endif
+}
+
+
+/*
+ * Receives up to SENDMMSG_BATCH packets in a single system call.
+ * Packet i is stored in the lengths[i] bytes of native memory starting
+ * at pointers[i], and its length is stored back into lengths[i].  Its
+ * source address is stored at index (first + i) * 4 (or * 16) of
+ * addresses.  Unless dontwait is set, the call blocks until the first
+ * packet arrives and then returns whatever else is already queued.
+ * Returns the number of packets received or -1 on error.
+ *
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __recvmmsgDirect
+ * Signature: (I[J[IIII[BZ)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1recvmmsgDirect
+(JNIEnv *env, jclass cls, jint socket, jlongArray pointers,
+ jintArray lengths, jint first, jint count, jint family,
+ jbyteArray addresses, jboolean dontwait)
 {
-  return gettimeout(socket, SO_SNDTIMEO);
+#if defined(HAVE_RECVMMSG)
+  struct mmsghdr msgs[SENDMMSG_BATCH];
+  struct iovec iov[SENDMMSG_BATCH];
+  union {
+    struct sockaddr_in sin;
+    struct sockaddr_in6 sin6;
+  } sin[SENDMMSG_BATCH];
+  jlong ptr[SENDMMSG_BATCH];
+  jint len[SENDMMSG_BATCH];
+  jbyte addr[SENDMMSG_BATCH * 16];
+  int i, result, addrlen;
+
+  if(family == PF_INET)
+    addrlen = 4;
+  else if(family == PF_INET6)
+    addrlen = 16;
+  else {
+    errno = EINVAL;
+    return -1;
+  }
+
+  if(count > SENDMMSG_BATCH)
+    count = SENDMMSG_BATCH;
+
+  if(count <= 0)
+    return 0;
+
+  (*env)->GetLongArrayRegion(env, pointers, 0, count, ptr);
+  (*env)->GetIntArrayRegion(env, lengths, 0, count, len);
+
+  memset(msgs, 0, sizeof(struct mmsghdr) * count);
+  memset(sin, 0, sizeof(sin[0]) * count);
+
+  for(i = 0; i < count; ++i) {
+    iov[i].iov_base = (void *)(size_t)ptr[i];
+    iov[i].iov_len  = len[i];
+    msgs[i].msg_hdr.msg_name    = &sin[i];
+    msgs[i].msg_hdr.msg_namelen = sizeof(sin[i]);
+    msgs[i].msg_hdr.msg_iov     = &iov[i];
+    msgs[i].msg_hdr.msg_iovlen  = 1;
+  }
+
+  result = recvmmsg(socket, msgs, count,
+                    (dontwait ? MSG_DONTWAIT : MSG_WAITFORONE), NULL);
+
+  if(result <= 0)
+    return result;
+
+  for(i = 0; i < result; ++i) {
+    len[i] = msgs[i].msg_len;
+
+    if(family == PF_INET)
+      memcpy(addr + i * addrlen, &sin[i].sin.sin_addr, addrlen);
+    else
+      memcpy(addr + i * addrlen, &sin[i].sin6.sin6_addr, addrlen);
+  }
+
+  (*env)->SetIntArrayRegion(env, lengths, 0, result, len);
+  (*env)->SetByteArrayRegion(env, addresses, first * addrlen,
+                             result * addrlen, addr);
+
+  return result;
+#else
+  errno = ENOSYS;
+  return -1;
+#endif
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __isErrorEAGAIN
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1isErrorEAGAIN
+(JNIEnv *env, jclass cls)
+{
+#if defined(_WIN32)
+  return (errno == WSAETIMEDOUT);
+#else
+  return (errno == EAGAIN || errno == EWOULDBLOCK);
+#endif
 }
 
 
 /*
  * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __setReceiveTimeout
+ * Method:    __lookupSocketOption
+ * Signature: (Ljava/lang/String;[I)I
+ *
+ * Stores the level and option number of the named socket option in
+ * the array.  Returns zero if found, a positive value if the option is
+ * not defined on this platform.
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1lookupSocketOption
+(JNIEnv *env, jclass cls, jstring name, jintArray levelAndOption)
+{
+  const char *utf = (*env)->GetStringUTFChars(env, name, NULL);
+  const struct sockopt_entry *entry;
+  int result = 1;
+
+  for(entry = sockopt_table; entry->name != NULL; ++entry) {
+    if(strcmp(entry->name, utf) == 0) {
+      jint value[2];
+
+      value[0] = entry->level;
+      value[1] = entry->option;
+      (*env)->SetIntArrayRegion(env, levelAndOption, 0, 2, value);
+      result = 0;
+      break;
+    }
+  }
+
+  (*env)->ReleaseStringUTFChars(env, name, utf);
+
+  return result;
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __setIntOption
+ * Signature: (IIII)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1setIntOption
+(JNIEnv *env, jclass cls, jint socket, jint level, jint option, jint value)
+{
+  return setintsockopt(socket, level, option, value);
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __getIntOption
+ * Signature: (III[I)I
+ *
+ * The value is returned through the array because negative values are
+ * valid for some options (e.g., IPV6_UNICAST_HOPS).
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getIntOption
+(JNIEnv *env, jclass cls, jint socket, jint level, jint option,
+ jintArray value)
+{
+  int result;
+  int buf = 0;
+  socklen_t size = sizeof(buf);
+
+  result = getsockopt(socket, level, option, (void*)&buf, &size);
+
+  if(result == 0) {
+    jint v = buf;
+    (*env)->SetIntArrayRegion(env, value, 0, 1, &v);
+  }
+
+  return result;
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __setTimeoutOption
+ * Signature: (IIII)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1setTimeoutOption
+(JNIEnv *env, jclass cls, jint socket, jint level, jint option, jint timeout)
+{
+  return settimeout(socket, level, option, timeout);
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __getTimeoutOption
+ * Signature: (III)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getTimeoutOption
+(JNIEnv *env, jclass cls, jint socket, jint level, jint option)
+{
+  return gettimeout(socket, level, option);
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __setBytesOption
+ * Signature: (III[BI)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1setBytesOption
+(JNIEnv *env, jclass cls, jint socket, jint level, jint option,
+ jbyteArray value, jint length)
+{
+  int result;
+  jbyte *buf = (*env)->GetByteArrayElements(env, value, NULL);
+
+  result = setsockopt(socket, level, option, (void*)buf, length);
+
+  (*env)->ReleaseByteArrayElements(env, value, buf, JNI_ABORT);
+
+  return result;
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __getBytesOption
+ * Signature: (III[B)I
+ *
+ * Returns the length of the option value, or a negative value if an
+ * error occurs.
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getBytesOption
+(JNIEnv *env, jclass cls, jint socket, jint level, jint option,
+ jbyteArray value)
+{
+  int result;
+  socklen_t size = (*env)->GetArrayLength(env, value);
+  jbyte *buf = (*env)->GetByteArrayElements(env, value, NULL);
+
+  result = getsockopt(socket, level, option, (void*)buf, &size);
+
+  (*env)->ReleaseByteArrayElements(env, value, buf, 0);
+
+  if(result < 0)
+    return result;
+
+  return size;
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __setIPv6Checksum
  * Signature: (II)I
  */
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setReceiveTimeout
-(JNIEnv *env, jclass cls, jint socket, jint timeout)
+Java_com_savarese_rocksaw_net_RawSocket__1_1setIPv6Checksum
+(JNIEnv *env, jclass cls, jint socket, jint offset)
 {
-  return settimeout(socket, SO_RCVTIMEO, timeout);
+#if defined(IPV6_CHECKSUM)
+  return setintsockopt(socket, IPPROTO_IPV6, IPV6_CHECKSUM, offset);
+#else
+  return 1;
+#endif
 }
 
 
 /*
  * Class:     com_savarese_rocksaw_net_RawSocket
- * Method:    __getReceiveTimeout
- * Signature: (I)I
+ * Method:    __getIPv6Checksum
+ * Signature: (I[I)I
+ *
+ * The offset is returned through the array because -1 is a valid
+ * option value (checksumming disabled).
  */
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getReceiveTimeout
-(JNIEnv *env, jclass cls, jint socket)
+Java_com_savarese_rocksaw_net_RawSocket__1_1getIPv6Checksum
+(JNIEnv *env, jclass cls, jint socket, jintArray offset)
 {
-  return gettimeout(socket, SO_RCVTIMEO);
+#if defined(IPV6_CHECKSUM)
+  int value = -1;
+  socklen_t size = sizeof(value);
+  int result = getsockopt(socket, IPPROTO_IPV6, IPV6_CHECKSUM,
+                          (void*)&value, &size);
+
+  if(result == 0)
+    (*env)->SetIntArrayRegion(env, offset, 0, 1, (jint *)&value);
+
+  return result;
+#else
+  return 1;
+#endif
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __setICMPFilter
+ * Signature: (II)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1setICMPFilter
+(JNIEnv *env, jclass cls, jint socket, jint blocked)
+{
+#if defined(ICMP_FILTER)
+  struct icmp_filter filter;
+
+  filter.data = (unsigned int)blocked;
+
+  return setsockopt(socket, SOL_RAW, ICMP_FILTER, (void*)&filter,
+                    sizeof(filter));
+#else
+  return 1;
+#endif
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __getICMPFilter
+ * Signature: (I[I)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getICMPFilter
+(JNIEnv *env, jclass cls, jint socket, jintArray blocked)
+{
+#if defined(ICMP_FILTER)
+  struct icmp_filter filter;
+  socklen_t size = sizeof(filter);
+  int result = getsockopt(socket, SOL_RAW, ICMP_FILTER, (void*)&filter, &size);
+
+  if(result == 0) {
+    jint value = (jint)filter.data;
+    (*env)->SetIntArrayRegion(env, blocked, 0, 1, &value);
+  }
+
+  return result;
+#else
+  return 1;
+#endif
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __setICMPv6Filter
+ * Signature: (I[I)I
+ *
+ * The Java side always uses Linux semantics (a set bit blocks the
+ * type).  The ICMP6_FILTER_SET* macros are used so that the bitmap is
+ * translated correctly on systems with the inverse (BSD) convention.
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1setICMPv6Filter
+(JNIEnv *env, jclass cls, jint socket, jintArray blocked)
+{
+#if defined(ICMP6_FILTER)
+  struct icmp6_filter filter;
+  jint mask[8];
+  int type;
+
+  (*env)->GetIntArrayRegion(env, blocked, 0, 8, mask);
+
+  ICMP6_FILTER_SETPASSALL(&filter);
+
+  for(type = 0; type < 256; ++type) {
+    if(mask[type >> 5] & (1U << (type & 31)))
+      ICMP6_FILTER_SETBLOCK(type, &filter);
+  }
+
+  return setsockopt(socket, IPPROTO_ICMPV6, ICMP6_FILTER, (void*)&filter,
+                    sizeof(filter));
+#else
+  return 1;
+#endif
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __getICMPv6Filter
+ * Signature: (I[I)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getICMPv6Filter
+(JNIEnv *env, jclass cls, jint socket, jintArray blocked)
+{
+#if defined(ICMP6_FILTER)
+  struct icmp6_filter filter;
+  socklen_t size = sizeof(filter);
+  jint mask[8];
+  int type;
+  int result =
+    getsockopt(socket, IPPROTO_ICMPV6, ICMP6_FILTER, (void*)&filter, &size);
+
+  if(result == 0) {
+    memset(mask, 0, sizeof(mask));
+
+    for(type = 0; type < 256; ++type) {
+      if(ICMP6_FILTER_WILLBLOCK(type, &filter))
+        mask[type >> 5] |= (1U << (type & 31));
+    }
+
+    (*env)->SetIntArrayRegion(env, blocked, 0, 8, mask);
+  }
+
+  return result;
+#else
+  return 1;
+#endif
+}
+
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __getErrorNumber
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getErrorNumber
+(JNIEnv *env, jclass cls)
+{
+  return errno;
+}
+
+
+/* Indices into the array filled by __getSocketStatistics. */
+#define SOCKSTAT_RECEIVE_QUEUE 0
+#define SOCKSTAT_SEND_QUEUE    1
+#define SOCKSTAT_RECEIVE_USED  2
+#define SOCKSTAT_RECEIVE_SIZE  3
+#define SOCKSTAT_DROPS         4
+#define SOCKSTAT_COUNT         5
+
+/*
+ * Class:     com_savarese_rocksaw_net_RawSocket
+ * Method:    __getSocketStatistics
+ * Signature: (I[J)I
+ *
+ * Counters the platform cannot report are left at -1.
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getSocketStatistics
+(JNIEnv *env, jclass cls, jint socket, jlongArray values)
+{
+  jlong stats[SOCKSTAT_COUNT];
+  int i;
+#if defined(_WIN32)
+  u_long queued;
+#else
+  int queued;
+#endif
+#if defined(SO_MEMINFO)
+  __u32 meminfo[SK_MEMINFO_VARS];
+  socklen_t length = sizeof(meminfo);
+#endif
+
+  for(i = 0; i < SOCKSTAT_COUNT; ++i)
+    stats[i] = -1;
+
+#if defined(_WIN32)
+  if(ioctlsocket(socket, FIONREAD, &queued) == 0)
+    stats[SOCKSTAT_RECEIVE_QUEUE] = queued;
+#elif defined(SIOCINQ)
+  if(ioctl(socket, SIOCINQ, &queued) == 0)
+    stats[SOCKSTAT_RECEIVE_QUEUE] = queued;
+#elif defined(FIONREAD)
+  if(ioctl(socket, FIONREAD, &queued) == 0)
+    stats[SOCKSTAT_RECEIVE_QUEUE] = queued;
+#endif
+
+#if defined(SIOCOUTQ)
+  if(ioctl(socket, SIOCOUTQ, &queued) == 0)
+    stats[SOCKSTAT_SEND_QUEUE] = queued;
+#endif
+
+#if defined(SO_MEMINFO)
+  memset(meminfo, 0, sizeof(meminfo));
+
+  if(getsockopt(socket, SOL_SOCKET, SO_MEMINFO, meminfo, &length) == 0) {
+    stats[SOCKSTAT_RECEIVE_USED] = meminfo[SK_MEMINFO_RMEM_ALLOC];
+    stats[SOCKSTAT_RECEIVE_SIZE] = meminfo[SK_MEMINFO_RCVBUF];
+
+    if(length > SK_MEMINFO_DROPS * sizeof(__u32))
+      stats[SOCKSTAT_DROPS] = meminfo[SK_MEMINFO_DROPS];
+  } else if(errno == EBADF || errno == ENOTSOCK)
+    return -1;
+#endif
+
+  (*env)->SetLongArrayRegion(env, values, 0, SOCKSTAT_COUNT, stats);
+
+  return 0;
 }
@@ -51,6 +51,14 @@ JNIEXPORT jint JNICALL
 Java_com_savarese_rocksaw_net_RawSocket__1_1socket
 (JNIEnv *, jclass, jint, jint);
 
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1datagramSocket
+(JNIEnv *, jclass, jint, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getLocalPort
+(JNIEnv *, jclass, jint, jint);
+
 JNIEXPORT jint JNICALL
 Java_com_savarese_rocksaw_net_RawSocket__1_1bind
 (JNIEnv *, jclass, jint, jint, jbyteArray, jint);
@@ -71,61 +79,125 @@ JNIEXPORT jint JNICALL
 Java_com_savarese_rocksaw_net_RawSocket__1_1close
 (JNIEnv *, jclass, jint);
 
+JNIEXPORT jboolean JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1isNonBlockingReceiveSupported
+(JNIEnv *, jclass);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1setThreadAffinity
+(JNIEnv *, jclass, jint);
+
 JNIEXPORT jint JNICALL
 Java_com_savarese_rocksaw_net_RawSocket__1_1recvfrom1
-(JNIEnv *, jclass, jint, jbyteArray, jint, jint, jint);
+(JNIEnv *, jclass, jint, jbyteArray, jint, jint, jint, jboolean);
 
 JNIEXPORT jint JNICALL
 Java_com_savarese_rocksaw_net_RawSocket__1_1recvfrom2
-(JNIEnv *, jclass, jint, jbyteArray, jint, jint, jint, jbyteArray);
+(JNIEnv *, jclass, jint, jbyteArray, jint, jint, jint, jbyteArray, jboolean);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1recvmsg
+(JNIEnv *, jclass, jint, jbyteArray, jint, jint, jint, jboolean, jbyteArray,
+ jbyteArray, jintArray);
 
 JNIEXPORT jint JNICALL
 Java_com_savarese_rocksaw_net_RawSocket__1_1sendto
 (JNIEnv *, jclass, jint, jbyteArray, jint, jint, jint, jbyteArray, jint);
 
+JNIEXPORT jboolean JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1isBatchWriteSupported
+(JNIEnv *, jclass);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1sendmmsg
+(JNIEnv *, jclass, jint, jbyteArray, jintArray, jintArray, jint, jint, jint,
+ jbyteArray, jint);
+
+JNIEXPORT jlong JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getDirectBufferAddress
+(JNIEnv *, jclass, jobject);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1recvfromDirect
+(JNIEnv *, jclass, jint, jobject, jint, jint, jint, jbyteArray, jboolean);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1sendtoDirect
+(JNIEnv *, jclass, jint, jobject, jint, jint, jint, jbyteArray, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1sendmmsgDirect
+(JNIEnv *, jclass, jint, jlongArray, jintArray, jint, jint, jint,
+ jbyteArray, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1recvmmsgDirect
+(JNIEnv *, jclass, jint, jlongArray, jintArray, jint, jint, jint,
+ jbyteArray, jboolean);
+
 JNIEXPORT jboolean JNICALL
 Java_com_savarese_rocksaw_net_RawSocket__1_1isErrorEAGAIN
 (JNIEnv *, jclass);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setIPHeaderInclude
-(JNIEnv *, jclass, jint, jboolean);
+Java_com_savarese_rocksaw_net_RawSocket__1_1lookupSocketOption
+(JNIEnv *, jclass, jstring, jintArray);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getIPHeaderInclude
-(JNIEnv *env, jclass cls, jint socket);
+Java_com_savarese_rocksaw_net_RawSocket__1_1setIntOption
+(JNIEnv *, jclass, jint, jint, jint, jint);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setSendBufferSize
-(JNIEnv *, jclass, jint, jint);
+Java_com_savarese_rocksaw_net_RawSocket__1_1getIntOption
+(JNIEnv *, jclass, jint, jint, jint, jintArray);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getSendBufferSize
-(JNIEnv *, jclass, jint);
+Java_com_savarese_rocksaw_net_RawSocket__1_1setTimeoutOption
+(JNIEnv *, jclass, jint, jint, jint, jint);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setReceiveBufferSize
-(JNIEnv *, jclass, jint, jint);
+Java_com_savarese_rocksaw_net_RawSocket__1_1getTimeoutOption
+(JNIEnv *, jclass, jint, jint, jint);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getReceiveBufferSize
-(JNIEnv *, jclass, jint);
+Java_com_savarese_rocksaw_net_RawSocket__1_1setBytesOption
+(JNIEnv *, jclass, jint, jint, jint, jbyteArray, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getBytesOption
+(JNIEnv *, jclass, jint, jint, jint, jbyteArray);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setSendTimeout
+Java_com_savarese_rocksaw_net_RawSocket__1_1setIPv6Checksum
 (JNIEnv *, jclass, jint, jint);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getSendTimeout
-(JNIEnv *, jclass, jint);
+Java_com_savarese_rocksaw_net_RawSocket__1_1getIPv6Checksum
+(JNIEnv *, jclass, jint, jintArray);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1setReceiveTimeout
+Java_com_savarese_rocksaw_net_RawSocket__1_1setICMPFilter
 (JNIEnv *, jclass, jint, jint);
 
 JNIEXPORT jint JNICALL
-Java_com_savarese_rocksaw_net_RawSocket__1_1getReceiveTimeout
-(JNIEnv *, jclass, jint);
+Java_com_savarese_rocksaw_net_RawSocket__1_1getICMPFilter
+(JNIEnv *, jclass, jint, jintArray);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1setICMPv6Filter
+(JNIEnv *, jclass, jint, jintArray);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getICMPv6Filter
+(JNIEnv *, jclass, jint, jintArray);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getErrorNumber
+(JNIEnv *, jclass);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_RawSocket__1_1getSocketStatistics
+(JNIEnv *, jclass, jint, jlongArray);
 
 #ifdef __cplusplus
 }
@@ -0,0 +1,625 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * AF_XDP sockets for XdpSocket.  The descriptor rings are shared with
+ * the kernel, so producer and consumer indices are read with acquire
+ * and written with release semantics here rather than from Java.
+ * Everything compiles to stubs that fail with ENOSYS on platforms
+ * without AF_XDP.
+ */
+#if defined(__linux__) && !defined(_GNU_SOURCE)
+#  define _GNU_SOURCE
+#endif
+
+#include <errno.h>
+#include <stdlib.h>
+#include <string.h>
+
+#if defined(__linux__)
+#  include <stddef.h>
+#  include <net/if.h>
+#  include <poll.h>
+#  include <unistd.h>
+#  include <sys/mman.h>
+#  include <sys/socket.h>
+#  include <sys/syscall.h>
+#  include <linux/bpf.h>
+#  include <linux/if_link.h>
+#  include <linux/if_xdp.h>
+#  include <linux/version.h>
+/*
+ * BPF_XDP links, the link_create target_ifindex field and the full
+ * struct xdp_statistics first appeared in the 5.9 headers.  BPF_XDP is
+ * an enum constant, so the header version is the only way to test for
+ * them here.
+ */
+#  if defined(LINUX_VERSION_CODE) && defined(KERNEL_VERSION) && \
+      LINUX_VERSION_CODE >= KERNEL_VERSION(5,9,0) && defined(__NR_bpf)
+#    define ROCKSAW_HAVE_XDP
+#  endif
+#endif
+
+#include "XdpSocket.h"
+
+#if defined(ROCKSAW_HAVE_XDP)
+
+#  if !defined(AF_XDP)
+#    define AF_XDP 44
+#  endif
+#  if !defined(SOL_XDP)
+#    define SOL_XDP 283
+#  endif
+
+struct xdp_ring {
+  __u32 *producer;
+  __u32 *consumer;
+  __u32 *flags;
+  void *descs;
+  __u32 mask;
+  __u32 size;
+  void *map;
+  size_t length;
+};
+
+struct xdp_context {
+  int fd;
+  int map_fd;
+  int prog_fd;
+  int link_fd;
+  struct xdp_ring rx;
+  struct xdp_ring tx;
+  struct xdp_ring fill;
+  struct xdp_ring completion;
+};
+
+#  define XDP_CONTEXT(handle) ((struct xdp_context *)(size_t)(handle))
+#  define XDP_POINTER(p)     ((__u64)(size_t)(p))
+
+static long bpf(int cmd, union bpf_attr *attr) {
+  return syscall(__NR_bpf, cmd, attr, sizeof(*attr));
+}
+
+static int map_ring(int fd, struct xdp_ring *ring,
+                    struct xdp_ring_offset *offset, __u32 size,
+                    size_t desc_size, off_t pgoff)
+{
+  char *map;
+
+  ring->length = offset->desc + size * desc_size;
+  map = mmap(NULL, ring->length, PROT_READ | PROT_WRITE,
+             MAP_SHARED | MAP_POPULATE, fd, pgoff);
+
+  if(map == MAP_FAILED)
+    return -1;
+
+  ring->map      = map;
+  ring->producer = (__u32 *)(map + offset->producer);
+  ring->consumer = (__u32 *)(map + offset->consumer);
+  ring->flags    = (__u32 *)(map + offset->flags);
+  ring->descs    = map + offset->desc;
+  ring->mask     = size - 1;
+  ring->size     = size;
+
+  return 0;
+}
+
+static void unmap_ring(struct xdp_ring *ring) {
+  if(ring->map != NULL)
+    munmap(ring->map, ring->length);
+  ring->map = NULL;
+}
+
+/* Releases everything, preserving errno for the caller. */
+static void close_context(struct xdp_context *xsk) {
+  int error = errno;
+
+  unmap_ring(&xsk->rx);
+  unmap_ring(&xsk->tx);
+  unmap_ring(&xsk->fill);
+  unmap_ring(&xsk->completion);
+
+  /* Closing the link detaches the program from the device. */
+  if(xsk->link_fd >= 0)
+    close(xsk->link_fd);
+  if(xsk->prog_fd >= 0)
+    close(xsk->prog_fd);
+  if(xsk->map_fd >= 0)
+    close(xsk->map_fd);
+  if(xsk->fd >= 0)
+    close(xsk->fd);
+
+  free(xsk);
+  errno = error;
+}
+
+/* Number of entries a producer may add. */
+static __u32 ring_free(struct xdp_ring *ring) {
+  return ring->size -
+    (*ring->producer - __atomic_load_n(ring->consumer, __ATOMIC_ACQUIRE));
+}
+
+/* Number of entries a consumer may take. */
+static __u32 ring_available(struct xdp_ring *ring) {
+  return __atomic_load_n(ring->producer, __ATOMIC_ACQUIRE) - *ring->consumer;
+}
+
+/*
+ * Loads the default program, which redirects every packet to the
+ * socket bound to its receive queue and passes packets arriving on
+ * other queues to the network stack:
+ *
+ *   r2 = ctx->rx_queue_index
+ *   r1 = map
+ *   r3 = XDP_PASS
+ *   return bpf_redirect_map(r1, r2, r3)
+ *
+ * and attaches it to the device with a BPF link, which detaches it
+ * again when the link is closed.
+ */
+static int attach_program(struct xdp_context *xsk, unsigned int ifindex,
+                          __u32 queue, int skb)
+{
+  static const char license[] = "Apache-2.0";
+  union bpf_attr attr;
+  struct bpf_insn insns[6];
+  __u32 key   = queue;
+  __u32 value = xsk->fd;
+
+  memset(&attr, 0, sizeof(attr));
+  attr.map_type    = BPF_MAP_TYPE_XSKMAP;
+  attr.key_size    = sizeof(key);
+  attr.value_size  = sizeof(value);
+  attr.max_entries = queue + 1;
+
+  if((xsk->map_fd = bpf(BPF_MAP_CREATE, &attr)) < 0)
+    return -1;
+
+  memset(&attr, 0, sizeof(attr));
+  attr.map_fd = xsk->map_fd;
+  attr.key    = XDP_POINTER(&key);
+  attr.value  = XDP_POINTER(&value);
+  attr.flags  = BPF_ANY;
+
+  if(bpf(BPF_MAP_UPDATE_ELEM, &attr) < 0)
+    return -1;
+
+  memset(insns, 0, sizeof(insns));
+  insns[0].code    = BPF_LDX | BPF_MEM | BPF_W;
+  insns[0].dst_reg = BPF_REG_2;
+  insns[0].src_reg = BPF_REG_1;
+  insns[0].off     = offsetof(struct xdp_md, rx_queue_index);
+  /* A 64-bit immediate load spans insns[1] and insns[2]. */
+  insns[1].code    = BPF_LD | BPF_IMM | BPF_DW;
+  insns[1].dst_reg = BPF_REG_1;
+  insns[1].src_reg = BPF_PSEUDO_MAP_FD;
+  insns[1].imm     = xsk->map_fd;
+  insns[3].code    = BPF_ALU64 | BPF_MOV | BPF_K;
+  insns[3].dst_reg = BPF_REG_3;
+  insns[3].imm     = XDP_PASS;
+  insns[4].code    = BPF_JMP | BPF_CALL;
+  insns[4].imm     = BPF_FUNC_redirect_map;
+  insns[5].code    = BPF_JMP | BPF_EXIT;
+
+  memset(&attr, 0, sizeof(attr));
+  attr.prog_type = BPF_PROG_TYPE_XDP;
+  attr.insns     = XDP_POINTER(insns);
+  attr.insn_cnt  = sizeof(insns) / sizeof(insns[0]);
+  attr.license   = XDP_POINTER(license);
+
+  if((xsk->prog_fd = bpf(BPF_PROG_LOAD, &attr)) < 0)
+    return -1;
+
+  memset(&attr, 0, sizeof(attr));
+  attr.link_create.prog_fd        = xsk->prog_fd;
+  attr.link_create.target_ifindex = ifindex;
+  attr.link_create.attach_type    = BPF_XDP;
+  attr.link_create.flags = (skb ? XDP_FLAGS_SKB_MODE : XDP_FLAGS_DRV_MODE);
+
+  if((xsk->link_fd = bpf(BPF_LINK_CREATE, &attr)) < 0)
+    return -1;
+
+  return 0;
+}
+
+#endif
+
+/*
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __isSupported
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1isSupported
+(JNIEnv *env, jclass cls)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  return JNI_TRUE;
+#else
+  return JNI_FALSE;
+#endif
+}
+
+/*
+ * Creates an AF_XDP socket, registers the UMEM area (a page-aligned
+ * direct buffer), and maps the four rings.  Returns a handle, or zero
+ * on error.
+ *
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __open
+ * Signature: (Ljava/nio/ByteBuffer;III)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1open
+(JNIEnv *env, jclass cls, jobject umem, jint frameSize, jint frameCount,
+ jint ringSize)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  struct xdp_context *xsk;
+  struct xdp_umem_reg reg;
+  struct xdp_mmap_offsets off;
+  socklen_t optlen = sizeof(off);
+  int size = ringSize;
+
+  if((xsk = (struct xdp_context *)calloc(1, sizeof(*xsk))) == NULL) {
+    errno = ENOMEM;
+    return 0;
+  }
+
+  xsk->map_fd = xsk->prog_fd = xsk->link_fd = -1;
+
+  if((xsk->fd = socket(AF_XDP, SOCK_RAW, 0)) < 0)
+    goto fail;
+
+  memset(&reg, 0, sizeof(reg));
+  reg.addr       = XDP_POINTER((*env)->GetDirectBufferAddress(env, umem));
+  reg.len        = (__u64)frameSize * frameCount;
+  reg.chunk_size = frameSize;
+
+  if(setsockopt(xsk->fd, SOL_XDP, XDP_UMEM_REG, &reg, sizeof(reg)) < 0 ||
+     setsockopt(xsk->fd, SOL_XDP, XDP_UMEM_FILL_RING, &size,
+                sizeof(size)) < 0 ||
+     setsockopt(xsk->fd, SOL_XDP, XDP_UMEM_COMPLETION_RING, &size,
+                sizeof(size)) < 0 ||
+     setsockopt(xsk->fd, SOL_XDP, XDP_RX_RING, &size, sizeof(size)) < 0 ||
+     setsockopt(xsk->fd, SOL_XDP, XDP_TX_RING, &size, sizeof(size)) < 0 ||
+     getsockopt(xsk->fd, SOL_XDP, XDP_MMAP_OFFSETS, &off, &optlen) < 0)
+    goto fail;
+
+  if(map_ring(xsk->fd, &xsk->fill, &off.fr, size, sizeof(__u64),
+              XDP_UMEM_PGOFF_FILL_RING) < 0 ||
+     map_ring(xsk->fd, &xsk->completion, &off.cr, size, sizeof(__u64),
+              XDP_UMEM_PGOFF_COMPLETION_RING) < 0 ||
+     map_ring(xsk->fd, &xsk->rx, &off.rx, size, sizeof(struct xdp_desc),
+              XDP_PGOFF_RX_RING) < 0 ||
+     map_ring(xsk->fd, &xsk->tx, &off.tx, size, sizeof(struct xdp_desc),
+              XDP_PGOFF_TX_RING) < 0)
+    goto fail;
+
+  return (jlong)(size_t)xsk;
+
+ fail:
+  close_context(xsk);
+  return 0;
+#else
+  errno = ENOSYS;
+  return 0;
+#endif
+}
+
+/*
+ * Binds the socket to a device queue and, if attach is true, attaches
+ * the default redirect program in generic (skb) or driver mode.
+ *
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __bind
+ * Signature: (JLjava/lang/String;IZZ)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1bind
+(JNIEnv *env, jclass cls, jlong handle, jstring device, jint queue,
+ jboolean skb, jboolean attach)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  struct xdp_context *xsk = XDP_CONTEXT(handle);
+  struct sockaddr_xdp sxdp;
+  const char *utf = (*env)->GetStringUTFChars(env, device, NULL);
+  unsigned int ifindex = if_nametoindex(utf);
+
+  (*env)->ReleaseStringUTFChars(env, device, utf);
+
+  if(ifindex == 0)
+    return -1;
+
+  memset(&sxdp, 0, sizeof(sxdp));
+  sxdp.sxdp_family   = AF_XDP;
+  sxdp.sxdp_ifindex  = ifindex;
+  sxdp.sxdp_queue_id = queue;
+  sxdp.sxdp_flags    = XDP_USE_NEED_WAKEUP | (skb ? XDP_COPY : 0);
+
+  if(bind(xsk->fd, (struct sockaddr *)&sxdp, sizeof(sxdp)) < 0)
+    return -1;
+
+  if(attach)
+    return attach_program(xsk, ifindex, queue, skb);
+
+  return 0;
+#else
+  errno = ENOSYS;
+  return -1;
+#endif
+}
+
+/*
+ * Takes up to count descriptors from the RX ring.  If none are ready
+ * and the kernel has run out of fill ring frames, wakes it up.
+ *
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __receive
+ * Signature: (J[J[III)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1receive
+(JNIEnv *env, jclass cls, jlong handle, jlongArray addresses,
+ jintArray lengths, jint offset, jint count)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  struct xdp_context *xsk = XDP_CONTEXT(handle);
+  struct xdp_ring *rx     = &xsk->rx;
+  struct xdp_desc *descs  = (struct xdp_desc *)rx->descs;
+  __u32 consumer          = *rx->consumer;
+  __u32 n                 = ring_available(rx);
+  jlong *addrs;
+  jint *lens;
+  __u32 i;
+
+  if(n > (__u32)count)
+    n = count;
+
+  if(n == 0) {
+    if(*xsk->fill.flags & XDP_RING_NEED_WAKEUP)
+      recvfrom(xsk->fd, NULL, 0, MSG_DONTWAIT, NULL, NULL);
+    return 0;
+  }
+
+  addrs = (*env)->GetPrimitiveArrayCritical(env, addresses, NULL);
+  lens  = (*env)->GetPrimitiveArrayCritical(env, lengths, NULL);
+
+  for(i = 0; i < n; ++i) {
+    struct xdp_desc *desc = &descs[(consumer + i) & rx->mask];
+
+    addrs[offset + i] = desc->addr;
+    lens[offset + i]  = desc->len;
+  }
+
+  (*env)->ReleasePrimitiveArrayCritical(env, lengths, lens, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, addresses, addrs, 0);
+  __atomic_store_n(rx->consumer, consumer + n, __ATOMIC_RELEASE);
+
+  return n;
+#else
+  return 0;
+#endif
+}
+
+/*
+ * Gives up to count frames to the kernel through the fill ring.
+ *
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __fill
+ * Signature: (J[JII)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1fill
+(JNIEnv *env, jclass cls, jlong handle, jlongArray addresses, jint offset,
+ jint count)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  struct xdp_ring *fill = &XDP_CONTEXT(handle)->fill;
+  __u64 *descs          = (__u64 *)fill->descs;
+  __u32 producer        = *fill->producer;
+  __u32 n               = ring_free(fill);
+  jlong *addrs;
+  __u32 i;
+
+  if(n > (__u32)count)
+    n = count;
+
+  addrs = (*env)->GetPrimitiveArrayCritical(env, addresses, NULL);
+
+  for(i = 0; i < n; ++i)
+    descs[(producer + i) & fill->mask] = addrs[offset + i];
+
+  (*env)->ReleasePrimitiveArrayCritical(env, addresses, addrs, JNI_ABORT);
+  __atomic_store_n(fill->producer, producer + n, __ATOMIC_RELEASE);
+
+  return n;
+#else
+  return 0;
+#endif
+}
+
+/*
+ * Queues up to count frames on the TX ring and kicks the kernel if it
+ * asks to be woken up.
+ *
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __transmit
+ * Signature: (J[J[III)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1transmit
+(JNIEnv *env, jclass cls, jlong handle, jlongArray addresses,
+ jintArray lengths, jint offset, jint count)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  struct xdp_context *xsk = XDP_CONTEXT(handle);
+  struct xdp_ring *tx     = &xsk->tx;
+  struct xdp_desc *descs  = (struct xdp_desc *)tx->descs;
+  __u32 producer          = *tx->producer;
+  __u32 n                 = ring_free(tx);
+  jlong *addrs;
+  jint *lens;
+  __u32 i;
+
+  if(n > (__u32)count)
+    n = count;
+
+  addrs = (*env)->GetPrimitiveArrayCritical(env, addresses, NULL);
+  lens  = (*env)->GetPrimitiveArrayCritical(env, lengths, NULL);
+
+  for(i = 0; i < n; ++i) {
+    struct xdp_desc *desc = &descs[(producer + i) & tx->mask];
+
+    desc->addr    = addrs[offset + i];
+    desc->len     = lens[offset + i];
+    desc->options = 0;
+  }
+
+  (*env)->ReleasePrimitiveArrayCritical(env, lengths, lens, JNI_ABORT);
+  (*env)->ReleasePrimitiveArrayCritical(env, addresses, addrs, JNI_ABORT);
+  __atomic_store_n(tx->producer, producer + n, __ATOMIC_RELEASE);
+
+  /* EAGAIN, EBUSY and ENOBUFS only mean the kernel is still busy. */
+  if(__atomic_load_n(tx->flags, __ATOMIC_RELAXED) & XDP_RING_NEED_WAKEUP)
+    sendto(xsk->fd, NULL, 0, MSG_DONTWAIT, NULL, 0);
+
+  return n;
+#else
+  return 0;
+#endif
+}
+
+/*
+ * Takes up to count transmitted frames from the completion ring.
+ *
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __complete
+ * Signature: (J[JII)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1complete
+(JNIEnv *env, jclass cls, jlong handle, jlongArray addresses, jint offset,
+ jint count)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  struct xdp_ring *completion = &XDP_CONTEXT(handle)->completion;
+  __u64 *descs                = (__u64 *)completion->descs;
+  __u32 consumer              = *completion->consumer;
+  __u32 n                     = ring_available(completion);
+  jlong *addrs;
+  __u32 i;
+
+  if(n > (__u32)count)
+    n = count;
+
+  if(n == 0)
+    return 0;
+
+  addrs = (*env)->GetPrimitiveArrayCritical(env, addresses, NULL);
+
+  for(i = 0; i < n; ++i)
+    addrs[offset + i] = descs[(consumer + i) & completion->mask];
+
+  (*env)->ReleasePrimitiveArrayCritical(env, addresses, addrs, 0);
+  __atomic_store_n(completion->consumer, consumer + n, __ATOMIC_RELEASE);
+
+  return n;
+#else
+  return 0;
+#endif
+}
+
+/*
+ * Waits for the RX ring to become non-empty.  Returns a positive
+ * value if it did, zero on timeout, and -1 on error.
+ *
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __poll
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1poll
+(JNIEnv *env, jclass cls, jlong handle, jint milliseconds)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  struct xdp_context *xsk = XDP_CONTEXT(handle);
+  struct pollfd fds[1];
+
+  if(ring_available(&xsk->rx) > 0)
+    return 1;
+
+  fds[0].fd      = xsk->fd;
+  fds[0].events  = POLLIN;
+  fds[0].revents = 0;
+
+  return poll(fds, 1, milliseconds);
+#else
+  errno = ENOSYS;
+  return -1;
+#endif
+}
+
+/*
+ * Stores the XDP_STATISTICS counters: rx_dropped, rx_invalid_descs,
+ * tx_invalid_descs, rx_ring_full, rx_fill_ring_empty_descs, and
+ * tx_ring_empty_descs.  Counters the kernel does not report are zero.
+ *
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __getStatistics
+ * Signature: (J[J)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1getStatistics
+(JNIEnv *env, jclass cls, jlong handle, jlongArray values)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  struct xdp_statistics stats;
+  socklen_t optlen = sizeof(stats);
+  jlong counters[6];
+
+  memset(&stats, 0, sizeof(stats));
+
+  if(getsockopt(XDP_CONTEXT(handle)->fd, SOL_XDP, XDP_STATISTICS, &stats,
+                &optlen) < 0)
+    return -1;
+
+  counters[0] = stats.rx_dropped;
+  counters[1] = stats.rx_invalid_descs;
+  counters[2] = stats.tx_invalid_descs;
+  counters[3] = stats.rx_ring_full;
+  counters[4] = stats.rx_fill_ring_empty_descs;
+  counters[5] = stats.tx_ring_empty_descs;
+  (*env)->SetLongArrayRegion(env, values, 0, 6, counters);
+
+  return 0;
+#else
+  errno = ENOSYS;
+  return -1;
+#endif
+}
+
+/*
+ * Class:     com_savarese_rocksaw_net_XdpSocket
+ * Method:    __close
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1close
+(JNIEnv *env, jclass cls, jlong handle)
+{
+#if defined(ROCKSAW_HAVE_XDP)
+  close_context(XDP_CONTEXT(handle));
+#endif
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef __ROCKSAW_XDP_SOCKET_H
+#define __ROCKSAW_XDP_SOCKET_H
+
+#include <jni.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+JNIEXPORT jboolean JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1isSupported
+(JNIEnv *, jclass);
+
+JNIEXPORT jlong JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1open
+(JNIEnv *, jclass, jobject, jint, jint, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1bind
+(JNIEnv *, jclass, jlong, jstring, jint, jboolean, jboolean);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1receive
+(JNIEnv *, jclass, jlong, jlongArray, jintArray, jint, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1fill
+(JNIEnv *, jclass, jlong, jlongArray, jint, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1transmit
+(JNIEnv *, jclass, jlong, jlongArray, jintArray, jint, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1complete
+(JNIEnv *, jclass, jlong, jlongArray, jint, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1poll
+(JNIEnv *, jclass, jlong, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1getStatistics
+(JNIEnv *, jclass, jlong, jlongArray);
+
+JNIEXPORT void JNICALL
+Java_com_savarese_rocksaw_net_XdpSocket__1_1close
+(JNIEnv *, jclass, jlong);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
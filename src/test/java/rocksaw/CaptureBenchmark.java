@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.PacketBuffer;
+import com.savarese.rocksaw.net.PacketBufferPool;
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.pcap.PcapNgWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+
+/**
+ * <p>
+ * Measures the cost {@link PcapNgWriter} adds to receiving. Batches of
+ * ICMP echo requests are sent to the loopback interface and only the
+ * time spent reading the replies is counted, with and without a capture
+ * sink installed, both for reads into a byte array and for batch reads
+ * into pooled buffers. The raw cost of recording a packet is also
+ * reported.
+ * </p>
+ * <p>
+ * This is not run as part of the test suite and requires root. Run it with:
+ * </p>
+ * <pre>
+ * mvn test-compile
+ * java -Djava.library.path=target/native -cp target/classes:target/test-classes rocksaw.CaptureBenchmark [directory]
+ * </pre>
+ */
+public class CaptureBenchmark {
+  private static final int BATCH = 128;
+  private static final int BATCHES = 4000;
+  private static final int ROUNDS = 5;
+
+  private static double receive(final RawSocket socket, final PcapNgWriter writer) throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final byte[] request = new byte[64];
+    final byte[] reply = new byte[128];
+    long nanos = 0;
+
+    socket.setCaptureSink(writer);
+    request[0] = 8;
+    InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+
+    for (int b = 0; b < BATCHES; ++b) {
+      for (int i = 0; i < BATCH; ++i) {
+        socket.write(localhost, request);
+      }
+
+      final long start = System.nanoTime();
+
+      for (int i = 0; i < BATCH; ++i) {
+        socket.read(reply);
+      }
+
+      nanos += System.nanoTime() - start;
+    }
+
+    socket.setCaptureSink(null);
+
+    return (double) nanos / (BATCH * BATCHES);
+  }
+
+  private static double receivePooled(final RawSocket socket, final PcapNgWriter writer,
+                                      final PacketBuffer[] packets) throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final byte[] request = new byte[64];
+    final byte[] addresses = new byte[4 * BATCH];
+    long nanos = 0;
+
+    socket.setCaptureSink(writer);
+    request[0] = 8;
+    InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+
+    for (int b = 0; b < BATCHES; ++b) {
+      for (int i = 0; i < BATCH; ++i) {
+        socket.write(localhost, request);
+        packets[i].buffer().clear();
+      }
+
+      final long start = System.nanoTime();
+
+      for (int read = 0; read < BATCH; ) {
+        read += socket.read(packets, addresses, read, BATCH - read);
+      }
+
+      nanos += System.nanoTime() - start;
+    }
+
+    socket.setCaptureSink(null);
+
+    return (double) nanos / (BATCH * BATCHES);
+  }
+
+  public static void main(final String[] args) throws IOException {
+    final File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+    final String prefix = new File(directory, "capture-benchmark").getPath();
+    final RawSocket socket = new RawSocket();
+
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+    socket.setICMPFilter(~1);
+    socket.setReceiveTimeout(1000);
+
+    try {
+      final PacketBufferPool pool = new PacketBufferPool();
+      final PacketBuffer[] packets = new PacketBuffer[BATCH];
+
+      for (int i = 0; i < BATCH; ++i) {
+        packets[i] = pool.acquire();
+      }
+
+      System.out.printf("%-8s %-8s %12s %12s %10s%n", "round", "read", "plain ns", "capture ns", "overhead");
+
+      for (int round = 0; round < ROUNDS; ++round) {
+        for (final boolean pooled : new boolean[] { false, true }) {
+          final PcapNgWriter writer = new PcapNgWriter(prefix, 64L << 20, 2, 1500);
+          final double plain = (pooled ? receivePooled(socket, null, packets) : receive(socket, null));
+          final double captured = (pooled ? receivePooled(socket, writer, packets) : receive(socket, writer));
+
+          writer.close();
+          System.out.printf("%-8d %-8s %12.1f %12.1f %9.1f%%%n", round, (pooled ? "pooled" : "array"), plain,
+                            captured, 100.0 * (captured - plain) / plain);
+
+          for (final File file : writer.getFiles()) {
+            file.delete();
+          }
+        }
+      }
+    } finally {
+      socket.close();
+    }
+
+    final PcapNgWriter writer = new PcapNgWriter(prefix, 64L << 20, 2, 1500);
+    final byte[] packet = new byte[84];
+    final int count = 20000000;
+    final long start = System.nanoTime();
+
+    for (int i = 0; i < count; ++i) {
+      writer.write(i, packet, 0, packet.length);
+    }
+
+    final double nanos = (double) (System.nanoTime() - start) / count;
+
+    writer.close();
+
+    for (final File file : writer.getFiles()) {
+      file.delete();
+    }
+
+    System.out.printf("record 84-byte packet: %.1f ns%n", nanos);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * <p>
+ * Compares {@link InternetChecksum} against the 16-bit at a time loop
+ * it replaces, for typical probe and MTU-sized packets, and measures the
+ * cost of an incremental update versus a full recompute.
+ * </p>
+ * <p>
+ * This is not run as part of the test suite. Run it with:
+ * </p>
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes rocksaw.ChecksumBenchmark
+ * </pre>
+ */
+public class ChecksumBenchmark {
+  private static final int[] SIZES = { 64, 576, 1500, 9000 };
+  private static final int ROUNDS = 5;
+  private static final long MIN_NANOS = 200000000L;
+
+  private static volatile int sink;
+
+  private interface Kernel {
+    int run(byte[] data, ByteBuffer direct, int length);
+  }
+
+  private static double measure(final Kernel kernel, final byte[] data, final ByteBuffer direct, final int length) {
+    double best = Double.MAX_VALUE;
+
+    for (int round = 0; round < ROUNDS; ++round) {
+      long iterations = 0;
+      int acc = 0;
+      final long start = System.nanoTime();
+      long elapsed;
+
+      do {
+        for (int i = 0; i < 1000; ++i) {
+          acc += kernel.run(data, direct, length);
+        }
+        iterations += 1000;
+        elapsed = System.nanoTime() - start;
+      } while (elapsed < MIN_NANOS);
+
+      sink = acc;
+      best = Math.min(best, (double) elapsed / iterations);
+    }
+
+    return best;
+  }
+
+  public static void main(final String[] args) {
+    final byte[] data = new byte[9000];
+    final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+
+    new Random(1071).nextBytes(data);
+    direct.put(data).clear();
+
+    final Kernel scalar = new Kernel() {
+      public int run(final byte[] d, final ByteBuffer b, final int length) {
+        return TestInternetChecksum.scalarChecksum(d, 0, length, 0);
+      }
+    };
+    final Kernel array = new Kernel() {
+      public int run(final byte[] d, final ByteBuffer b, final int length) {
+        return InternetChecksum.checksum(d, 0, length);
+      }
+    };
+    final Kernel buffer = new Kernel() {
+      public int run(final byte[] d, final ByteBuffer b, final int length) {
+        return InternetChecksum.checksum(b, 0, length);
+      }
+    };
+    final Kernel incremental = new Kernel() {
+      int ttl;
+
+      public int run(final byte[] d, final ByteBuffer b, final int length) {
+        return InternetChecksum.updateWord(d, 10, 8, (++ttl & 0xff) << 8 | 1);
+      }
+    };
+
+    System.out.printf("%8s %12s %12s %12s %10s%n", "bytes", "scalar ns", "byte[] ns", "direct ns", "speedup");
+
+    for (final int size : SIZES) {
+      final double s = measure(scalar, data, direct, size);
+      final double a = measure(array, data, direct, size);
+      final double b = measure(buffer, data, direct, size);
+
+      System.out.printf("%8d %12.1f %12.1f %12.1f %9.2fx%n", size, s, a, b, s / Math.min(a, b));
+    }
+
+    System.out.printf("incremental update: %.1f ns (full 20 byte header recompute: %.1f ns)%n",
+      measure(incremental, data, direct, 20), measure(scalar, data, direct, 20));
+  }
+}
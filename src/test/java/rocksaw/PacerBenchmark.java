@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.SendPacer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Measures how smoothly {@link SendPacer} spaces packets and how much
+ * CPU it uses doing so. For each target rate, one second of packets is
+ * paced without sending anything and the achieved rate, the spread of
+ * the gaps between packets and the CPU time of the pacing thread are
+ * reported. The same is done for a loop that calls Thread.sleep between
+ * packets, rounding the gap to whole milliseconds as such loops do.
+ * </p>
+ * <p>
+ * This is not run as part of the test suite. Run it with:
+ * </p>
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes rocksaw.PacerBenchmark
+ * </pre>
+ */
+public class PacerBenchmark {
+  private static final double[] RATES = { 1000, 10000, 100000, 1000000 };
+  private static final byte[] DESTINATION = { 10, 0, 0, 1 };
+
+  private static void report(final String name, final double rate, final long[] times, final long cpu) {
+    final int count = times.length;
+    final long[] gaps = new long[count - 1];
+
+    for (int i = 1; i < count; ++i) {
+      gaps[i - 1] = times[i] - times[i - 1];
+    }
+
+    Arrays.sort(gaps);
+
+    final double elapsed = (times[count - 1] - times[0]) / 1e9;
+    System.out.printf("%-6s %8.0f pps: achieved %9.0f pps, gap p1 %7.2f p50 %7.2f p99 %8.2f us, cpu %5.1f%%%n",
+                      name, rate, (count - 1) / elapsed,
+                      gaps[gaps.length / 100] / 1e3, gaps[gaps.length / 2] / 1e3,
+                      gaps[gaps.length - 1 - gaps.length / 100] / 1e3,
+                      100.0 * cpu / (elapsed * 1e9));
+  }
+
+  public static void main(final String[] args) throws IOException, InterruptedException {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    for (final double rate : RATES) {
+      final SendPacer pacer = new SendPacer(null, rate, 1);
+      final long[] times = new long[(int) rate];
+
+      // Warm up.
+      for (int i = 0; i < times.length / 10; ++i) {
+        pacer.acquire(DESTINATION, 1);
+      }
+
+      long cpu = threads.getCurrentThreadCpuTime();
+      for (int i = 0; i < times.length; ++i) {
+        pacer.acquire(DESTINATION, 1);
+        times[i] = System.nanoTime();
+      }
+      report("pacer", rate, times, threads.getCurrentThreadCpuTime() - cpu);
+
+      if (rate <= 10000) {
+        final long gap = Math.max(1, Math.round(1000 / rate));
+        final long[] slept = new long[1000];
+
+        cpu = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < slept.length; ++i) {
+          slept[i] = System.nanoTime();
+          Thread.sleep(gap);
+        }
+        report("sleep", rate, slept, threads.getCurrentThreadCpuTime() - cpu);
+      }
+    }
+
+    final long cpu = threads.getCurrentThreadCpuTime();
+    Thread.sleep(1000);
+    System.out.printf("idle: cpu %d us over 1 s%n", (threads.getCurrentThreadCpuTime() - cpu) / 1000);
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.net.SpinBackoff;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+
+/**
+ * <p>
+ * Measures ICMP echo round trip times over the loopback interface with
+ * each receive mode of {@link RawSocket}: a blocking receive with
+ * SO_RCVTIMEO, a select-emulated timeout, spinning receives with the
+ * default backoff, and pure busy spinning with SO_BUSY_POLL. Reports
+ * the 50th, 99th, and 99.9th percentiles.
+ * </p>
+ * <p>
+ * This is not run as part of the test suite and requires root. Run it with:
+ * </p>
+ * <pre>
+ * mvn test-compile
+ * java -Djava.library.path=target/native -cp target/classes:target/test-classes rocksaw.ReceiveLatencyBenchmark [samples] [cpu]
+ * </pre>
+ */
+public class ReceiveLatencyBenchmark {
+  private static final int ICMP_ECHO_REPLY = 0;
+  private static final int ICMP_ECHO_REQUEST = 8;
+  private static final int IDENTIFIER = 0x5253;
+  private static final int WARMUP = 2000;
+
+  private interface Mode {
+    void configure(RawSocket socket) throws IOException;
+  }
+
+  private static long[] run(final Mode mode, final int samples) throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final RawSocket socket = new RawSocket();
+    final byte[] request = new byte[64];
+    final byte[] reply = new byte[128];
+    final long[] rtt = new long[samples];
+
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+
+    try {
+      socket.setICMPFilter(~(1 << ICMP_ECHO_REPLY));
+      socket.setReceiveTimeout(1000);
+      mode.configure(socket);
+
+      request[0] = ICMP_ECHO_REQUEST;
+      request[4] = (byte) (IDENTIFIER >>> 8);
+      request[5] = (byte) IDENTIFIER;
+
+      for (int i = -WARMUP; i < samples; ++i) {
+        final int sequence = i & 0xffff;
+
+        request[6] = (byte) (sequence >>> 8);
+        request[7] = (byte) sequence;
+        InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+
+        final long start = System.nanoTime();
+
+        socket.write(localhost, request);
+
+        int length;
+        do {
+          length = socket.read(reply);
+        } while (length < 28 || reply[20] != ICMP_ECHO_REPLY || ((reply[24] & 0xff) << 8 | (reply[25] & 0xff)) != IDENTIFIER
+          || ((reply[26] & 0xff) << 8 | (reply[27] & 0xff)) != sequence);
+
+        final long end = System.nanoTime();
+
+        if (i >= 0) {
+          rtt[i] = end - start;
+        }
+      }
+    } finally {
+      socket.close();
+    }
+
+    Arrays.sort(rtt);
+    return rtt;
+  }
+
+  private static double percentile(final long[] sorted, final double p) {
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1000.0;
+  }
+
+  public static void main(final String[] args) throws IOException {
+    final int samples = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+    if (args.length > 1) {
+      RawSocket.setThreadAffinity(Integer.parseInt(args[1]));
+    }
+
+    final String[] names = { "blocking", "select", "spin", "busy-spin+SO_BUSY_POLL" };
+    final Mode[] modes = {
+      new Mode() {
+        public void configure(final RawSocket socket) { }
+      },
+      new Mode() {
+        public void configure(final RawSocket socket) throws IOException {
+          socket.setUseSelectTimeout(true);
+          socket.setReceiveTimeout(1000);
+        }
+      },
+      new Mode() {
+        public void configure(final RawSocket socket) {
+          socket.setReceiveSpin(SpinBackoff.DEFAULT);
+        }
+      },
+      new Mode() {
+        public void configure(final RawSocket socket) throws IOException {
+          socket.setReceiveSpin(SpinBackoff.BUSY_SPIN);
+          try {
+            socket.setBusyPoll(50);
+          } catch (final IOException ioe) {
+            System.out.println("SO_BUSY_POLL not set: " + ioe.getMessage());
+          } catch (final UnsupportedOperationException uoe) {
+            System.out.println("SO_BUSY_POLL not supported.");
+          }
+        }
+      }
+    };
+
+    System.out.printf("%-24s %10s %10s %10s%n", "mode (us)", "p50", "p99", "p99.9");
+
+    for (int m = 0; m < modes.length; ++m) {
+      final long[] rtt = run(modes[m], samples);
+
+      System.out.printf("%-24s %10.1f %10.1f %10.1f%n", names[m], percentile(rtt, 0.5), percentile(rtt, 0.99), percentile(rtt, 0.999));
+    }
+  }
+}
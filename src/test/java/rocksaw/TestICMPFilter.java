@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.RawSocket;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static com.savarese.rocksaw.net.RawSocket.PF_INET6;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the kernel filter and checksum options round trip. Platforms
+ * that don't support an option are skipped.
+ */
+public class TestICMPFilter {
+  private static final int IPPROTO_ICMP   = 1;
+  private static final int IPPROTO_ICMPV6 = 58;
+
+  @Test
+  public void testICMPFilter() throws IOException {
+    final RawSocket socket = new RawSocket();
+
+    socket.open(PF_INET, IPPROTO_ICMP);
+
+    try {
+      socket.setICMPFilter(~1);
+      assertEquals(~1, socket.getICMPFilter());
+      socket.setICMPFilter(0);
+      assertEquals(0, socket.getICMPFilter());
+    } catch (final UnsupportedOperationException uoe) {
+      // Not Linux.
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testICMPv6Filter() throws IOException {
+    final RawSocket socket = new RawSocket();
+    final int[] blocked = { ~0, ~0, ~0, ~0, 0, 0x5a5a5a5a, 0, 1 };
+    final int[] result = new int[8];
+
+    socket.open(PF_INET6, IPPROTO_ICMPV6);
+
+    try {
+      socket.setICMPv6Filter(blocked);
+      socket.getICMPv6Filter(result);
+      assertArrayEquals(blocked, result);
+    } catch (final UnsupportedOperationException uoe) {
+      // Not supported on this platform.
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testIPv6Checksum() throws IOException {
+    final RawSocket socket = new RawSocket();
+
+    // UDP over a raw IPv6 socket: the checksum is at offset 6.
+    socket.open(PF_INET6, 17);
+
+    try {
+      assertEquals(-1, socket.getIPv6Checksum());
+      socket.setIPv6Checksum(6);
+      assertEquals(6, socket.getIPv6Checksum());
+    } catch (final UnsupportedOperationException uoe) {
+      // Not supported on this platform.
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestInternetChecksum {
+
+  /**
+   * The straightforward 16-bit at a time implementation the optimized
+   * one is checked against.
+   */
+  static int scalarChecksum(final byte[] data, final int offset, final int length, final long initial) {
+    long sum = initial;
+    int i = offset;
+    final int end = offset + length;
+
+    for (; i < end - 1; i += 2) {
+      sum += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+    }
+    if (i < end) {
+      sum += (data[i] & 0xff) << 8;
+    }
+    while ((sum >>> 16) != 0) {
+      sum = (sum & 0xffff) + (sum >>> 16);
+    }
+    return (int) (~sum & 0xffff);
+  }
+
+  @Test
+  public void testRfc1071Example() {
+    final byte[] data = { 0x00, 0x01, (byte) 0xf2, 0x03, (byte) 0xf4, (byte) 0xf5, (byte) 0xf6, (byte) 0xf7 };
+
+    assertEquals(0xddf2, InternetChecksum.fold(InternetChecksum.sum(data, 0, data.length, 0)));
+    assertEquals(~0xddf2 & 0xffff, InternetChecksum.checksum(data, 0, data.length));
+  }
+
+  @Test
+  public void testMatchesScalar() {
+    final Random random = new Random(1071);
+    final byte[] data = new byte[2048];
+
+    random.nextBytes(data);
+
+    for (int offset = 0; offset < 9; ++offset) {
+      for (int length = 0; length < 1500; length += 1 + random.nextInt(13)) {
+        final int expected = scalarChecksum(data, offset, length, 0);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+
+        direct.put(data).clear();
+
+        assertEquals(expected, InternetChecksum.checksum(data, offset, length));
+        assertEquals(expected, InternetChecksum.checksum(direct, offset, length));
+        assertEquals(expected, InternetChecksum.checksum(ByteBuffer.wrap(data), offset, length));
+      }
+    }
+  }
+
+  @Test
+  public void testAllOnes() {
+    final byte[] data = new byte[65536];
+
+    java.util.Arrays.fill(data, (byte) 0xff);
+
+    assertEquals(scalarChecksum(data, 0, data.length, 0), InternetChecksum.checksum(data, 0, data.length));
+  }
+
+  @Test
+  public void testPseudoHeader() {
+    final Random random = new Random(2460);
+    final byte[] source = new byte[16];
+    final byte[] destination = new byte[16];
+    final byte[] payload = new byte[64];
+
+    random.nextBytes(source);
+    random.nextBytes(destination);
+    random.nextBytes(payload);
+
+    final byte[] header = new byte[40];
+    System.arraycopy(source, 0, header, 0, 16);
+    System.arraycopy(destination, 0, header, 16, 16);
+    header[35] = (byte) payload.length;
+    header[39] = 58;
+
+    long expected = InternetChecksum.sum(header, 0, header.length, 0);
+    expected = InternetChecksum.sum(payload, 0, payload.length, expected);
+
+    final long pseudo = InternetChecksum.pseudoHeaderSum(source, destination, 58, payload.length);
+
+    assertEquals(InternetChecksum.finish(expected), InternetChecksum.finish(InternetChecksum.sum(payload, 0, payload.length, pseudo)));
+  }
+
+  @Test
+  public void testIncrementalUpdate() {
+    final Random random = new Random(1624);
+    final byte[] header = new byte[20];
+
+    for (int n = 0; n < 1000; ++n) {
+      random.nextBytes(header);
+      InternetChecksum.computeChecksum(header, 0, header.length, 10, 0);
+
+      final int ttlProtocol = random.nextInt(0x10000);
+      final int updated = InternetChecksum.updateWord(header, 10, 8, ttlProtocol);
+
+      assertEquals(0, InternetChecksum.checksum(header, 0, header.length));
+
+      final int oldAddress = ((header[16] & 0xff) << 24) | ((header[17] & 0xff) << 16) | ((header[18] & 0xff) << 8) | (header[19] & 0xff);
+      final int newAddress = random.nextInt();
+      final int checksum = InternetChecksum.update32(updated, oldAddress, newAddress);
+
+      header[16] = (byte) (newAddress >>> 24);
+      header[17] = (byte) (newAddress >>> 16);
+      header[18] = (byte) (newAddress >>> 8);
+      header[19] = (byte) newAddress;
+      header[10] = (byte) (checksum >>> 8);
+      header[11] = (byte) checksum;
+
+      assertEquals(0, InternetChecksum.checksum(header, 0, header.length));
+    }
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.LoopbackBackend;
+import com.savarese.rocksaw.net.PacketBuffer;
+import com.savarese.rocksaw.net.PacketBufferPool;
+import com.savarese.rocksaw.net.RawSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static com.savarese.rocksaw.net.RawSocket.PF_INET6;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises RawSocket on top of the in-process loopback backend. None of
+ * these tests need privileges.
+ */
+public class TestLoopbackBackend {
+  private static final int IPPROTO_ICMP   = 1;
+  private static final int IPPROTO_ICMPV6 = 58;
+
+  private LoopbackBackend backend;
+  private RawSocket socket;
+  private InetAddress remote;
+
+  @Before
+  public void setUp() throws IOException {
+    backend = new LoopbackBackend();
+    socket = new RawSocket(backend);
+    socket.open(PF_INET, IPPROTO_ICMP);
+    socket.setReceiveTimeout(1000);
+    remote = InetAddress.getByName("192.0.2.1");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (socket.isOpen()) {
+      socket.close();
+    }
+  }
+
+  private static byte[] echoRequest(final int type, final int sequence) {
+    final byte[] packet = new byte[16];
+
+    packet[0] = (byte) type;
+    packet[4] = 0x12;
+    packet[5] = 0x34;
+    packet[6] = (byte) (sequence >>> 8);
+    packet[7] = (byte) sequence;
+    InternetChecksum.computeChecksum(packet, 0, packet.length, 2, 0);
+
+    return packet;
+  }
+
+  private static int sequence(final byte[] packet) {
+    return (packet[26] & 0xff) << 8 | (packet[27] & 0xff);
+  }
+
+  @Test
+  public void testPing() throws IOException {
+    final byte[] packet = new byte[128];
+    final byte[] source = new byte[4];
+
+    assertSame(backend, socket.getBackend());
+    assertTrue(socket.isOpen());
+    socket.write(remote, echoRequest(8, 7));
+
+    final int length = socket.read(packet, source);
+
+    assertEquals(20 + 16, length);
+    assertArrayEquals(remote.getAddress(), source);
+    assertEquals(0x45, packet[0]);
+    assertEquals(IPPROTO_ICMP, packet[9]);
+    assertEquals(0, InternetChecksum.checksum(packet, 0, 20));
+    assertEquals(0, packet[20]);
+    assertEquals(7, sequence(packet));
+    assertEquals(0, InternetChecksum.checksum(packet, 20, 16));
+    assertEquals(1, backend.getSentCount());
+    assertEquals(1, backend.getDeliveredCount());
+  }
+
+  @Test
+  public void testLoopbackSeesRequest() throws IOException {
+    final byte[] packet = new byte[128];
+
+    socket.write(InetAddress.getByName("127.0.0.1"), echoRequest(8, 1));
+    socket.read(packet);
+    assertEquals(8, packet[20]);
+    socket.read(packet);
+    assertEquals(0, packet[20]);
+  }
+
+  @Test
+  public void testLoss() throws IOException {
+    final byte[] packet = new byte[128];
+
+    backend.setLossRate(1.0);
+    socket.setReceiveTimeout(50);
+    socket.write(remote, echoRequest(8, 1));
+
+    try {
+      socket.read(packet);
+      fail("Expected a timeout.");
+    } catch (final InterruptedIOException iioe) {
+      // Expected.
+    }
+
+    assertEquals(1, backend.getLostCount());
+  }
+
+  @Test
+  public void testLatency() throws IOException {
+    final byte[] packet = new byte[128];
+
+    backend.setLatency(50000000L, 0);
+
+    final long start = System.nanoTime();
+    socket.write(remote, echoRequest(8, 1));
+    socket.read(packet);
+    assertTrue(System.nanoTime() - start >= 50000000L);
+  }
+
+  private int[] reordered(final long seed) throws IOException {
+    final int count = 64;
+    final int[] order = new int[count];
+    final byte[] packet = new byte[128];
+
+    backend.setSeed(seed);
+    for (int i = 0; i < count; ++i) {
+      socket.write(remote, echoRequest(8, i));
+    }
+    for (int i = 0; i < count; ++i) {
+      socket.read(packet);
+      order[i] = sequence(packet);
+    }
+
+    return order;
+  }
+
+  @Test
+  public void testSeededReordering() throws IOException {
+    backend.setReorderRate(0.25, 20000000L);
+
+    final int[] first = reordered(42);
+    final int[] sorted = first.clone();
+
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; ++i) {
+      assertEquals(i, sorted[i]);
+    }
+    assertFalse(Arrays.equals(sorted, first));
+    assertArrayEquals(first, reordered(42));
+  }
+
+  @Test
+  public void testICMPFilter() throws IOException {
+    final byte[] packet = new byte[128];
+
+    socket.setICMPFilter(1);
+    assertEquals(1, socket.getICMPFilter());
+    socket.setReceiveTimeout(50);
+    socket.write(remote, echoRequest(8, 1));
+
+    try {
+      socket.read(packet);
+      fail("Expected the reply to be filtered.");
+    } catch (final InterruptedIOException iioe) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testIPv6Echo() throws IOException {
+    final RawSocket socket6 = new RawSocket(backend);
+    final InetAddress destination = InetAddress.getByName("2001:db8::1");
+    final byte[] packet = new byte[128];
+    final byte[] source = new byte[16];
+
+    socket6.open(PF_INET6, IPPROTO_ICMPV6);
+
+    try {
+      socket6.setReceiveTimeout(1000);
+      socket6.write(destination, echoRequest(128, 3));
+
+      final int length = socket6.read(packet, source);
+
+      assertEquals(16, length);
+      assertArrayEquals(destination.getAddress(), source);
+      assertEquals((byte) 129, packet[0]);
+      assertEquals(0, InternetChecksum.finish(
+        InternetChecksum.sum(packet, 0, length,
+                             InternetChecksum.pseudoHeaderSum(source, InetAddress.getByName("::1").getAddress(),
+                                                              IPPROTO_ICMPV6, length))));
+    } finally {
+      socket6.close();
+    }
+  }
+
+  @Test
+  public void testPooledBatch() throws IOException {
+    final int count = 8;
+    final PacketBufferPool pool = new PacketBufferPool();
+    final PacketBuffer[] packets = new PacketBuffer[count];
+    final byte[] addresses = new byte[count * 4];
+
+    for (int i = 0; i < count; ++i) {
+      packets[i] = pool.acquire();
+      packets[i].buffer().put(echoRequest(8, i)).flip();
+      System.arraycopy(remote.getAddress(), 0, addresses, i * 4, 4);
+    }
+
+    assertEquals(count, socket.write(packets, addresses, 0, count));
+
+    for (final PacketBuffer packet : packets) {
+      packet.buffer().clear();
+    }
+
+    int received = 0;
+    while (received < count) {
+      received += socket.read(packets, addresses, received, count - received);
+    }
+
+    for (int i = 0; i < count; ++i) {
+      assertEquals(36, packets[i].buffer().position());
+      assertEquals(0, packets[i].buffer().get(20));
+      assertEquals(i, packets[i].buffer().get(27));
+      packets[i].release();
+    }
+  }
+
+  @Test
+  public void testDefaultBackend() throws IOException {
+    RawSocket.setDefaultBackend(backend);
+
+    try {
+      assertSame(backend, new RawSocket().getBackend());
+    } finally {
+      RawSocket.setDefaultBackend(null);
+    }
+
+    assertEquals(null, new RawSocket().getBackend());
+  }
+
+  @Test
+  public void testCloseWakesReader() throws Exception {
+    final IOException[] error = new IOException[1];
+    final Thread reader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          socket.setReceiveTimeout(0);
+          socket.read(new byte[128]);
+        } catch (final IOException ioe) {
+          error[0] = ioe;
+        }
+      }
+    });
+
+    reader.start();
+    Thread.sleep(50);
+    socket.close();
+    reader.join(2000);
+    assertFalse(reader.isAlive());
+    assertTrue(error[0] != null);
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.PacketBuffer;
+import com.savarese.rocksaw.net.PacketBufferPool;
+import com.savarese.rocksaw.net.RawSocket;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPacketBufferPool {
+
+  @Test
+  public void testAcquireAndRelease() {
+    final PacketBufferPool pool = new PacketBufferPool(100, 64, 1, false);
+    final PacketBuffer buffer = pool.acquire();
+
+    assertTrue(buffer.buffer().isDirect());
+    assertEquals(100, buffer.capacity());
+    assertEquals(0, buffer.buffer().position());
+    assertEquals(100, buffer.buffer().limit());
+    assertEquals(1, buffer.refCount());
+    assertEquals(1, pool.getSlabCount());
+    assertEquals(64, pool.getCapacity());
+    assertEquals(1, pool.getOutstandingCount());
+
+    buffer.buffer().putInt(42);
+    assertSame(buffer, buffer.retain());
+    assertFalse(buffer.release());
+    assertTrue(buffer.release());
+    assertEquals(0, pool.getOutstandingCount());
+
+    try {
+      buffer.release();
+      fail("Released twice.");
+    } catch (final IllegalStateException e) {
+      // Expected.
+    }
+
+    try {
+      buffer.buffer();
+      fail("Used after release.");
+    } catch (final IllegalStateException e) {
+      // Expected.
+    }
+
+    final PacketBuffer again = pool.acquire();
+    assertSame(buffer, again);
+    assertEquals(0, again.buffer().position());
+    again.release();
+  }
+
+  @Test
+  public void testSlabLimit() {
+    final PacketBufferPool pool = new PacketBufferPool(1500, 40, 2, false);
+    final Map<PacketBuffer, Boolean> buffers = new IdentityHashMap<PacketBuffer, Boolean>();
+    PacketBuffer buffer;
+
+    while ((buffer = pool.acquire()) != null) {
+      buffer.buffer().putInt(0, buffers.size());
+      assertNull(buffers.put(buffer, Boolean.TRUE));
+    }
+
+    assertEquals(80, buffers.size());
+    assertEquals(2, pool.getSlabCount());
+
+    // Buffers do not overlap.
+    for (final PacketBuffer b : buffers.keySet()) {
+      b.buffer().put(1499, (byte) 1);
+    }
+    int sum = 0;
+    for (final PacketBuffer b : buffers.keySet()) {
+      sum += b.buffer().getInt(0);
+    }
+    assertEquals(79 * 80 / 2, sum);
+
+    for (final PacketBuffer b : buffers.keySet()) {
+      b.release();
+    }
+    assertEquals(0, pool.getOutstandingCount());
+    assertNotNull(pool.acquire());
+  }
+
+  @Test
+  public void testCrossThreadRelease() throws InterruptedException {
+    final PacketBufferPool pool = new PacketBufferPool(256, 256, 1, false);
+    final List<PacketBuffer> buffers = new ArrayList<PacketBuffer>();
+
+    for (int i = 0; i < 256; ++i) {
+      buffers.add(pool.acquire());
+    }
+    assertNull(pool.acquire());
+
+    final Thread releaser = new Thread() {
+      public void run() {
+        for (final PacketBuffer buffer : buffers) {
+          buffer.release();
+        }
+        pool.flushThreadCache();
+      }
+    };
+    releaser.start();
+    releaser.join();
+
+    // Every buffer released by the other thread is available here.
+    for (int i = 0; i < 256; ++i) {
+      assertNotNull(pool.acquire());
+    }
+    assertNull(pool.acquire());
+  }
+
+  private static void leak(final PacketBufferPool pool) {
+    pool.acquire().buffer().put((byte) 1);
+  }
+
+  @Test
+  public void testLeakDetection() throws InterruptedException {
+    final PacketBufferPool pool = new PacketBufferPool(128, 8, 1, true);
+
+    leak(pool);
+    assertEquals(1, pool.getOutstandingCount());
+
+    for (int i = 0; i < 100 && pool.getLeakCount() == 0; ++i) {
+      System.gc();
+      Thread.sleep(10);
+      pool.acquire().release();
+    }
+
+    assertEquals(1, pool.getLeakCount());
+    assertEquals(1, pool.getLeakSites().size());
+    assertEquals(1, pool.getOutstandingCount());
+
+    // The leaked buffer's memory is never handed out again.
+    for (int i = 0; i < 7; ++i) {
+      assertNotNull(pool.acquire());
+    }
+    assertNull(pool.acquire());
+  }
+
+  @Test
+  public void testDirectIO() throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final PacketBufferPool pool = new PacketBufferPool();
+    final RawSocket socket = new RawSocket();
+    final byte[] request = new byte[16];
+    final byte[] source = new byte[4];
+    final int count = 3;
+
+    request[0] = 8;
+    InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+
+    try {
+      socket.setICMPFilter(-1 & ~(1 << 8));
+      socket.setReceiveTimeout(2000);
+
+      final PacketBuffer packet = pool.acquire();
+      final ByteBuffer buffer = packet.buffer();
+
+      buffer.put(request).flip();
+      assertEquals(request.length, socket.write(localhost, buffer));
+      assertFalse(buffer.hasRemaining());
+
+      final PacketBuffer[] packets = new PacketBuffer[count];
+      final byte[] addresses = new byte[4 * count];
+
+      for (int i = 0; i < count; ++i) {
+        packets[i] = pool.acquire();
+        packets[i].buffer().put(request).flip();
+        System.arraycopy(localhost.getAddress(), 0, addresses, 4 * i, 4);
+      }
+
+      assertEquals(count, socket.write(packets, addresses, 0, count));
+
+      for (int i = 0; i < count; ++i) {
+        assertEquals(request.length, packets[i].buffer().remaining());
+        packets[i].release();
+      }
+
+      for (int i = 0; i < 1 + count; ++i) {
+        buffer.clear();
+        final int length = socket.read(buffer, source);
+        assertEquals(20 + request.length, length);
+        assertEquals(length, buffer.position());
+        assertEquals(8, buffer.get(20));
+        assertArrayEquals(localhost.getAddress(), source);
+      }
+
+      packet.release();
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testHeapBufferRejected() throws IOException {
+    final RawSocket socket = new RawSocket();
+
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+
+    try {
+      socket.read(ByteBuffer.allocate(64));
+    } finally {
+      socket.close();
+    }
+  }
+}
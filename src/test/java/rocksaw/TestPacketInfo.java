@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.PacketInfo;
+import com.savarese.rocksaw.net.RawSocket;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPacketInfo {
+
+  @Test
+  public void testLoopbackPacketInfo() throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final RawSocket socket = new RawSocket();
+    final byte[] request = new byte[16];
+    final byte[] reply = new byte[128];
+    final PacketInfo info = new PacketInfo();
+
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+
+    try {
+      socket.setReceiveTimeout(2000);
+      socket.setReceivePacketInfo(true);
+
+      request[0] = 8;
+      request[4] = 0x12;
+      request[5] = 0x34;
+      InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+      socket.write(localhost, request);
+
+      // The socket sees both the echo request and the echo reply.
+      int length;
+      do {
+        length = socket.receive(reply, 0, reply.length, info);
+      } while (reply[20] != 0);
+
+      assertEquals(length, info.getLength());
+      assertEquals(PF_INET, info.getFamily());
+      assertArrayEquals(localhost.getAddress(), info.getSourceAddress());
+      assertTrue(info.hasDestinationAddress());
+      assertEquals(localhost, info.getDestination());
+      assertEquals(NetworkInterface.getByInetAddress(localhost).getIndex(), info.getInterfaceIndex());
+      // Received TTL and TOS must agree with the IP header.
+      assertEquals(reply[8] & 0xff, info.getTTL());
+      assertEquals(reply[1] & 0xff, info.getTrafficClass());
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.PacketBufferPool;
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.pipeline.FlowHash;
+import com.savarese.rocksaw.pipeline.MpscRing;
+import com.savarese.rocksaw.pipeline.PacketHandler;
+import com.savarese.rocksaw.pipeline.PacketPipeline;
+import com.savarese.rocksaw.pipeline.PacketSlot;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPacketPipeline {
+  private static final int ICMP_ECHO = 8;
+
+  private RawSocket socket;
+
+  /** Records the ICMP sequence numbers each worker handles, in order. */
+  private static class Recorder implements PacketHandler {
+    final List<List<Integer>> sequences = new ArrayList<List<Integer>>();
+    final AtomicLong total = new AtomicLong();
+    final long delayNanos;
+
+    Recorder(final int workers, final long delayNanos) {
+      for (int i = 0; i < workers; ++i) {
+        sequences.add(new ArrayList<Integer>());
+      }
+      this.delayNanos = delayNanos;
+    }
+
+    public void handle(final PacketSlot slot, final int worker) {
+      final long start = System.nanoTime();
+
+      sequences.get(worker).add(slot.buffer().getShort(20 + 6) & 0xffff);
+      while (System.nanoTime() - start < delayNanos) {
+        // Simulate work.
+      }
+      total.incrementAndGet();
+    }
+
+    void await(final long count) throws InterruptedException {
+      for (int i = 0; i < 500 && total.get() < count; ++i) {
+        Thread.sleep(10);
+      }
+      assertEquals(count, total.get());
+    }
+  }
+
+  /** Opens a socket that receives the echo requests it sends itself. */
+  private RawSocket open() throws IOException {
+    socket = new RawSocket();
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+    socket.setICMPFilter(~(1 << ICMP_ECHO));
+    socket.setReceiveTimeout(50);
+    return socket;
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (socket != null) {
+      socket.close();
+    }
+  }
+
+  private void send(final int count) throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final byte[] request = new byte[16];
+
+    request[0] = ICMP_ECHO;
+    for (int i = 0; i < count; ++i) {
+      request[6] = (byte) (i >>> 8);
+      request[7] = (byte) i;
+      request[2] = request[3] = 0;
+      InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+      socket.write(localhost, request);
+    }
+  }
+
+  private static void assertIncreasing(final List<Integer> sequences) {
+    for (int i = 1; i < sequences.size(); ++i) {
+      assertTrue(sequences.get(i) > sequences.get(i - 1));
+    }
+  }
+
+  @Test
+  public void testRoundRobin() throws IOException, InterruptedException {
+    final PacketBufferPool pool = new PacketBufferPool();
+    final Recorder recorder = new Recorder(2, 0);
+    final PacketPipeline pipeline =
+        new PacketPipeline(open(), pool, 64, 2, PacketPipeline.Dispatch.ROUND_ROBIN, recorder);
+
+    pipeline.start();
+    send(100);
+    recorder.await(100);
+    pipeline.stop();
+
+    assertEquals(100, pipeline.getReceivedCount());
+    assertEquals(50, pipeline.getHandledCount(0));
+    assertEquals(50, pipeline.getHandledCount(1));
+    assertIncreasing(recorder.sequences.get(0));
+    assertIncreasing(recorder.sequences.get(1));
+    assertNull(pipeline.getError());
+    assertEquals(0, pool.getOutstandingCount());
+  }
+
+  @Test
+  public void testFlowHashWrapsRing() throws IOException, InterruptedException {
+    // A ring much smaller than the burst and a slow worker force the
+    // receiver to wait for slots to be released.
+    final Recorder recorder = new Recorder(3, 20000);
+    final PacketPipeline pipeline =
+        new PacketPipeline(open(), new PacketBufferPool(), 8, 3, PacketPipeline.Dispatch.FLOW_HASH, recorder);
+
+    pipeline.setBatchSize(4);
+    pipeline.start();
+    send(200);
+    recorder.await(200);
+    pipeline.stop();
+
+    // Every packet belongs to one flow, so one worker sees all of them in order.
+    int busy = 0;
+    for (final List<Integer> sequences : recorder.sequences) {
+      if (!sequences.isEmpty()) {
+        ++busy;
+        assertEquals(200, sequences.size());
+        assertIncreasing(sequences);
+      }
+    }
+    assertEquals(1, busy);
+  }
+
+  @Test
+  public void testFlowHashIsSymmetric() {
+    final ByteBuffer forward = udp(new byte[] { 10, 0, 0, 1 }, new byte[] { 10, 0, 0, 2 }, 1234, 53);
+    final ByteBuffer reverse = udp(new byte[] { 10, 0, 0, 2 }, new byte[] { 10, 0, 0, 1 }, 53, 1234);
+    final ByteBuffer other = udp(new byte[] { 10, 0, 0, 1 }, new byte[] { 10, 0, 0, 2 }, 1235, 53);
+
+    assertEquals(FlowHash.hash(forward, PF_INET, null), FlowHash.hash(reverse, PF_INET, null));
+    assertNotEquals(FlowHash.hash(forward, PF_INET, null), FlowHash.hash(other, PF_INET, null));
+
+    // All fragments of a datagram hash alike, whether or not they carry the ports.
+    final ByteBuffer first = udp(new byte[] { 10, 0, 0, 1 }, new byte[] { 10, 0, 0, 2 }, 1234, 53);
+    final ByteBuffer last = udp(new byte[] { 10, 0, 0, 1 }, new byte[] { 10, 0, 0, 2 }, 0, 0);
+    first.putShort(6, (short) 0x2000);
+    last.putShort(6, (short) 185);
+    assertEquals(FlowHash.hash(first, PF_INET, null), FlowHash.hash(last, PF_INET, null));
+    assertNotEquals(FlowHash.hash(first, PF_INET, null), FlowHash.hash(forward, PF_INET, null));
+    assertEquals(FlowHash.hash(ByteBuffer.allocate(4), RawSocket.PF_INET6, new byte[16]),
+                 FlowHash.hash(ByteBuffer.allocate(8), RawSocket.PF_INET6, new byte[16]));
+  }
+
+  private static ByteBuffer udp(final byte[] source, final byte[] destination, final int sport, final int dport) {
+    final ByteBuffer packet = ByteBuffer.allocate(28);
+
+    packet.put(0, (byte) 0x45).put(9, (byte) 17);
+    packet.position(12);
+    packet.put(source).put(destination);
+    packet.putShort(20, (short) sport).putShort(22, (short) dport);
+    packet.clear();
+    return packet;
+  }
+
+  @Test
+  public void testMpscRing() throws InterruptedException {
+    final MpscRing<Integer> ring = new MpscRing<Integer>(1000);
+    final int producers = 4;
+    final int perProducer = 20000;
+
+    assertEquals(1024, ring.capacity());
+    for (int i = 0; i < 1024; ++i) {
+      assertTrue(ring.offer(i));
+    }
+    assertFalse(ring.offer(-1));
+    for (int i = 0; i < 1024; ++i) {
+      assertEquals(Integer.valueOf(i), ring.poll());
+    }
+    assertNull(ring.poll());
+
+    final Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; ++p) {
+      final int base = p * perProducer;
+      threads[p] = new Thread() {
+        public void run() {
+          for (int i = 0; i < perProducer; ++i) {
+            while (!ring.offer(base + i)) {
+              Thread.yield();
+            }
+          }
+        }
+      };
+      threads[p].start();
+    }
+
+    final int[] last = new int[producers];
+    long sum = 0;
+    for (int i = 0; i < producers; ++i) {
+      last[i] = -1;
+    }
+    for (int received = 0; received < producers * perProducer; ) {
+      final Integer value = ring.poll();
+      if (value == null) {
+        Thread.yield();
+        continue;
+      }
+      // Elements from one producer arrive in order.
+      final int producer = value / perProducer;
+      assertTrue(value % perProducer > last[producer]);
+      last[producer] = value % perProducer;
+      sum += value;
+      ++received;
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    final long n = (long) producers * perProducer;
+    assertEquals(n * (n - 1) / 2, sum);
+    assertEquals(0, ring.size());
+  }
+}
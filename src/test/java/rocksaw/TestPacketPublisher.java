@@ -0,0 +1,313 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.PacketBuffer;
+import com.savarese.rocksaw.net.PacketBufferPool;
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.reactive.PacketPublisher;
+import com.savarese.rocksaw.reactive.PacketView;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPacketPublisher {
+  private static final int ICMP_ECHO = 8;
+
+  private InetAddress localhost;
+  private RawSocket socket;
+  private RawSocket sender;
+  private PacketBufferPool pool;
+
+  /** Records every signal it receives; requests nothing by itself. */
+  private static class Recorder implements Subscriber<PacketView> {
+    final BlockingQueue<Integer> sequences = new LinkedBlockingQueue<Integer>();
+    final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<Throwable>();
+    volatile Subscription subscription;
+    volatile boolean complete;
+
+    public void onSubscribe(final Subscription s) {
+      subscription = s;
+    }
+
+    public void onNext(final PacketView view) {
+      assertArrayEquals(new byte[] { 127, 0, 0, 1 }, view.getSource());
+      sequences.add(view.buffer().getShort(20 + 6) & 0xffff);
+      view.release();
+    }
+
+    public void onError(final Throwable t) {
+      errors.add(t);
+    }
+
+    public void onComplete() {
+      complete = true;
+    }
+
+    List<Integer> take(final int count) throws InterruptedException {
+      final List<Integer> result = new ArrayList<Integer>();
+      for (int i = 0; i < count; ++i) {
+        final Integer sequence = sequences.poll(2, TimeUnit.SECONDS);
+        assertNotNull(sequence);
+        result.add(sequence);
+      }
+      return result;
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    localhost = InetAddress.getByName("127.0.0.1");
+    pool = new PacketBufferPool();
+    socket = new RawSocket();
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+    socket.setICMPFilter(~(1 << ICMP_ECHO));
+    socket.setReceiveTimeout(50);
+    sender = new RawSocket();
+    sender.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+    sender.setICMPFilter(-1);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    sender.close();
+    if (socket.isOpen()) {
+      socket.close();
+    }
+  }
+
+  private void send(final int first, final int count) throws IOException {
+    final byte[] request = new byte[16];
+
+    request[0] = ICMP_ECHO;
+    for (int i = first; i < first + count; ++i) {
+      request[6] = (byte) (i >>> 8);
+      request[7] = (byte) i;
+      request[2] = request[3] = 0;
+      InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+      sender.write(localhost, request);
+    }
+  }
+
+  private static List<Integer> range(final int first, final int count) {
+    final List<Integer> result = new ArrayList<Integer>();
+    for (int i = first; i < first + count; ++i) {
+      result.add(i);
+    }
+    return result;
+  }
+
+  private void awaitDrops(final PacketPublisher publisher, final long drops) throws InterruptedException {
+    for (int i = 0; i < 200 && publisher.getDroppedCount() < drops; ++i) {
+      Thread.sleep(10);
+    }
+    assertEquals(drops, publisher.getDroppedCount());
+  }
+
+  private void awaitReleased() throws InterruptedException {
+    for (int i = 0; i < 200 && pool.getOutstandingCount() > 0; ++i) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, pool.getOutstandingCount());
+  }
+
+  @Test
+  public void testKernelBackpressure() throws IOException, InterruptedException {
+    final PacketPublisher publisher = new PacketPublisher(socket, pool, PacketPublisher.Overflow.KERNEL);
+    final Recorder recorder = new Recorder();
+
+    publisher.subscribe(recorder);
+    send(0, 20);
+    Thread.sleep(100);
+    assertTrue(recorder.sequences.isEmpty());
+    assertEquals(0, publisher.getPacketCount());
+
+    // Unrequested packets wait in the kernel and arrive in order.
+    recorder.subscription.request(5);
+    assertEquals(range(0, 5), recorder.take(5));
+    Thread.sleep(100);
+    assertTrue(recorder.sequences.isEmpty());
+    assertEquals(5, publisher.getPacketCount());
+
+    recorder.subscription.request(Long.MAX_VALUE);
+    assertEquals(range(5, 15), recorder.take(15));
+    assertEquals(0, publisher.getDroppedCount());
+
+    recorder.subscription.cancel();
+    awaitReleased();
+  }
+
+  @Test
+  public void testDropNewest() throws IOException, InterruptedException {
+    final PacketPublisher publisher = new PacketPublisher(socket, pool, PacketPublisher.Overflow.DROP_NEWEST, 4, 4);
+    final Recorder recorder = new Recorder();
+
+    publisher.subscribe(recorder);
+    send(0, 10);
+    awaitDrops(publisher, 6);
+    // The queued packets and the buffers of the reader's pending read.
+    assertEquals(4 + 4, pool.getOutstandingCount());
+
+    recorder.subscription.request(10);
+    assertEquals(range(0, 4), recorder.take(4));
+    send(10, 1);
+    assertEquals(range(10, 1), recorder.take(1));
+
+    recorder.subscription.cancel();
+    awaitReleased();
+  }
+
+  @Test
+  public void testDropOldest() throws IOException, InterruptedException {
+    final PacketPublisher publisher = new PacketPublisher(socket, pool, PacketPublisher.Overflow.DROP_OLDEST, 4, 4);
+    final Recorder recorder = new Recorder();
+
+    publisher.subscribe(recorder);
+    send(0, 10);
+    awaitDrops(publisher, 6);
+
+    recorder.subscription.request(4);
+    assertEquals(range(6, 4), recorder.take(4));
+
+    recorder.subscription.cancel();
+    awaitReleased();
+  }
+
+  /** Acquires every buffer of a bounded pool, retrying while the reader thread exits. */
+  private void awaitCapacity(final PacketBufferPool bounded) throws InterruptedException {
+    final List<PacketBuffer> buffers = new ArrayList<PacketBuffer>();
+
+    for (int attempt = 0; attempt < 200; ++attempt) {
+      PacketBuffer buffer;
+      while ((buffer = bounded.acquire()) != null) {
+        buffers.add(buffer);
+      }
+      final int acquired = buffers.size();
+      for (final PacketBuffer b : buffers) {
+        b.release();
+      }
+      buffers.clear();
+      bounded.flushThreadCache();
+      if (acquired == bounded.getCapacity()) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    fail("Buffers were not returned to the pool.");
+  }
+
+  @Test
+  public void testBoundedPoolReusedAfterCancel() throws IOException, InterruptedException {
+    final PacketBufferPool bounded = new PacketBufferPool(2048, 64, 1, false);
+
+    for (int round = 0; round < 4; ++round) {
+      final PacketPublisher publisher = new PacketPublisher(socket, bounded, PacketPublisher.Overflow.KERNEL);
+      final Recorder recorder = new Recorder();
+
+      publisher.subscribe(recorder);
+      recorder.subscription.request(Long.MAX_VALUE);
+      send(round * 4, 4);
+      assertEquals(range(round * 4, 4), recorder.take(4));
+      recorder.subscription.cancel();
+
+      awaitCapacity(bounded);
+      assertEquals(0, bounded.getOutstandingCount());
+      assertEquals(64, bounded.getCapacity());
+    }
+  }
+
+  @Test
+  public void testViewsReused() throws IOException, InterruptedException {
+    final PacketBufferPool single = new PacketBufferPool(2048, 1, 1, false);
+    final PacketPublisher publisher = new PacketPublisher(socket, single, PacketPublisher.Overflow.KERNEL);
+    final Set<PacketView> views = Collections.newSetFromMap(new IdentityHashMap<PacketView, Boolean>());
+    final Recorder recorder = new Recorder() {
+      @Override
+      public void onNext(final PacketView view) {
+        views.add(view);
+        super.onNext(view);
+      }
+    };
+
+    publisher.subscribe(recorder);
+    recorder.subscription.request(Long.MAX_VALUE);
+    send(0, 8);
+    assertEquals(range(0, 8), recorder.take(8));
+    // Every packet passed through the pool's only buffer and its view.
+    assertEquals(1, views.size());
+    recorder.subscription.cancel();
+  }
+
+  @Test
+  public void testSingleSubscriber() throws InterruptedException {
+    final PacketPublisher publisher = new PacketPublisher(socket, pool, PacketPublisher.Overflow.KERNEL);
+    final Recorder first = new Recorder();
+    final Recorder second = new Recorder();
+
+    publisher.subscribe(first);
+    publisher.subscribe(second);
+    assertTrue(second.errors.poll(2, TimeUnit.SECONDS) instanceof IllegalStateException);
+    assertNull(first.errors.poll());
+    first.subscription.cancel();
+  }
+
+  @Test
+  public void testInvalidRequest() throws InterruptedException {
+    final PacketPublisher publisher = new PacketPublisher(socket, pool, PacketPublisher.Overflow.KERNEL);
+    final Recorder recorder = new Recorder();
+
+    publisher.subscribe(recorder);
+    recorder.subscription.request(0);
+    assertTrue(recorder.errors.poll(2, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+  }
+
+  @Test
+  public void testCompleteOnClose() throws IOException, InterruptedException {
+    final PacketPublisher publisher = new PacketPublisher(socket, pool, PacketPublisher.Overflow.DROP_NEWEST);
+    final Recorder recorder = new Recorder();
+
+    publisher.subscribe(recorder);
+    recorder.subscription.request(1);
+    socket.close();
+
+    for (int i = 0; i < 200 && !recorder.complete; ++i) {
+      Thread.sleep(10);
+    }
+    assertTrue(recorder.complete);
+    assertTrue(recorder.errors.isEmpty());
+    awaitReleased();
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.PacketBuffer;
+import com.savarese.rocksaw.net.PacketBufferPool;
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.pcap.PcapNgWriter;
+import com.savarese.rocksaw.pcap.PcapReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static com.savarese.rocksaw.net.RawSocket.PF_INET6;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPcap {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] packet(final int index) {
+    final byte[] data = new byte[1 + index * 3];
+
+    for (int i = 0; i < data.length; ++i) {
+      data[i] = (byte) (index + i);
+    }
+
+    return data;
+  }
+
+  private String prefix() {
+    return new File(folder.getRoot(), "capture").getPath();
+  }
+
+  @Test
+  public void testRoundTripWithRotation() throws IOException {
+    final int snap = 256;
+    final PcapNgWriter writer = new PcapNgWriter(prefix(), 4096, 0, snap);
+
+    for (int i = 0; i < 100; ++i) {
+      final byte[] data = packet(i);
+      assertTrue(writer.write(1000000000L * i + i, data, 0, data.length));
+    }
+
+    writer.close();
+    assertEquals(100, writer.getPacketCount());
+    assertEquals(0, writer.getDroppedCount());
+    assertFalse(writer.write(0, new byte[1], 0, 1));
+    assertEquals(1, writer.getDroppedCount());
+
+    final List<File> files = writer.getFiles();
+    assertTrue(files.size() > 1);
+
+    final byte[] copy = new byte[snap];
+    int index = 0;
+
+    for (final File file : files) {
+      assertTrue(file.length() <= 4096);
+
+      final PcapReader reader = new PcapReader(file);
+
+      try {
+        assertTrue(reader.isPcapNg());
+
+        while (reader.next()) {
+          final byte[] data = packet(index);
+          final int captured = Math.min(data.length, snap);
+
+          assertEquals(PcapReader.LINKTYPE_RAW, reader.getLinkType());
+          assertEquals(1000000000L * index + index, reader.getTimestampNanos());
+          assertEquals(data.length, reader.getOriginalLength());
+          assertEquals(captured, reader.getCapturedLength());
+          assertEquals(captured, reader.getPacket(copy, 0));
+          assertArrayEquals(Arrays.copyOf(data, captured), Arrays.copyOf(copy, captured));
+          assertEquals(data[0], reader.getPacket().get(reader.getPacket().position()));
+          ++index;
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    assertEquals(100, index);
+  }
+
+  @Test
+  public void testMaxFiles() throws IOException {
+    final PcapNgWriter writer = new PcapNgWriter(prefix(), 1024, 2, 128);
+    final byte[] data = new byte[100];
+
+    for (int i = 0; i < 50; ++i) {
+      writer.write(i, data, 0, data.length);
+    }
+
+    writer.close();
+
+    final List<File> files = writer.getFiles();
+    assertEquals(2, files.size());
+    assertEquals(2, folder.getRoot().list().length);
+    assertTrue(files.get(1).getName().compareTo(files.get(0).getName()) > 0);
+  }
+
+  @Test
+  public void testUnclosedFileEndsAtZeros() throws IOException {
+    final PcapNgWriter writer = new PcapNgWriter(prefix(), 1 << 20, 0, 1500);
+    final byte[] data = packet(10);
+
+    for (int i = 0; i < 3; ++i) {
+      writer.write(i, data, 0, data.length);
+    }
+
+    writer.flush();
+
+    final File file = writer.getFiles().get(0);
+    assertEquals(1 << 20, file.length());
+
+    final PcapReader reader = new PcapReader(file);
+    int count = 0;
+
+    while (reader.next()) {
+      ++count;
+    }
+
+    reader.close();
+    writer.close();
+    assertEquals(3, count);
+    assertTrue(file.length() < 1024);
+  }
+
+  @Test
+  public void testNegativeCapturedLength() throws IOException {
+    final PcapNgWriter writer = new PcapNgWriter(prefix());
+    final byte[] data = packet(4);
+
+    writer.write(0, data, 0, data.length);
+    writer.close();
+
+    final File file = writer.getFiles().get(0);
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    final ByteBuffer buffer = ByteBuffer.allocate((int) raf.length());
+
+    raf.getChannel().read(buffer, 0);
+
+    if (buffer.getInt(8) != 0x1A2B3C4D) {
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Set the high bit of the captured length of the enhanced packet block.
+    int offset = 0;
+
+    while (buffer.getInt(offset) != 6) {
+      offset += buffer.getInt(offset + 4);
+    }
+
+    buffer.putInt(offset + 20, 0x80000004);
+    buffer.clear();
+    raf.getChannel().write(buffer, 0);
+    raf.close();
+
+    final PcapReader reader = new PcapReader(file);
+
+    try {
+      reader.next();
+      fail("Read a packet with a negative length.");
+    } catch (final IOException e) {
+      assertTrue(e.getMessage().startsWith("Bad packet length"));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testClassicPcap() throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(24 + 2 * (16 + 4)).order(ByteOrder.LITTLE_ENDIAN);
+
+    buffer.putInt(0xA1B2C3D4).putShort((short) 2).putShort((short) 4);
+    buffer.putInt(0).putInt(0).putInt(65535).putInt(PcapReader.LINKTYPE_ETHERNET);
+
+    for (int i = 0; i < 2; ++i) {
+      buffer.putInt(1000 + i).putInt(500).putInt(4).putInt(60);
+      buffer.put(new byte[] { 1, 2, 3, (byte) i });
+    }
+
+    final File file = folder.newFile("classic.pcap");
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write(buffer.array());
+    out.close();
+
+    final PcapReader reader = new PcapReader(file);
+    final byte[] data = new byte[4];
+
+    try {
+      assertFalse(reader.isPcapNg());
+
+      for (int i = 0; i < 2; ++i) {
+        assertTrue(reader.next());
+        assertEquals(PcapReader.LINKTYPE_ETHERNET, reader.getLinkType());
+        assertEquals((1000L + i) * 1000000000L + 500000L, reader.getTimestampNanos());
+        assertEquals(60, reader.getOriginalLength());
+        assertEquals(4, reader.getPacket(data, 0));
+        assertArrayEquals(new byte[] { 1, 2, 3, (byte) i }, data);
+      }
+
+      assertFalse(reader.next());
+      reader.rewind();
+      assertTrue(reader.next());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testSynthesizedIPv6Header() throws IOException {
+    final PcapNgWriter writer = new PcapNgWriter(prefix(), 1 << 16, 0, 1500);
+    final byte[] source = InetAddress.getByName("::1").getAddress();
+    final byte[] payload = { (byte) 128, 0, 0, 0, 1, 2, 3, 4 };
+
+    writer.capture(PF_INET6, 58, payload, 0, payload.length, source, null);
+    writer.close();
+
+    final PcapReader reader = new PcapReader(writer.getFiles().get(0));
+    final byte[] data = new byte[48];
+
+    try {
+      assertTrue(reader.next());
+      assertEquals(48, reader.getPacket(data, 0));
+      assertEquals(0x60, data[0] & 0xf0);
+      assertEquals(payload.length, (data[4] & 0xff) << 8 | (data[5] & 0xff));
+      assertEquals(58, data[6]);
+      assertArrayEquals(source, Arrays.copyOfRange(data, 8, 24));
+      assertArrayEquals(payload, Arrays.copyOfRange(data, 40, 48));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testSocketCapture() throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final PcapNgWriter writer = new PcapNgWriter(prefix());
+    final RawSocket socket = new RawSocket();
+    final byte[] request = new byte[16];
+    final byte[] reply = new byte[128];
+    int length;
+
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+
+    try {
+      socket.setReceiveTimeout(2000);
+      socket.setCaptureSink(writer);
+
+      request[0] = 8;
+      InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+      socket.write(localhost, request);
+
+      do {
+        length = socket.read(reply);
+      } while (reply[20] != 0);
+    } finally {
+      socket.close();
+      writer.close();
+    }
+
+    final PcapReader reader = new PcapReader(writer.getFiles().get(0));
+    final byte[] data = new byte[128];
+    boolean found = false;
+
+    try {
+      while (reader.next()) {
+        final int captured = reader.getPacket(data, 0);
+
+        if (captured == length && data[20] == 0) {
+          assertArrayEquals(Arrays.copyOf(reply, length), Arrays.copyOf(data, length));
+          found = true;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    assertTrue(found);
+    assertEquals(0, writer.getDroppedCount());
+  }
+
+  @Test
+  public void testPooledSocketCapture() throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final PcapNgWriter writer = new PcapNgWriter(prefix());
+    final PacketBufferPool pool = new PacketBufferPool();
+    final PacketBuffer[] packets = { pool.acquire(), pool.acquire(), pool.acquire() };
+    final byte[] addresses = new byte[4 * packets.length];
+    final RawSocket socket = new RawSocket();
+    final byte[] request = new byte[16];
+
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+
+    try {
+      socket.setICMPFilter(~(1 << 8));
+      socket.setReceiveTimeout(2000);
+      socket.setCaptureSink(writer);
+
+      request[0] = 8;
+      for (int i = 0; i < packets.length; ++i) {
+        request[7] = (byte) i;
+        request[2] = request[3] = 0;
+        InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+        socket.write(localhost, request);
+      }
+
+      // One packet through the single direct read, the rest in batches.
+      final ByteBuffer first = packets[0].buffer();
+      first.limit(64);
+      assertEquals(36, socket.read(first, new byte[4]));
+      assertEquals(36, first.position());
+      assertEquals(64, first.limit());
+
+      for (int read = 1; read < packets.length; ) {
+        read += socket.read(packets, addresses, read, packets.length - read);
+      }
+    } finally {
+      socket.close();
+      writer.close();
+    }
+
+    final PcapReader reader = new PcapReader(writer.getFiles().get(0));
+    final byte[] data = new byte[64];
+
+    try {
+      for (final PacketBuffer packet : packets) {
+        final ByteBuffer buffer = packet.buffer();
+        final byte[] expected = new byte[buffer.position()];
+
+        buffer.flip();
+        buffer.get(expected);
+        assertTrue(reader.next());
+        assertEquals(expected.length, reader.getPacket(data, 0));
+        assertArrayEquals(expected, Arrays.copyOf(data, expected.length));
+        packet.release();
+      }
+      assertFalse(reader.next());
+    } finally {
+      reader.close();
+    }
+
+    assertEquals(0, writer.getDroppedCount());
+  }
+}
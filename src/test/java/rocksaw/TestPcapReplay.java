@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.pcap.PcapNgWriter;
+import com.savarese.rocksaw.pcap.PcapReplay;
+import com.savarese.rocksaw.pcap.ReplayStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPcapReplay {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private InetAddress localhost;
+  private DatagramSocket receiver;
+  private RawSocket socket;
+
+  @Before
+  public void setUp() throws IOException {
+    localhost = InetAddress.getByName("127.0.0.1");
+    receiver = new DatagramSocket(0, localhost);
+    receiver.setSoTimeout(2000);
+    receiver.setReceiveBufferSize(1 << 20);
+    socket = new RawSocket();
+    socket.open(PF_INET, PcapReplay.IPPROTO_RAW);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    receiver.close();
+    socket.close();
+  }
+
+  /** Builds an IPv4/UDP packet with valid checksums. */
+  private static byte[] udp(final byte[] source, final byte[] destination, final int port, final int sequence) {
+    final byte[] packet = new byte[20 + 8 + 4];
+    final int udpLength = packet.length - 20;
+
+    packet[0] = 0x45;
+    packet[2] = (byte) (packet.length >>> 8);
+    packet[3] = (byte) packet.length;
+    packet[8] = 64;
+    packet[9] = 17;
+    System.arraycopy(source, 0, packet, 12, 4);
+    System.arraycopy(destination, 0, packet, 16, 4);
+    InternetChecksum.computeChecksum(packet, 0, 20, 10, 0);
+
+    packet[20] = (byte) 0x27;
+    packet[21] = (byte) 0x0f;
+    packet[22] = (byte) (port >>> 8);
+    packet[23] = (byte) port;
+    packet[24] = (byte) (udpLength >>> 8);
+    packet[25] = (byte) udpLength;
+    packet[28] = (byte) (sequence >>> 24);
+    packet[29] = (byte) (sequence >>> 16);
+    packet[30] = (byte) (sequence >>> 8);
+    packet[31] = (byte) sequence;
+    InternetChecksum.computeChecksum(packet, 20, udpLength, 26,
+                                     InternetChecksum.pseudoHeaderSum(source, destination, 17, udpLength));
+
+    return packet;
+  }
+
+  private List<File> record(final byte[] destination, final int count, final long gapNanos) throws IOException {
+    final PcapNgWriter writer = new PcapNgWriter(new File(folder.getRoot(), "replay").getPath());
+
+    for (int i = 0; i < count; ++i) {
+      final byte[] packet = udp(localhost.getAddress(), destination, receiver.getLocalPort(), i);
+      writer.write(1000000000L + i * gapNanos, packet, 0, packet.length);
+    }
+
+    writer.close();
+    return writer.getFiles();
+  }
+
+  private void receive(final int count) throws IOException {
+    final DatagramPacket datagram = new DatagramPacket(new byte[64], 64);
+
+    for (int i = 0; i < count; ++i) {
+      receiver.receive(datagram);
+      assertEquals(4, datagram.getLength());
+      assertEquals(i, (datagram.getData()[3] & 0xff) | (datagram.getData()[2] & 0xff) << 8);
+    }
+  }
+
+  @Test
+  public void testMaxRateOverLoopback() throws IOException {
+    final int count = 200;
+    final PcapReplay replay = new PcapReplay(socket);
+
+    replay.setMode(PcapReplay.Mode.MAX_RATE);
+    replay.setBatchSize(16);
+
+    final ReplayStatistics stats = replay.replay(record(localhost.getAddress(), count, 1000000L));
+
+    assertEquals(count, stats.getPacketCount());
+    assertEquals(count * 32L, stats.getByteCount());
+    assertEquals(0, stats.getSkippedCount());
+    assertEquals(0, stats.getFailedCount());
+    assertTrue(stats.getPacketsPerSecond() > 0);
+    assertTrue(stats.getGigabitsPerSecond() > 0);
+    receive(count);
+  }
+
+  @Test
+  public void testTiming() throws IOException {
+    final List<File> files = record(localhost.getAddress(), 5, 50000000L);
+    final PcapReplay replay = new PcapReplay(socket);
+
+    final ReplayStatistics original = replay.replay(files);
+    receive(5);
+    assertTrue(original.getElapsedNanos() >= 200000000L);
+
+    replay.setMode(PcapReplay.Mode.SCALED);
+    replay.setSpeed(4.0);
+
+    final ReplayStatistics scaled = replay.replay(files);
+    receive(5);
+    assertTrue(scaled.getElapsedNanos() >= 50000000L);
+    assertTrue(scaled.getElapsedNanos() < original.getElapsedNanos());
+  }
+
+  @Test
+  public void testDestinationRewrite() throws IOException {
+    final RawSocket sniffer = new RawSocket();
+    final byte[] packet = new byte[128];
+    final PcapReplay replay = new PcapReplay(socket);
+
+    sniffer.open(PF_INET, 17);
+
+    try {
+      sniffer.setReceiveTimeout(2000);
+      replay.setMode(PcapReplay.Mode.MAX_RATE);
+      replay.setDestination(localhost);
+      assertEquals(1, replay.replay(record(new byte[] { 10, 9, 8, 7 }, 1, 0)).getPacketCount());
+      receive(1);
+
+      int length;
+      do {
+        length = sniffer.read(packet);
+      } while (((packet[22] & 0xff) << 8 | (packet[23] & 0xff)) != receiver.getLocalPort());
+
+      final byte[] destination = Arrays.copyOfRange(packet, 16, 20);
+      assertArrayEquals(localhost.getAddress(), destination);
+      assertEquals(0, InternetChecksum.checksum(packet, 0, 20));
+      assertEquals(0, InternetChecksum.finish(
+        InternetChecksum.sum(packet, 20, length - 20,
+                             InternetChecksum.pseudoHeaderSum(Arrays.copyOfRange(packet, 12, 16), destination, 17, length - 20))));
+    } finally {
+      sniffer.close();
+    }
+  }
+
+  @Test
+  public void testSkipsNonIPv4() throws IOException {
+    final PcapNgWriter writer = new PcapNgWriter(new File(folder.getRoot(), "bad").getPath());
+    final byte[] good = udp(localhost.getAddress(), localhost.getAddress(), receiver.getLocalPort(), 0);
+
+    writer.write(0, new byte[] { 0x60, 0, 0, 0 }, 0, 4);
+    writer.write(0, good, 0, good.length - 1);
+    writer.write(0, good, 0, good.length);
+    writer.close();
+
+    final PcapReplay replay = new PcapReplay(socket);
+    replay.setMode(PcapReplay.Mode.MAX_RATE);
+
+    final ReplayStatistics stats = replay.replay(writer.getFiles());
+    assertEquals(1, stats.getPacketCount());
+    assertEquals(2, stats.getSkippedCount());
+    receive(1);
+  }
+}
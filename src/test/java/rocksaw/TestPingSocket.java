@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.PacketBuffer;
+import com.savarese.rocksaw.net.PacketBufferPool;
+import com.savarese.rocksaw.net.RawSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pings localhost through {@link RawSocket#openICMP}, which uses a ping socket
+ * where net.ipv4.ping_group_range allows it and a raw socket otherwise. Either
+ * way, reads must look like raw IPv4 reads.
+ */
+public class TestPingSocket {
+  private InetAddress localhost;
+  private RawSocket socket;
+
+  @Before
+  public void setUp() throws IOException {
+    localhost = InetAddress.getByName("127.0.0.1");
+    socket = new RawSocket();
+    socket.openICMP(PF_INET);
+    socket.setReceiveTimeout(2000);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    socket.close();
+  }
+
+  private static byte[] echoRequest(final int sequence) {
+    final byte[] packet = new byte[16];
+
+    packet[0] = 8;
+    packet[4] = 0x43;
+    packet[5] = 0x21;
+    packet[6] = (byte) (sequence >>> 8);
+    packet[7] = (byte) sequence;
+    InternetChecksum.computeChecksum(packet, 0, packet.length, 2, 0);
+
+    return packet;
+  }
+
+  private void checkReply(final byte[] packet, final int length, final byte[] source, final int sequence)
+    throws IOException {
+    assertEquals(36, length);
+    assertEquals(0x45, packet[0]);
+    assertEquals(length, (packet[2] & 0xff) << 8 | (packet[3] & 0xff));
+    assertEquals(RawSocket.IPPROTO_ICMP, packet[9]);
+    assertEquals(0, InternetChecksum.checksum(packet, 0, 20));
+    assertArrayEquals(localhost.getAddress(), source);
+    assertArrayEquals(source, Arrays.copyOfRange(packet, 12, 16));
+    assertEquals(0, InternetChecksum.checksum(packet, 20, 16));
+    assertEquals(sequence, (packet[26] & 0xff) << 8 | (packet[27] & 0xff));
+
+    if (socket.isPingSocket()) {
+      assertEquals(socket.getICMPIdentifier(), (packet[24] & 0xff) << 8 | (packet[25] & 0xff));
+    }
+  }
+
+  @Test
+  public void testPing() throws IOException {
+    final byte[] packet = new byte[128];
+    final byte[] source = new byte[4];
+
+    socket.write(localhost, echoRequest(1));
+
+    int length;
+    do {
+      // A raw socket also sees the request itself.
+      length = socket.read(packet, source);
+    } while (!socket.isPingSocket() && packet[20] != 0);
+
+    checkReply(packet, length, source, 1);
+  }
+
+  @Test
+  public void testPooledRead() throws IOException {
+    final PacketBufferPool pool = new PacketBufferPool();
+    final PacketBuffer[] packets = { pool.acquire() };
+    final byte[] address = new byte[4];
+    final byte[] packet = new byte[36];
+
+    try {
+      socket.write(localhost, echoRequest(2));
+
+      ByteBuffer buffer;
+      do {
+        packets[0].buffer().clear();
+        assertEquals(1, socket.read(packets, address, 0, 1));
+        buffer = packets[0].buffer();
+      } while (!socket.isPingSocket() && buffer.get(20) != 0);
+
+      buffer.flip();
+      final int length = buffer.remaining();
+      buffer.get(packet, 0, Math.min(length, packet.length));
+      checkReply(packet, length, address, 2);
+    } finally {
+      packets[0].release();
+    }
+  }
+}
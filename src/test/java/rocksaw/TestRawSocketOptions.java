@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.net.RawSocketOption;
+import com.savarese.rocksaw.net.RawSocketOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRawSocketOptions {
+  private RawSocket socket;
+
+  @Before
+  public void open() throws IOException {
+    socket = new RawSocket();
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+  }
+
+  @After
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  @Test
+  public void testIntOption() throws IOException {
+    socket.setOption(RawSocketOptions.IP_TTL, 17);
+    assertEquals(17, (int) socket.getOption(RawSocketOptions.IP_TTL));
+  }
+
+  @Test
+  public void testLegacyAccessorsOnClosedSocket() {
+    final RawSocket closed = new RawSocket();
+
+    try {
+      closed.setReceiveBufferSize(4096);
+      fail("Set an option on a closed socket.");
+    } catch (final SocketException e) {
+      // Expected, as before setOption existed.
+    }
+
+    try {
+      closed.getReceiveTimeout();
+      fail("Got an option from a closed socket.");
+    } catch (final SocketException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testBooleanOption() throws IOException {
+    socket.setIPHeaderInclude(true);
+    assertTrue(socket.getIPHeaderInclude());
+    assertTrue(socket.getOption(RawSocketOptions.IP_HDRINCL));
+    socket.setOption(RawSocketOptions.IP_HDRINCL, false);
+    assertFalse(socket.getIPHeaderInclude());
+  }
+
+  @Test
+  public void testTimeoutOption() throws IOException {
+    socket.setReceiveTimeout(1500);
+    assertEquals(1500, socket.getReceiveTimeout());
+    assertEquals(1500, (int) socket.getOption(RawSocketOptions.SO_RCVTIMEO));
+  }
+
+  @Test
+  public void testCachedValueIsKernelValue() throws IOException {
+    final int requested = 65536;
+
+    socket.setReceiveBufferSize(requested);
+
+    // The cache must hold what the kernel reports (Linux doubles it), not
+    // what was requested.
+    final int cached = socket.getReceiveBufferSize();
+    final RawSocketOption<Integer> uncached = RawSocketOptions.SO_RCVBUF.uncached();
+
+    assertEquals((int) socket.getOption(uncached), cached);
+    assertEquals(cached, (int) socket.getOption(StandardSocketOptions.SO_RCVBUF));
+  }
+
+  @Test
+  public void testBytesOption() throws IOException {
+    final RawSocketOption<byte[]> ttl = RawSocketOption.bytesOption("IP_TTL", RawSocketOptions.IP_TTL.level(), RawSocketOptions.IP_TTL.option());
+
+    socket.setOption(RawSocketOptions.IP_TTL, 33);
+
+    final byte[] value = socket.getOption(ttl);
+
+    assertEquals(4, value.length);
+    assertTrue(value[0] == 33 || value[3] == 33);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testUnsupportedStandardOption() throws IOException {
+    socket.getOption(StandardSocketOptions.TCP_NODELAY);
+  }
+}
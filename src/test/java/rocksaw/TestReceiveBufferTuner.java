@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.net.ReceiveBufferTuner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link ReceiveBufferTuner} with a raw socket that receives its own
+ * packets over loopback, using an otherwise unused protocol number.
+ */
+public class TestReceiveBufferTuner {
+  private static final int PROTOCOL = 253;
+
+  private RawSocket socket;
+
+  @Before
+  public void setUp() throws IOException {
+    socket = new RawSocket();
+    socket.open(PF_INET, PROTOCOL);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    socket.close();
+  }
+
+  private static int rmemMax() throws IOException {
+    // Files.readAllBytes stops after the first read of a sysctl file.
+    final BufferedReader reader =
+      new BufferedReader(new FileReader("/proc/sys/net/core/rmem_max"));
+
+    try {
+      return Integer.parseInt(reader.readLine().trim());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testGrowsOnDrops() throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final byte[] data = new byte[1000];
+    final ReceiveBufferTuner tuner = new ReceiveBufferTuner(socket, 4096, 1 << 20);
+
+    socket.setReceiveBufferSize(4096);
+    assertEquals(4096, tuner.adjust());
+    assertEquals(4096, tuner.adjust());
+
+    for (int i = 0; i < 100; ++i) {
+      socket.write(localhost, data);
+    }
+
+    assertEquals(8192, tuner.adjust());
+    assertTrue(tuner.getDropCount() > 0);
+    assertFalse(tuner.isCapped());
+    assertEquals(8192, tuner.getGrantedSize());
+  }
+
+  @Test
+  public void testShrinksWhenIdle() throws IOException {
+    final ReceiveBufferTuner tuner = new ReceiveBufferTuner(socket, 16384, 1 << 20);
+
+    tuner.setShrinkDelay(2);
+    socket.setReceiveBufferSize(65536);
+    assertEquals(65536, tuner.adjust());
+    assertEquals(65536, tuner.adjust());
+    assertEquals(32768, tuner.adjust());
+    assertEquals(32768, tuner.adjust());
+    assertEquals(16384, tuner.adjust());
+
+    for (int i = 0; i < 4; ++i) {
+      assertEquals(16384, tuner.adjust());
+    }
+
+    assertEquals(0, tuner.getDropCount());
+  }
+
+  @Test
+  public void testCappedByRmemMax() throws IOException {
+    final int limit = rmemMax();
+    final ReceiveBufferTuner tuner = new ReceiveBufferTuner(socket, 2 * limit, 4 * limit);
+
+    assertEquals(2 * limit, tuner.adjust());
+    assertTrue(tuner.isCapped());
+    assertEquals(limit, tuner.getGrantedSize());
+
+    final ReceiveBufferTuner forced = new ReceiveBufferTuner(socket, 2 * limit, 4 * limit);
+
+    forced.setForce(true);
+    forced.adjust();
+
+    // Without CAP_NET_ADMIN the tuner falls back to SO_RCVBUF.
+    assertEquals(!forced.getForce(), forced.isCapped());
+  }
+}
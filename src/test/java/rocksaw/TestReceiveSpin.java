@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.net.SpinBackoff;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestReceiveSpin {
+
+  @Test
+  public void testSpinReceiveTimesOut() throws IOException {
+    final RawSocket socket = new RawSocket();
+    final int timeout = 50;
+
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+
+    try {
+      try {
+        // Block every ICMP type so that nothing can arrive.
+        socket.setICMPFilter(~0);
+      } catch (final UnsupportedOperationException uoe) {
+        return;
+      }
+
+      socket.setReceiveSpin(new SpinBackoff(100, 10, 1000L, 1000000L));
+      socket.setReceiveTimeout(timeout);
+
+      final long start = System.nanoTime();
+
+      try {
+        socket.read(new byte[128]);
+        fail("Expected the read to time out.");
+      } catch (final InterruptedIOException iioe) {
+        final long elapsed = (System.nanoTime() - start) / 1000000L;
+
+        assertTrue("Timed out after " + elapsed + " ms", elapsed >= timeout);
+      }
+    } finally {
+      socket.close();
+    }
+  }
+}
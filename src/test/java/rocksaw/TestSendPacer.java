@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.InternetChecksum;
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.net.SendPacer;
+import com.savarese.rocksaw.net.TokenBucket;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestSendPacer {
+  private static final long MS = 1000000L;
+
+  @Test
+  public void testBurstThenRate() {
+    final TokenBucket bucket = new TokenBucket(1000, 5);
+    final long now = System.nanoTime() + MS;
+
+    for (int i = 0; i < 5; ++i) {
+      assertEquals(now, bucket.reserve(1, now));
+    }
+
+    assertEquals(now + MS, bucket.reserve(1, now));
+    assertEquals(now + 2 * MS, bucket.reserve(1, now));
+    assertFalse(bucket.tryReserve(1, now + MS));
+    assertTrue(bucket.tryReserve(1, now + 10 * MS));
+    // Idle time refills the bucket but never beyond its burst.
+    assertEquals(now + 100 * MS, bucket.reserve(5, now + 100 * MS));
+    assertEquals(now + 101 * MS, bucket.reserve(1, now + 100 * MS));
+  }
+
+  @Test
+  public void testHierarchy() {
+    final TokenBucket global = new TokenBucket(1000, 1);
+    final TokenBucket a = new TokenBucket(1000000, 10, global);
+    final TokenBucket b = new TokenBucket(1000000, 10, global);
+    final long now = System.nanoTime() + MS;
+
+    // The children admit bursts, but the parent spaces everything.
+    assertEquals(now, a.reserve(1, now));
+    assertEquals(now + MS, b.reserve(1, now));
+    assertEquals(now + 2 * MS, a.reserve(1, now));
+    // A refused child leaves the parent untouched.
+    final TokenBucket slow = new TokenBucket(1, 1, global);
+    assertTrue(slow.tryReserve(1, now + 10 * MS));
+    assertFalse(slow.tryReserve(1, now + 20 * MS));
+    assertEquals(now + 20 * MS, a.reserve(1, now + 20 * MS));
+  }
+
+  @Test
+  public void testDestinationBuckets() throws IOException {
+    final SendPacer pacer = new SendPacer(null, 1e6, 100);
+    final byte[] first = { 10, 0, 0, 1 };
+    final byte[] second = { 10, 0, 0, 2 };
+
+    assertSame(pacer.getGlobalBucket(), pacer.getBucket(first));
+    pacer.setDestinationRate(100, 1, 1024);
+    assertSame(pacer.getBucket(first), pacer.getBucket(first.clone()));
+    assertNotSame(pacer.getBucket(first), pacer.getBucket(second));
+    assertSame(pacer.getGlobalBucket(), pacer.getBucket(first).getParent());
+
+    // Two destinations at 100 pps each: each is limited, the pair is not.
+    final long start = System.nanoTime();
+    for (int i = 0; i < 3; ++i) {
+      pacer.acquire(first, 1);
+      pacer.acquire(second, 1);
+    }
+    assertTrue(System.nanoTime() - start >= 20 * MS);
+
+    // Reservations for one destination do not delay the other.
+    final long later = System.nanoTime() + 1000 * MS;
+    assertEquals(later, pacer.getBucket(first).reserve(1, later));
+    assertEquals(later, pacer.getBucket(second).reserve(1, later));
+    assertEquals(later + 10 * MS, pacer.getBucket(first).reserve(1, later));
+  }
+
+  @Test
+  public void testPacedWrites() throws IOException {
+    final InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    final RawSocket socket = new RawSocket();
+    final byte[] request = new byte[16];
+    final int count = 100;
+
+    request[0] = 8;
+    InternetChecksum.computeChecksum(request, 0, request.length, 2, 0);
+    socket.open(PF_INET, RawSocket.getProtocolByName("icmp"));
+
+    try {
+      socket.setICMPFilter(-1);
+
+      SendPacer pacer = new SendPacer(socket, 2000, 1);
+      long start = System.nanoTime();
+      for (int i = 0; i < count; ++i) {
+        assertEquals(request.length, pacer.write(localhost, request));
+      }
+      assertTrue(System.nanoTime() - start >= (count - 1) * MS / 2);
+
+      final byte[] data = new byte[count * request.length];
+      final int[] offsets = new int[count];
+      final int[] lengths = new int[count];
+      final byte[] addresses = new byte[count * 4];
+
+      for (int i = 0; i < count; ++i) {
+        System.arraycopy(request, 0, data, i * request.length, request.length);
+        System.arraycopy(localhost.getAddress(), 0, addresses, i * 4, 4);
+        offsets[i] = i * request.length;
+        lengths[i] = request.length;
+      }
+
+      pacer = new SendPacer(socket, 5000, 10);
+      start = System.nanoTime();
+      assertEquals(count, pacer.write(data, offsets, lengths, addresses, count));
+      assertTrue(System.nanoTime() - start >= (count - 10) * MS / 5);
+    } finally {
+      socket.close();
+    }
+  }
+}
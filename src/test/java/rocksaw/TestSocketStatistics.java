@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.RawSocket;
+import com.savarese.rocksaw.net.SocketStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the statistics of a raw socket with an otherwise unused protocol
+ * number, which receives its own packets over loopback.
+ */
+public class TestSocketStatistics {
+  private static final int PROTOCOL = 253;
+
+  private InetAddress localhost;
+  private RawSocket socket;
+
+  @Before
+  public void setUp() throws IOException {
+    localhost = InetAddress.getByName("127.0.0.1");
+    socket = new RawSocket();
+    socket.open(PF_INET, PROTOCOL);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    socket.close();
+  }
+
+  @Test
+  public void testStatistics() throws IOException {
+    final byte[] data = new byte[100];
+    final byte[] packet = new byte[256];
+
+    for (int i = 0; i < 10; ++i) {
+      socket.write(localhost, data);
+    }
+
+    final SocketStatistics queued = socket.getStatistics();
+    assertEquals(120, queued.getReceiveQueueLength());
+    assertTrue(queued.getReceiveBufferUsed() >= 10 * 120);
+    assertTrue(queued.getReceiveBufferSize() > 0);
+    assertEquals(0, queued.getDropCount());
+
+    socket.setReceiveTimeout(2000);
+
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(120, socket.read(packet));
+    }
+
+    final SocketStatistics drained = socket.getStatistics();
+    assertEquals(0, drained.getReceiveQueueLength());
+    assertEquals(0, drained.getReceiveBufferUsed());
+  }
+
+  @Test
+  public void testDropCount() throws IOException {
+    final byte[] data = new byte[1000];
+
+    socket.setReceiveBufferSize(1);
+
+    for (int i = 0; i < 100; ++i) {
+      socket.write(localhost, data);
+    }
+
+    assertTrue(socket.getStatistics().getDropCount() > 0);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.XdpSocket;
+import com.savarese.rocksaw.net.XdpStatistics;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests {@link XdpSocket}. The round trip test needs a veth pair that is up,
+ * given as {@code -Drocksaw.xdp.veth=veth0,veth1}; frames are sent on the
+ * second device and received on the first in generic (SKB) mode.
+ */
+public class TestXdpSocket {
+  private static final String VETH = System.getProperty("rocksaw.xdp.veth");
+  private static final int ETHERTYPE = 0x88b5;
+
+  @Before
+  public void setUp() {
+    assumeTrue(XdpSocket.isSupported());
+  }
+
+  @Test
+  public void testFrames() throws IOException {
+    final XdpSocket socket = new XdpSocket();
+
+    socket.open(64, 2048, 32);
+
+    try {
+      assertTrue(socket.isOpen());
+      assertEquals(64 * 2048, socket.getUmem().capacity());
+      assertEquals(32, socket.getFreeFrameCount());
+
+      final long[] frames = new long[40];
+      assertEquals(32, socket.allocate(frames, 0, frames.length));
+      for (int i = 0; i < 32; ++i) {
+        assertEquals((32 + i) * 2048L, frames[i]);
+      }
+      assertEquals(0, socket.allocate(frames, 0, 1));
+      assertEquals(0, socket.receive(frames, new int[40], 0, 40));
+      assertNotNull(socket.getStatistics());
+    } finally {
+      socket.close();
+    }
+
+    assertFalse(socket.isOpen());
+    socket.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidFrameSize() throws IOException {
+    new XdpSocket().open(64, 1000, 32);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidRingSize() throws IOException {
+    new XdpSocket().open(64, 2048, 24);
+  }
+
+  @Test(expected = IOException.class)
+  public void testBindUnknownDevice() throws IOException {
+    final XdpSocket socket = new XdpSocket();
+
+    socket.open(64, 2048, 32);
+
+    try {
+      socket.bind("rocksaw-none", 0);
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static void frame(final ByteBuffer umem, final int offset, final int sequence) {
+    for (int i = 0; i < 6; ++i) {
+      umem.put(offset + i, (byte) 0xff);
+      umem.put(offset + 6 + i, (byte) (i == 0 ? 0x02 : i));
+    }
+    umem.putShort(offset + 12, (short) ETHERTYPE);
+    umem.putInt(offset + 14, sequence);
+  }
+
+  @Test
+  public void testVethRoundTrip() throws IOException {
+    assumeTrue(VETH != null);
+
+    final String[] devices = VETH.split(",");
+    final int count = 16;
+    final XdpSocket receiver = new XdpSocket();
+    final XdpSocket sender = new XdpSocket();
+
+    receiver.open();
+    sender.open();
+
+    try {
+      receiver.bind(devices[0], 0, XdpSocket.Mode.SKB, true);
+      sender.bind(devices[1], 0, XdpSocket.Mode.SKB, false);
+
+      final long[] frames = new long[count];
+      final int[] lengths = new int[count];
+
+      assertEquals(count, sender.allocate(frames, 0, count));
+      for (int i = 0; i < count; ++i) {
+        frame(sender.getUmem(), (int) frames[i], i);
+        lengths[i] = 60;
+      }
+      assertEquals(count, sender.transmit(frames, lengths, 0, count));
+
+      final boolean[] seen = new boolean[count];
+      final long[] addresses = new long[count];
+      final ByteBuffer umem = receiver.getUmem();
+      final long deadline = System.nanoTime() + 2000000000L;
+      int received = 0;
+
+      while (received < count && System.nanoTime() < deadline) {
+        if (!receiver.poll(100)) {
+          continue;
+        }
+
+        final int n = receiver.receive(addresses, lengths, 0, count);
+
+        for (int i = 0; i < n; ++i) {
+          final int offset = (int) addresses[i];
+
+          // Other traffic, such as IPv6 router solicitations, may arrive too.
+          if ((umem.getShort(offset + 12) & 0xffff) == ETHERTYPE) {
+            assertEquals(60, lengths[i]);
+            seen[umem.getInt(offset + 14)] = true;
+            ++received;
+          }
+        }
+
+        assertEquals(n, receiver.release(addresses, 0, n));
+      }
+
+      assertEquals(count, received);
+      for (final boolean s : seen) {
+        assertTrue(s);
+      }
+
+      final XdpStatistics stats = receiver.getStatistics();
+      assertEquals(0, stats.getRxInvalidCount());
+      assertEquals(0, sender.getStatistics().getTxInvalidCount());
+    } finally {
+      sender.close();
+      receiver.close();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.XdpSocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Measures the transmit and receive rates of {@link XdpSocket} over a veth
+ * pair. A sender bound to the second device transmits 60-byte Ethernet
+ * frames in batches for five seconds while a receiver bound to the first
+ * device counts and releases them on another thread. Both attach in the
+ * mode given as the third argument (SKB by default). Rates on a veth pair
+ * are bounded by the kernel's generic XDP path; a NIC in DRIVER mode is
+ * needed for the highest rates.
+ * </p>
+ * <p>
+ * This is not run as part of the test suite. Run it as root with:
+ * </p>
+ * <pre>
+ * mvn test-compile
+ * java -Djava.library.path=target/native -cp target/classes:target/test-classes \
+ *   rocksaw.XdpBenchmark veth0 veth1 [SKB|DRIVER]
+ * </pre>
+ */
+public class XdpBenchmark {
+  private static final int BATCH = 64;
+  private static final long DURATION = 5000000000L;
+
+  public static void main(final String[] args) throws IOException, InterruptedException {
+    final XdpSocket.Mode mode = (args.length > 2 ? XdpSocket.Mode.valueOf(args[2]) : XdpSocket.Mode.SKB);
+    final XdpSocket receiver = new XdpSocket();
+    final XdpSocket sender = new XdpSocket();
+    final long[] received = new long[1];
+
+    receiver.open();
+    sender.open();
+    receiver.bind(args[0], 0, mode, true);
+    sender.bind(args[1], 0, mode, false);
+
+    final Thread reader = new Thread(new Runnable() {
+      public void run() {
+        final long[] addresses = new long[BATCH];
+        final int[] lengths = new int[BATCH];
+
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            if (receiver.poll(100)) {
+              final int n = receiver.receive(addresses, lengths, 0, BATCH);
+              receiver.release(addresses, 0, n);
+              received[0] += n;
+            }
+          }
+        } catch (final IOException ioe) {
+          ioe.printStackTrace();
+        }
+      }
+    });
+
+    reader.start();
+
+    final ByteBuffer umem = sender.getUmem();
+    final long[] frames = new long[BATCH];
+    final int[] lengths = new int[BATCH];
+    final long start = System.nanoTime();
+    long sent = 0;
+    int pending = 0;
+
+    Arrays.fill(lengths, 60);
+
+    while (System.nanoTime() - start < DURATION) {
+      final int n = pending + sender.allocate(frames, pending, BATCH - pending);
+
+      for (int i = pending; i < n; ++i) {
+        final int offset = (int) frames[i];
+
+        umem.putLong(offset, 0xffffffffffff0200L);
+        umem.putInt(offset + 8, 0x00000001);
+        umem.putShort(offset + 12, (short) 0x88b5);
+      }
+
+      // Frames the TX ring had no room for are sent in the next round.
+      final int queued = sender.transmit(frames, lengths, 0, n);
+
+      System.arraycopy(frames, queued, frames, 0, n - queued);
+      pending = n - queued;
+      sent += queued;
+
+      if (queued == 0) {
+        Thread.yield();
+      }
+    }
+
+    final double elapsed = (System.nanoTime() - start) / 1e9;
+
+    Thread.sleep(200);
+    reader.interrupt();
+    reader.join();
+
+    System.out.printf("%s: sent %.0f pps, received %.0f pps%n", mode, sent / elapsed, received[0] / elapsed);
+    System.out.println("receiver: " + receiver.getStatistics());
+    System.out.println("sender:   " + sender.getStatistics());
+
+    sender.close();
+    receiver.close();
+  }
+}
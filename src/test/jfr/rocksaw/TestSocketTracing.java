@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.savarese.com/software/ApacheLicense-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rocksaw;
+
+import com.savarese.rocksaw.net.RawSocket;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.savarese.rocksaw.net.RawSocket.PF_INET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises a raw socket with an otherwise unused protocol number, which
+ * receives its own packets over loopback, and checks the Flight Recorder
+ * events it emits.
+ */
+public class TestSocketTracing {
+  private static final int PROTOCOL = 253;
+  private static final String PREFIX = "com.savarese.rocksaw.Socket";
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private InetAddress localhost;
+  private RawSocket socket;
+
+  @Before
+  public void setUp() throws IOException {
+    localhost = InetAddress.getByName("127.0.0.1");
+    socket = new RawSocket();
+    socket.open(PF_INET, PROTOCOL);
+    socket.setReceiveTimeout(2000);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (socket.isOpen()) {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testEvents() throws IOException, InterruptedException {
+    final byte[] data = new byte[36];
+    final byte[] packet = new byte[256];
+    final Recording recording = new Recording();
+    final Path file = folder.getRoot().toPath().resolve("rocksaw.jfr");
+    final RawSocket other = new RawSocket();
+
+    recording.enable(PREFIX + "Open");
+    recording.enable(PREFIX + "Close");
+    recording.enable(PREFIX + "Bind");
+    recording.enable(PREFIX + "Read").withoutThreshold();
+    recording.enable(PREFIX + "Write").withoutThreshold();
+    recording.enable(PREFIX + "Error");
+    recording.enable(PREFIX + "Statistics").withPeriod(Duration.ofMillis(100));
+    recording.start();
+
+    try {
+      other.open(PF_INET, PROTOCOL);
+      other.bind(localhost);
+      other.close();
+
+      // Enough for several samples at the default interval.
+      for (int i = 0; i < 256; ++i) {
+        socket.write(localhost, data);
+        assertEquals(56, socket.read(packet));
+      }
+
+      socket.setReceiveTimeout(1);
+
+      try {
+        socket.read(packet);
+        fail("Read did not time out.");
+      } catch (final InterruptedIOException e) {
+        // Expected.
+      }
+
+      Thread.sleep(500);
+    } finally {
+      recording.stop();
+    }
+
+    recording.dump(file);
+    recording.close();
+
+    final List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+    for (final RecordedEvent event : events) {
+      final String name = event.getEventType().getName();
+      final Integer count = counts.get(name);
+
+      counts.put(name, count == null ? 1 : count + 1);
+
+      if (name.equals(PREFIX + "Read")) {
+        assertEquals(56, event.getLong("bytes"));
+        assertEquals(1, event.getInt("packets"));
+        assertEquals(PROTOCOL, event.getInt("protocol"));
+        assertEquals("IPv4", event.getString("family"));
+      } else if (name.equals(PREFIX + "Write")) {
+        assertEquals(36, event.getLong("bytes"));
+      } else if (name.equals(PREFIX + "Error")) {
+        assertEquals("read", event.getString("operation"));
+        assertTrue(event.getBoolean("timeout"));
+        assertTrue(event.getInt("errno") != 0);
+      } else if (name.equals(PREFIX + "Bind")) {
+        assertEquals("127.0.0.1", event.getString("address"));
+      } else if (name.equals(PREFIX + "Statistics")) {
+        assertTrue(event.getLong("receiveBufferSize") > 0);
+      }
+    }
+
+    assertEquals(Integer.valueOf(1), counts.get(PREFIX + "Open"));
+    assertEquals(Integer.valueOf(1), counts.get(PREFIX + "Close"));
+    assertEquals(Integer.valueOf(1), counts.get(PREFIX + "Bind"));
+    assertEquals(Integer.valueOf(1), counts.get(PREFIX + "Error"));
+    assertTrue(counts.get(PREFIX + "Read") >= 2);
+    assertTrue(counts.get(PREFIX + "Read") < 256);
+    assertTrue(counts.get(PREFIX + "Write") >= 2);
+    assertTrue(counts.get(PREFIX + "Statistics") >= 2);
+  }
+}